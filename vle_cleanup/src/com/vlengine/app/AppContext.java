@@ -33,6 +33,7 @@
 package com.vlengine.app;
 
 import com.vlengine.app.frame.Frame;
+import com.vlengine.app.frame.FrameScheduler;
 import com.vlengine.app.state.GameStateNode;
 import com.vlengine.app.state.RenderPath;
 import com.vlengine.app.state.ThreadTaskManager;
@@ -49,6 +50,9 @@ import com.vlengine.resource.ResourceFinder;
 import com.vlengine.scene.CameraNode;
 import com.vlengine.scene.Node;
 import com.vlengine.scene.Text;
+import com.vlengine.scene.animation.AnimationLod;
+import com.vlengine.scene.animation.x.XPoseCache;
+import com.vlengine.scene.animation.x.XSkinningEngine;
 import com.vlengine.scene.control.UpdateContext;
 import com.vlengine.system.DisplaySystem;
 import com.vlengine.system.PropertiesIO;
@@ -93,6 +97,9 @@ public class AppContext {
    
     public Frame[] frame;
     
+    // schedules the processing of the frames
+    public FrameScheduler scheduler;
+    
     protected GameStateNode gameState;
     
     // the renderpath controlling renderpass setup
@@ -158,6 +165,16 @@ public class AppContext {
     
     public ThreadTaskManager glQueue;
     
+    // the software skinning engine, created on first use
+    protected XSkinningEngine skinning;
+    // the shared bone animation poses, created on first use
+    protected XPoseCache poseCache;
+    // the animation level of detail, created on first use
+    protected AnimationLod animLod;
+    
+    // the number of frames started
+    protected long frameCount = 0;
+    
     public AppContext() {}
     
     public void setRootGameState(GameStateNode state) {
@@ -244,6 +261,37 @@ public class AppContext {
         return rf;
     }
     
+    public synchronized XSkinningEngine getSkinningEngine() {
+        if(skinning == null)
+            skinning = new XSkinningEngine(conf.skinningThreads);
+        return skinning;
+    }
+    
+    /**
+     * Returns the pose cache, or null if it is disabled.
+     */
+    public synchronized XPoseCache getPoseCache() {
+        if(poseCache == null && conf.poseCacheSize > 0)
+            poseCache = new XPoseCache(conf.poseCacheSize, conf.poseCacheSteps);
+        return poseCache;
+    }
+    
+    /**
+     * Returns the animation level of detail, or null if it is disabled.
+     */
+    public synchronized AnimationLod getAnimationLod() {
+        if(animLod == null && conf.animLod)
+            animLod = new AnimationLod(conf);
+        return animLod;
+    }
+    
+    /**
+     * Returns the number of the next frame started.
+     */
+    public synchronized long createFrameCount() {
+        return ++frameCount;
+    }
+    
     public int genPassId() {
         return nextUserPassId++;
     }
@@ -79,6 +79,14 @@ public class Config {
     public boolean p_cleanche = true;
     // the path to cached dir root
     public String cache_path = System.getProperty("user.dir")+"/cache";
+    // threads of the background resource loader, for reading files
+    // and for creating the resources
+    public int resourceIoThreads = 1;
+    public int resourceDecodeThreads = 1;
+    // the memory budget in bytes for the loaded resources held by the 
+    // resource folders, least recently used ones are dropped above this,
+    // 0 for no limit
+    public long resourceCacheBudget = 256L * 1024 * 1024;
     
     public static final boolean p_storeshadersource = true;
 
@@ -87,6 +95,42 @@ public class Config {
     // 1 -software ( compute bones in software, morph vertices when needed)
     // 2 -GPU ( compute bones in software, do vertex morph on GPU )
     public int boneanim_type = 1;
+    // the number of threads used for software skinning, including the
+    // frame thread, skinning is parallel only if this is more than 1
+    public int skinningThreads = 1;
+    // the number of bone animation poses shared between the animated
+    // models, 0 disables the pose cache, a few hundred is enough for
+    // crowds playing the same animations
+    public int poseCacheSize = 0;
+    // the interpolation steps between two keyframes in the pose cache
+    public int poseCacheSteps = 16;
+    // the maximal allowed screen error in pixels when selecting model lods
+    // which have a known geometric error
+    public float lodPixelError = 2f;
+    // the size of the grid cells for static batching, the locked batches
+    // with same material in a cell are merged into one batch
+    public float staticBatchChunkSize = 64f;
+    // animation level of detail, bone animations of models not visible
+    // in the last frames are not updated, farther models are updated
+    // less frequently, and with fewer bones
+    public boolean animLod = false;
+    // the camera distance where the first reduced level starts, every
+    // next level starts at double distance, and updates half as often
+    public float animLodDistance = 30f;
+    // the number of reduced detail levels
+    public int animLodLevels = 3;
+    // from this level, bones deeper in the hierarchy than animLodBoneDepth
+    // keep their bind pose relative to their parent
+    public int animLodReducedLevel = 2;
+    public int animLodBoneDepth = 4;
+    // store loaded bone animations as quantized keys, keys which can be
+    // interpolated from their neighbours within the tolerances are dropped
+    public boolean animCompression = false;
+    // the maximum rotation error in radians
+    public float animCompressionAngle = 0.002f;
+    // the maximum translation and scale error
+    public float animCompressionTranslation = 0.001f;
+    public float animCompressionScale = 0.001f;
     // limit of bones for a single geometry
     // GPU's cant handle unlimited number of bones, so we need to break up
     // geometry into smaller parts, which dont reference more than the given number of bones
@@ -172,8 +216,28 @@ public class Config {
     
     public boolean nomultithread = true;
     
+    // the number of frames processed in parallel when multithreading,
+    // the update and culling of the next frame is done while the
+    // previous one is rendering (maximum is Frame.MAX_FRAMES)
+    public int framePipelineDepth = 2;
+    
+    // the number of threads used for culling the scene, including the
+    // frame thread, culling is parallel only if this is more than 1
+    // and multithreading is enabled
     public int maxCullThreads = 1;
     
+    // cull the scene against all the cameras waiting for culling
+    // (eg. the shadowmap splits) in a single traversal
+    public boolean multiViewCull = false;
+    
+    // sort the render queues by packed material/depth keys with
+    // radix sort, the opaque queue is then grouped by material
+    public boolean sortKeyQueues = false;
+    
+    // record the material binds and draws of the passes into a command
+    // buffer in the material stage, and replay it when rendering
+    public boolean renderCommandBuffer = false;
+    
     public boolean graphPostprocess = false;
     public boolean graphSSAO = false;
     public boolean graphBloom = false;
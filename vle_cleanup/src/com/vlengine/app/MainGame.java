@@ -33,6 +33,7 @@
 package com.vlengine.app;
 
 import com.vlengine.app.frame.Frame;
+import com.vlengine.app.frame.FrameScheduler;
 import com.vlengine.app.state.ForwardRenderPath;
 import com.vlengine.app.state.GameStateNode;
 import com.vlengine.app.state.ThreadTaskManager;
@@ -62,7 +63,6 @@ import com.vlengine.system.PropertiesDialog;
 import com.vlengine.system.PropertiesIO;
 import com.vlengine.system.VleException;
 import com.vlengine.thread.LocalContext;
-import com.vlengine.util.IntList;
 import com.vlengine.util.TextureManager;
 import com.vlengine.util.Timer;
 import java.util.logging.Level;
@@ -90,7 +90,6 @@ public abstract class MainGame {
      */
     public static String fontLocation = Text.DEFAULT_FONT;
 
-    protected IntList startedFrames = new IntList();
     /**
      * This is used to recieve getStatistics calls.
      */
@@ -186,54 +185,19 @@ public abstract class MainGame {
 
         app.frame[0].endFrame();
         */
-       // go over frames
         if(app.isMultithreaded()) {
-            boolean hasStarted = true;
-            startedFrames.clear();
-            
-            while(hasStarted) {
-                hasStarted = false;
-                
-                boolean hasNoStarted = true;
-                boolean hasEnded = false;
-                int readyFrame = -1;
-                for(int i=0; i<app.frame.length; i++) {
-                    int fstate = app.frame[i].getState();
-                    if(fstate==Frame.FRAME_FINISHED || fstate == Frame.FRAME_INCOMPLETE) {
-                        // a frame thats ready to process
-                        if(readyFrame == -1 && !startedFrames.contains(i)) {
-                            readyFrame = i;
-                        }
-                    } else if(fstate>Frame.FRAME_INCOMPLETE && fstate <Frame.FRAME_MATERIAL) {
-                        // we cannot yet start a frame
-                        hasNoStarted = false;
-                    } else if(fstate == Frame.FRAME_ENDED) {
-                        hasEnded = true;
-                    }
-                }
-                // do we have an ended frame?
-                if(hasEnded) {
-                    app.finished = true;
-                }
-                // can we start a frame?//
-                if(hasNoStarted && readyFrame >= 0) { // >=
-                    // is the thread started?
-                    if(app.frame[readyFrame].getState() == Frame.FRAME_INCOMPLETE) {
-                        new Thread(app.frame[readyFrame]).start();
-                        hasStarted = true;
-                        startedFrames.add(readyFrame);
-                    } else {
-                        // start given frame
-                        app.frame[readyFrame].setState(Frame.FRAME_STARTING);
-                    }
-                }
+            // start the frame threads, the scheduler takes care
+            // of the order of processing
+            for(int i=0; i<app.frame.length; i++) {
+                new Thread(app.frame[i], "Frame-"+i).start();
             }
-            
-            if(startedFrames.size()>0) {
-                for(int i=0; i<startedFrames.size(); i++) {
-                    app.frame[startedFrames.get(i)].setState(Frame.FRAME_STARTING);
+            // wait until the frames exit
+            while(!app.scheduler.awaitEnd(1000)) {
+                if(app.finished || app.display.isClosing()) {
+                    app.scheduler.shutdown();
                 }
             }
+            app.finished = true;
         } else {
             app.frame[0].setState(Frame.FRAME_STARTING);
             app.frame[0].run();
@@ -275,17 +239,9 @@ public abstract class MainGame {
                 }
                 app.finished = true;
                 // wait for threads to stop
-                if(LocalContext.isUseMultithreading()) {
-                    boolean allstopped = false;
-                    while(!allstopped) {
-                        allstopped = true;
-                        for(int i=0; i<app.frame.length; i++) {
-                            if(app.frame[i].getState()>Frame.FRAME_INCOMPLETE && app.frame[i].getState()<Frame.FRAME_ENDED) {
-                                allstopped = false;
-                            }
-                        }
-                        Thread.yield();
-                    }
+                if(app.isMultithreaded()) {
+                    app.scheduler.shutdown();
+                    app.scheduler.awaitEnd(5000);
                 }
             }
         } catch (Throwable t) {
@@ -393,13 +349,14 @@ public abstract class MainGame {
         //FrameCounter fc = new FrameCounter();
 
         if(LocalContext.isUseMultithreading()) 
-            app.frame = new Frame[Frame.MAX_FRAMES];
+            app.frame = new Frame[Math.max(1, Math.min(app.conf.framePipelineDepth, Frame.MAX_FRAMES))];
         else
             app.frame = new Frame[1];
         for(int i=0; i< app.frame.length; i++) {
             app.frame[i] = new Frame(i, app);
             //app.frame[i].setRenderer(DisplaySystem.getDisplaySystem().getRenderer());
         }
+        app.scheduler = new FrameScheduler(app.frame.length);
 
         //
 
@@ -585,6 +542,7 @@ public abstract class MainGame {
                 if (rf != null) {
                     rf.cleanup();
                 }
+                app.getSkinningEngine().shutdown();
             }
             if (app.display != null && app.display.getRenderer() != null) {
                 app.display.getRenderer().cleanup();
@@ -34,20 +34,24 @@ package com.vlengine.app.frame;
 
 import com.vlengine.app.AppContext;
 import com.vlengine.app.Config;
+import com.vlengine.renderer.RenderCommandBuffer;
 import com.vlengine.renderer.RenderContext;
 import com.vlengine.renderer.pass.PassManager;
 import com.vlengine.renderer.RenderQueue;
 import com.vlengine.renderer.CullContext;
 import com.vlengine.renderer.FrameBuffer;
+import com.vlengine.renderer.MultiViewCuller;
+import com.vlengine.renderer.ParallelCuller;
 import com.vlengine.renderer.ViewCamera;
 import com.vlengine.renderer.pass.RenderPass;
 import com.vlengine.scene.Node;
 import com.vlengine.scene.Renderable;
+import com.vlengine.scene.animation.AnimationLod;
+import com.vlengine.scene.animation.x.XPoseCache;
 import com.vlengine.scene.control.UpdateContext;
 import com.vlengine.scene.state.RenderState;
 import com.vlengine.scene.state.WireframeState;
 import com.vlengine.system.DisplaySystem;
-import com.vlengine.system.VleException;
 import com.vlengine.thread.LocalContext;
 import com.vlengine.util.FastList;
 import com.vlengine.util.Timer;
@@ -117,7 +121,7 @@ public class Frame implements Runnable {
     protected Node debugNode;
     
     // the counter of processed frame
-    //private long frameCount = 0;
+    private long frameCount = 0;
     // the time since last frame update
     private float time;
     
@@ -138,12 +142,13 @@ public class Frame implements Runnable {
     // wireframe state for enforcing wireframe rendering
     private WireframeState wireState;  
     
-    // the list of usable culler threads
-    protected FastList<Thread> freethread = new FastList<Thread>();
-    protected FastList<CullContext> freecontext = new FastList<CullContext>();
+    // the parallel culler, used if maxCullThreads is more than one
+    protected ParallelCuller culler;
     
-    // the list of used culler threads
-    protected FastList<CullContext> usedcontext = new FastList<CullContext>();
+    // the culler used to cull multiple cameras in one traversal
+    protected MultiViewCuller mvculler;
+    // the contexts for culling multiple cameras, sctx is used for the first
+    protected FastList<CullContext> viewcontext = new FastList<CullContext>();
     
     // the list of different cameras in the passes yet to culled agains
     protected FastList<ViewCamera> cameras = new FastList<ViewCamera>();
@@ -159,6 +164,9 @@ public class Frame implements Runnable {
     // rendercontext for rendering
     protected RenderContext rctx = new RenderContext();
     
+    // the draws of the passes recorded in FRAME_MATERIAL
+    protected RenderCommandBuffer commands = new RenderCommandBuffer();
+    
     // the list of batches which need to be prepared
     protected FastList<Renderable> preparable = new FastList<Renderable>();
 
@@ -169,12 +177,16 @@ public class Frame implements Runnable {
     protected boolean contextSet = false;
     
     protected FastList<FrameBuffer> drityFrames = new FastList<FrameBuffer>();
+    
+    // does this frame hold the update token of the scheduler
+    protected boolean holdsUpdate = false;
 
     public Frame(int id, AppContext appCtx) {
         frameId = id;
         //this.synch = synch;
         this.app = appCtx;
         queues = new RenderQueue(frameId);
+        queues.setSortKeys(app.conf.sortKeyQueues);
         if( !app.isMultithreaded()) {
             app.conf.maxCullThreads = 1;
         }
@@ -183,6 +195,11 @@ public class Frame implements Runnable {
     public int getFrameId() {
         return frameId;
     }
+    
+    // the number of this frame since the start of the application
+    public long getFrameCount() {
+        return frameCount;
+    }
         
     public ViewCamera getCamera() {
         return camera;
@@ -228,6 +245,10 @@ public class Frame implements Runnable {
         return uctx;
     }
     
+    public RenderCommandBuffer getCommandBuffer() {
+        return commands;
+    }
+    
     public RenderContext getRenderContext() {
         return rctx;
     }
@@ -236,66 +257,22 @@ public class Frame implements Runnable {
         return timer;
     }
     
-    public CullContext cullNode( CullContext parent, Node node, ViewCamera vcam ) {
-        CullContext child = null;
-        // pre-check if there is a free thread
-        // so if the pre-check fails, we dont synchronize
-        if(!freecontext.isEmpty() ||
-              usedcontext.size() < app.conf.maxCullThreads -1 ) {
-            synchronized( freecontext ) {
-                if( parent != null && ! freethread.isEmpty() ) {
-                    int idx = freecontext.size() - 1;
-                    child = freecontext.get(idx);
-                    freecontext.remove(idx);
-                    child.setState(parent, node);
-                    usedcontext.add(child);
-                } else if(usedcontext.size() < app.conf.maxCullThreads ) {
-                    // we can create a new thread
-                    child = new CullContext();
-                    if( parent == null )
-                        child.setState(this, node, vcam);
-                    else
-                        child.setState(parent, node);
-                    usedcontext.add(child);
-                    if( app.conf.maxCullThreads > 1 ) {
-                        Thread t = new Thread(child);
-                        child.setThread(t);
-                    }
-                }
-            }
-        }
-        return child;
-    }
-    
+    /**
+     * Merges the data gathered in a culling context into the frame.
+     * This method is only called from the frame thread, after the
+     * culling of the context is finished.
+     */
     public void merge( CullContext ctx ) {
-        // used by threads to pass prepared data
-        synchronized( passManager ) {
-            // extract data from the context
-            // merge passes
-            passManager.merge(ctx.getPassManager());
-            // merge queues
-            RenderQueue q=ctx.getQueueManager();
-            synchronized( q ) {
-                queues.merge( q );
-                q.clear();
-            }
-            // merge the list of batches needing preparing
-            preparable.addAll(ctx.getPrepareList());
-        }
-    }
-    
-    // a context reports its finished through this method
-    public void workFinished( CullContext ctx ) {
-        // used by threads to signal that they are finished
-        synchronized( freecontext ) {
-            int ci = usedcontext.indexOf(ctx);
-            if( ci == -1) {
-                throw new VleException("thread reporting workFinished not found in threads list");
-            } else {
-                usedcontext.remove(ci);
-                freecontext.add(ctx);
-            }
-        }
+        // extract data from the context
+        // merge passes
+        passManager.merge(ctx.getPassManager());
+        // merge queues
+        RenderQueue q=ctx.getQueueManager();
+        queues.merge( q );
+        q.clear();
+        // merge the list of batches needing preparing
+        preparable.addAll(ctx.getPrepareList());
+        ctx.getPrepareList().clear();
     }
     
     // clears all the previous data for the frame and starts a new frame
@@ -303,16 +280,13 @@ public class Frame implements Runnable {
 
         synchronized (app) {
             // get the new frame number
-            //frameCount = synch.createFrameCount();
+            frameCount = app.createFrameCount();
             // get all the data from synchronizer
             rootNode = app.getRootNode();
             debugNode=app.getDebugNode();
             camera=app.getCamera();
             timer=app.getTimer();
         }
-        // clear all the culling contexts
-        freecontext.addAll(usedcontext);
-        usedcontext.clear();
         // clear all the passes
         passManager.clear();
         // create the default passes
@@ -352,6 +326,12 @@ public class Frame implements Runnable {
         
         /** Update controllers/render states/transforms/bounds for rootNode. */
         rootNode.updateGeometricState(uctx, true);
+        
+        // skin the meshes whose bones changed
+        app.getSkinningEngine().skin(frameId);
+        XPoseCache poses = app.getPoseCache();
+        if(poses != null)
+            poses.endFrame();
     }
     
     // culls the screen with cameras from passes
@@ -374,33 +354,89 @@ public class Frame implements Runnable {
             }
         }
 
-        if( app.conf.maxCullThreads < 2 ) {
-            // go over every camera and cull separately
-            // note: we need to check against cameras.size() because
-            // new passes might have been introduced
-            while( !cameras.isEmpty() ) {
-                // remove camera from to be processed and add it to
-                // the already processed list
-                int i = cameras.size()-1;
-                ViewCamera vc = cameras.get(i);
-                processedCameras.add(vc);
-                cameras.remove(i);
-                
-                sctx.setState(this, rootNode, vc);
-                // call preCull states
-                app.getGameStates().preCull(sctx);
-
+        if( app.conf.maxCullThreads > 1 && culler == null ) {
+            culler = new ParallelCuller(this, sctx, app.conf.maxCullThreads);
+        }
+        
+        // go over every camera and cull separately
+        // note: we need to check against cameras.size() because
+        // new passes might have been introduced
+        while( !cameras.isEmpty() ) {
+            if( app.conf.multiViewCull && cameras.size() > 1 ) {
+                // cull all the pending cameras in one traversal
+                cullViews();
+                continue;
+            }
+            // remove camera from to be processed and add it to
+            // the already processed list
+            int i = cameras.size()-1;
+            ViewCamera vc = cameras.get(i);
+            processedCameras.add(vc);
+            cameras.remove(i);
+
+            sctx.setState(this, rootNode, vc);
+            // call preCull states
+            app.getGameStates().preCull(sctx);
+            // rasterize the occluders for the camera
+            if( sctx.getOcclusion() != null )
+                sctx.getOcclusion().prepare(sctx);
+
+            if( culler == null ) {
                 // single threaded route
                 if(rootNode.docull(sctx)) 
                         rootNode.queue(sctx);
-                merge(sctx);
-                
-                // after merge completes, call postcull
-                app.getGameStates().postCull(sctx);
+            } else {
+                // multithreaded route, the other workers are merged
+                // by the culler
+                culler.cull(sctx, rootNode, vc);
             }
-        } else {
-            // TODO: multithreaded route
+            merge(sctx);
+
+            // after merge completes, call postcull
+            app.getGameStates().postCull(sctx);
+        }
+    }
+    
+    /**
+     * Culls the scene against all the cameras yet to be culled in a single
+     * traversal of the scene. The gamestates get the preCull and postCull
+     * events for every camera, as in the one camera at a time route.
+     */
+    protected void cullViews() {
+        if(mvculler == null)
+            mvculler = new MultiViewCuller();
+        mvculler.clear();
+        for(int v=0; v<MultiViewCuller.MAX_VIEWS && !cameras.isEmpty(); v++) {
+            // remove camera from to be processed and add it to
+            // the already processed list
+            int i = cameras.size()-1;
+            ViewCamera vc = cameras.get(i);
+            processedCameras.add(vc);
+            cameras.remove(i);
             
+            CullContext ctx = sctx;
+            if( v > 0 ) {
+                if( viewcontext.size() < v ) {
+                    viewcontext.add(new CullContext());
+                }
+                ctx = viewcontext.get(v-1);
+            }
+            ctx.setState(this, rootNode, vc);
+            // call preCull states
+            app.getGameStates().preCull(ctx);
+            if( ctx.getOcclusion() != null )
+                ctx.getOcclusion().prepare(ctx);
+            mvculler.addView(ctx);
+        }
+        
+        mvculler.cull(rootNode);
+        
+        for(int v=0, mv=mvculler.getViewCount(); v<mv; v++) {
+            merge(mvculler.getView(v));
+        }
+        // after merge completes, call postcull
+        for(int v=0, mv=mvculler.getViewCount(); v<mv; v++) {
+            app.getGameStates().postCull(mvculler.getView(v));
         }
     }
     
@@ -475,6 +511,7 @@ public class Frame implements Runnable {
 
             state = FRAME_MATERIAL;
             // after entering this stage, no change is allowed to the scene
+            long st = System.nanoTime();
 
             mainFb.activate(rctx);
             rctx.fb = mainFb;
@@ -485,6 +522,9 @@ public class Frame implements Runnable {
 
                 /** Reset display's tracking information for number of triangles/vertexes */
                 rctx.getRenderer().clearStatistics();
+                AnimationLod alod = app.getAnimationLod();
+                if(alod != null)
+                    alod.report(frameId, rctx.getRenderer().getStatistics());
 
                 // call preMaterial states
                 app.getGameStates().preMaterial(rctx);
@@ -498,8 +538,25 @@ public class Frame implements Runnable {
                     r.prepare(rctx);
                 }
 
-                // pass uses no material, apply the default one
+                // record the material binds and draws of the passes
+                if (app.conf.renderCommandBuffer) {
+                    commands.clear(frameId);
+                    FastList<RenderPass> rps = passManager.getSortedPasses();
+                    for (int i = 0, pc = rps.size(); i < pc; i++) {
+                        rps.get(i).record(rctx, commands);
+                    }
+                    rctx.commands = commands;
+                } else {
+                    rctx.commands = null;
+                }
+
                 state = FRAME_RENDERING;
+                
+                // the scene is no longer accessed, the next frame can start updating
+                releaseUpdate();
+                long et = System.nanoTime();
+                app.scheduler.addStageTime(FrameScheduler.STAGE_MATERIAL, et - st);
+                st = et;
 
                 // call preRender states
                 app.getGameStates().preRender(rctx);
@@ -633,6 +690,8 @@ public class Frame implements Runnable {
                 drityFrames.clear();
 
                 rctx.getRenderer().unlockRenderer();
+                
+                app.scheduler.addStageTime(FrameScheduler.STAGE_RENDER, System.nanoTime() - st);
 
             } catch (Exception ex) {
                 Logger.getLogger(Frame.class.getName()).log(Level.SEVERE, "Render exception", ex);
@@ -659,18 +718,6 @@ public class Frame implements Runnable {
         }
     }
 
-    protected void waitRestart() {
-        while(state != FRAME_STARTING && !app.finished && !app.display.isClosing()) {
-            synchronized(this) {
-                try {
-                    this.wait(10);
-                } catch (InterruptedException ex) {
-                    
-                }
-            }
-        }
-    }
-
     // process this frame, this is the main method
     public void run() {
         
@@ -688,63 +735,97 @@ public class Frame implements Runnable {
             contextSet = true;
         }
         
-        while (!app.finished && !app.display.isClosing() ) {
-            
-            // wait until we are in incomplete state again
-            waitRestart();
-            
-            if(app.finished || app.display.isClosing())
-                return;
-            
-            // be sure that we are the frame that is in order to render
-            startFrame();
+        FrameScheduler scheduler = app.scheduler;
+        try {
+            while (!app.finished && !app.display.isClosing() ) {
 
-            //state = Frame.FRAME_STARTING;
-            // handle input events prior to updating the scene
-            // - some applications may want to put this into update of
-            // the game state
-            if(app.updateInput)
-                app.inputSystem.update();
+                // wait until the previous frame is done with the scene
+                if(!scheduler.beginUpdate(this))
+                    break;
+                holdsUpdate = true;
 
-            // call pre-frame event in gamestates
-            app.getGameStates().preFrame(app);
+                if(app.finished || app.display.isClosing())
+                    break;
 
-            // update game state, do not use interpolation parameter
-            // TODO: convert to multiple frames
-            update();
+                long st = System.nanoTime();
+                
+                startFrame();
+                state = FRAME_UPDATE;
 
+                // handle input events prior to updating the scene
+                // - some applications may want to put this into update of
+                // the game state
+                if(app.updateInput)
+                    app.inputSystem.update();
 
-            app.mainGame.simpleUpdateFromFrame(this);
+                // call pre-frame event in gamestates
+                app.getGameStates().preFrame(app);
 
-            // TODO: convert to multiple frames
-            cullscene();
+                // update game state, do not use interpolation parameter
+                update();
 
-            // sort the collected queues
-            this.queues.sortAll();
-            
-            //if(app.frame[0]==this) {
-                boolean rendered = false;
-                while(!rendered) {
-                    rendered=render();
-                    if(!rendered) {
-                        Thread.yield();
-                    }
+                app.mainGame.simpleUpdateFromFrame(this);
+
+                long et = System.nanoTime();
+                scheduler.addStageTime(FrameScheduler.STAGE_UPDATE, et - st);
+                st = et;
+                
+                state = FRAME_CULL;
+                cullscene();
+
+                // sort the collected queues
+                this.queues.sortAll();
+                state = FRAME_READY;
+                
+                scheduler.addStageTime(FrameScheduler.STAGE_CULL, System.nanoTime() - st);
+
+                // wait until the previous frame finished rendering
+                if(!scheduler.beginRender(this))
+                    break;
+                
+                // render fails only if another thread (eg. the cleanup in
+                // MainGame) holds the renderer, locking the renderer waits
+                // until it is released, so just try again
+                while(!render()) {
+                    if(!scheduler.isRunning())
+                        break;
                 }
-            //}
-            
-            if(state==FRAME_ENDED) {
-                // error, exit
-                return;
-            }
+                
+                // the update token is normally passed on in render
+                releaseUpdate();
+                scheduler.endRender(this);
 
-            endFrame();
-            
-            if(!app.isMultithreaded()) {
-                return;
+                if(state==FRAME_ENDED) {
+                    // error, exit
+                    return;
+                }
+
+                endFrame();
+
+                if(!app.isMultithreaded()) {
+                    return;
+                }
+            }
+        } finally {
+            releaseUpdate();
+            if(app.isMultithreaded() || state==FRAME_ENDED) {
+                if(culler != null) {
+                    culler.shutdown();
+                    culler = null;
+                }
+                state = FRAME_ENDED;
+                app.finished = true;
+                scheduler.frameEnded(this);
             }
         }
-        
-        state = FRAME_ENDED;
+    }
+    
+    // pass on the update token to the next frame, if we hold it
+    protected void releaseUpdate() {
+        if(holdsUpdate) {
+            holdsUpdate = false;
+            app.scheduler.endUpdate(this);
+        }
     }
 
 }
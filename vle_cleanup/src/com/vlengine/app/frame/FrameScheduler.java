@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.app.frame;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules the processing of frames, so that the update and the culling
+ * of the next frame is done while the previous frame is rendering.
+ * 
+ * The update token is held by the frame which is updating the scene,
+ * it is passed on when the frame has prepared the materials (after that
+ * the scene is not accessed by the rendering). The render token is held
+ * by the frame rendering, a frame takes the render token before releasing 
+ * the update token, so frames are rendered in the order they were updated.
+ * 
+ * The time spent in every stage is measured, and can be queried for
+ * statistics.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class FrameScheduler {
+    
+    // the stages of the frame which are measured
+    public static final int STAGE_UPDATE = 0;
+    public static final int STAGE_CULL = 1;
+    public static final int STAGE_MATERIAL = 2;
+    public static final int STAGE_RENDER = 3;
+    // time spent waiting for the tokens
+    public static final int STAGE_WAIT = 4;
+    public static final int STAGE_MAX = 5;
+    
+    private static final String[] STAGE_NAMES = {
+        "update", "cull", "material", "render", "wait"
+    };
+    
+    // the weight of the last measurement in the averaged stage times
+    private static final float SMOOTHING = 0.1f;
+    
+    // the number of frames processed in parallel
+    private final int depth;
+    
+    private final Semaphore updateToken = new Semaphore(1, true);
+    private final Semaphore renderToken = new Semaphore(1, true);
+    
+    // counted down when a frame thread exits
+    private final CountDownLatch ended;
+    
+    private volatile boolean running = true;
+    
+    // averaged stage times in milliseconds
+    private final float[] stageTime = new float[STAGE_MAX];
+    
+    /**
+     * Creates the scheduler
+     * 
+     * @param depth The number of frames processed in parallel, it is
+     *              clamped to the range 1..Frame.MAX_FRAMES
+     */
+    public FrameScheduler(int depth) {
+        this.depth = Math.max(1, Math.min(depth, Frame.MAX_FRAMES));
+        ended = new CountDownLatch(this.depth);
+    }
+    
+    /**
+     * Returns the number of frames processed in parallel.
+     */
+    public int getDepth() {
+        return depth;
+    }
+    
+    public boolean isRunning() {
+        return running;
+    }
+    
+    /**
+     * Called by the frame before starting the update, waits until the
+     * previous frame has prepared its materials.
+     * 
+     * @return false if the scheduler is shut down and the frame should exit
+     */
+    public boolean beginUpdate(Frame f) {
+        return acquire(updateToken);
+    }
+    
+    /**
+     * Called by the frame after it has finished using the scene, the next
+     * frame can start updating.
+     */
+    public void endUpdate(Frame f) {
+        updateToken.release();
+    }
+    
+    /**
+     * Called by the frame before rendering, waits until the previous
+     * frame finished rendering.
+     * 
+     * @return false if the scheduler is shut down and the frame should exit
+     */
+    public boolean beginRender(Frame f) {
+        return acquire(renderToken);
+    }
+    
+    /**
+     * Called by the frame after it finished rendering.
+     */
+    public void endRender(Frame f) {
+        renderToken.release();
+    }
+    
+    private boolean acquire(Semaphore token) {
+        long st = System.nanoTime();
+        try {
+            token.acquire();
+        } catch (InterruptedException ex) {
+            return false;
+        }
+        addStageTime(STAGE_WAIT, System.nanoTime() - st);
+        return running;
+    }
+    
+    /**
+     * Stops the scheduling, the waiting frames are released
+     * and will exit.
+     */
+    public void shutdown() {
+        running = false;
+        // wake up every waiting frame
+        updateToken.release(depth);
+        renderToken.release(depth);
+    }
+    
+    /**
+     * Called by a frame thread when it exits. When a frame exits
+     * all the other frames are stopped.
+     */
+    public void frameEnded(Frame f) {
+        shutdown();
+        ended.countDown();
+    }
+    
+    /**
+     * Waits for all the frame threads to exit, or until the timeout
+     * expires.
+     * 
+     * @param timeout   The maximum time to wait in milliseconds
+     * @return          true if all the frames exited
+     */
+    public boolean awaitEnd(long timeout) {
+        try {
+            return ended.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            return false;
+        }
+    }
+    
+    /**
+     * Records the time spent in a stage.
+     * 
+     * @param stage The stage
+     * @param nanos The time spent in nanoseconds
+     */
+    public void addStageTime(int stage, long nanos) {
+        float ms = nanos / 1000000f;
+        synchronized(stageTime) {
+            stageTime[stage] += (ms - stageTime[stage]) * SMOOTHING;
+        }
+    }
+    
+    /**
+     * Returns the averaged time spent in the given stage in milliseconds.
+     */
+    public float getStageTime(int stage) {
+        synchronized(stageTime) {
+            return stageTime[stage];
+        }
+    }
+    
+    /**
+     * Appends the stage times to the given buffer.
+     */
+    public StringBuffer getStatistics(StringBuffer a) {
+        a.setLength(0);
+        for(int i=0; i<STAGE_MAX; i++) {
+            a.append(STAGE_NAMES[i]).append(": ");
+            a.append(((int)(getStageTime(i)*100))/100f).append(" ms ");
+        }
+        return a;
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.bounding;
+
+import com.vlengine.math.Matrix3f;
+import com.vlengine.math.Quaternion;
+import com.vlengine.math.Ray;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.BaseGeometry;
+import com.vlengine.scene.LodMesh;
+import com.vlengine.scene.Mesh;
+import com.vlengine.scene.Node;
+import com.vlengine.scene.Spatial;
+import com.vlengine.scene.batch.TriBatch;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.IntList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Casts a RayBatch against a scene. The rays are split into packets of 64,
+ * each packet walks the scene bounds once, and the collision tree of each
+ * geometry once, carrying the mask of the rays still hitting the node.
+ * Only the nearest hit is kept, and bounds farther than the nearest hit
+ * found so far are skipped.
+ * 
+ * The packet traversal needs a BVH_TREE, other collision trees are tested
+ * ray by ray, one thread at a time. Packets are split between worker
+ * threads.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class BatchRaycaster {
+    private static final Logger logger = Logger.getLogger(BatchRaycaster.class.getName());
+    
+    // the number of rays in a packet, the bits of a long
+    public static final int PACKET = 64;
+    
+    // the most threads a cast is split between
+    public static final int MAX_THREADS = 16;
+    
+    private static BatchRaycaster instance;
+    
+    // the total number of threads, including the calling thread
+    private int threads = 1;
+    private int workers = 0;
+    // changed when the workers are retired, a worker exits when
+    // it no longer matches the one it was started in
+    private volatile int epoch = 0;
+    
+    // the cast running on the workers, and the number of casts started,
+    // the workers wait for it to change
+    private Cast parallel;
+    private int generation = 0;
+    
+    // only one cast runs at a time
+    private final Object runLock = new Object();
+    // the trees without BVH use the temporaries of the context
+    private final Object treeLock = new Object();
+    
+    // the temporaries of the calling thread
+    private final Traversal callerTraversal = new Traversal();
+    
+    public static synchronized BatchRaycaster getInstance() {
+        if(instance == null) {
+            instance = new BatchRaycaster();
+        }
+        return instance;
+    }
+    
+    /**
+     * Sets the total number of threads used, including the calling thread,
+     * at most MAX_THREADS. Lowering it stops the workers.
+     */
+    public synchronized void setThreadCount(int threads) {
+        this.threads = threads < 1 ? 1 : threads > MAX_THREADS ? MAX_THREADS : threads;
+        if(workers > this.threads - 1)
+            retireWorkers();
+    }
+    
+    public int getThreadCount() {
+        return threads;
+    }
+    
+    /**
+     * Stops the worker threads.
+     */
+    public synchronized void shutdown() {
+        retireWorkers();
+    }
+    
+    // the workers finish their current packet and exit, the missing
+    // ones are started again by the next parallel cast
+    private void retireWorkers() {
+        epoch++;
+        workers = 0;
+        this.notifyAll();
+    }
+    
+    // a batch of rays cast into a scene
+    static class Cast {
+        Spatial scene;
+        RayBatch rays;
+        int packets;
+        final AtomicInteger nextPacket = new AtomicInteger();
+        final AtomicInteger donePacket = new AtomicInteger();
+    }
+    
+    // the temporaries of a thread
+    static class Traversal {
+        // the rays of the packet, in world space
+        final float[] origin = new float[PACKET*3];
+        final float[] direction = new float[PACKET*3];
+        final float[] inverse = new float[PACKET*3];
+        // the rays in the space of the geometry tested
+        final float[] localOrigin = new float[PACKET*3];
+        final float[] localDirection = new float[PACKET*3];
+        final float[] localInverse = new float[PACKET*3];
+        // the nearest hit of each ray
+        final float[] dist = new float[PACKET];
+        final int[] tri = new int[PACKET];
+        final int[] batch = new int[PACKET];
+        final Spatial[] spatial = new Spatial[PACKET];
+        final CollisionBVH.PacketStack stack = new CollisionBVH.PacketStack();
+        final Quaternion q = new Quaternion();
+        final Matrix3f m = new Matrix3f();
+        // for bounds and trees tested ray by ray
+        final Ray ray = new Ray();
+        final IntList tris = new IntList();
+        final Vector3f[] verts = {new Vector3f(), new Vector3f(), new Vector3f()};
+        final Vector3f loc = new Vector3f();
+    }
+    
+    /**
+     * Finds the nearest hit of each ray in the batch.
+     */
+    public void cast(Spatial scene, RayBatch rays) {
+        rays.resetResults();
+        if(scene == null || rays.count == 0)
+            return;
+        LocalContext.getContext().ctbstack.clear();
+        Cast c = new Cast();
+        c.scene = scene;
+        c.rays = rays;
+        c.packets = (rays.count + PACKET - 1) / PACKET;
+        synchronized(runLock) {
+            if(threads > 1 && c.packets > 1) {
+                synchronized(this) {
+                    // start the missing workers
+                    while(workers < threads - 1)
+                        startWorker(++workers);
+                    parallel = c;
+                    generation++;
+                    this.notifyAll();
+                }
+            }
+            // work in the calling thread too
+            work(c, callerTraversal);
+            while(c.donePacket.get() < c.packets) {
+                Thread.yield();
+            }
+        }
+    }
+    
+    private void work(Cast c, Traversal tr) {
+        int p;
+        while((p = c.nextPacket.getAndIncrement()) < c.packets) {
+            try {
+                castPacket(c, p * PACKET, Math.min(PACKET, c.rays.count - p * PACKET), tr);
+            } catch(Throwable e) {
+                logger.log(Level.SEVERE, "Exception in ray packet", e);
+            }
+            // this must be the last operation in the packet
+            c.donePacket.incrementAndGet();
+        }
+    }
+    
+    private void castPacket(Cast c, int first, int count, Traversal tr) {
+        RayBatch rb = c.rays;
+        System.arraycopy(rb.origin, first*3, tr.origin, 0, count*3);
+        System.arraycopy(rb.direction, first*3, tr.direction, 0, count*3);
+        System.arraycopy(rb.length, first, tr.dist, 0, count);
+        for(int i=0; i<count*3; i++)
+            tr.inverse[i] = 1f / tr.direction[i];
+        for(int i=0; i<count; i++) {
+            tr.spatial[i] = null;
+            tr.tri[i] = -1;
+            tr.batch[i] = -1;
+        }
+        long mask = count == 64 ? -1L : (1L << count) - 1;
+        visit(c.scene, mask, tr);
+        for(int i=0; i<count; i++) {
+            if(tr.spatial[i] != null) {
+                rb.hitDistance[first+i] = tr.dist[i];
+                rb.hitTriangle[first+i] = tr.tri[i];
+                rb.hitBatch[first+i] = tr.batch[i];
+                rb.hitSpatial[first+i] = tr.spatial[i];
+            }
+        }
+    }
+    
+    private void visit(Spatial s, long mask, Traversal tr) {
+        if(s == null || !s.isCollidable())
+            return;
+        BoundingVolume bv = s.getWorldBound();
+        if(bv == null)
+            return;
+        mask = boundMask(bv, mask, tr);
+        if(mask == 0)
+            return;
+        if(s instanceof Node) {
+            Node n = (Node) s;
+            for(int i = 0, mi = n.getQuantity(); i < mi; i++) {
+                visit(n.getChild(i), mask, tr);
+            }
+        } else if(s instanceof LodMesh) {
+            // use the most detailed batches for picking
+            LodMesh lm = (LodMesh) s;
+            for(int i = 0, mi = lm.getBatchCount(0); i < mi; i++) {
+                TriBatch gb = lm.getBatch(0, i);
+                if(gb != null)
+                    visitGeometry(s, i, gb.getModel(), mask, tr);
+            }
+        } else if(s instanceof Mesh) {
+            TriBatch gb = ((Mesh) s).getBatch();
+            if(gb != null)
+                visitGeometry(s, -1, gb.getModel(), mask, tr);
+        }
+    }
+    
+    // the rays of the mask hitting the bound closer than their nearest hit
+    private long boundMask(BoundingVolume bv, long mask, Traversal tr) {
+        long hit = 0;
+        if(bv.getType() == BoundingVolume.BOUNDING_BOX) {
+            BoundingBox bb = (BoundingBox) bv;
+            Vector3f c = bb.getCenter();
+            float minx = c.x - bb.xExtent, miny = c.y - bb.yExtent, minz = c.z - bb.zExtent;
+            float maxx = c.x + bb.xExtent, maxy = c.y + bb.yExtent, maxz = c.z + bb.zExtent;
+            for(long b = mask; b != 0; b &= b - 1) {
+                int i = Long.numberOfTrailingZeros(b);
+                if(hitsBox(tr, i, minx, miny, minz, maxx, maxy, maxz))
+                    hit |= 1L << i;
+            }
+        } else if(bv.getType() == BoundingVolume.BOUNDING_SPHERE) {
+            Vector3f c = bv.getCenter();
+            float r = ((BoundingSphere) bv).getRadius();
+            for(long b = mask; b != 0; b &= b - 1) {
+                int i = Long.numberOfTrailingZeros(b);
+                int o = i*3;
+                float dx = tr.direction[o], dy = tr.direction[o+1], dz = tr.direction[o+2];
+                float ex = c.x - tr.origin[o], ey = c.y - tr.origin[o+1], ez = c.z - tr.origin[o+2];
+                float dd = dx*dx + dy*dy + dz*dz;
+                // the closest point of the segment to the center
+                float t = dd > 0 ? (ex*dx + ey*dy + ez*dz) / dd : 0;
+                if(t < 0) t = 0;
+                if(t > tr.dist[i]) t = tr.dist[i];
+                float px = ex - dx*t, py = ey - dy*t, pz = ez - dz*t;
+                if(px*px + py*py + pz*pz <= r*r)
+                    hit |= 1L << i;
+            }
+        } else {
+            // other bounds may use the temporaries of the context
+            synchronized(treeLock) {
+                for(long b = mask; b != 0; b &= b - 1) {
+                    int i = Long.numberOfTrailingZeros(b);
+                    setRay(tr, i);
+                    if(bv.intersects(tr.ray))
+                        hit |= 1L << i;
+                }
+            }
+        }
+        return hit;
+    }
+    
+    private static boolean hitsBox(Traversal tr, int i, float minx, float miny, float minz,
+            float maxx, float maxy, float maxz) {
+        int o = i*3;
+        float tmin = 0, tmax = tr.dist[i];
+        float[] org = tr.origin, dir = tr.direction, inv = tr.inverse;
+        if(dir[o] != 0) {
+            float t1 = (minx - org[o])*inv[o], t2 = (maxx - org[o])*inv[o];
+            tmin = Math.max(tmin, Math.min(t1, t2));
+            tmax = Math.min(tmax, Math.max(t1, t2));
+        } else if(org[o] < minx || org[o] > maxx) {
+            return false;
+        }
+        if(dir[o+1] != 0) {
+            float t1 = (miny - org[o+1])*inv[o+1], t2 = (maxy - org[o+1])*inv[o+1];
+            tmin = Math.max(tmin, Math.min(t1, t2));
+            tmax = Math.min(tmax, Math.max(t1, t2));
+        } else if(org[o+1] < miny || org[o+1] > maxy) {
+            return false;
+        }
+        if(dir[o+2] != 0) {
+            float t1 = (minz - org[o+2])*inv[o+2], t2 = (maxz - org[o+2])*inv[o+2];
+            tmin = Math.max(tmin, Math.min(t1, t2));
+            tmax = Math.min(tmax, Math.max(t1, t2));
+        } else if(org[o+2] < minz || org[o+2] > maxz) {
+            return false;
+        }
+        return tmin <= tmax;
+    }
+    
+    private static void setRay(Traversal tr, int i) {
+        int o = i*3;
+        tr.ray.origin.set(tr.origin[o], tr.origin[o+1], tr.origin[o+2]);
+        tr.ray.direction.set(tr.direction[o], tr.direction[o+1], tr.direction[o+2]);
+    }
+    
+    private void visitGeometry(Spatial s, int batch, BaseGeometry bg, long mask, Traversal tr) {
+        if(bg == null || !bg.isCollidable())
+            return;
+        CollisionTree ct = bg.getCollisionTree();
+        if(ct == null)
+            return;
+        long hit;
+        CollisionBVH bvh = ct.getBVH();
+        if(bvh != null) {
+            toLocal(s, mask, tr);
+            hit = bvh.intersectNearest(tr.localOrigin, tr.localDirection, tr.localInverse, 
+                    mask, tr.dist, tr.tri, tr.stack);
+        } else {
+            hit = intersectTree(s, bg, ct, mask, tr);
+        }
+        for(long b = hit; b != 0; b &= b - 1) {
+            int i = Long.numberOfTrailingZeros(b);
+            tr.spatial[i] = s;
+            tr.batch[i] = batch;
+        }
+    }
+    
+    // the rays into the local space of the spatial, the same as 
+    // CollisionBVH.toLocal, the distances along the rays do not change
+    private void toLocal(Spatial s, long mask, Traversal tr) {
+        tr.q.set(s.getWorldRotation());
+        tr.q.inverseLocal().toRotationMatrix(tr.m);
+        Vector3f t = s.getWorldTranslation();
+        Vector3f sc = s.getWorldScale();
+        Matrix3f m = tr.m;
+        float isx = 1f/sc.x, isy = 1f/sc.y, isz = 1f/sc.z;
+        for(long b = mask; b != 0; b &= b - 1) {
+            int o = Long.numberOfTrailingZeros(b)*3;
+            float ox = tr.origin[o] - t.x, oy = tr.origin[o+1] - t.y, oz = tr.origin[o+2] - t.z;
+            float dx = tr.direction[o], dy = tr.direction[o+1], dz = tr.direction[o+2];
+            tr.localOrigin[o] = (m.m00*ox + m.m01*oy + m.m02*oz)*isx;
+            tr.localOrigin[o+1] = (m.m10*ox + m.m11*oy + m.m12*oz)*isy;
+            tr.localOrigin[o+2] = (m.m20*ox + m.m21*oy + m.m22*oz)*isz;
+            float lx = (m.m00*dx + m.m01*dy + m.m02*dz)*isx;
+            float ly = (m.m10*dx + m.m11*dy + m.m12*dz)*isy;
+            float lz = (m.m20*dx + m.m21*dy + m.m22*dz)*isz;
+            tr.localDirection[o] = lx;
+            tr.localDirection[o+1] = ly;
+            tr.localDirection[o+2] = lz;
+            tr.localInverse[o] = 1f/lx;
+            tr.localInverse[o+1] = 1f/ly;
+            tr.localInverse[o+2] = 1f/lz;
+        }
+    }
+    
+    // tests the rays one by one against a tree without BVH
+    private long intersectTree(Spatial s, BaseGeometry bg, CollisionTree ct, long mask, Traversal tr) {
+        long hit = 0;
+        synchronized(treeLock) {
+            for(long b = mask; b != 0; b &= b - 1) {
+                int i = Long.numberOfTrailingZeros(b);
+                setRay(tr, i);
+                tr.tris.clear();
+                ct.intersect(tr.ray, tr.tris, s, null);
+                LocalContext.getContext().ctbstack.clear();
+                Vector3f d = tr.ray.direction;
+                float dd = d.dot(d);
+                for(int k=0, mk=tr.tris.size(); k<mk; k++) {
+                    bg.getTriangle(tr.tris.get(k), tr.verts);
+                    for(int v=0; v<3; v++)
+                        s.localToWorld(tr.verts[v], tr.verts[v]);
+                    if(!tr.ray.intersectWhere(tr.verts[0], tr.verts[1], tr.verts[2], tr.loc))
+                        continue;
+                    float dist = tr.loc.subtractLocal(tr.ray.origin).dot(d) / dd;
+                    if(dist < tr.dist[i]) {
+                        tr.dist[i] = dist;
+                        tr.tri[i] = tr.tris.get(k);
+                        hit |= 1L << i;
+                    }
+                }
+            }
+        }
+        return hit;
+    }
+    
+    private void startWorker(int i) {
+        final int started = generation;
+        final int own = epoch;
+        Thread th = new Thread(new Runnable() {
+            public void run() {
+                Traversal tr = new Traversal();
+                int seen = started;
+                while(epoch == own) {
+                    Cast c;
+                    synchronized(BatchRaycaster.this) {
+                        while(epoch == own && generation == seen) {
+                            try {
+                                BatchRaycaster.this.wait();
+                            } catch (InterruptedException ex) {
+                            }
+                        }
+                        seen = generation;
+                        c = parallel;
+                    }
+                    // a late worker finds all the packets of its cast taken
+                    if(epoch == own && c != null)
+                        work(c, tr);
+                }
+            }
+        }, "BatchRaycaster-"+i);
+        th.setDaemon(true);
+        th.start();
+    }
+}
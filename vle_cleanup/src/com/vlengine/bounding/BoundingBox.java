@@ -160,7 +160,7 @@ public class BoundingBox extends BoundingVolume {
         zExtent = max.z - center.z;
     }
     
-    public void computeFromTris(Geometry batch, int start, int end) {
+    public void computeFromTris(int[] indices, Geometry batch, int start, int end) {
     	if (end - start <= 0) {
             return;
         }
@@ -172,7 +172,7 @@ public class BoundingBox extends BoundingVolume {
         Vector3f point;
         
         for (int i = start; i < end; i++) {
-        	batch.getTriangle(i, verts);
+        	batch.getTriangle(indices[i], verts);
         	point = verts[0];
             checkMinMax(min, max, point);
             point = verts[1];
@@ -217,7 +217,7 @@ public class BoundingSphere extends BoundingVolume {
      * @param start
      * @param end
      */
-    public void computeFromTris(Geometry mesh, int start, int end) {
+    public void computeFromTris(int[] indices, Geometry mesh, int start, int end) {
     	if (end - start <= 0) {
             return;
         }
@@ -229,7 +229,7 @@ public class BoundingSphere extends BoundingVolume {
         
         int count = 0;
         for (int i = start; i < end; i++) {
-        	mesh.getTriangle(i, verts);
+        	mesh.getTriangle(indices[i], verts);
         	vertList[count++] = new Vector3f(verts[0]);
         	vertList[count++] = new Vector3f(verts[1]);
         	vertList[count++] = new Vector3f(verts[2]);
@@ -150,7 +150,7 @@ public abstract class BoundingVolume {
     
     public abstract boolean contains(Vector3f point);
     
-    public abstract void computeFromTris(Geometry batch, int start, int end);
+    public abstract void computeFromTris(int[] indices, Geometry batch, int start, int end);
         
     public abstract float getVolume();
 }
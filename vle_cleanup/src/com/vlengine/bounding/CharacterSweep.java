@@ -0,0 +1,921 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.bounding;
+
+import com.vlengine.math.FastMath;
+import com.vlengine.math.Matrix3f;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.BaseGeometry;
+import com.vlengine.scene.LodMesh;
+import com.vlengine.scene.Mesh;
+import com.vlengine.scene.Node;
+import com.vlengine.scene.Spatial;
+import com.vlengine.scene.batch.TriBatch;
+import com.vlengine.thread.Context;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.FastList;
+import com.vlengine.util.IntList;
+
+/**
+ * Kinematic movement queries for characters. An upright capsule or an axis
+ * aligned box is swept along a motion against the triangles of the
+ * collision trees and the cells of the collision volumes in the scene,
+ * finding the time of the first contact and its normal. On top of the
+ * sweep, move slides the shape along the surfaces it touches and steps up
+ * on low obstacles, and probeGround finds the ground under the shape.
+ * 
+ * The shape is kept a skin width away from the surfaces, so a shape
+ * resting on the ground can move along it. The capsule is swept with
+ * conservative advancement on the distance of its segment and the
+ * triangles, the box with the separating axis test extended with time.
+ * The cells of a volume are tested by their faces not covered by a
+ * neighbouring cell. The temporaries are in the thread Context.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class CharacterSweep {
+    
+    public static final int CAPSULE = 0;
+    public static final int BOX = 1;
+    
+    // the maximum number of advancement steps of a capsule sweep
+    protected static final int MAX_ADVANCE = 32;
+    
+    // layout of the query array: start of the center of the shape, motion,
+    // half size of the shape including the skin, bounds of the sweep
+    protected static final int Q_START = 0;
+    protected static final int Q_MOTION = 3;
+    protected static final int Q_HALF = 6;
+    protected static final int Q_MIN = 9;
+    protected static final int Q_MAX = 12;
+    
+    // the corners of the faces of a cell, the bits of a corner are x, y, z
+    private static final int[] CELL_FACES = {
+        0, 2, 6, 4,   1, 3, 7, 5,
+        0, 1, 5, 4,   2, 3, 7, 6,
+        0, 1, 3, 2,   4, 5, 7, 6 };
+    // the neighbour cell covering each face
+    private static final int[] CELL_NEIGHBOURS = {
+        -1, 0, 0,   1, 0, 0,
+        0, -1, 0,   0, 1, 0,
+        0, 0, -1,   0, 0, 1 };
+    
+    protected int shape = CAPSULE;
+    protected float radius = 1f;
+    // half the length of the segment of the capsule
+    protected float halfHeight = 0f;
+    // the half size of the box
+    protected final Vector3f extent = new Vector3f(1, 1, 1);
+    // the center of the shape relative to the position
+    protected final Vector3f offset = new Vector3f();
+    protected float skin = 0.05f;
+    // the minimum y of the normal of a walkable surface
+    protected float walkable = FastMath.cos(45f * FastMath.DEG_TO_RAD);
+    protected float stepHeight = 0f;
+    // the maximum number of sweeps in a slide
+    protected int maxSlides = 4;
+    // test the collision volumes instead of the triangles, where present
+    protected boolean checkVolume = true;
+    
+    // the spatials tested, the broadphase is used if set
+    protected Spatial scene;
+    protected CollisionBroadphase broadphase;
+    // the spatial moved, it is not tested
+    protected Spatial ignored;
+    
+    /**
+     * Sets an upright capsule as the shape.
+     * @param radius    the radius of the capsule
+     * @param height    the total height of the capsule
+     */
+    public void setCapsule(float radius, float height) {
+        shape = CAPSULE;
+        this.radius = radius;
+        halfHeight = Math.max(0f, height*0.5f - radius);
+    }
+    
+    /**
+     * Sets an axis aligned box as the shape.
+     * @param extent    the half size of the box
+     */
+    public void setBox(Vector3f extent) {
+        shape = BOX;
+        this.extent.set(extent);
+    }
+    
+    public int getShape() {
+        return shape;
+    }
+    
+    public float getRadius() {
+        return radius;
+    }
+    
+    public Vector3f getExtent() {
+        return extent;
+    }
+    
+    public Vector3f getOffset() {
+        return offset;
+    }
+    
+    public void setSkinWidth(float skin) {
+        this.skin = skin;
+    }
+    
+    public float getSkinWidth() {
+        return skin;
+    }
+    
+    /**
+     * Sets the steepest slope walkable, in radians.
+     */
+    public void setSlopeLimit(float angle) {
+        walkable = FastMath.cos(angle);
+    }
+    
+    public void setStepHeight(float stepHeight) {
+        this.stepHeight = stepHeight;
+    }
+    
+    public float getStepHeight() {
+        return stepHeight;
+    }
+    
+    public void setMaxSlides(int maxSlides) {
+        this.maxSlides = Math.max(1, maxSlides);
+    }
+    
+    public void setCheckCollisionVolume(boolean checkVolume) {
+        this.checkVolume = checkVolume;
+    }
+    
+    public void setScene(Spatial scene) {
+        this.scene = scene;
+    }
+    
+    public void setBroadphase(CollisionBroadphase broadphase) {
+        this.broadphase = broadphase;
+    }
+    
+    public void setIgnored(Spatial ignored) {
+        this.ignored = ignored;
+    }
+    
+    /**
+     * Sweeps the shape from the position along the motion, and stores the
+     * first contact in the result. The position in the result is where
+     * the shape stops.
+     * @return true if there was a contact
+     */
+    public boolean sweep(Vector3f position, Vector3f motion, SweepResult result) {
+        result.clear();
+        Vector3f p = result.position.set(position);
+        if(!sweep(p.x, p.y, p.z, motion.x, motion.y, motion.z, result)) {
+            p.addLocal(motion);
+            return false;
+        }
+        p.scaleAdd(result.time, motion, position);
+        return true;
+    }
+    
+    /**
+     * Moves the shape from the position along the motion, sliding along
+     * the surfaces touched, and stepping up on obstacles not higher than
+     * the step height. The result holds the position reached, and if
+     * ground or a surface too steep to walk was touched.
+     */
+    public void move(Vector3f position, Vector3f motion, SweepResult result) {
+        result.clear();
+        Context tmp = LocalContext.getContext();
+        Vector3f p = result.position.set(position);
+        slide(p, motion.x, motion.y, motion.z, result, tmp);
+        if(stepHeight <= 0 || !result.wall 
+                || motion.x*motion.x + motion.z*motion.z < FastMath.FLT_EPSILON)
+            return;
+        // blocked by a steep surface, try to step up on it: up, forward
+        // then down onto walkable ground
+        SweepResult step = tmp.swstep;
+        step.clear();
+        Vector3f sp = step.position.set(position);
+        float up = stepHeight;
+        if(sweep(sp.x, sp.y, sp.z, 0, up, 0, step))
+            up *= step.time;
+        sp.y += up;
+        slide(sp, motion.x, 0, motion.z, step, tmp);
+        float down = up + Math.max(0f, -motion.y);
+        boolean landed = sweep(sp.x, sp.y, sp.z, 0, -down, 0, step) 
+                && step.normal.y >= walkable;
+        result.sweeps += step.sweeps;
+        if(!landed)
+            return;
+        sp.y -= down*step.time;
+        // keep it, if it got farther than without stepping
+        float px = p.x - position.x, pz = p.z - position.z;
+        float sx = sp.x - position.x, sz = sp.z - position.z;
+        if(sx*sx + sz*sz > px*px + pz*pz + FastMath.FLT_EPSILON) {
+            p.set(sp);
+            result.ground = true;
+            result.groundNormal.set(step.normal);
+            result.wall = step.wall;
+            result.normal.set(step.normal);
+            result.spatial = step.spatial;
+            result.triangle = step.triangle;
+            result.batch = step.batch;
+        }
+    }
+    
+    /**
+     * Sweeps the shape down from the position, to find the ground.
+     * @return true if walkable ground was found closer than the distance
+     */
+    public boolean probeGround(Vector3f position, float distance, SweepResult result) {
+        result.clear();
+        Vector3f p = result.position.set(position);
+        if(!sweep(p.x, p.y, p.z, 0, -distance, 0, result)) {
+            p.y -= distance;
+            return false;
+        }
+        p.y -= distance*result.time;
+        if(result.normal.y >= walkable) {
+            result.ground = true;
+            result.groundNormal.set(result.normal);
+        }
+        return result.ground;
+    }
+    
+    // slides the position along the motion, the contacts are added
+    // to the result
+    protected void slide(Vector3f p, float mx, float my, float mz, SweepResult result, Context tmp) {
+        Vector3f rem = tmp.swmotion.set(mx, my, mz);
+        float pnx = 0, pny = 0, pnz = 0;
+        boolean prev = false;
+        for(int i=0; i<maxSlides; i++) {
+            if(rem.lengthSquared() < FastMath.FLT_EPSILON*FastMath.FLT_EPSILON)
+                break;
+            if(!sweep(p.x, p.y, p.z, rem.x, rem.y, rem.z, result)) {
+                p.addLocal(rem);
+                break;
+            }
+            float t = result.time;
+            p.x += rem.x*t;
+            p.y += rem.y*t;
+            p.z += rem.z*t;
+            rem.multLocal(1f - t);
+            float nx = result.normal.x, ny = result.normal.y, nz = result.normal.z;
+            if(ny >= walkable) {
+                result.ground = true;
+                result.groundNormal.set(result.normal);
+                // keep the horizontal motion and follow the ground, 
+                // so standing on a slope does not slide down
+                rem.y = -(nx*rem.x + nz*rem.z)/ny;
+            } else {
+                result.wall = true;
+                if(ny > 0) {
+                    // do not climb the steep surfaces
+                    float l = FastMath.sqrt(nx*nx + nz*nz);
+                    if(l > FastMath.ZERO_TOLERANCE) {
+                        nx /= l;
+                        nz /= l;
+                        ny = 0;
+                    }
+                }
+                float d = rem.x*nx + rem.y*ny + rem.z*nz;
+                if(d < 0) {
+                    rem.x -= nx*d;
+                    rem.y -= ny*d;
+                    rem.z -= nz*d;
+                }
+            }
+            if(prev && rem.x*pnx + rem.y*pny + rem.z*pnz < 0) {
+                // in a crease of two surfaces, move along it
+                float cx = ny*pnz - nz*pny, cy = nz*pnx - nx*pnz, cz = nx*pny - ny*pnx;
+                float cl = cx*cx + cy*cy + cz*cz;
+                if(cl < FastMath.FLT_EPSILON)
+                    break;
+                float s = (rem.x*cx + rem.y*cy + rem.z*cz)/cl;
+                rem.set(cx*s, cy*s, cz*s);
+            }
+            pnx = nx;
+            pny = ny;
+            pnz = nz;
+            prev = true;
+        }
+    }
+    
+    // sweeps the shape at the position along the motion, the first contact
+    // is stored in the result
+    protected boolean sweep(float px, float py, float pz, float mx, float my, float mz, SweepResult result) {
+        result.sweeps++;
+        result.time = 1;
+        float ml = mx*mx + my*my + mz*mz;
+        if(ml < FastMath.FLT_EPSILON*FastMath.FLT_EPSILON)
+            return false;
+        // the last contact is kept, if there is none now
+        Spatial last = result.spatial;
+        int lastTriangle = result.triangle, lastBatch = result.batch;
+        result.spatial = null;
+        Context tmp = LocalContext.getContext();
+        float[] q = tmp.swquery;
+        q[Q_START] = px + offset.x;
+        q[Q_START+1] = py + offset.y;
+        q[Q_START+2] = pz + offset.z;
+        q[Q_MOTION] = mx;
+        q[Q_MOTION+1] = my;
+        q[Q_MOTION+2] = mz;
+        if(shape == CAPSULE) {
+            q[Q_HALF] = q[Q_HALF+2] = radius + skin;
+            q[Q_HALF+1] = halfHeight + radius + skin;
+        } else {
+            q[Q_HALF] = extent.x + skin;
+            q[Q_HALF+1] = extent.y + skin;
+            q[Q_HALF+2] = extent.z + skin;
+        }
+        for(int k=0; k<3; k++) {
+            float s = q[Q_START+k], e = s + q[Q_MOTION+k];
+            q[Q_MIN+k] = Math.min(s, e) - q[Q_HALF+k];
+            q[Q_MAX+k] = Math.max(s, e) + q[Q_HALF+k];
+        }
+        if(broadphase != null) {
+            BoundingBox bb = tmp.swbox;
+            bb.getCenter().set((q[Q_MIN] + q[Q_MAX])*0.5f, (q[Q_MIN+1] + q[Q_MAX+1])*0.5f, 
+                    (q[Q_MIN+2] + q[Q_MAX+2])*0.5f);
+            bb.xExtent = (q[Q_MAX] - q[Q_MIN])*0.5f;
+            bb.yExtent = (q[Q_MAX+1] - q[Q_MIN+1])*0.5f;
+            bb.zExtent = (q[Q_MAX+2] - q[Q_MIN+2])*0.5f;
+            FastList<Spatial> cand = tmp.swcand;
+            cand.clear();
+            broadphase.query(bb, cand);
+            for(int i=0, mi=cand.size(); i<mi; i++) {
+                Spatial s = cand.get(i);
+                if(!isIgnored(s))
+                    visit(s, q, result, tmp);
+            }
+            cand.clear();
+        } else if(scene != null && !isIgnored(scene)) {
+            visit(scene, q, result, tmp);
+        }
+        if(result.spatial == null) {
+            result.spatial = last;
+            result.triangle = lastTriangle;
+            result.batch = lastBatch;
+            return false;
+        }
+        result.hit = true;
+        result.distance = result.time*FastMath.sqrt(ml);
+        return true;
+    }
+    
+    private boolean isIgnored(Spatial s) {
+        for(Spatial p = s; p != null; p = p.getParent()) {
+            if(p == ignored)
+                return true;
+        }
+        return false;
+    }
+    
+    protected void visit(Spatial s, float[] q, SweepResult result, Context tmp) {
+        if(s == null || s == ignored || !s.isCollidable())
+            return;
+        BoundingVolume bv = s.getWorldBound();
+        if(bv == null || !overlaps(bv, q))
+            return;
+        if(checkVolume && s.getCollisionVolume() != null) {
+            sweepVolume(s, s.getCollisionVolume(), q, result, tmp);
+        } else if(s instanceof Node) {
+            Node n = (Node) s;
+            for(int i = 0, mi = n.getQuantity(); i < mi; i++) {
+                visit(n.getChild(i), q, result, tmp);
+            }
+        } else if(s instanceof LodMesh) {
+            // use the most detailed batches
+            LodMesh lm = (LodMesh) s;
+            for(int i = 0, mi = lm.getBatchCount(0); i < mi; i++) {
+                TriBatch gb = lm.getBatch(0, i);
+                if(gb != null)
+                    sweepGeometry(s, i, gb.getModel(), q, result, tmp);
+            }
+        } else if(s instanceof Mesh) {
+            TriBatch gb = ((Mesh) s).getBatch();
+            if(gb != null)
+                sweepGeometry(s, -1, gb.getModel(), q, result, tmp);
+        }
+    }
+    
+    private static boolean overlaps(BoundingVolume bv, float[] q) {
+        Vector3f c = bv.getCenter();
+        if(bv.getType() == BoundingVolume.BOUNDING_BOX) {
+            BoundingBox bb = (BoundingBox) bv;
+            return c.x - bb.xExtent <= q[Q_MAX] && c.x + bb.xExtent >= q[Q_MIN]
+                && c.y - bb.yExtent <= q[Q_MAX+1] && c.y + bb.yExtent >= q[Q_MIN+1]
+                && c.z - bb.zExtent <= q[Q_MAX+2] && c.z + bb.zExtent >= q[Q_MIN+2];
+        } else if(bv.getType() == BoundingVolume.BOUNDING_SPHERE) {
+            float r = ((BoundingSphere) bv).getRadius();
+            float dx = Math.max(q[Q_MIN] - c.x, Math.max(0, c.x - q[Q_MAX]));
+            float dy = Math.max(q[Q_MIN+1] - c.y, Math.max(0, c.y - q[Q_MAX+1]));
+            float dz = Math.max(q[Q_MIN+2] - c.z, Math.max(0, c.z - q[Q_MAX+2]));
+            return dx*dx + dy*dy + dz*dz <= r*r;
+        }
+        return true;
+    }
+    
+    // the bounds of the sweep in the local space of the spatial, the
+    // rotation of the spatial must be in the swmat of the context
+    private static BoundingBox localBox(Spatial s, float[] q, Context tmp) {
+        Matrix3f m = tmp.swmat;
+        Vector3f t = s.getWorldTranslation();
+        Vector3f sc = s.getWorldScale();
+        float cx = (q[Q_MIN] + q[Q_MAX])*0.5f - t.x;
+        float cy = (q[Q_MIN+1] + q[Q_MAX+1])*0.5f - t.y;
+        float cz = (q[Q_MIN+2] + q[Q_MAX+2])*0.5f - t.z;
+        float ex = (q[Q_MAX] - q[Q_MIN])*0.5f;
+        float ey = (q[Q_MAX+1] - q[Q_MIN+1])*0.5f;
+        float ez = (q[Q_MAX+2] - q[Q_MIN+2])*0.5f;
+        BoundingBox bb = tmp.swbox;
+        // rotate back with the transposed matrix, then scale back
+        bb.getCenter().set((m.m00*cx + m.m10*cy + m.m20*cz)/sc.x, 
+                (m.m01*cx + m.m11*cy + m.m21*cz)/sc.y,
+                (m.m02*cx + m.m12*cy + m.m22*cz)/sc.z);
+        bb.xExtent = (Math.abs(m.m00)*ex + Math.abs(m.m10)*ey + Math.abs(m.m20)*ez)/Math.abs(sc.x);
+        bb.yExtent = (Math.abs(m.m01)*ex + Math.abs(m.m11)*ey + Math.abs(m.m21)*ez)/Math.abs(sc.y);
+        bb.zExtent = (Math.abs(m.m02)*ex + Math.abs(m.m12)*ey + Math.abs(m.m22)*ez)/Math.abs(sc.z);
+        return bb;
+    }
+    
+    // a point from the local space of the spatial to world space, the same
+    // as Spatial.localToWorld with the rotation in the given matrix
+    private static void toWorld(Spatial s, Matrix3f m, float x, float y, float z, float[] store, int o) {
+        Vector3f t = s.getWorldTranslation();
+        Vector3f sc = s.getWorldScale();
+        x *= sc.x;
+        y *= sc.y;
+        z *= sc.z;
+        store[o] = m.m00*x + m.m01*y + m.m02*z + t.x;
+        store[o+1] = m.m10*x + m.m11*y + m.m12*z + t.y;
+        store[o+2] = m.m20*x + m.m21*y + m.m22*z + t.z;
+    }
+    
+    protected void sweepGeometry(Spatial s, int batch, BaseGeometry bg, float[] q, SweepResult result, Context tmp) {
+        if(bg == null || !bg.isCollidable())
+            return;
+        CollisionTree ct = bg.getCollisionTree();
+        if(ct == null)
+            return;
+        Matrix3f m = tmp.swmat;
+        m.set(s.getWorldRotation());
+        IntList tris = tmp.swtris;
+        tris.clear();
+        ct.intersect(localBox(s, q, tmp), tris);
+        Vector3f[] verts = tmp.swverts;
+        float[] tri = tmp.swtri;
+        for(int i=0, mi=tris.size(); i<mi; i++) {
+            bg.getTriangle(tris.get(i), verts);
+            for(int v=0; v<3; v++) {
+                toWorld(s, m, verts[v].x, verts[v].y, verts[v].z, tri, v*3);
+            }
+            if(sweepTriangle(q, tri, 0, 3, 6, result, tmp)) {
+                result.spatial = s;
+                result.triangle = tris.get(i);
+                result.batch = batch;
+            }
+        }
+        tris.clear();
+    }
+    
+    protected void sweepVolume(Spatial s, CollisionVolume vol, float[] q, SweepResult result, Context tmp) {
+        SparseCellMap cells = vol.getCells();
+        if(cells == null)
+            return;
+        Matrix3f m = tmp.swmat;
+        m.set(s.getWorldRotation());
+        BoundingBox lb = localBox(s, q, tmp);
+        Vector3f c = lb.getCenter();
+        Vector3f cs = vol.getCellSize();
+        Vector3f tr = vol.getTranslate();
+        int sx = cells.getSizeX(), sy = cells.getSizeY(), sz = cells.getSizeZ();
+        // the cells overlapping the bounds of the sweep
+        int x0 = Math.max(0, (int) FastMath.floor((c.x - lb.xExtent + tr.x)/cs.x));
+        int y0 = Math.max(0, (int) FastMath.floor((c.y - lb.yExtent + tr.y)/cs.y));
+        int z0 = Math.max(0, (int) FastMath.floor((c.z - lb.zExtent + tr.z)/cs.z));
+        int x1 = Math.min(sx - 1, (int) FastMath.floor((c.x + lb.xExtent + tr.x)/cs.x));
+        int y1 = Math.min(sy - 1, (int) FastMath.floor((c.y + lb.yExtent + tr.y)/cs.y));
+        int z1 = Math.min(sz - 1, (int) FastMath.floor((c.z + lb.zExtent + tr.z)/cs.z));
+        // the faces turned away from the motion are not hit first
+        Vector3f sc = s.getWorldScale();
+        int front = 0;
+        for(int k=0; k<3; k++) {
+            float lm = (m.get(0, k)*q[Q_MOTION] + m.get(1, k)*q[Q_MOTION+1] 
+                    + m.get(2, k)*q[Q_MOTION+2])/sc.get(k);
+            if(lm >= 0)
+                front |= 1 << (k*2);
+            if(lm <= 0)
+                front |= 1 << (k*2 + 1);
+        }
+        int[] run = tmp.swrun;
+        boolean hit = false;
+        for(int x=x0; x<=x1; x++) {
+            for(int y=y0; y<=y1; y++) {
+                // the x and y faces of consecutive cells along z are
+                // tested as one face
+                run[0] = run[1] = run[2] = run[3] = -1;
+                for(int z=z0; z<=z1+1; z++) {
+                    int faces = 0;
+                    if(z <= z1 && cells.get(x, y, z)) {
+                        // the faces not covered by a neighbour
+                        for(int f=0; f<6; f++) {
+                            if((front & (1 << f)) == 0)
+                                continue;
+                            int nx = x + CELL_NEIGHBOURS[f*3];
+                            int ny = y + CELL_NEIGHBOURS[f*3+1];
+                            int nz = z + CELL_NEIGHBOURS[f*3+2];
+                            if(nx < 0 || nx >= sx || ny < 0 || ny >= sy || nz < 0 || nz >= sz 
+                                    || !cells.get(nx, ny, nz))
+                                faces |= 1 << f;
+                        }
+                    }
+                    for(int f=0; f<4; f++) {
+                        if((faces & (1 << f)) != 0) {
+                            if(run[f] < 0)
+                                run[f] = z;
+                        } else if(run[f] >= 0) {
+                            hit |= sweepFace(s, m, cs, tr, f, x, y, run[f], z, q, result, tmp);
+                            run[f] = -1;
+                        }
+                    }
+                    for(int f=4; f<6; f++) {
+                        if((faces & (1 << f)) != 0)
+                            hit |= sweepFace(s, m, cs, tr, f, x, y, z, z+1, q, result, tmp);
+                    }
+                }
+            }
+        }
+        if(hit) {
+            result.spatial = s;
+            result.triangle = -1;
+            result.batch = -1;
+        }
+    }
+    
+    // sweeps against a face of the cells x, y, z0 to z1 exclusive
+    private boolean sweepFace(Spatial s, Matrix3f m, Vector3f cs, Vector3f tr, int f, int x, int y, 
+            int z0, int z1, float[] q, SweepResult result, Context tmp) {
+        float[] corners = tmp.swcell;
+        for(int i=0; i<4; i++) {
+            int k = CELL_FACES[f*4+i];
+            toWorld(s, m, (x + (k & 1))*cs.x - tr.x, (y + ((k >> 1) & 1))*cs.y - tr.y,
+                    ((k & 4) != 0 ? z1 : z0)*cs.z - tr.z, corners, i*3);
+        }
+        boolean hit = sweepTriangle(q, corners, 0, 3, 6, result, tmp);
+        hit |= sweepTriangle(q, corners, 0, 6, 9, result, tmp);
+        return hit;
+    }
+    
+    // sweeps the shape against the triangle with the vertices at a, b, c
+    // in v, returns true if the contact is earlier than the one in the result
+    protected boolean sweepTriangle(float[] q, float[] v, int a, int b, int c, SweepResult result, Context tmp) {
+        for(int k=0; k<3; k++) {
+            float lo = Math.min(v[a+k], Math.min(v[b+k], v[c+k]));
+            float hi = Math.max(v[a+k], Math.max(v[b+k], v[c+k]));
+            if(lo > q[Q_MAX+k] || hi < q[Q_MIN+k])
+                return false;
+        }
+        float[] n = tmp.swnormal;
+        float t = shape == CAPSULE ? sweepCapsule(q, v, a, b, c, result.time, n, tmp)
+                : sweepBox(q, v, a, b, c, result.time, n);
+        if(t < 0 || t >= result.time)
+            return false;
+        result.time = t;
+        result.normal.set(n[0], n[1], n[2]);
+        return true;
+    }
+    
+    // the time of contact of the capsule and the triangle, -1 if none before
+    // maxTime. The distance of the segment of the capsule and the triangle
+    // is convex in time, so stepping to the root of its tangent never
+    // passes the contact
+    protected float sweepCapsule(float[] q, float[] v, int a, int b, int c, float maxTime, float[] n, Context tmp) {
+        float r = radius + skin;
+        // stop this close to the skin
+        float tolerance = Math.max(skin*0.25f, FastMath.ZERO_TOLERANCE);
+        float mx = q[Q_MOTION], my = q[Q_MOTION+1], mz = q[Q_MOTION+2];
+        float[] seg = tmp.swseg;
+        float[] cp = tmp.swclosest;
+        float t = 0;
+        for(int i=0; i<MAX_ADVANCE; i++) {
+            seg[0] = seg[3] = q[Q_START] + mx*t;
+            seg[1] = q[Q_START+1] + my*t - halfHeight;
+            seg[4] = seg[1] + halfHeight*2;
+            seg[2] = seg[5] = q[Q_START+2] + mz*t;
+            float d = segmentTriangle(seg, v, a, b, c, cp);
+            if(d > FastMath.FLT_EPSILON) {
+                n[0] = (cp[0] - cp[3])/d;
+                n[1] = (cp[1] - cp[4])/d;
+                n[2] = (cp[2] - cp[5])/d;
+            } else {
+                // the segment touches the triangle, use the normal of
+                // the triangle against the motion
+                triangleNormal(v, a, b, c, n);
+                if(n[0]*mx + n[1]*my + n[2]*mz > 0) {
+                    n[0] = -n[0];
+                    n[1] = -n[1];
+                    n[2] = -n[2];
+                }
+            }
+            float gap = d - r;
+            float approach = -(n[0]*mx + n[1]*my + n[2]*mz);
+            if(gap <= tolerance) {
+                // touching, but not closing in
+                if(t == 0 && approach <= 0)
+                    return -1;
+                return t;
+            }
+            if(approach <= 0)
+                return -1;
+            t += gap/approach;
+            if(t >= maxTime)
+                return -1;
+        }
+        return t;
+    }
+    
+    // the time of contact of the box and the triangle, -1 if none before
+    // maxTime, from the times the projections on the separating axes
+    // start and stop overlapping
+    protected float sweepBox(float[] q, float[] v, int a, int b, int c, float maxTime, float[] n) {
+        float mx = q[Q_MOTION], my = q[Q_MOTION+1], mz = q[Q_MOTION+2];
+        float e0x = v[b] - v[a], e0y = v[b+1] - v[a+1], e0z = v[b+2] - v[a+2];
+        float e1x = v[c] - v[b], e1y = v[c+1] - v[b+1], e1z = v[c+2] - v[b+2];
+        float e2x = v[a] - v[c], e2y = v[a+1] - v[c+1], e2z = v[a+2] - v[c+2];
+        float enter = -Float.MAX_VALUE, exit = Float.MAX_VALUE;
+        float nx = 0, ny = 0, nz = 0;
+        for(int i=0; i<13; i++) {
+            float lx, ly, lz;
+            if(i < 3) {
+                // the axes of the box
+                lx = i == 0 ? 1 : 0;
+                ly = i == 1 ? 1 : 0;
+                lz = i == 2 ? 1 : 0;
+            } else if(i == 3) {
+                // the normal of the triangle
+                lx = e0y*e1z - e0z*e1y;
+                ly = e0z*e1x - e0x*e1z;
+                lz = e0x*e1y - e0y*e1x;
+            } else {
+                // an edge of the triangle crossed with an axis of the box
+                int e = (i - 4)/3, ax = (i - 4)%3;
+                float ex = e == 0 ? e0x : e == 1 ? e1x : e2x;
+                float ey = e == 0 ? e0y : e == 1 ? e1y : e2y;
+                float ez = e == 0 ? e0z : e == 1 ? e1z : e2z;
+                lx = ax == 0 ? 0 : ax == 1 ? -ez : ey;
+                ly = ax == 0 ? ez : ax == 1 ? 0 : -ex;
+                lz = ax == 0 ? -ey : ax == 1 ? ex : 0;
+            }
+            float ll = lx*lx + ly*ly + lz*lz;
+            if(ll < FastMath.FLT_EPSILON)
+                continue;
+            ll = 1f/FastMath.sqrt(ll);
+            lx *= ll;
+            ly *= ll;
+            lz *= ll;
+            float bc = q[Q_START]*lx + q[Q_START+1]*ly + q[Q_START+2]*lz;
+            float br = q[Q_HALF]*Math.abs(lx) + q[Q_HALF+1]*Math.abs(ly) + q[Q_HALF+2]*Math.abs(lz);
+            float pa = v[a]*lx + v[a+1]*ly + v[a+2]*lz;
+            float pb = v[b]*lx + v[b+1]*ly + v[b+2]*lz;
+            float pc = v[c]*lx + v[c+1]*ly + v[c+2]*lz;
+            // the box overlaps the triangle on the axis while it moved
+            // between lo and hi
+            float lo = Math.min(pa, Math.min(pb, pc)) - (bc + br);
+            float hi = Math.max(pa, Math.max(pb, pc)) - (bc - br);
+            float vel = mx*lx + my*ly + mz*lz;
+            if(Math.abs(vel) < FastMath.FLT_EPSILON) {
+                if(lo > 0 || hi < 0)
+                    return -1;
+                continue;
+            }
+            float t0 = lo/vel, t1 = hi/vel;
+            if(t0 > t1) {
+                float s = t0;
+                t0 = t1;
+                t1 = s;
+            }
+            if(t0 > enter) {
+                enter = t0;
+                // the normal points against the motion
+                float sg = vel > 0 ? -1 : 1;
+                nx = lx*sg;
+                ny = ly*sg;
+                nz = lz*sg;
+            }
+            if(t1 < exit)
+                exit = t1;
+            if(enter > exit || enter >= maxTime || exit < 0)
+                return -1;
+        }
+        if(enter < 0) {
+            // overlapping at the start, blocked only if moving into the
+            // triangle from the side of the center of the box
+            triangleNormal(v, a, b, c, n);
+            float side = (q[Q_START] - v[a])*n[0] + (q[Q_START+1] - v[a+1])*n[1] 
+                    + (q[Q_START+2] - v[a+2])*n[2];
+            if(side < 0) {
+                n[0] = -n[0];
+                n[1] = -n[1];
+                n[2] = -n[2];
+            }
+            if(n[0]*mx + n[1]*my + n[2]*mz >= 0)
+                return -1;
+            return 0;
+        }
+        n[0] = nx;
+        n[1] = ny;
+        n[2] = nz;
+        return enter;
+    }
+    
+    private static void triangleNormal(float[] v, int a, int b, int c, float[] n) {
+        float e0x = v[b] - v[a], e0y = v[b+1] - v[a+1], e0z = v[b+2] - v[a+2];
+        float e1x = v[c] - v[a], e1y = v[c+1] - v[a+1], e1z = v[c+2] - v[a+2];
+        float x = e0y*e1z - e0z*e1y, y = e0z*e1x - e0x*e1z, z = e0x*e1y - e0y*e1x;
+        float l = FastMath.sqrt(x*x + y*y + z*z);
+        if(l > 0) {
+            l = 1f/l;
+        }
+        n[0] = x*l;
+        n[1] = y*l;
+        n[2] = z*l;
+    }
+    
+    /**
+     * The distance of a segment and a triangle. The closest point of the
+     * segment is stored in cp[0..2], of the triangle in cp[3..5], cp must
+     * have 12 elements.
+     * @param seg   the end points of the segment
+     * @param v     the array with the vertices of the triangle
+     */
+    public static float segmentTriangle(float[] seg, float[] v, int a, int b, int c, float[] cp) {
+        // does the segment cross the triangle
+        triangleNormal(v, a, b, c, cp);
+        float nx = cp[0], ny = cp[1], nz = cp[2];
+        float dp = (seg[0] - v[a])*nx + (seg[1] - v[a+1])*ny + (seg[2] - v[a+2])*nz;
+        float dq = (seg[3] - v[a])*nx + (seg[4] - v[a+1])*ny + (seg[5] - v[a+2])*nz;
+        if(dp*dq <= 0 && dp != dq) {
+            float s = dp/(dp - dq);
+            cp[6] = seg[0] + (seg[3] - seg[0])*s;
+            cp[7] = seg[1] + (seg[4] - seg[1])*s;
+            cp[8] = seg[2] + (seg[5] - seg[2])*s;
+            if(closestPointTriangle(cp, 6, v, a, b, c, cp, 9) < FastMath.FLT_EPSILON) {
+                System.arraycopy(cp, 6, cp, 0, 3);
+                System.arraycopy(cp, 6, cp, 3, 3);
+                return 0;
+            }
+        }
+        // the end points against the triangle
+        float best = closestPointTriangle(seg, 0, v, a, b, c, cp, 3);
+        System.arraycopy(seg, 0, cp, 0, 3);
+        float d = closestPointTriangle(seg, 3, v, a, b, c, cp, 9);
+        if(d < best) {
+            best = d;
+            System.arraycopy(seg, 3, cp, 0, 3);
+            System.arraycopy(cp, 9, cp, 3, 3);
+        }
+        // the segment against the edges
+        for(int e=0; e<3; e++) {
+            int p = e == 0 ? a : e == 1 ? b : c;
+            int r = e == 0 ? b : e == 1 ? c : a;
+            d = closestSegmentSegment(seg, 0, 3, v, p, r, cp, 6);
+            if(d < best) {
+                best = d;
+                System.arraycopy(cp, 6, cp, 0, 6);
+            }
+        }
+        return FastMath.sqrt(best);
+    }
+    
+    // the closest point of the triangle to the point at p in pt, stored
+    // at o in store, returns the squared distance
+    private static float closestPointTriangle(float[] pt, int p, float[] v, int a, int b, int c, float[] store, int o) {
+        float px = pt[p], py = pt[p+1], pz = pt[p+2];
+        float abx = v[b] - v[a], aby = v[b+1] - v[a+1], abz = v[b+2] - v[a+2];
+        float acx = v[c] - v[a], acy = v[c+1] - v[a+1], acz = v[c+2] - v[a+2];
+        float apx = px - v[a], apy = py - v[a+1], apz = pz - v[a+2];
+        float d1 = abx*apx + aby*apy + abz*apz;
+        float d2 = acx*apx + acy*apy + acz*apz;
+        float u, w;
+        float d3, d4, d5, d6;
+        if(d1 <= 0 && d2 <= 0) {
+            u = 0; w = 0;
+        } else {
+            float bpx = px - v[b], bpy = py - v[b+1], bpz = pz - v[b+2];
+            d3 = abx*bpx + aby*bpy + abz*bpz;
+            d4 = acx*bpx + acy*bpy + acz*bpz;
+            float vc = d1*d4 - d3*d2;
+            if(d3 >= 0 && d4 <= d3) {
+                u = 1; w = 0;
+            } else if(vc <= 0 && d1 >= 0 && d3 <= 0) {
+                u = d1/(d1 - d3); w = 0;
+            } else {
+                float cpx = px - v[c], cpy = py - v[c+1], cpz = pz - v[c+2];
+                d5 = abx*cpx + aby*cpy + abz*cpz;
+                d6 = acx*cpx + acy*cpy + acz*cpz;
+                float vb = d5*d2 - d1*d6;
+                float va = d3*d6 - d5*d4;
+                if(d6 >= 0 && d5 <= d6) {
+                    u = 0; w = 1;
+                } else if(vb <= 0 && d2 >= 0 && d6 <= 0) {
+                    u = 0; w = d2/(d2 - d6);
+                } else if(va <= 0 && (d4 - d3) >= 0 && (d5 - d6) >= 0) {
+                    w = (d4 - d3)/((d4 - d3) + (d5 - d6));
+                    u = 1 - w;
+                } else {
+                    float denom = 1f/(va + vb + vc);
+                    u = vb*denom;
+                    w = vc*denom;
+                }
+            }
+        }
+        float x = v[a] + abx*u + acx*w, y = v[a+1] + aby*u + acy*w, z = v[a+2] + abz*u + acz*w;
+        store[o] = x;
+        store[o+1] = y;
+        store[o+2] = z;
+        return (px - x)*(px - x) + (py - y)*(py - y) + (pz - z)*(pz - z);
+    }
+    
+    // the closest points of the segments p1-q1 in s and p2-q2 in v, stored
+    // at o and o+3 in store, returns the squared distance
+    private static float closestSegmentSegment(float[] s, int p1, int q1, float[] v, int p2, int q2, float[] store, int o) {
+        float d1x = s[q1] - s[p1], d1y = s[q1+1] - s[p1+1], d1z = s[q1+2] - s[p1+2];
+        float d2x = v[q2] - v[p2], d2y = v[q2+1] - v[p2+1], d2z = v[q2+2] - v[p2+2];
+        float rx = s[p1] - v[p2], ry = s[p1+1] - v[p2+1], rz = s[p1+2] - v[p2+2];
+        float a = d1x*d1x + d1y*d1y + d1z*d1z;
+        float e = d2x*d2x + d2y*d2y + d2z*d2z;
+        float f = d2x*rx + d2y*ry + d2z*rz;
+        float sc, tc;
+        if(a <= FastMath.FLT_EPSILON && e <= FastMath.FLT_EPSILON) {
+            sc = 0; tc = 0;
+        } else if(a <= FastMath.FLT_EPSILON) {
+            sc = 0;
+            tc = clamp(f/e);
+        } else {
+            float c = d1x*rx + d1y*ry + d1z*rz;
+            if(e <= FastMath.FLT_EPSILON) {
+                tc = 0;
+                sc = clamp(-c/a);
+            } else {
+                float b = d1x*d2x + d1y*d2y + d1z*d2z;
+                float denom = a*e - b*b;
+                sc = denom != 0 ? clamp((b*f - c*e)/denom) : 0;
+                tc = (b*sc + f)/e;
+                if(tc < 0) {
+                    tc = 0;
+                    sc = clamp(-c/a);
+                } else if(tc > 1) {
+                    tc = 1;
+                    sc = clamp((b - c)/a);
+                }
+            }
+        }
+        float x1 = s[p1] + d1x*sc, y1 = s[p1+1] + d1y*sc, z1 = s[p1+2] + d1z*sc;
+        float x2 = v[p2] + d2x*tc, y2 = v[p2+1] + d2y*tc, z2 = v[p2+2] + d2z*tc;
+        store[o] = x1;
+        store[o+1] = y1;
+        store[o+2] = z1;
+        store[o+3] = x2;
+        store[o+4] = y2;
+        store[o+5] = z2;
+        return (x1 - x2)*(x1 - x2) + (y1 - y2)*(y1 - y2) + (z1 - z2)*(z1 - z2);
+    }
+    
+    private static float clamp(float f) {
+        return f < 0 ? 0 : f > 1 ? 1 : f;
+    }
+}
@@ -0,0 +1,810 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.bounding;
+
+import com.vlengine.intersection.Intersection;
+import com.vlengine.math.FastMath;
+import com.vlengine.math.Quaternion;
+import com.vlengine.math.Ray;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.Geometry;
+import com.vlengine.scene.Spatial;
+import com.vlengine.thread.Context;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.IntList;
+
+/**
+ * Bounding volume hierarchy over the triangles of a geometry, stored in
+ * primitive arrays. The tree is built with the surface area heuristic,
+ * evaluated over a fixed number of bins along each axis. Nodes are stored
+ * in depth first order, so the left child of an inner node is the next
+ * node, and every node stores the index of the node following its subtree.
+ * This allows traversing the tree without a stack.
+ * 
+ * The triangle vertices are copied into the tree in leaf order, so queries
+ * do not need to read the vertex buffer of the geometry.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class CollisionBVH {
+    
+    // the number of bins for evaluating the SAH
+    public static final int BINS = 16;
+    // cost of traversing a node relative to testing a triangle
+    public static final float TRAVERSAL_COST = 1f;
+    // trees with this many triangles build their top levels in parallel
+    public static final int PARALLEL_BUILD_TRIS = 32768;
+    // the number of levels built in parallel
+    public static final int PARALLEL_BUILD_DEPTH = 2;
+    // tolerance of the ray triangle edge tests, relative to the
+    // triangle area seen from the ray
+    public static final float EDGE_EPSILON = 1e-5f;
+    
+    // node layout in the nodes array
+    protected static final int N_START = 0;
+    protected static final int N_COUNT = 1;
+    protected static final int N_ESCAPE = 2;
+    protected static final int N_SIZE = 3;
+    
+    // triangle indices in leaf order
+    protected int[] triIndex;
+    // 9 floats per triangle, the vertices in leaf order
+    protected float[] triVerts;
+    // 6 floats per node: min x,y,z, max x,y,z
+    protected float[] nodeBounds;
+    // 3 ints per node: first triangle, number of triangles (0 for inner
+    // nodes), the index of the node after the subtree
+    protected int[] nodes;
+    protected int nodeCount;
+    
+    // the maximum number of triangles in a leaf
+    protected int maxLeaf;
+    
+    // per triangle data used while building
+    private float[] triBounds;
+    private float[] triCenter;
+    
+    /**
+     * Builds the tree for the given geometry.
+     * @param batch     the geometry
+     * @param maxLeaf   maximum number of triangles in a leaf
+     */
+    public void build(Geometry batch, int maxLeaf) {
+        this.maxLeaf = Math.max(1, maxLeaf);
+        int triCount = batch.getTriangleCount();
+        triIndex = new int[triCount];
+        triBounds = new float[triCount*6];
+        triCenter = new float[triCount*3];
+        float[] verts = new float[triCount*9];
+        
+        Vector3f[] v = new Vector3f[3];
+        for(int i=0; i<triCount; i++) {
+            triIndex[i] = i;
+            batch.getTriangle(i, v);
+            int b = i*6;
+            for(int k=0; k<3; k++) {
+                verts[i*9+k*3] = v[k].x;
+                verts[i*9+k*3+1] = v[k].y;
+                verts[i*9+k*3+2] = v[k].z;
+            }
+            for(int a=0; a<3; a++) {
+                float p0 = verts[i*9+a], p1 = verts[i*9+3+a], p2 = verts[i*9+6+a];
+                float mn = Math.min(p0, Math.min(p1, p2));
+                float mx = Math.max(p0, Math.max(p1, p2));
+                triBounds[b+a] = mn;
+                triBounds[b+3+a] = mx;
+                triCenter[i*3+a] = (mn+mx)*0.5f;
+            }
+        }
+        
+        Builder root = new Builder(Math.max(1, 2*triCount/this.maxLeaf));
+        if(triCount > 0)
+            root.build(0, triCount, 0);
+        nodes = root.nodes;
+        nodeBounds = root.bounds;
+        nodeCount = root.count;
+        
+        // copy the vertices in leaf order
+        triVerts = new float[triCount*9];
+        for(int i=0; i<triCount; i++) {
+            System.arraycopy(verts, triIndex[i]*9, triVerts, i*9, 9);
+        }
+        triBounds = null;
+        triCenter = null;
+    }
+    
+    /**
+     * Builds a part of the tree into its own node arrays, so parts can be
+     * built in parallel and appended afterwards.
+     */
+    private class Builder {
+        int[] nodes;
+        float[] bounds;
+        int count = 0;
+        
+        // bins, reused trough the build
+        final int[] binCount = new int[3*BINS];
+        final float[] binBounds = new float[3*BINS*6];
+        // start and scale of the bins on the axes
+        final float[] cmin = new float[3];
+        final float[] scale = new float[3];
+        final int[] binStamp = new int[3*BINS];
+        int stamp = 0;
+        final float[] rightArea = new float[BINS];
+        final int[] rightCount = new int[BINS];
+        
+        Builder(int capacity) {
+            capacity = Math.max(1, capacity);
+            nodes = new int[capacity*N_SIZE];
+            bounds = new float[capacity*6];
+        }
+        
+        int newNode() {
+            if((count+1)*N_SIZE > nodes.length) {
+                int[] nn = new int[nodes.length*2];
+                System.arraycopy(nodes, 0, nn, 0, nodes.length);
+                nodes = nn;
+                float[] nb = new float[bounds.length*2];
+                System.arraycopy(bounds, 0, nb, 0, bounds.length);
+                bounds = nb;
+            }
+            return count++;
+        }
+        
+        void append(Builder other) {
+            int offset = count;
+            for(int i=0; i<other.count; i++) {
+                int n = newNode();
+                nodes[n*N_SIZE+N_START] = other.nodes[i*N_SIZE+N_START];
+                nodes[n*N_SIZE+N_COUNT] = other.nodes[i*N_SIZE+N_COUNT];
+                nodes[n*N_SIZE+N_ESCAPE] = other.nodes[i*N_SIZE+N_ESCAPE] + offset;
+                System.arraycopy(other.bounds, i*6, bounds, n*6, 6);
+            }
+        }
+        
+        void build(int start, int end, int depth) {
+            int node = newNode();
+            int nb = node*6;
+            // bounds of the triangles and their centers
+            float cminx = Float.MAX_VALUE, cminy = Float.MAX_VALUE, cminz = Float.MAX_VALUE;
+            float cmaxx = -Float.MAX_VALUE, cmaxy = -Float.MAX_VALUE, cmaxz = -Float.MAX_VALUE;
+            bounds[nb] = bounds[nb+1] = bounds[nb+2] = Float.MAX_VALUE;
+            bounds[nb+3] = bounds[nb+4] = bounds[nb+5] = -Float.MAX_VALUE;
+            for(int i=start; i<end; i++) {
+                int t = triIndex[i];
+                for(int a=0; a<3; a++) {
+                    if(triBounds[t*6+a] < bounds[nb+a]) bounds[nb+a] = triBounds[t*6+a];
+                    if(triBounds[t*6+3+a] > bounds[nb+3+a]) bounds[nb+3+a] = triBounds[t*6+3+a];
+                }
+                float cx = triCenter[t*3], cy = triCenter[t*3+1], cz = triCenter[t*3+2];
+                if(cx < cminx) cminx = cx; if(cx > cmaxx) cmaxx = cx;
+                if(cy < cminy) cminy = cy; if(cy > cmaxy) cmaxy = cy;
+                if(cz < cminz) cminz = cz; if(cz > cmaxz) cmaxz = cz;
+            }
+            int n = end - start;
+            
+            // find the best split
+            int bestAxis = -1, bestSplit = 0;
+            float bestCost = Float.MAX_VALUE;
+            if(n > 1) {
+                float[] cmin = this.cmin, scale = this.scale;
+                cmin[0] = cminx; cmin[1] = cminy; cmin[2] = cminz;
+                scale[0] = cmaxx > cminx ? BINS / (cmaxx - cminx) : 0;
+                scale[1] = cmaxy > cminy ? BINS / (cmaxy - cminy) : 0;
+                scale[2] = cmaxz > cminz ? BINS / (cmaxz - cminz) : 0;
+                fillBins(start, end);
+                for(int axis=0; axis<3; axis++) {
+                    if(scale[axis] == 0)
+                        continue;
+                    int ab = axis*BINS;
+                    // sweep from the right
+                    float minx = Float.MAX_VALUE, miny = Float.MAX_VALUE, minz = Float.MAX_VALUE;
+                    float maxx = -Float.MAX_VALUE, maxy = -Float.MAX_VALUE, maxz = -Float.MAX_VALUE;
+                    int cnt = 0;
+                    for(int b=BINS-1; b>0; b--) {
+                        if(binStamp[ab+b] == stamp) {
+                            int bb = (ab+b)*6;
+                            if(binBounds[bb] < minx) minx = binBounds[bb];
+                            if(binBounds[bb+1] < miny) miny = binBounds[bb+1];
+                            if(binBounds[bb+2] < minz) minz = binBounds[bb+2];
+                            if(binBounds[bb+3] > maxx) maxx = binBounds[bb+3];
+                            if(binBounds[bb+4] > maxy) maxy = binBounds[bb+4];
+                            if(binBounds[bb+5] > maxz) maxz = binBounds[bb+5];
+                            cnt += binCount[ab+b];
+                        }
+                        rightCount[b] = cnt;
+                        rightArea[b] = cnt > 0 ? area(maxx-minx, maxy-miny, maxz-minz) : 0;
+                    }
+                    // sweep from the left, and evaluate the splits
+                    minx = miny = minz = Float.MAX_VALUE;
+                    maxx = maxy = maxz = -Float.MAX_VALUE;
+                    cnt = 0;
+                    for(int b=0; b<BINS-1; b++) {
+                        if(binStamp[ab+b] == stamp) {
+                            int bb = (ab+b)*6;
+                            if(binBounds[bb] < minx) minx = binBounds[bb];
+                            if(binBounds[bb+1] < miny) miny = binBounds[bb+1];
+                            if(binBounds[bb+2] < minz) minz = binBounds[bb+2];
+                            if(binBounds[bb+3] > maxx) maxx = binBounds[bb+3];
+                            if(binBounds[bb+4] > maxy) maxy = binBounds[bb+4];
+                            if(binBounds[bb+5] > maxz) maxz = binBounds[bb+5];
+                            cnt += binCount[ab+b];
+                        }
+                        if(cnt == 0 || rightCount[b+1] == 0)
+                            continue;
+                        float cost = cnt*area(maxx-minx, maxy-miny, maxz-minz) + rightCount[b+1]*rightArea[b+1];
+                        if(cost < bestCost) {
+                            bestCost = cost;
+                            bestAxis = axis;
+                            bestSplit = b+1;
+                        }
+                    }
+                }
+            }
+            
+            float nodeArea = area(bounds[nb+3]-bounds[nb], bounds[nb+4]-bounds[nb+1], bounds[nb+5]-bounds[nb+2]);
+            boolean leaf = n <= 1;
+            if(!leaf && n <= maxLeaf) {
+                // is it cheaper to test all the triangles, than to split?
+                leaf = bestAxis == -1 || nodeArea <= 0 
+                        || n <= TRAVERSAL_COST + bestCost / nodeArea;
+            }
+            if(leaf) {
+                nodes[node*N_SIZE+N_START] = start;
+                nodes[node*N_SIZE+N_COUNT] = n;
+                nodes[node*N_SIZE+N_ESCAPE] = count;
+                return;
+            }
+            
+            int mid;
+            if(bestAxis == -1) {
+                // all centers are in one point, just split in half
+                mid = (start + end) >>> 1;
+            } else {
+                float bmin = cmin[bestAxis], bscale = scale[bestAxis];
+                // partition the triangles
+                int i = start, j = end - 1;
+                while(i <= j) {
+                    if(bin(triCenter[triIndex[i]*3+bestAxis], bmin, bscale) < bestSplit) {
+                        i++;
+                    } else {
+                        int t = triIndex[i];
+                        triIndex[i] = triIndex[j];
+                        triIndex[j] = t;
+                        j--;
+                    }
+                }
+                mid = i;
+                if(mid == start || mid == end)
+                    mid = (start + end) >>> 1;
+            }
+            
+            nodes[node*N_SIZE+N_START] = start;
+            nodes[node*N_SIZE+N_COUNT] = 0;
+            if(depth < PARALLEL_BUILD_DEPTH && n >= PARALLEL_BUILD_TRIS) {
+                // build the left side in another thread
+                final Builder left = new Builder(2*(mid-start)/maxLeaf);
+                final int ls = start, le = mid, ld = depth + 1;
+                Thread th = new Thread(new Runnable() {
+                    public void run() {
+                        left.build(ls, le, ld);
+                    }
+                }, "BVHBuild");
+                th.start();
+                Builder right = new Builder(2*(end-mid)/maxLeaf);
+                right.build(mid, end, depth + 1);
+                try {
+                    th.join();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                append(left);
+                append(right);
+            } else {
+                build(start, mid, depth + 1);
+                build(mid, end, depth + 1);
+            }
+            nodes[node*N_SIZE+N_ESCAPE] = count;
+        }
+        
+        // bins the triangles along all three axes
+        void fillBins(int start, int end) {
+            // the bins are cleared by changing the stamp, clearing them on
+            // every node would cost more than binning the small nodes
+            stamp++;
+            for(int i=start; i<end; i++) {
+                int t = triIndex[i];
+                int tb = t*6;
+                for(int axis=0; axis<3; axis++) {
+                    if(scale[axis] == 0)
+                        continue;
+                    int b = axis*BINS + bin(triCenter[t*3+axis], cmin[axis], scale[axis]);
+                    int bb = b*6;
+                    if(binStamp[b] != stamp) {
+                        binStamp[b] = stamp;
+                        binCount[b] = 1;
+                        System.arraycopy(triBounds, tb, binBounds, bb, 6);
+                        continue;
+                    }
+                    binCount[b]++;
+                    for(int a=0; a<3; a++) {
+                        if(triBounds[tb+a] < binBounds[bb+a]) binBounds[bb+a] = triBounds[tb+a];
+                        if(triBounds[tb+3+a] > binBounds[bb+3+a]) binBounds[bb+3+a] = triBounds[tb+3+a];
+                    }
+                }
+            }
+        }
+    }
+    
+    private static int bin(float c, float cmin, float scale) {
+        int b = (int) ((c - cmin) * scale);
+        return b < 0 ? 0 : (b >= BINS ? BINS - 1 : b);
+    }
+    
+    private static float area(float dx, float dy, float dz) {
+        return dx*dy + dy*dz + dz*dx;
+    }
+    
+    public int getNodeCount() {
+        return nodeCount;
+    }
+    
+    public int getTriangleCount() {
+        return triIndex != null ? triIndex.length : 0;
+    }
+    
+    // the triangle indices in leaf order
+    public int[] getTriIndex() {
+        return triIndex;
+    }
+    
+    /**
+     * Stores the bounds of the whole tree into the given box.
+     */
+    public BoundingBox getBounds(BoundingBox store) {
+        if(store == null)
+            store = new BoundingBox();
+        if(nodeCount == 0) {
+            store.getCenter().set(0, 0, 0);
+            store.xExtent = store.yExtent = store.zExtent = 0;
+            return store;
+        }
+        store.getCenter().set((nodeBounds[0]+nodeBounds[3])*0.5f, 
+                (nodeBounds[1]+nodeBounds[4])*0.5f, (nodeBounds[2]+nodeBounds[5])*0.5f);
+        store.xExtent = (nodeBounds[3]-nodeBounds[0])*0.5f;
+        store.yExtent = (nodeBounds[4]-nodeBounds[1])*0.5f;
+        store.zExtent = (nodeBounds[5]-nodeBounds[2])*0.5f;
+        return store;
+    }
+    
+    /**
+     * Finds the triangles hit by a ray given in the local space of the
+     * geometry. The direction of the ray does not need to be normalized.
+     * The indices of the hit triangles are added to the list.
+     */
+    public void intersect(Ray ray, IntList triList) {
+        float ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+        float dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+        float ix = 1f/dx, iy = 1f/dy, iz = 1f/dz;
+        int n = 0;
+        while(n < nodeCount) {
+            int nb = n*6;
+            if(!rayHitsBox(nodeBounds, nb, ox, oy, oz, dx, dy, dz, ix, iy, iz)) {
+                n = nodes[n*N_SIZE+N_ESCAPE];
+                continue;
+            }
+            int cnt = nodes[n*N_SIZE+N_COUNT];
+            if(cnt == 0) {
+                // inner node, go to left child
+                n++;
+                continue;
+            }
+            int start = nodes[n*N_SIZE+N_START];
+            for(int i=start, e=start+cnt; i<e; i++) {
+                if(rayHitsTriangle(triVerts, i*9, ox, oy, oz, dx, dy, dz)) {
+                    triList.add(triIndex[i]);
+                }
+            }
+            n = nodes[n*N_SIZE+N_ESCAPE];
+        }
+    }
+    
+    /**
+     * The stack of a packet traversal, the node and the mask of the rays
+     * still hitting the node.
+     */
+    public static class PacketStack {
+        int[] nodes = new int[64];
+        long[] masks = new long[64];
+        
+        void ensure(int size) {
+            if(size > nodes.length) {
+                int[] nn = new int[size*2];
+                System.arraycopy(nodes, 0, nn, 0, nodes.length);
+                nodes = nn;
+                long[] nm = new long[size*2];
+                System.arraycopy(masks, 0, nm, 0, masks.length);
+                masks = nm;
+            }
+        }
+    }
+    
+    /**
+     * Finds the nearest hit of each ray of a packet of up to 64 rays, given
+     * in the local space of the geometry. The tree is traversed once, with
+     * the mask of the rays still hitting each node. The hit of ray i is 
+     * stored into dist[i] and tri[i] only if it is closer than dist[i], so 
+     * dist[i] is also the length of the ray.
+     * 
+     * @param origin    the origins of the rays, x, y, z of each
+     * @param direction the directions of the rays
+     * @param inverse   1/direction for each component
+     * @param mask      the rays to test, bit i for ray i
+     * @return the mask of the rays which got a closer hit
+     */
+    public long intersectNearest(float[] origin, float[] direction, float[] inverse, long mask,
+            float[] dist, int[] tri, PacketStack st) {
+        if(nodeCount == 0 || mask == 0)
+            return 0;
+        long hit = 0;
+        int sp = 0;
+        st.nodes[sp] = 0;
+        st.masks[sp++] = mask;
+        while(sp > 0) {
+            sp--;
+            int n = st.nodes[sp];
+            long m = st.masks[sp];
+            // the rays hitting the node, closer than their nearest hit
+            long nm = 0;
+            int nb = n*6;
+            for(long b = m; b != 0; b &= b - 1) {
+                int i = Long.numberOfTrailingZeros(b);
+                int o = i*3;
+                if(rayHitsBox(nodeBounds, nb, origin[o], origin[o+1], origin[o+2],
+                        direction[o], direction[o+1], direction[o+2], 
+                        inverse[o], inverse[o+1], inverse[o+2], dist[i]))
+                    nm |= 1L << i;
+            }
+            if(nm == 0)
+                continue;
+            int cnt = nodes[n*N_SIZE+N_COUNT];
+            if(cnt == 0) {
+                int left = n+1;
+                int right = nodes[left*N_SIZE+N_ESCAPE];
+                st.ensure(sp + 2);
+                st.nodes[sp] = right;
+                st.masks[sp++] = nm;
+                st.nodes[sp] = left;
+                st.masks[sp++] = nm;
+                continue;
+            }
+            int start = nodes[n*N_SIZE+N_START];
+            for(int k=start, e=start+cnt; k<e; k++) {
+                for(long b = nm; b != 0; b &= b - 1) {
+                    int i = Long.numberOfTrailingZeros(b);
+                    int o = i*3;
+                    float t = rayTriangleDistance(triVerts, k*9, origin[o], origin[o+1], origin[o+2],
+                            direction[o], direction[o+1], direction[o+2]);
+                    if(t >= 0 && t < dist[i]) {
+                        dist[i] = t;
+                        tri[i] = triIndex[k];
+                        hit |= 1L << i;
+                    }
+                }
+            }
+        }
+        return hit;
+    }
+    
+    /**
+     * Finds the triangles, whose bounds overlap the given box in the local
+     * space of the geometry.
+     */
+    public void intersect(BoundingBox box, IntList triList) {
+        Vector3f c = box.getCenter();
+        float minx = c.x - box.xExtent, miny = c.y - box.yExtent, minz = c.z - box.zExtent;
+        float maxx = c.x + box.xExtent, maxy = c.y + box.yExtent, maxz = c.z + box.zExtent;
+        int n = 0;
+        while(n < nodeCount) {
+            int nb = n*6;
+            if(nodeBounds[nb] > maxx || nodeBounds[nb+3] < minx
+               || nodeBounds[nb+1] > maxy || nodeBounds[nb+4] < miny
+               || nodeBounds[nb+2] > maxz || nodeBounds[nb+5] < minz) {
+                n = nodes[n*N_SIZE+N_ESCAPE];
+                continue;
+            }
+            int cnt = nodes[n*N_SIZE+N_COUNT];
+            if(cnt == 0) {
+                n++;
+                continue;
+            }
+            int start = nodes[n*N_SIZE+N_START];
+            for(int i=start, e=start+cnt; i<e; i++) {
+                int v = i*9;
+                float tminx = Math.min(triVerts[v], Math.min(triVerts[v+3], triVerts[v+6]));
+                float tmaxx = Math.max(triVerts[v], Math.max(triVerts[v+3], triVerts[v+6]));
+                float tminy = Math.min(triVerts[v+1], Math.min(triVerts[v+4], triVerts[v+7]));
+                float tmaxy = Math.max(triVerts[v+1], Math.max(triVerts[v+4], triVerts[v+7]));
+                float tminz = Math.min(triVerts[v+2], Math.min(triVerts[v+5], triVerts[v+8]));
+                float tmaxz = Math.max(triVerts[v+2], Math.max(triVerts[v+5], triVerts[v+8]));
+                if(tminx <= maxx && tmaxx >= minx && tminy <= maxy && tmaxy >= miny
+                   && tminz <= maxz && tmaxz >= minz) {
+                    triList.add(triIndex[i]);
+                }
+            }
+            n = nodes[n*N_SIZE+N_ESCAPE];
+        }
+    }
+    
+    /**
+     * Finds the colliding triangles of this and another tree, both placed
+     * into the world by their spatial. The pairs are traversed with a
+     * small explicit stack.
+     * 
+     * @param other         the other tree
+     * @param myParent      the spatial of this tree
+     * @param otherParent   the spatial of the other tree
+     * @param aList         colliding triangles of this tree, can be null
+     * @param bList         colliding triangles of the other tree, can be null
+     * @param checkTriangles if false, the triangles with overlapping leaves
+     *                      are returned without checking for intersection
+     * @param first         stop on the first collision
+     * @return true if there was a collision
+     */
+    public boolean intersect(CollisionBVH other, Spatial myParent, Spatial otherParent, 
+            IntList aList, IntList bList, boolean checkTriangles, boolean first) {
+        if(nodeCount == 0 || other.nodeCount == 0)
+            return false;
+        Context tmp = LocalContext.getContext();
+        float[] ma = tmp.ctmatA;
+        float[] mb = tmp.ctmatB;
+        worldMatrix(myParent, ma);
+        worldMatrix(otherParent, mb);
+        float[] wa = tmp.ctboundA;
+        float[] wb = tmp.ctboundB;
+        
+        int[] stack = tmp.ctstack;
+        int sp = 0;
+        stack[sp++] = 0;
+        stack[sp++] = 0;
+        boolean hit = false;
+        while(sp > 0) {
+            int nb = stack[--sp];
+            int na = stack[--sp];
+            worldBound(nodeBounds, na*6, ma, wa);
+            other.worldBound(other.nodeBounds, nb*6, mb, wb);
+            if(wa[0] > wb[3] || wa[3] < wb[0] || wa[1] > wb[4] || wa[4] < wb[1]
+               || wa[2] > wb[5] || wa[5] < wb[2])
+                continue;
+            int ca = nodes[na*N_SIZE+N_COUNT];
+            int cb = other.nodes[nb*N_SIZE+N_COUNT];
+            if(ca != 0 && cb != 0) {
+                // two leaves, check the triangles
+                if(leafCollision(na, other, nb, ma, mb, aList, bList, checkTriangles, first)) {
+                    hit = true;
+                    if(first)
+                        return true;
+                }
+                continue;
+            }
+            if(sp + 4 > stack.length) {
+                int[] ns = new int[stack.length*2];
+                System.arraycopy(stack, 0, ns, 0, sp);
+                stack = ns;
+                tmp.ctstack = ns;
+            }
+            // descend into the larger inner node
+            boolean splitA = cb != 0 || (ca == 0 
+                    && volume(nodeBounds, na*6) >= volume(other.nodeBounds, nb*6));
+            if(splitA) {
+                int left = na+1;
+                int right = nodes[left*N_SIZE+N_ESCAPE];
+                stack[sp++] = right; stack[sp++] = nb;
+                stack[sp++] = left; stack[sp++] = nb;
+            } else {
+                int left = nb+1;
+                int right = other.nodes[left*N_SIZE+N_ESCAPE];
+                stack[sp++] = na; stack[sp++] = right;
+                stack[sp++] = na; stack[sp++] = left;
+            }
+        }
+        return hit;
+    }
+    
+    private boolean leafCollision(int na, CollisionBVH other, int nb, float[] ma, float[] mb,
+            IntList aList, IntList bList, boolean checkTriangles, boolean first) {
+        Context tmp = LocalContext.getContext();
+        boolean hit = false;
+        int sa = nodes[na*N_SIZE+N_START], ea = sa + nodes[na*N_SIZE+N_COUNT];
+        int sb = other.nodes[nb*N_SIZE+N_START], eb = sb + other.nodes[nb*N_SIZE+N_COUNT];
+        for(int i=sa; i<ea; i++) {
+            if(checkTriangles) {
+                transform(ma, triVerts, i*9, tmp.tempVa);
+                transform(ma, triVerts, i*9+3, tmp.tempVb);
+                transform(ma, triVerts, i*9+6, tmp.tempVc);
+            }
+            for(int j=sb; j<eb; j++) {
+                if(checkTriangles) {
+                    transform(mb, other.triVerts, j*9, tmp.tempVd);
+                    transform(mb, other.triVerts, j*9+3, tmp.tempVe);
+                    transform(mb, other.triVerts, j*9+6, tmp.tempVf);
+                    if(!Intersection.intersection(tmp.tempVa, tmp.tempVb, tmp.tempVc, 
+                            tmp.tempVd, tmp.tempVe, tmp.tempVf))
+                        continue;
+                }
+                hit = true;
+                if(first)
+                    return true;
+                if(aList != null)
+                    aList.add(triIndex[i]);
+                if(bList != null)
+                    bList.add(other.triIndex[j]);
+            }
+        }
+        return hit;
+    }
+    
+    private static float volume(float[] b, int o) {
+        return (b[o+3]-b[o])*(b[o+4]-b[o+1])*(b[o+5]-b[o+2]);
+    }
+    
+    // the 3x4 matrix of the world transform of a spatial, scale included
+    private static void worldMatrix(Spatial s, float[] m) {
+        Quaternion q = s.getWorldRotation();
+        Vector3f sc = s.getWorldScale();
+        Vector3f t = s.getWorldTranslation();
+        float xx = q.x*q.x, yy = q.y*q.y, zz = q.z*q.z;
+        float xy = q.x*q.y, xz = q.x*q.z, yz = q.y*q.z;
+        float wx = q.w*q.x, wy = q.w*q.y, wz = q.w*q.z;
+        float norm = q.w*q.w + xx + yy + zz;
+        float k = norm == 1f ? 2f : (norm > 0f ? 2f/norm : 0f);
+        m[0] = (1 - k*(yy+zz))*sc.x; m[1] = k*(xy-wz)*sc.y;       m[2] = k*(xz+wy)*sc.z;       m[3] = t.x;
+        m[4] = k*(xy+wz)*sc.x;       m[5] = (1 - k*(xx+zz))*sc.y; m[6] = k*(yz-wx)*sc.z;       m[7] = t.y;
+        m[8] = k*(xz-wy)*sc.x;       m[9] = k*(yz+wx)*sc.y;       m[10] = (1 - k*(xx+yy))*sc.z; m[11] = t.z;
+    }
+    
+    private static void transform(float[] m, float[] v, int o, Vector3f store) {
+        float x = v[o], y = v[o+1], z = v[o+2];
+        store.x = m[0]*x + m[1]*y + m[2]*z + m[3];
+        store.y = m[4]*x + m[5]*y + m[6]*z + m[7];
+        store.z = m[8]*x + m[9]*y + m[10]*z + m[11];
+    }
+    
+    // the world space axis aligned bound of a node
+    private void worldBound(float[] b, int o, float[] m, float[] store) {
+        float cx = (b[o]+b[o+3])*0.5f, cy = (b[o+1]+b[o+4])*0.5f, cz = (b[o+2]+b[o+5])*0.5f;
+        float ex = (b[o+3]-b[o])*0.5f, ey = (b[o+4]-b[o+1])*0.5f, ez = (b[o+5]-b[o+2])*0.5f;
+        for(int r=0; r<3; r++) {
+            int mr = r*4;
+            float c = m[mr]*cx + m[mr+1]*cy + m[mr+2]*cz + m[mr+3];
+            float e = Math.abs(m[mr])*ex + Math.abs(m[mr+1])*ey + Math.abs(m[mr+2])*ez;
+            store[r] = c - e;
+            store[r+3] = c + e;
+        }
+    }
+    
+    // slab test of a half line against a box
+    private static boolean rayHitsBox(float[] b, int o, float ox, float oy, float oz,
+            float dx, float dy, float dz, float ix, float iy, float iz) {
+        return rayHitsBox(b, o, ox, oy, oz, dx, dy, dz, ix, iy, iz, Float.MAX_VALUE);
+    }
+    
+    // slab test of a ray segment of the given length against a box
+    private static boolean rayHitsBox(float[] b, int o, float ox, float oy, float oz,
+            float dx, float dy, float dz, float ix, float iy, float iz, float length) {
+        float tmin = 0, tmax = length;
+        if(dx != 0) {
+            float t1 = (b[o] - ox)*ix, t2 = (b[o+3] - ox)*ix;
+            tmin = Math.max(tmin, Math.min(t1, t2));
+            tmax = Math.min(tmax, Math.max(t1, t2));
+        } else if(ox < b[o] || ox > b[o+3]) {
+            return false;
+        }
+        if(dy != 0) {
+            float t1 = (b[o+1] - oy)*iy, t2 = (b[o+4] - oy)*iy;
+            tmin = Math.max(tmin, Math.min(t1, t2));
+            tmax = Math.min(tmax, Math.max(t1, t2));
+        } else if(oy < b[o+1] || oy > b[o+4]) {
+            return false;
+        }
+        if(dz != 0) {
+            float t1 = (b[o+2] - oz)*iz, t2 = (b[o+5] - oz)*iz;
+            tmin = Math.max(tmin, Math.min(t1, t2));
+            tmax = Math.min(tmax, Math.max(t1, t2));
+        } else if(oz < b[o+2] || oz > b[o+5]) {
+            return false;
+        }
+        return tmin <= tmax;
+    }
+    
+    // the same test as Ray.intersect(v0, v1, v2), on the stored vertices,
+    // but the edges are inclusive with a small tolerance, so a ray hitting
+    // the edge shared by two triangles is not lost to rounding
+    private static boolean rayHitsTriangle(float[] v, int o, float ox, float oy, float oz,
+            float dx, float dy, float dz) {
+        return rayTriangleDistance(v, o, ox, oy, oz, dx, dy, dz) >= 0;
+    }
+    
+    // the distance of the hit along the ray in units of the direction,
+    // -1 if the ray does not hit the triangle
+    private static float rayTriangleDistance(float[] v, int o, float ox, float oy, float oz,
+            float dx, float dy, float dz) {
+        float v0x = v[o], v0y = v[o+1], v0z = v[o+2];
+        float diffx = ox - v0x, diffy = oy - v0y, diffz = oz - v0z;
+        float e1x = v[o+3] - v0x, e1y = v[o+4] - v0y, e1z = v[o+5] - v0z;
+        float e2x = v[o+6] - v0x, e2y = v[o+7] - v0y, e2z = v[o+8] - v0z;
+        float nx = e1y*e2z - e1z*e2y, ny = e1z*e2x - e1x*e2z, nz = e1x*e2y - e1y*e2x;
+        float dirDotNorm = dx*nx + dy*ny + dz*nz;
+        float sign;
+        if(dirDotNorm > FastMath.FLT_EPSILON) {
+            sign = 1;
+        } else if(dirDotNorm < -FastMath.FLT_EPSILON) {
+            sign = -1;
+            dirDotNorm = -dirDotNorm;
+        } else {
+            return -1;
+        }
+        float eps = dirDotNorm * EDGE_EPSILON;
+        // diff x edge2
+        float cx = diffy*e2z - diffz*e2y, cy = diffz*e2x - diffx*e2z, cz = diffx*e2y - diffy*e2x;
+        float dirDotDiffxEdge2 = sign*(dx*cx + dy*cy + dz*cz);
+        if(dirDotDiffxEdge2 < -eps)
+            return -1;
+        // edge1 x diff
+        cx = e1y*diffz - e1z*diffy; cy = e1z*diffx - e1x*diffz; cz = e1x*diffy - e1y*diffx;
+        float dirDotEdge1xDiff = sign*(dx*cx + dy*cy + dz*cz);
+        if(dirDotEdge1xDiff < -eps)
+            return -1;
+        if(dirDotDiffxEdge2 + dirDotEdge1xDiff > dirDotNorm + eps)
+            return -1;
+        float diffDotNorm = -sign*(diffx*nx + diffy*ny + diffz*nz);
+        if(diffDotNorm < 0)
+            return -1;
+        return diffDotNorm / dirDotNorm;
+    }
+    
+    /**
+     * Transforms a world space ray into the local space of the spatial.
+     */
+    public static Ray toLocal(Ray ray, Spatial parent, Ray store) {
+        Context tmp = LocalContext.getContext();
+        Quaternion q = tmp.ctquat;
+        q.set(parent.getWorldRotation());
+        q.inverseLocal();
+        Vector3f sc = parent.getWorldScale();
+        ray.origin.subtract(parent.getWorldTranslation(), store.origin);
+        q.mult(store.origin, store.origin).divideLocal(sc);
+        q.mult(ray.direction, store.direction).divideLocal(sc);
+        return store;
+    }
+}
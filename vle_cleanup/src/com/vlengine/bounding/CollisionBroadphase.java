@@ -0,0 +1,558 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.bounding;
+
+import com.vlengine.math.Vector3f;
+import com.vlengine.scene.Spatial;
+import com.vlengine.thread.Context;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.FastList;
+import com.vlengine.util.IntList;
+
+/**
+ * Persistent broadphase for collision queries, a dynamic AABB tree over
+ * the world bounds of the registered spatials. The leaf boxes are enlarged
+ * by a margin, and a leaf is only reinserted when the world bound of its
+ * spatial leaves the enlarged box. The spatials update their leaf from
+ * updateGeometricState, so the tree follows the scene incrementally.
+ * Leaves are inserted with the surface area heuristic, and the tree is
+ * kept balanced with rotations.
+ * 
+ * The results of the queries are candidates only, they are fed into the
+ * narrowphase of CollisionTreeManager.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class CollisionBroadphase {
+
+    private static final int NULL = -1;
+    
+    // the default margin the leaf boxes are enlarged with
+    public static final float DEFAULT_MARGIN = 0.5f;
+    
+    protected float margin = DEFAULT_MARGIN;
+    
+    // the boxes of the nodes, as minx, miny, minz, maxx, maxy, maxz
+    protected float[] box;
+    protected int[] parent;
+    protected int[] left;
+    protected int[] right;
+    // height of the node, leaves are 0
+    protected int[] height;
+    // the spatial of the leaf
+    protected Spatial[] spatial;
+    // is the leaf a moving object
+    protected boolean[] dynamic;
+    
+    protected int root = NULL;
+    protected int nodeCount = 0;
+    // free nodes, linked through parent
+    protected int freeList = NULL;
+    
+    // the dynamic leaves, their pairs are enumerated in findPairs
+    protected final IntList dynamicLeaves = new IntList();
+    
+    // number of leaves reinserted since the last resetStatistics
+    protected int reinserted = 0;
+    
+    private final float[] tmp = new float[6];
+
+    public CollisionBroadphase() {
+        this(64);
+    }
+    
+    public CollisionBroadphase(int capacity) {
+        box = new float[capacity*6];
+        parent = new int[capacity];
+        left = new int[capacity];
+        right = new int[capacity];
+        height = new int[capacity];
+        spatial = new Spatial[capacity];
+        dynamic = new boolean[capacity];
+        for(int i=0; i<capacity; i++)
+            parent[i] = i+1 < capacity ? i+1 : NULL;
+        freeList = 0;
+    }
+
+    public void setMargin(float margin) {
+        this.margin = margin;
+    }
+    
+    public float getMargin() {
+        return margin;
+    }
+    
+    /**
+     * Registers a spatial in the broadphase. Dynamic spatials are the
+     * moving objects, whose pairs are enumerated in findPairs, the
+     * static ones are only found by the queries.
+     */
+    public int add(Spatial s, boolean isDynamic) {
+        if(s.getBroadphase() == this)
+            return s.getBroadphaseProxy();
+        if(s.getBroadphase() != null)
+            s.getBroadphase().remove(s);
+        int leaf = allocate();
+        spatial[leaf] = s;
+        dynamic[leaf] = isDynamic;
+        getBox(s, tmp);
+        for(int i=0; i<3; i++) {
+            box[leaf*6+i] = tmp[i] - margin;
+            box[leaf*6+3+i] = tmp[3+i] + margin;
+        }
+        insertLeaf(leaf);
+        if(isDynamic)
+            dynamicLeaves.add(leaf);
+        s.setBroadphase(this, leaf);
+        return leaf;
+    }
+    
+    public void remove(Spatial s) {
+        int leaf = s.getBroadphaseProxy();
+        if(s.getBroadphase() != this || leaf == NULL)
+            return;
+        removeLeaf(leaf);
+        if(dynamic[leaf])
+            dynamicLeaves.removeElement(leaf);
+        free(leaf);
+        s.setBroadphase(null, NULL);
+    }
+    
+    /**
+     * Updates the leaf of the spatial from its world bound. Returns true
+     * if the leaf had to be reinserted.
+     */
+    public boolean update(Spatial s) {
+        int leaf = s.getBroadphaseProxy();
+        if(s.getBroadphase() != this || leaf == NULL)
+            return false;
+        float[] t = tmp;
+        getBox(s, t);
+        int b = leaf*6;
+        if(box[b] <= t[0] && box[b+1] <= t[1] && box[b+2] <= t[2]
+                && box[b+3] >= t[3] && box[b+4] >= t[4] && box[b+5] >= t[5])
+            return false;
+        removeLeaf(leaf);
+        for(int i=0; i<3; i++) {
+            box[b+i] = t[i] - margin;
+            box[b+3+i] = t[3+i] + margin;
+        }
+        insertLeaf(leaf);
+        reinserted++;
+        return true;
+    }
+    
+    /**
+     * Adds the spatials whose leaf box overlaps the bound to the store.
+     */
+    public void query(BoundingVolume bv, FastList<Spatial> store) {
+        float[] q = LocalContext.getContext().cbpbox;
+        getBox(bv, null, q);
+        query(q, NULL, store);
+    }
+    
+    /**
+     * Adds the spatials whose leaf box overlaps the leaf box of the given
+     * spatial to the store, except the spatial itself.
+     */
+    public void query(Spatial s, FastList<Spatial> store) {
+        float[] q = LocalContext.getContext().cbpbox;
+        int leaf = s.getBroadphaseProxy();
+        if(s.getBroadphase() == this && leaf != NULL) {
+            System.arraycopy(box, leaf*6, q, 0, 6);
+        } else {
+            getBox(s, q);
+        }
+        query(q, leaf, store);
+    }
+    
+    protected void query(float[] q, int skip, FastList<Spatial> store) {
+        if(root == NULL)
+            return;
+        Context tmpc = LocalContext.getContext();
+        int[] stack = tmpc.cbpstack;
+        int sp = 0;
+        stack[sp++] = root;
+        while(sp > 0) {
+            int n = stack[--sp];
+            if(!overlaps(n, q))
+                continue;
+            if(left[n] == NULL) {
+                if(n != skip)
+                    store.add(spatial[n]);
+            } else {
+                if(sp + 2 > stack.length) {
+                    int[] ns = new int[stack.length*2];
+                    System.arraycopy(stack, 0, ns, 0, sp);
+                    stack = tmpc.cbpstack = ns;
+                }
+                stack[sp++] = left[n];
+                stack[sp++] = right[n];
+            }
+        }
+    }
+    
+    /**
+     * Enumerates the overlapping leaf pairs of the dynamic spatials, with
+     * each other and with the static ones, in a single pass. The pairs are
+     * added to the store as consecutive elements, every pair is reported
+     * once.
+     */
+    public void findPairs(FastList<Spatial> store) {
+        if(root == NULL)
+            return;
+        Context tmpc = LocalContext.getContext();
+        int[] stack = tmpc.cbpstack;
+        for(int i=0, mx=dynamicLeaves.size(); i<mx; i++) {
+            int d = dynamicLeaves.get(i);
+            int db = d*6;
+            int sp = 0;
+            stack[sp++] = root;
+            while(sp > 0) {
+                int n = stack[--sp];
+                int b = n*6;
+                if(box[b] > box[db+3] || box[b+3] < box[db] 
+                        || box[b+1] > box[db+4] || box[b+4] < box[db+1] 
+                        || box[b+2] > box[db+5] || box[b+5] < box[db+2])
+                    continue;
+                if(left[n] == NULL) {
+                    // dynamic pairs are reported from the lower leaf
+                    if(n != d && (!dynamic[n] || d < n)) {
+                        store.add(spatial[d]);
+                        store.add(spatial[n]);
+                    }
+                } else {
+                    if(sp + 2 > stack.length) {
+                        int[] ns = new int[stack.length*2];
+                        System.arraycopy(stack, 0, ns, 0, sp);
+                        stack = tmpc.cbpstack = ns;
+                    }
+                    stack[sp++] = left[n];
+                    stack[sp++] = right[n];
+                }
+            }
+        }
+    }
+    
+    private boolean overlaps(int n, float[] q) {
+        int b = n*6;
+        return box[b] <= q[3] && box[b+3] >= q[0]
+            && box[b+1] <= q[4] && box[b+4] >= q[1]
+            && box[b+2] <= q[5] && box[b+5] >= q[2];
+    }
+    
+    // the axis aligned box of the world bound of the spatial
+    protected void getBox(Spatial s, float[] store) {
+        getBox(s.getWorldBound(), s.getWorldTranslation(), store);
+    }
+    
+    protected void getBox(BoundingVolume bv, Vector3f pos, float[] store) {
+        float ex, ey, ez;
+        Vector3f c;
+        if(bv instanceof BoundingBox) {
+            BoundingBox bb = (BoundingBox) bv;
+            c = bb.getCenter();
+            ex = bb.xExtent;
+            ey = bb.yExtent;
+            ez = bb.zExtent;
+        } else if(bv instanceof BoundingSphere) {
+            c = bv.getCenter();
+            ex = ey = ez = ((BoundingSphere) bv).radius;
+        } else {
+            // no bound, use the position
+            c = pos != null ? pos : Vector3f.ZERO;
+            ex = ey = ez = 0;
+        }
+        store[0] = c.x - ex;
+        store[1] = c.y - ey;
+        store[2] = c.z - ez;
+        store[3] = c.x + ex;
+        store[4] = c.y + ey;
+        store[5] = c.z + ez;
+    }
+    
+    private int allocate() {
+        if(freeList == NULL) {
+            int cap = parent.length;
+            int ncap = cap*2;
+            float[] nbox = new float[ncap*6];
+            System.arraycopy(box, 0, nbox, 0, cap*6);
+            box = nbox;
+            parent = grow(parent, ncap);
+            left = grow(left, ncap);
+            right = grow(right, ncap);
+            height = grow(height, ncap);
+            Spatial[] nsp = new Spatial[ncap];
+            System.arraycopy(spatial, 0, nsp, 0, cap);
+            spatial = nsp;
+            boolean[] ndyn = new boolean[ncap];
+            System.arraycopy(dynamic, 0, ndyn, 0, cap);
+            dynamic = ndyn;
+            for(int i=cap; i<ncap; i++)
+                parent[i] = i+1 < ncap ? i+1 : NULL;
+            freeList = cap;
+        }
+        int n = freeList;
+        freeList = parent[n];
+        parent[n] = NULL;
+        left[n] = NULL;
+        right[n] = NULL;
+        height[n] = 0;
+        spatial[n] = null;
+        dynamic[n] = false;
+        nodeCount++;
+        return n;
+    }
+    
+    private static int[] grow(int[] a, int size) {
+        int[] n = new int[size];
+        System.arraycopy(a, 0, n, 0, a.length);
+        return n;
+    }
+    
+    private void free(int n) {
+        spatial[n] = null;
+        height[n] = -1;
+        parent[n] = freeList;
+        freeList = n;
+        nodeCount--;
+    }
+    
+    // half surface area of the node box
+    private float area(int n) {
+        int b = n*6;
+        float dx = box[b+3] - box[b];
+        float dy = box[b+4] - box[b+1];
+        float dz = box[b+5] - box[b+2];
+        return dx*dy + dy*dz + dz*dx;
+    }
+    
+    // half surface area of the union of two node boxes
+    private float unionArea(int a, int c) {
+        int ba = a*6, bc = c*6;
+        float dx = Math.max(box[ba+3], box[bc+3]) - Math.min(box[ba], box[bc]);
+        float dy = Math.max(box[ba+4], box[bc+4]) - Math.min(box[ba+1], box[bc+1]);
+        float dz = Math.max(box[ba+5], box[bc+5]) - Math.min(box[ba+2], box[bc+2]);
+        return dx*dy + dy*dz + dz*dx;
+    }
+    
+    private void setUnion(int n, int a, int c) {
+        int b = n*6, ba = a*6, bc = c*6;
+        for(int i=0; i<3; i++) {
+            box[b+i] = Math.min(box[ba+i], box[bc+i]);
+            box[b+3+i] = Math.max(box[ba+3+i], box[bc+3+i]);
+        }
+    }
+    
+    private void insertLeaf(int leaf) {
+        if(root == NULL) {
+            root = leaf;
+            parent[leaf] = NULL;
+            return;
+        }
+        // find the best sibling by the surface area heuristic
+        int index = root;
+        while(left[index] != NULL) {
+            int c1 = left[index];
+            int c2 = right[index];
+            float area = area(index);
+            float combined = unionArea(index, leaf);
+            // cost of creating a new parent for this node and the leaf
+            float cost = 2*combined;
+            // minimum cost of pushing the leaf further down
+            float inheritance = 2*(combined - area);
+            float cost1 = unionArea(c1, leaf) + inheritance;
+            if(left[c1] != NULL)
+                cost1 -= area(c1);
+            float cost2 = unionArea(c2, leaf) + inheritance;
+            if(left[c2] != NULL)
+                cost2 -= area(c2);
+            if(cost < cost1 && cost < cost2)
+                break;
+            index = cost1 < cost2 ? c1 : c2;
+        }
+        int sibling = index;
+        
+        // create a new parent
+        int oldParent = parent[sibling];
+        int newParent = allocate();
+        parent[newParent] = oldParent;
+        setUnion(newParent, leaf, sibling);
+        height[newParent] = height[sibling] + 1;
+        if(oldParent != NULL) {
+            if(left[oldParent] == sibling)
+                left[oldParent] = newParent;
+            else
+                right[oldParent] = newParent;
+        } else {
+            root = newParent;
+        }
+        left[newParent] = sibling;
+        right[newParent] = leaf;
+        parent[sibling] = newParent;
+        parent[leaf] = newParent;
+        
+        refit(parent[leaf]);
+    }
+    
+    private void removeLeaf(int leaf) {
+        if(leaf == root) {
+            root = NULL;
+            return;
+        }
+        int p = parent[leaf];
+        int gp = parent[p];
+        int sibling = left[p] == leaf ? right[p] : left[p];
+        if(gp != NULL) {
+            // connect the sibling to the grand parent, and free the parent
+            if(left[gp] == p)
+                left[gp] = sibling;
+            else
+                right[gp] = sibling;
+            parent[sibling] = gp;
+            free(p);
+            refit(gp);
+        } else {
+            root = sibling;
+            parent[sibling] = NULL;
+            free(p);
+        }
+        parent[leaf] = NULL;
+    }
+    
+    // fix the boxes and heights up to the root, balancing on the way
+    private void refit(int index) {
+        while(index != NULL) {
+            index = balance(index);
+            int c1 = left[index];
+            int c2 = right[index];
+            height[index] = 1 + Math.max(height[c1], height[c2]);
+            setUnion(index, c1, c2);
+            index = parent[index];
+        }
+    }
+    
+    // rotates the higher child up if the node is unbalanced,
+    // returns the node now at the place of the given one
+    private int balance(int a) {
+        if(left[a] == NULL || height[a] < 2)
+            return a;
+        int b = left[a];
+        int c = right[a];
+        int bal = height[c] - height[b];
+        if(bal > 1) {
+            // rotate c up
+            int f = left[c];
+            int g = right[c];
+            left[c] = a;
+            parent[c] = parent[a];
+            parent[a] = c;
+            replaceChild(parent[c], a, c);
+            if(height[f] > height[g]) {
+                right[c] = f;
+                right[a] = g;
+                parent[g] = a;
+                setUnion(a, b, g);
+                setUnion(c, a, f);
+                height[a] = 1 + Math.max(height[b], height[g]);
+                height[c] = 1 + Math.max(height[a], height[f]);
+            } else {
+                right[c] = g;
+                right[a] = f;
+                parent[f] = a;
+                setUnion(a, b, f);
+                setUnion(c, a, g);
+                height[a] = 1 + Math.max(height[b], height[f]);
+                height[c] = 1 + Math.max(height[a], height[g]);
+            }
+            return c;
+        }
+        if(bal < -1) {
+            // rotate b up
+            int d = left[b];
+            int e = right[b];
+            left[b] = a;
+            parent[b] = parent[a];
+            parent[a] = b;
+            replaceChild(parent[b], a, b);
+            if(height[d] > height[e]) {
+                right[b] = d;
+                left[a] = e;
+                parent[e] = a;
+                setUnion(a, c, e);
+                setUnion(b, a, d);
+                height[a] = 1 + Math.max(height[c], height[e]);
+                height[b] = 1 + Math.max(height[a], height[d]);
+            } else {
+                right[b] = e;
+                left[a] = d;
+                parent[d] = a;
+                setUnion(a, c, d);
+                setUnion(b, a, e);
+                height[a] = 1 + Math.max(height[c], height[d]);
+                height[b] = 1 + Math.max(height[a], height[e]);
+            }
+            return b;
+        }
+        return a;
+    }
+    
+    private void replaceChild(int p, int oldChild, int newChild) {
+        if(p == NULL) {
+            root = newChild;
+        } else if(left[p] == oldChild) {
+            left[p] = newChild;
+        } else {
+            right[p] = newChild;
+        }
+    }
+    
+    /**
+     * The number of registered spatials.
+     */
+    public int getProxyCount() {
+        return (nodeCount + 1) / 2;
+    }
+    
+    public int getHeight() {
+        return root == NULL ? 0 : height[root];
+    }
+    
+    public int getReinsertedCount() {
+        return reinserted;
+    }
+    
+    public void resetStatistics() {
+        reinserted = 0;
+    }
+}
@@ -69,6 +69,12 @@ public class CollisionTree {
 	 */
 	public static final int SPHERE_TREE = 2;
 	
+	/**
+	 * defines a CollisionTree as a flat bounding volume hierarchy built
+	 * with the surface area heuristic, see CollisionBVH.
+	 */
+	public static final int BVH_TREE = 3;
+	
 	//Default tree is axis-aligned
 	private int type = AABB_TREE;
 
@@ -94,6 +100,9 @@ public class CollisionTree {
 	//private Geometry parent;
 	private Geometry batch;
 	
+	// the flat tree, when the type is BVH_TREE
+	private CollisionBVH bvh;
+	
 	/**
 	 * Constructor creates a new instance of CollisionTree. The type of tree
 	 * is provided as a parameter with valid options being:
@@ -115,6 +124,17 @@ public class CollisionTree {
 	 */
 	public void construct(Geometry batch, boolean doSort) {
                 this.batch = batch;
+                if(type == BVH_TREE) {
+                    // the whole tree is in the BVH, this node holds all
+                    // the triangles for the collision with other tree types
+                    bvh = new CollisionBVH();
+                    bvh.build(batch, CollisionTreeManager.getInstance().getMaxTrisPerLeaf());
+                    triIndex = bvh.getTriIndex();
+                    start = 0;
+                    end = triIndex.length;
+                    bounds = bvh.getBounds(null);
+                    return;
+                }
                 int triCount = batch.getTriangleCount();
                 triIndex = new int[triCount];
                 for(int i=0; i<triCount; i++) {
@@ -148,7 +168,7 @@ public class CollisionTree {
 
 		// the bounds at this level should contain all the triangles this level
 		// is reponsible for.
-		bounds.computeFromTris(batch, start, end);
+		bounds.computeFromTris(triIndex, batch, start, end);
 
 		// check to see if we are a leaf, if the number of triangles we
 		// reference is less than or equal to the maximum defined by the
@@ -227,6 +247,9 @@ public class CollisionTree {
 		if (collisionTree == null) {
 			return false;
 		}
+                if (bvh != null && collisionTree.bvh != null) {
+                    return bvh.intersect(collisionTree.bvh, myParent, otherParent, null, null, true, true);
+                }
                 
                 
                 
@@ -330,6 +353,9 @@ public class CollisionTree {
 		if (collisionTree == null) {
 			return false;
 		}
+                if (bvh != null && collisionTree.bvh != null) {
+                    return bvh.intersect(collisionTree.bvh, myParent, otherParent, aList, bList, true, false);
+                }
 		
                 // get worldBound from temp, we have to carefully operate here, not to overwrite
                 if( worldBound == null) {
@@ -414,6 +440,9 @@ public class CollisionTree {
 		if (collisionTree == null) {
 			return false;
 		}
+                if (bvh != null && collisionTree.bvh != null) {
+                    return bvh.intersect(collisionTree.bvh, myParent, otherParent, aList, bList, false, false);
+                }
 		
                 // get worldBound from temp, we have to carefully operate here, not to overwrite
                 if( worldBound == null) {
@@ -492,6 +521,13 @@ public class CollisionTree {
 	public void intersect(Ray ray, IntList triList, Spatial myParent, BoundingVolume worldBound) {
                 //Context tmp = LocalContext.getContext();
                 
+                if(bvh != null) {
+                    // test the ray in the local space of the geometry
+                    Ray local = CollisionBVH.toLocal(ray, myParent, LocalContext.getContext().ctray);
+                    bvh.intersect(local, triList);
+                    return;
+                }
+                
                 if(worldBound == null) 
                     worldBound = getTempWorldBound( myParent );
                 
@@ -525,6 +561,33 @@ public class CollisionTree {
 		}
 	}
 
+	/**
+	 * Finds the triangles in the leaves whose bounds overlap the given
+	 * box in the local space of the geometry. The triangles themselves
+	 * are only checked with a BVH_TREE.
+	 * @param box the box in local space
+	 * @param triList the list to store the triangles in
+	 */
+	public void intersect(BoundingBox box, IntList triList) {
+                if(bvh != null) {
+                    bvh.intersect(box, triList);
+                    return;
+                }
+		if (bounds == null || !bounds.intersectsBoundingBox(box)) {
+			return;
+		}
+		if (left != null) {
+			left.intersect(box, triList);
+		}
+		if (right != null) {
+			right.intersect(box, triList);
+		} else if (left == null) {
+			for (int i = start; i < end; i++) {
+				triList.add(triIndex[i]);
+			}
+		}
+	}
+
 	/**
 	 * Returns the bounding volume for this tree node in local space.
 	 * @return the bounding volume for this tree node in local space.
@@ -532,6 +595,13 @@ public class CollisionTree {
 	public BoundingVolume getBounds() {
 		return bounds;
 	}
+	
+	/**
+	 * Returns the flat tree, if this is a BVH_TREE, null otherwise.
+	 */
+	public CollisionBVH getBVH() {
+		return bvh;
+	}
 
 	/**
 	 * Returns the bounding volume for this tree node in world space.
@@ -562,6 +632,9 @@ public class CollisionTree {
 			bounds = new BoundingSphere();
 //			worldBounds = new BoundingSphere();
 			break;
+		case BVH_TREE:
+			bounds = new BoundingBox();
+			break;
 		default:
 			break;
 		}
@@ -73,6 +73,9 @@ public class CollisionTreeManager {
 	private int treeType = CollisionTree.AABB_TREE;
 	
 	private int maxTrisPerLeaf = DEFAULT_MAX_TRIS_PER_LEAF;
+        
+        // the broadphase of the scene, if the collidable objects are registered into one
+        private CollisionBroadphase broadphase;
 	
         public static CollisionTreeManager getInstance() {
 		if (instance == null) {
@@ -121,7 +124,7 @@ public class CollisionTreeManager {
         
 	/**
 	 * returns the type of collision trees this manager will create: AABB_TREE,
-	 * OBB_TREE or SPHERE_TREE.
+	 * OBB_TREE, SPHERE_TREE or BVH_TREE.
 	 * @return the type of tree the manager will create.
 	 */
 	public int getTreeType() {
@@ -130,7 +133,7 @@ public class CollisionTreeManager {
 
 	/**
 	 * set the type of collision tree this manager will create: AABB_TREE, 
-	 * OBB_TREE or SPHERE_TREE.
+	 * OBB_TREE, SPHERE_TREE or BVH_TREE.
 	 * @param treeType the type of tree to create.
 	 */
 	public void setTreeType(int treeType) {
@@ -155,6 +158,14 @@ public class CollisionTreeManager {
 		this.maxTrisPerLeaf = maxTrisPerLeaf;
 	}
         
+        public CollisionBroadphase getBroadphase() {
+            return broadphase;
+        }
+        
+        public void setBroadphase(CollisionBroadphase broadphase) {
+            this.broadphase = broadphase;
+        }
+        
         protected void findTriangleCollision(Spatial firstMesh, Spatial secondMesh, BaseGeometry batch1, BaseGeometry batch2,
             IntList thisIndex, IntList otherIndex, boolean checktriangles) {
             
@@ -426,6 +437,40 @@ public class CollisionTreeManager {
             findBoundCollisions(spat, scene, results);
         }
         
+        /**
+         * Finds the collisions of the spatial with the spatials registered
+         * in the broadphase, only the candidates overlapping in the
+         * broadphase are checked.
+         */
+        public void findCollisions(Spatial spat, CollisionBroadphase bp, CollisionResults results) {
+            Context tmp = LocalContext.getContext();
+            tmp.ctbstack.clear();
+            FastList<Spatial> cand = tmp.cbpresult;
+            cand.clear();
+            bp.query(spat, cand);
+            for (int i = 0, mi = cand.size(); i < mi; i++) {
+                findBoundCollisions(spat, cand.get(i), results);
+            }
+            cand.clear();
+        }
+        
+        /**
+         * Finds the collisions of all the dynamic spatials of the broadphase
+         * with each other and with the static spatials, in one pass. The
+         * moving spatial of a pair is the first one of the collision data.
+         */
+        public void findPairCollisions(CollisionBroadphase bp, CollisionResults results) {
+            Context tmp = LocalContext.getContext();
+            tmp.ctbstack.clear();
+            FastList<Spatial> pairs = tmp.cbpresult;
+            pairs.clear();
+            bp.findPairs(pairs);
+            for (int i = 0, mi = pairs.size(); i < mi; i += 2) {
+                findBoundCollisions(pairs.get(i), pairs.get(i+1), results);
+            }
+            pairs.clear();
+        }
+        
         protected void findBoundCollisions(Spatial spat, Spatial scene, CollisionResults results) {
             if (spat == scene || !spat.isCollidable() || !scene.isCollidable()) {
                 return;
@@ -561,6 +606,16 @@ public class CollisionTreeManager {
             findBoundPick(spat, results);
         }
         
+        /**
+         * Finds the nearest triangle hit by each ray of the batch, in the
+         * most detailed lod of the meshes under the spatial. The rays are
+         * cast in packets, see BatchRaycaster. Collision volumes are not
+         * checked.
+         */
+        public void findPicks(Spatial spat, RayBatch rays) {
+            BatchRaycaster.getInstance().cast(spat, rays);
+        }
+        
         protected void findBoundPick(Spatial spat, PickResults results) {
             if(spat == null) {
                 return;
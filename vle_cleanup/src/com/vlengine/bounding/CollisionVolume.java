@@ -32,18 +32,19 @@
 
 package com.vlengine.bounding;
 
+import com.vlengine.intersection.Intersection;
 import com.vlengine.intersection.PickData;
 import com.vlengine.intersection.PickResults;
-import com.vlengine.math.FastMath;
 import com.vlengine.math.Matrix4f;
 import com.vlengine.math.Quaternion;
 import com.vlengine.math.Vector3f;
 import com.vlengine.model.Geometry;
 import com.vlengine.resource.model.Model;
+import com.vlengine.resource.model.ModelPackReader;
+import com.vlengine.resource.model.ModelPackWriter;
 import com.vlengine.resource.model.ModelPart;
 import com.vlengine.scene.Spatial;
 import com.vlengine.thread.LocalContext;
-import com.vlengine.util.BitSet;
 import com.vlengine.util.FastList;
 import com.vlengine.util.geom.VertexAttribute;
 
@@ -62,10 +63,8 @@ public class CollisionVolume {
     // the mesh always has a BoundingBox
     protected BoundingBox localBound;
     
-    // the occupiing of data
-    // for GPU processing this need to be a bytebuffer?
-    //protected boolean[] cells;
-    protected BitSet cells;
+    // the occupied cells
+    protected SparseCellMap cells;
     
     protected int sizeX;
     protected int sizeY;
@@ -78,9 +77,15 @@ public class CollisionVolume {
     protected Vector3f cellScale = new Vector3f();
     
     protected Vector3f translate;
-    // the cell position in rasterizing
-    protected Vector3f linestart = new Vector3f();
-    protected Vector3f lineend = new Vector3f();
+    
+    // the distance in cell units, closer than which a triangle
+    // is taken to touch a cell
+    protected static final float VOXEL_EPSILON = 1e-3f;
+    // temporaries of voxelization
+    private final int[] voxLo = new int[3];
+    private final int[] voxHi = new int[3];
+    private final int[] voxCell = new int[3];
+    private final float[] voxNormal = new float[3];
     
     // cellsize is the size of cells
     public CollisionVolume() {
@@ -90,6 +95,11 @@ public class CollisionVolume {
     public Vector3f getCellSize() {
         return cellSize;
     }
+    
+    // the translation from model space to the corner of the cells
+    public Vector3f getTranslate() {
+        return translate;
+    }
 
     /**
      * Build a cell map for the whole model
@@ -150,8 +160,7 @@ public class CollisionVolume {
          */
         
         // create the cell map
-        //cells = new boolean[sizeX*sizeY*sizeZ];
-        cells = new BitSet(sizeX*sizeY*sizeZ);
+        cells = new SparseCellMap(sizeX, sizeY, sizeZ);
         
         // fill cells for each geom
         for(int i=0, mi=mparts.size(); i<mi; i++) {
@@ -159,6 +168,7 @@ public class CollisionVolume {
             Geometry geom = mp.getGeometry();
             buildCellMap(geom);
         }
+        cells.trim();
     }
 
     public void buildVolume(Geometry parent, float cellsize) {
@@ -191,185 +201,137 @@ public class CollisionVolume {
         sizeY = (int) (localBound.yExtent*2f / cellSize.y)+1;
         sizeZ = (int) (localBound.zExtent*2f / cellSize.z)+1;
         // create the cell map
-        //cells = new boolean[sizeX*sizeY*sizeZ];
-        cells = new BitSet(sizeX*sizeY*sizeZ);
+        cells = new SparseCellMap(sizeX, sizeY, sizeZ);
         buildCellMap(parent);
+        cells.trim();
     }
     
+    /**
+     * Sets every cell touched by a triangle of the geometry. Only the cells
+     * near the plane of the triangle are tested against it.
+     */
     protected void buildCellMap(Geometry parent) {
         Vector3f[] verts = LocalContext.getContext().tCollisionVolumeVerts;
-        // go over and resterize the triangles into the cells
-        
-        int[] p = new int[3];
+        // the triangle in cell units, the cell x covers x..x+1
+        float[] tri = new float[9];
         
         int triCount = parent.getTriangleCount();
         for(int i=0; i<triCount; i++) {
             parent.getTriangle(i, verts);
-            // translate vector
-            verts[0].addLocal(translate);
-            verts[1].addLocal(translate);
-            verts[2].addLocal(translate);
-
-            // get the longest extent
-            int[] extent = getLongestExtent(verts);
-            
-            // TODO: find the biggest extent of the triangle
-            // and do the stepping with that extent
-            // find the top vertice, sort by Y
-            sortVerts(verts, extent[0]);
-            // go from bottom to top
-            for(linestart.set(extent[0], verts[0].get(extent[0])); 
-                linestart.get(extent[0])<=verts[2].get(extent[0]); 
-                linestart.set(extent[0], linestart.get(extent[0])+cellSize.get(extent[0]))) {
-                // calculate the interpolation
-                float interp1 = (linestart.get(extent[0])-verts[0].get(extent[0]))/(verts[2].get(extent[0])-verts[0].get(extent[0]));
-                // calculate start x and z by interpolating
-                linestart.set(extent[1], FastMath.LERP(interp1, verts[0].get(extent[1]), verts[2].get(extent[1])));
-                linestart.set(extent[2], FastMath.LERP(interp1, verts[0].get(extent[2]), verts[2].get(extent[2])));
-                
-                if(linestart.get(extent[0])< verts[1].get(extent[0])) {
-                    // interpolation between v0 and v1
-                    float interp2 = (linestart.get(extent[0])-verts[0].get(extent[0]))/(verts[1].get(extent[0])-verts[0].get(extent[0]));
-                    // we scann on y, so y is not changed here
-                    lineend.set(extent[0], linestart.get(extent[0]));
-                    lineend.set(extent[1], FastMath.LERP(interp2, verts[0].get(extent[1]), verts[1].get(extent[1])));
-                    lineend.set(extent[2], FastMath.LERP(interp2, verts[0].get(extent[2]), verts[1].get(extent[2])));
-                } else {
-                    // interpolation between v1 and v2
-                    float interp2 = (linestart.get(extent[0])-verts[1].get(extent[0]))/(verts[2].get(extent[0])-verts[1].get(extent[0]));
-                    lineend.set(extent[0], linestart.get(extent[0]));
-                    lineend.set(extent[1], FastMath.LERP(interp2, verts[1].get(extent[1]), verts[2].get(extent[1])));
-                    lineend.set(extent[2], FastMath.LERP(interp2, verts[1].get(extent[2]), verts[2].get(extent[2])));
-                }
-                
-
-                // rasterize on the longer axis
-                if(FastMath.abs(lineend.get(extent[1]) - linestart.get(extent[1])) < FastMath.abs(lineend.get(extent[2]) - linestart.get(extent[2]))) {
-                    int ext1 = extent[1];
-                    extent[1] = extent[2];
-                    extent[2] = ext1;
-                }
-                // go from start to end
-                if(linestart.get(extent[1]) > lineend.get(extent[1])) {
-                    Vector3f tmp = lineend;
-                    lineend = linestart;
-                    linestart = tmp;
-                }
-                for(float ex1 = linestart.get(extent[1]); ex1<=lineend.get(extent[1]); ex1+=cellSize.get(extent[1])) {
-                    // calculate Z as interpolated between start and end
-                    float interp3 = (ex1-linestart.get(extent[1]))/(lineend.get(extent[1])-linestart.get(extent[1]));
-                    float ex2 = FastMath.LERP(interp3, linestart.get(extent[2]), lineend.get(extent[2]));
-
-                    p[extent[0]] = (int) (linestart.get(extent[0]) * cellScale.get(extent[0]));
-                    p[extent[1]] = (int) (ex1 * cellScale.get(extent[1]));
-                    p[extent[2]] = (int) (ex2 * cellScale.get(extent[2]));
-                    
-                    if(p[0]<0 || p[1]<0 || p[2]<0) {
-                        System.out.println("Bad cell coordinate");
-                    }
-                    // switch on the cell at the given coordinate
-                    //cells[getCellIndex(p[0], p[1], p[2])] = true;
-                    setCell(p[0], p[1], p[2]);
-                }
+            for(int v=0; v<3; v++) {
+                tri[v*3] = (verts[v].x + translate.x) * cellScale.x;
+                tri[v*3+1] = (verts[v].y + translate.y) * cellScale.y;
+                tri[v*3+2] = (verts[v].z + translate.z) * cellScale.z;
             }
+            voxelizeTriangle(tri);
         }
     }
-
-    protected int[] getLongestExtent(Vector3f[] verts) {
-        
-        int[] extent = new int[3];
-        
-        float myext = FastMath.abs(verts[0].y-verts[1].y);
-        float mxext = FastMath.abs(verts[0].x-verts[1].x);
-        float mzext = FastMath.abs(verts[0].z-verts[1].z);
-        
-        float yext = FastMath.abs(verts[1].y-verts[2].y);
-        float xext = FastMath.abs(verts[1].x-verts[2].x);
-        float zext = FastMath.abs(verts[1].z-verts[2].z);
-        
-        if(yext>myext)
-            myext = yext;
-        if(xext>mxext)
-            mxext = xext;
-        if(zext>mzext)
-            mzext = zext;
-
-        yext = FastMath.abs(verts[0].y-verts[2].y);
-        xext = FastMath.abs(verts[0].x-verts[2].x);
-        zext = FastMath.abs(verts[0].z-verts[2].z);
-
-        if(yext>myext)
-            myext = yext;
-        if(xext>mxext)
-            mxext = xext;
-        if(zext>mzext)
-            mzext = zext;
-
-        // check which extent is the longest
-        if(mxext>=myext && mxext >= mzext) {
-            extent[0] = 0;
-            if(myext >= mzext) {
-                extent[1] = 1;
-                extent[2] = 2;
-                return extent;
-            } else {
-                extent[1] = 2;
-                extent[2] = 1;
-                return extent;
-            }
-        } else if(myext >= mxext && myext >= mzext) {
-            extent[0] = 1;
-            if(mxext >= mzext) {
-                extent[1] = 0;
-                extent[2] = 2;
-                return extent;
-            } else {
-                extent[1] = 2;
-                extent[2] = 0;
-                return extent;
-            }
+    
+    // sets the cells touched by a triangle given in cell units
+    protected void voxelizeTriangle(float[] tri) {
+        int[] lo = voxLo, hi = voxHi, c = voxCell;
+        int[] size = {sizeX, sizeY, sizeZ};
+        for(int i=0; i<3; i++) {
+            lo[i] = cellFloor(Math.min(tri[i], Math.min(tri[3+i], tri[6+i])) - VOXEL_EPSILON, size[i]);
+            hi[i] = cellFloor(Math.max(tri[i], Math.max(tri[3+i], tri[6+i])) + VOXEL_EPSILON, size[i]);
+        }
+        if(lo[0] == hi[0] && lo[1] == hi[1] && lo[2] == hi[2]) {
+            // the whole triangle is in one cell
+            cells.set(lo[0], lo[1], lo[2]);
+            return;
         }
-            
-        extent[0] = 2;
-        if(mxext >= myext) {
-            extent[1] = 0;
-            extent[2] = 1;
-        } else {
-            extent[1] = 1;
-            extent[2] = 0;
+        // the normal of the triangle
+        float e0x = tri[3] - tri[0], e0y = tri[4] - tri[1], e0z = tri[5] - tri[2];
+        float e1x = tri[6] - tri[0], e1y = tri[7] - tri[1], e1z = tri[8] - tri[2];
+        float[] n = voxNormal;
+        n[0] = e0y * e1z - e0z * e1y;
+        n[1] = e0z * e1x - e0x * e1z;
+        n[2] = e0x * e1y - e0y * e1x;
+        // step along the axis the triangle is the most perpendicular to,
+        // in each column only the cells near the plane are tested
+        int a = 0;
+        if(Math.abs(n[1]) > Math.abs(n[a])) a = 1;
+        if(Math.abs(n[2]) > Math.abs(n[a])) a = 2;
+        int b = (a + 1) % 3, d = (a + 2) % 3;
+        float na = n[a];
+        float dist = n[0] * tri[0] + n[1] * tri[1] + n[2] * tri[2];
+        float half = 0.5f + VOXEL_EPSILON;
+        for(int i=lo[b]; i<=hi[b]; i++) {
+            for(int j=lo[d]; j<=hi[d]; j++) {
+                int k0 = lo[a], k1 = hi[a];
+                if(na != 0) {
+                    // where the plane crosses the column
+                    float p0 = (dist - n[b] * (i - VOXEL_EPSILON) - n[d] * (j - VOXEL_EPSILON)) / na;
+                    float p1 = p0 - n[b] * (1 + 2 * VOXEL_EPSILON) / na;
+                    float p2 = p0 - n[d] * (1 + 2 * VOXEL_EPSILON) / na;
+                    float p3 = p1 + p2 - p0;
+                    float min = Math.min(Math.min(p0, p1), Math.min(p2, p3));
+                    float max = Math.max(Math.max(p0, p1), Math.max(p2, p3));
+                    k0 = Math.max(k0, (int) Math.floor(min - VOXEL_EPSILON));
+                    k1 = Math.min(k1, (int) Math.floor(max + VOXEL_EPSILON));
+                }
+                c[b] = i;
+                c[d] = j;
+                for(int k=k0; k<=k1; k++) {
+                    c[a] = k;
+                    if(Intersection.triangleBoxIntersection(tri, 
+                            c[0] + 0.5f, c[1] + 0.5f, c[2] + 0.5f, half, half, half))
+                        cells.set(c[0], c[1], c[2]);
+                }
+            }
         }
-
-        return extent;
     }
     
+    // the cell of a coordinate in cell units, clamped into the volume
+    private static int cellFloor(float c, int size) {
+        int i = (int) Math.floor(c);
+        return i < 0 ? 0 : i >= size ? size - 1 : i;
+    }
+
     protected boolean getCell(int x, int y, int z) {
-        return cells.get(getCellIndex(x, y, z));
+        return cells.get(x, y, z);
     }
     
     protected void setCell(int x, int y, int z) {
-        cells.set(getCellIndex(x, y, z), true);
+        cells.set(x, y, z);
     }
     
-    protected int getCellIndex(int x, int y, int z) {
-        return x*(sizeY*sizeZ) + y*sizeZ + z;
+    public SparseCellMap getCells() {
+        return cells;
     }
     
-    protected void sortVerts(Vector3f[] verts, int extent) {
-        if(verts[0].get(extent)> verts[1].get(extent)) {
-            Vector3f sv = verts[1];
-            verts[1] = verts[0];
-            verts[0] = sv;
-        }
-        if(verts[1].get(extent) > verts[2].get(extent)) {
-            Vector3f sv = verts[2];
-            verts[2] = verts[1];
-            verts[1] = sv;
-        }
-        if(verts[0].get(extent) > verts[1].get(extent)) {
-            Vector3f sv = verts[1];
-            verts[1] = verts[0];
-            verts[0] = sv;
-        }
+    /**
+     * Saves the built volume into the binary modelpack.
+     */
+    public void save(ModelPackWriter out) {
+        out.putVector(localBound.getCenter());
+        out.putFloat(localBound.xExtent);
+        out.putFloat(localBound.yExtent);
+        out.putFloat(localBound.zExtent);
+        out.putVector(cellSize);
+        out.putVector(translate);
+        cells.save(out);
+    }
+    
+    public static CollisionVolume load(ModelPackReader in) {
+        CollisionVolume cv = new CollisionVolume();
+        Vector3f center = in.getVector();
+        float xExtent = in.getFloat();
+        float yExtent = in.getFloat();
+        float zExtent = in.getFloat();
+        cv.localBound = new BoundingBox(center, xExtent, yExtent, zExtent);
+        cv.cellSize = in.getVector();
+        cv.cellScale.set(1f/cv.cellSize.x, 1f/cv.cellSize.y, 1f/cv.cellSize.z);
+        cv.translate = in.getVector();
+        cv.cells = SparseCellMap.load(in);
+        cv.sizeX = cv.cells.getSizeX();
+        cv.sizeY = cv.cells.getSizeY();
+        cv.sizeZ = cv.cells.getSizeZ();
+        return cv;
+    }
+    
+    protected int getCellIndex(int x, int y, int z) {
+        return x*(sizeY*sizeZ) + y*sizeZ + z;
     }
     
     Matrix4f finalMat = new Matrix4f();
@@ -379,7 +341,20 @@ public class CollisionVolume {
     Vector3f tmpVec = new Vector3f();
     Quaternion tmpQ = new Quaternion();
     
+    /**
+     * Finds the cells of this volume colliding with the other volume, the
+     * world positions of the cells are added to points. If points is null
+     * returns at the first collision found.
+     */
     public boolean getCollisions(Spatial myParent, Spatial otherParent, CollisionVolume otherVolume, FastList<Vector3f> points) {
+        return CollisionVolumeEngine.getInstance().getCollisions(this, myParent, otherParent, otherVolume, points);
+    }
+    
+    /**
+     * The same as getCollisions, but every cell is transformed through the
+     * spatials, much slower. Kept as the reference for CollisionVolumeEngine.
+     */
+    public boolean getCollisionsAllCells(Spatial myParent, Spatial otherParent, CollisionVolume otherVolume, FastList<Vector3f> points) {
         // create a matrix to transform from this volumes coordinate system to world coordinate system
         localToWorld.loadIdentity();
         tmpVec.set(translate);
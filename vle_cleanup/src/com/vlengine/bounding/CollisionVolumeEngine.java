@@ -0,0 +1,641 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.bounding;
+
+import com.vlengine.math.Matrix3f;
+import com.vlengine.math.Quaternion;
+import com.vlengine.math.Vector3f;
+import com.vlengine.scene.Spatial;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.FastList;
+import com.vlengine.util.IntList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tests two collision volumes against each other. The cells of the first
+ * volume are mapped into the cell space of the other with a single
+ * combined transform, stepping the cell centers incrementally, instead of
+ * transforming every cell through the spatials. Only the cells inside the
+ * box where the volumes overlap are visited.
+ * 
+ * If the spatials are not rotated, the cell of the other volume is looked
+ * up per axis, and rows mapping onto consecutive cells of the other volume
+ * are tested with whole words of the cell rows. Rotated volumes only visit
+ * the set cells, and rows that happen to map onto a continuous row are
+ * tested with words too.
+ * 
+ * Cells mapping near a cell border of the other volume are checked with
+ * the transforms of the spatials, so the result is the same as checking
+ * every cell that way. Large volumes are split by layers between worker
+ * threads.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class CollisionVolumeEngine {
+    private static final Logger logger = Logger.getLogger(CollisionVolumeEngine.class.getName());
+    
+    // the number of cells in the overlap, above which the test is split between threads
+    public static final int PARALLEL_CELLS = 1 << 15;
+    
+    // the most threads a sweep is split between
+    public static final int MAX_THREADS = 16;
+    
+    // the shortest row tested with words of cells
+    private static final int MIN_WORD_ROW = 8;
+    
+    private static CollisionVolumeEngine instance;
+    
+    // the total number of threads, including the calling thread
+    private int threads = 1;
+    private int workers = 0;
+    // changed when the workers are retired, a worker exits when
+    // it no longer matches the one it was started in
+    private volatile int epoch = 0;
+    
+    // the sweep running on the workers, and the number of runs started,
+    // the workers wait for it to change
+    private Sweep parallel;
+    private int generation = 0;
+    
+    // only one sweep runs on the workers at a time
+    private final Object runLock = new Object();
+    
+    public static synchronized CollisionVolumeEngine getInstance() {
+        if(instance == null) {
+            instance = new CollisionVolumeEngine();
+        }
+        return instance;
+    }
+    
+    /**
+     * Sets the total number of threads used for large volumes,
+     * including the calling thread, at most MAX_THREADS. Lowering it
+     * stops the workers, the next sweep starts the ones it needs.
+     */
+    public synchronized void setThreadCount(int threads) {
+        this.threads = threads < 1 ? 1 : threads > MAX_THREADS ? MAX_THREADS : threads;
+        if(workers > this.threads - 1)
+            retireWorkers();
+    }
+    
+    public int getThreadCount() {
+        return threads;
+    }
+    
+    /**
+     * Stops the worker threads.
+     */
+    public synchronized void shutdown() {
+        retireWorkers();
+    }
+    
+    // the workers finish their current task and exit, the missing
+    // ones are started again by the next parallel sweep
+    private void retireWorkers() {
+        epoch++;
+        workers = 0;
+        this.notifyAll();
+    }
+    
+    /**
+     * The number of worker threads started, not counting the calling thread.
+     */
+    public synchronized int getWorkerCount() {
+        return workers;
+    }
+    
+    // the state of testing two volumes
+    static class Sweep {
+        CollisionVolume a, b;
+        Spatial pa, pb;
+        // the transform from the cell indices of a into the cell space of b
+        double m00, m01, m02, m10, m11, m12, m20, m21, m22;
+        double tx, ty, tz;
+        // the distance from a cell border, closer than which the cell
+        // is checked with the transforms of the spatials
+        double eps;
+        // the range of cells of a, inclusive
+        int x0, x1, y0, y1, z0, z1;
+        // when the volumes are not rotated, the cell of b for each
+        // cell index of a, per axis, -1 if outside b
+        int[] mapX, mapY, mapZ;
+        // the ranges of z mapping to consecutive cells of b, start and end pairs
+        IntList runs;
+        // the inverse world rotation of pb, the worker threads may not
+        // share the context, so Spatial.worldToLocal is not used
+        final Quaternion pbInverse = new Quaternion();
+        // stop at the first hit
+        boolean first;
+        volatile boolean found;
+        // the tasks when split between threads, by layers
+        int taskCount, taskRows;
+        IntList[] taskHits;
+        final AtomicInteger nextTask = new AtomicInteger();
+        final AtomicInteger doneTask = new AtomicInteger();
+    }
+    
+    /**
+     * Returns the cells of volume a colliding with volume b, the same as
+     * CollisionVolume.getCollisions would.
+     */
+    public boolean getCollisions(CollisionVolume a, Spatial pa, Spatial pb, 
+            CollisionVolume b, FastList<Vector3f> points) {
+        if(a.cells == null || b.cells == null)
+            return false;
+        Sweep s = new Sweep();
+        s.a = a;
+        s.b = b;
+        s.pa = pa;
+        s.pb = pb;
+        s.first = points == null;
+        s.pbInverse.set(pb.getWorldRotation()).inverseLocal();
+        if(isAxisAligned(s)) {
+            if(!setupAligned(s))
+                return false;
+        } else if(!setup(s))
+            return false;
+        
+        long cellCount = (long)(s.x1-s.x0+1) * (s.y1-s.y0+1) * (s.z1-s.z0+1);
+        if(threads > 1 && cellCount >= PARALLEL_CELLS && s.y1 > s.y0) {
+            return runParallel(s, points);
+        }
+        
+        IntList hits = LocalContext.getContext().cvhits;
+        hits.clear();
+        scan(s, s.y0, s.y1, hits, new Vector3f());
+        boolean found = hits.size() > 0;
+        if(points != null)
+            addPoints(s, hits, points);
+        hits.clear();
+        return found;
+    }
+    
+    // creates the combined transform, and the range of the cells to check
+    // returns false if the volumes cannot overlap
+    private boolean setup(Sweep s) {
+        CollisionVolume a = s.a, b = s.b;
+        Matrix3f ra = s.pa.getWorldRotation().toRotationMatrix(new Matrix3f());
+        Quaternion q = new Quaternion();
+        q.set(s.pb.getWorldRotation()).inverseLocal();
+        Matrix3f rb = q.toRotationMatrix(new Matrix3f());
+        Vector3f sa = s.pa.getWorldScale(), sb = s.pb.getWorldScale();
+        Vector3f ta = s.pa.getWorldTranslation(), tb = s.pb.getWorldTranslation();
+        
+        // cell index of a to local of a: idx*cellSize - translate
+        // local of a to world: ra*(p*sa) + ta
+        // world to local of b: rb*((w - tb)/sb)
+        // local of b to cell space: (l + translate)*cellScale
+        double[] m = new double[9];
+        double[] t = new double[3];
+        // ra * diag(sa) applied to the local position
+        double[] wa = new double[9];
+        for(int i=0; i<3; i++) {
+            for(int j=0; j<3; j++) {
+                wa[i*3+j] = ra.get(i, j) * (double) sa.get(j);
+            }
+        }
+        // the world position of local origin of a minus the translation of b, divided by sb
+        double[] w0 = new double[3];
+        for(int i=0; i<3; i++) {
+            double v = ta.get(i) - tb.get(i);
+            for(int j=0; j<3; j++)
+                v -= wa[i*3+j] * a.translate.get(j);
+            w0[i] = v / sb.get(i);
+        }
+        for(int i=0; i<3; i++) {
+            double cs = b.cellScale.get(i);
+            double v = 0;
+            for(int k=0; k<3; k++)
+                v += rb.get(i, k) * w0[k];
+            t[i] = (v + b.translate.get(i)) * cs;
+            for(int j=0; j<3; j++) {
+                double mv = 0;
+                for(int k=0; k<3; k++)
+                    mv += rb.get(i, k) * wa[k*3+j] / sb.get(k);
+                m[i*3+j] = mv * a.cellSize.get(j) * cs;
+            }
+        }
+        s.m00 = m[0]; s.m01 = m[1]; s.m02 = m[2];
+        s.m10 = m[3]; s.m11 = m[4]; s.m12 = m[5];
+        s.m20 = m[6]; s.m21 = m[7]; s.m22 = m[8];
+        s.tx = t[0]; s.ty = t[1]; s.tz = t[2];
+        
+        // the float transforms of the spatials have an error relative
+        // to the magnitude of the world positions involved
+        float mag = Math.max(ta.length(), tb.length());
+        mag += a.localBound.xExtent * sa.x + a.localBound.yExtent * sa.y + a.localBound.zExtent * sa.z;
+        mag += a.translate.length() + b.translate.length();
+        double cscale = Math.max(b.cellScale.x, Math.max(b.cellScale.y, b.cellScale.z));
+        double sbmin = Math.min(Math.abs(sb.x), Math.min(Math.abs(sb.y), Math.abs(sb.z)));
+        s.eps = 1e-4 + 1e-5 * mag * cscale / Math.max(sbmin, 1e-6);
+        
+        s.x0 = 0; s.x1 = a.sizeX - 1;
+        s.y0 = 0; s.y1 = a.sizeY - 1;
+        s.z0 = 0; s.z1 = a.sizeZ - 1;
+        
+        // clip to the box of b mapped back into the cell indices of a
+        double det = m[0]*(m[4]*m[8]-m[5]*m[7]) - m[1]*(m[3]*m[8]-m[5]*m[6]) + m[2]*(m[3]*m[7]-m[4]*m[6]);
+        if(Math.abs(det) < 1e-12)
+            return true;
+        double[] inv = new double[9];
+        inv[0] = (m[4]*m[8]-m[5]*m[7])/det;
+        inv[1] = (m[2]*m[7]-m[1]*m[8])/det;
+        inv[2] = (m[1]*m[5]-m[2]*m[4])/det;
+        inv[3] = (m[5]*m[6]-m[3]*m[8])/det;
+        inv[4] = (m[0]*m[8]-m[2]*m[6])/det;
+        inv[5] = (m[2]*m[3]-m[0]*m[5])/det;
+        inv[6] = (m[3]*m[7]-m[4]*m[6])/det;
+        inv[7] = (m[1]*m[6]-m[0]*m[7])/det;
+        inv[8] = (m[0]*m[4]-m[1]*m[3])/det;
+        double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        // cells of b are hit by the coordinates in (-1, size), since
+        // the coordinates are truncated towards zero
+        double[] lo = {-1 - s.eps, -1 - s.eps, -1 - s.eps};
+        double[] hi = {b.sizeX + s.eps, b.sizeY + s.eps, b.sizeZ + s.eps};
+        for(int c=0; c<8; c++) {
+            double ux = ((c & 1) == 0 ? lo[0] : hi[0]) - t[0];
+            double uy = ((c & 2) == 0 ? lo[1] : hi[1]) - t[1];
+            double uz = ((c & 4) == 0 ? lo[2] : hi[2]) - t[2];
+            for(int i=0; i<3; i++) {
+                double v = inv[i*3]*ux + inv[i*3+1]*uy + inv[i*3+2]*uz;
+                if(v < min[i]) min[i] = v;
+                if(v > max[i]) max[i] = v;
+            }
+        }
+        s.x0 = Math.max(s.x0, (int) Math.floor(min[0]) - 1);
+        s.x1 = Math.min(s.x1, (int) Math.ceil(max[0]) + 1);
+        s.y0 = Math.max(s.y0, (int) Math.floor(min[1]) - 1);
+        s.y1 = Math.min(s.y1, (int) Math.ceil(max[1]) + 1);
+        s.z0 = Math.max(s.z0, (int) Math.floor(min[2]) - 1);
+        s.z1 = Math.min(s.z1, (int) Math.ceil(max[2]) + 1);
+        return s.x0 <= s.x1 && s.y0 <= s.y1 && s.z0 <= s.z1;
+    }
+    
+    private static boolean isIdentity(Quaternion q) {
+        return q.x == 0 && q.y == 0 && q.z == 0 && q.w == 1;
+    }
+    
+    private static boolean isAxisAligned(Sweep s) {
+        return isIdentity(s.pa.getWorldRotation()) && isIdentity(s.pb.getWorldRotation());
+    }
+    
+    // with identity rotations every axis is transformed separately,
+    // the cell of b for each index of a is calculated with the same
+    // float operations as the transforms of the spatials
+    private boolean setupAligned(Sweep s) {
+        CollisionVolume a = s.a, b = s.b;
+        Vector3f sa = s.pa.getWorldScale(), sb = s.pb.getWorldScale();
+        Vector3f ta = s.pa.getWorldTranslation(), tb = s.pb.getWorldTranslation();
+        s.mapX = mapAxis(a.sizeX, a.cellSize.x, a.translate.x, sa.x, ta.x, tb.x, sb.x, b.translate.x, b.cellScale.x, b.sizeX);
+        s.mapY = mapAxis(a.sizeY, a.cellSize.y, a.translate.y, sa.y, ta.y, tb.y, sb.y, b.translate.y, b.cellScale.y, b.sizeY);
+        s.mapZ = mapAxis(a.sizeZ, a.cellSize.z, a.translate.z, sa.z, ta.z, tb.z, sb.z, b.translate.z, b.cellScale.z, b.sizeZ);
+        s.x0 = first(s.mapX); s.x1 = last(s.mapX);
+        s.y0 = first(s.mapY); s.y1 = last(s.mapY);
+        s.z0 = first(s.mapZ); s.z1 = last(s.mapZ);
+        if(s.x0 > s.x1 || s.y0 > s.y1 || s.z0 > s.z1)
+            return false;
+        s.runs = new IntList();
+        int[] mz = s.mapZ;
+        for(int z=s.z0; z<=s.z1; ) {
+            if(mz[z] < 0) {
+                z++;
+                continue;
+            }
+            int e = z;
+            while(e < s.z1 && mz[e+1] == mz[e] + 1)
+                e++;
+            s.runs.add(z);
+            s.runs.add(e);
+            z = e + 1;
+        }
+        return true;
+    }
+    
+    private static int[] mapAxis(int size, float cellSize, float translate, float scale, 
+            float ta, float tb, float sb, float btranslate, float bcellScale, int bsize) {
+        int[] map = new int[size];
+        for(int i=0; i<size; i++) {
+            float v = i*cellSize;
+            v -= translate;
+            v *= scale;
+            v += ta;
+            v = v - tb;
+            v /= sb;
+            v += btranslate;
+            int c = (int) (v * bcellScale);
+            map[i] = c >= 0 && c < bsize ? c : -1;
+        }
+        return map;
+    }
+    
+    private static int first(int[] map) {
+        for(int i=0; i<map.length; i++)
+            if(map[i] >= 0)
+                return i;
+        return map.length;
+    }
+    
+    private static int last(int[] map) {
+        for(int i=map.length-1; i>=0; i--)
+            if(map[i] >= 0)
+                return i;
+        return -1;
+    }
+    
+    // checks the cells of not rotated volumes, the runs of z mapping
+    // to consecutive cells of b are tested with words of cells
+    private void scanAligned(Sweep s, int y0, int y1, IntList hits) {
+        CollisionVolume a = s.a, b = s.b;
+        SparseCellMap acells = a.cells, bcells = b.cells;
+        int ayz = a.sizeY * a.sizeZ;
+        int[] mx = s.mapX, my = s.mapY, mz = s.mapZ;
+        int[] runs = s.runs.getArray();
+        int nruns = s.runs.size();
+        for(int y=y0; y<=y1; y++) {
+            if(s.first && s.found)
+                return;
+            if(my[y] < 0)
+                continue;
+            for(int x=s.x0; x<=s.x1; x++) {
+                if(mx[x] < 0)
+                    continue;
+                int abase = x*ayz + y*a.sizeZ;
+                int bx = mx[x], by = my[y];
+                for(int r=0; r<nruns; r+=2) {
+                    int zs = runs[r], ze = runs[r+1];
+                    if(ze > zs) {
+                        // consecutive cells, shifted by k
+                        int k = mz[zs] - zs;
+                        for(int z=zs; z<=ze; z+=64) {
+                            long w = acells.getRow(x, y, z) & bcells.getRow(bx, by, k + z);
+                            int n = ze - z + 1;
+                            if(n < 64)
+                                w &= (1L << n) - 1;
+                            while(w != 0) {
+                                int bit = Long.numberOfTrailingZeros(w);
+                                w &= w - 1;
+                                hits.add(abase + z + bit);
+                                if(s.first) { s.found = true; return; }
+                            }
+                        }
+                    } else {
+                        if(acells.get(x, y, zs) && bcells.get(bx, by, mz[zs])) {
+                            hits.add(abase + zs);
+                            if(s.first) { s.found = true; return; }
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    private static boolean near(double u, double eps) {
+        double f = u - Math.floor(u);
+        return f < eps || f > 1 - eps;
+    }
+    
+    // checks the cells in the layers y0..y1 in the order of the original
+    // loops, adds the linear index of colliding cells of a to hits
+    private void scan(Sweep s, int y0, int y1, IntList hits, Vector3f tmp) {
+        if(s.mapX != null) {
+            scanAligned(s, y0, y1, hits);
+            return;
+        }
+        CollisionVolume a = s.a, b = s.b;
+        SparseCellMap acells = a.cells, bcells = b.cells;
+        int ayz = a.sizeY * a.sizeZ;
+        double eps = s.eps;
+        for(int y=y0; y<=y1; y++) {
+            if(s.first && s.found)
+                return;
+            for(int x=s.x0; x<=s.x1; x++) {
+                int abase = x*ayz + y*a.sizeZ;
+                // the mapped position of the start of the row
+                double rx = s.tx + s.m00*x + s.m01*y;
+                double ry = s.ty + s.m10*x + s.m11*y;
+                double rz = s.tz + s.m20*x + s.m21*y;
+                int zs = s.z0, ze = s.z1;
+                
+                if(ze - zs + 1 >= MIN_WORD_ROW) {
+                    double sx = rx + s.m02*zs, sy = ry + s.m12*zs, sz = rz + s.m22*zs;
+                    double ex = rx + s.m02*ze, ey = ry + s.m12*ze, ez = rz + s.m22*ze;
+                    int k = (int) Math.floor(sz) - zs;
+                    if(!near(sx, eps) && !near(sy, eps) && !near(sz, eps)
+                            && !near(ex, eps) && !near(ey, eps) && !near(ez, eps)
+                            && (int) sx == (int) ex && (int) sy == (int) ey
+                            && (int) Math.floor(ez) - ze == k) {
+                        // the whole row maps to a continuous row of b
+                        int tx = (int) sx, ty = (int) sy;
+                        if(tx < 0 || tx >= b.sizeX || ty < 0 || ty >= b.sizeY)
+                            continue;
+                        // the part where the coordinate in b is not negative
+                        int wa = Math.max(zs, -k);
+                        int wb = Math.min(ze, b.sizeZ - 1 - k);
+                        for(int z=zs; z<wa && z<=ze; z++) {
+                            if(cellHit(s, x, y, z, rx, ry, rz, tmp)) {
+                                hits.add(abase + z);
+                                if(s.first) { s.found = true; return; }
+                            }
+                        }
+                        if(wa <= wb) {
+                            for(int z=wa; z<=wb; z+=64) {
+                                long w = acells.getRow(x, y, z) & bcells.getRow(tx, ty, k + z);
+                                int n = wb - z + 1;
+                                if(n < 64)
+                                    w &= (1L << n) - 1;
+                                while(w != 0) {
+                                    int bit = Long.numberOfTrailingZeros(w);
+                                    w &= w - 1;
+                                    hits.add(abase + z + bit);
+                                    if(s.first) { s.found = true; return; }
+                                }
+                            }
+                        }
+                        for(int z=Math.max(wb+1, wa); z<=ze; z++) {
+                            if(cellHit(s, x, y, z, rx, ry, rz, tmp)) {
+                                hits.add(abase + z);
+                                if(s.first) { s.found = true; return; }
+                            }
+                        }
+                        continue;
+                    }
+                }
+                // only the set cells of a
+                for(int zw=zs; zw<=ze; zw+=64) {
+                    long w = acells.getRow(x, y, zw);
+                    int n = ze - zw + 1;
+                    if(n < 64)
+                        w &= (1L << n) - 1;
+                    while(w != 0) {
+                        int z = zw + Long.numberOfTrailingZeros(w);
+                        w &= w - 1;
+                        if(cellHit(s, x, y, z, rx, ry, rz, tmp)) {
+                            hits.add(abase + z);
+                            if(s.first) { s.found = true; return; }
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    private boolean cellHit(Sweep s, int x, int y, int z, 
+            double rx, double ry, double rz, Vector3f tmp) {
+        if(!s.a.cells.get(x, y, z))
+            return false;
+        double ux = rx + s.m02*z, uy = ry + s.m12*z, uz = rz + s.m22*z;
+        CollisionVolume b = s.b;
+        if(near(ux, s.eps) || near(uy, s.eps) || near(uz, s.eps)) {
+            // check with the transforms of the spatials
+            CollisionVolume a = s.a;
+            tmp.set(x*a.cellSize.x, y*a.cellSize.y, z*a.cellSize.z);
+            tmp.subtractLocal(a.translate);
+            s.pa.localToWorld(tmp, tmp);
+            // the same as s.pb.worldToLocal(tmp, tmp)
+            tmp.subtractLocal(s.pb.getWorldTranslation()).divideLocal(s.pb.getWorldScale());
+            s.pbInverse.mult(tmp, tmp);
+            tmp.addLocal(b.translate);
+            int tx = (int) (tmp.x * b.cellScale.x);
+            int ty = (int) (tmp.y * b.cellScale.y);
+            int tz = (int) (tmp.z * b.cellScale.z);
+            return tx>=0 && tx<b.sizeX && ty>=0 && ty<b.sizeY && tz>=0 && tz<b.sizeZ
+                    && b.getCell(tx, ty, tz);
+        }
+        int tx = (int) ux, ty = (int) uy, tz = (int) uz;
+        if(tx < 0 || tx >= b.sizeX || ty < 0 || ty >= b.sizeY || tz < 0 || tz >= b.sizeZ)
+            return false;
+        return b.cells.get(tx, ty, tz);
+    }
+    
+    // creates the collision points of the hit cells, in world space
+    private void addPoints(Sweep s, IntList hits, FastList<Vector3f> points) {
+        CollisionVolume a = s.a;
+        int ayz = a.sizeY * a.sizeZ;
+        for(int i=0, mi=hits.size(); i<mi; i++) {
+            int idx = hits.get(i);
+            int x = idx / ayz;
+            int y = (idx - x*ayz) / a.sizeZ;
+            int z = idx - x*ayz - y*a.sizeZ;
+            Vector3f cv = (Vector3f) LocalContext.getContext().ctbstack.fetch(ReuseManager.TYPE_Vector3f);
+            cv.set(x*a.cellSize.x, y*a.cellSize.y, z*a.cellSize.z);
+            cv.subtractLocal(a.translate);
+            s.pa.localToWorld(cv, cv);
+            points.add(cv);
+        }
+    }
+    
+    private boolean runParallel(Sweep s, FastList<Vector3f> points) {
+        int layers = s.y1 - s.y0 + 1;
+        s.taskCount = Math.min(layers, threads * 4);
+        s.taskRows = (layers + s.taskCount - 1) / s.taskCount;
+        s.taskCount = (layers + s.taskRows - 1) / s.taskRows;
+        s.taskHits = new IntList[s.taskCount];
+        for(int i=0; i<s.taskCount; i++)
+            s.taskHits[i] = new IntList();
+        
+        synchronized(runLock) {
+            synchronized(this) {
+                // start the missing workers
+                while(workers < threads - 1)
+                    startWorker(++workers);
+                parallel = s;
+                generation++;
+                this.notifyAll();
+            }
+            // work in the calling thread too
+            work(s);
+            while(s.doneTask.get() < s.taskCount) {
+                Thread.yield();
+            }
+        }
+        
+        // the tasks are in the order of the layers
+        IntList all = LocalContext.getContext().cvhits;
+        all.clear();
+        for(int i=0; i<s.taskCount; i++) {
+            all.addAll(s.taskHits[i]);
+        }
+        boolean found = all.size() > 0;
+        if(points != null)
+            addPoints(s, all, points);
+        all.clear();
+        return found;
+    }
+    
+    private void work(Sweep s) {
+        Vector3f tmp = new Vector3f();
+        int t;
+        while((t = s.nextTask.getAndIncrement()) < s.taskCount) {
+            try {
+                int y0 = s.y0 + t*s.taskRows;
+                int y1 = Math.min(s.y1, y0 + s.taskRows - 1);
+                scan(s, y0, y1, s.taskHits[t], tmp);
+            } catch(Throwable e) {
+                logger.log(Level.SEVERE, "Exception in collision volume task", e);
+            }
+            // this must be the last operation in the task
+            s.doneTask.incrementAndGet();
+        }
+    }
+    
+    private void startWorker(int i) {
+        final int started = generation;
+        final int own = epoch;
+        Thread th = new Thread(new Runnable() {
+            public void run() {
+                int seen = started;
+                while(epoch == own) {
+                    Sweep s;
+                    synchronized(CollisionVolumeEngine.this) {
+                        while(epoch == own && generation == seen) {
+                            try {
+                                CollisionVolumeEngine.this.wait();
+                            } catch (InterruptedException ex) {
+                            }
+                        }
+                        seen = generation;
+                        s = parallel;
+                    }
+                    // a late worker finds all the tasks of its sweep taken
+                    if(epoch == own && s != null)
+                        work(s);
+                }
+            }
+        }, "CollisionVolume-"+i);
+        th.setDaemon(true);
+        th.start();
+    }
+}
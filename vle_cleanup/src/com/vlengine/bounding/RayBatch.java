@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.bounding;
+
+import com.vlengine.math.Vector3f;
+import com.vlengine.scene.Spatial;
+
+/**
+ * A batch of rays for CollisionTreeManager.findPicks, and the nearest hit
+ * of each ray. The rays and the results are stored in primitive arrays,
+ * which are reused when the batch is cleared and filled again, so casting
+ * the rays does not allocate per ray.
+ * 
+ * The direction of the rays should be normalized, the hit distance is
+ * measured in units of the direction.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class RayBatch {
+    
+    // the rays, x, y, z of each
+    protected float[] origin;
+    protected float[] direction;
+    // the length of each ray
+    protected float[] length;
+    protected int count;
+    
+    // the distance of the nearest hit, Float.POSITIVE_INFINITY if no hit
+    protected float[] hitDistance;
+    // the index of the triangle hit in the geometry
+    protected int[] hitTriangle;
+    // the batch index in a LodMesh, -1 for a Mesh
+    protected int[] hitBatch;
+    protected Spatial[] hitSpatial;
+    
+    public RayBatch(int capacity) {
+        ensureCapacity(Math.max(capacity, 1));
+    }
+    
+    protected void ensureCapacity(int capacity) {
+        if(length != null && length.length >= capacity)
+            return;
+        int size = length == null ? capacity : Math.max(capacity, length.length*2);
+        float[] no = new float[size*3];
+        float[] nd = new float[size*3];
+        float[] nl = new float[size];
+        if(length != null) {
+            System.arraycopy(origin, 0, no, 0, count*3);
+            System.arraycopy(direction, 0, nd, 0, count*3);
+            System.arraycopy(length, 0, nl, 0, count);
+        }
+        origin = no;
+        direction = nd;
+        length = nl;
+        hitDistance = new float[size];
+        hitTriangle = new int[size];
+        hitBatch = new int[size];
+        hitSpatial = new Spatial[size];
+    }
+    
+    /**
+     * Removes all the rays.
+     */
+    public void clear() {
+        count = 0;
+    }
+    
+    /**
+     * Adds a ray, returns its index.
+     * 
+     * @param length the length of the ray, Float.POSITIVE_INFINITY for
+     *               an unbounded ray
+     */
+    public int addRay(float ox, float oy, float oz, float dx, float dy, float dz, float length) {
+        ensureCapacity(count + 1);
+        int o = count*3;
+        origin[o] = ox; origin[o+1] = oy; origin[o+2] = oz;
+        direction[o] = dx; direction[o+1] = dy; direction[o+2] = dz;
+        this.length[count] = length;
+        return count++;
+    }
+    
+    public int addRay(Vector3f origin, Vector3f direction, float length) {
+        return addRay(origin.x, origin.y, origin.z, direction.x, direction.y, direction.z, length);
+    }
+    
+    /**
+     * Adds the segment between two points, returns its index.
+     */
+    public int addSegment(Vector3f from, Vector3f to) {
+        float dx = to.x - from.x, dy = to.y - from.y, dz = to.z - from.z;
+        float len = (float) Math.sqrt(dx*dx + dy*dy + dz*dz);
+        float il = len > 0 ? 1f/len : 0;
+        return addRay(from.x, from.y, from.z, dx*il, dy*il, dz*il, len);
+    }
+    
+    public int getCount() {
+        return count;
+    }
+    
+    public void getRay(int ray, Vector3f origin, Vector3f direction) {
+        int o = ray*3;
+        origin.set(this.origin[o], this.origin[o+1], this.origin[o+2]);
+        direction.set(this.direction[o], this.direction[o+1], this.direction[o+2]);
+    }
+    
+    public float getLength(int ray) {
+        return length[ray];
+    }
+    
+    // clears the results before casting
+    protected void resetResults() {
+        for(int i=0; i<count; i++) {
+            hitDistance[i] = Float.POSITIVE_INFINITY;
+            hitTriangle[i] = -1;
+            hitBatch[i] = -1;
+            hitSpatial[i] = null;
+        }
+    }
+    
+    public boolean isHit(int ray) {
+        return hitSpatial[ray] != null;
+    }
+    
+    public float getHitDistance(int ray) {
+        return hitDistance[ray];
+    }
+    
+    public int getHitTriangle(int ray) {
+        return hitTriangle[ray];
+    }
+    
+    public int getHitBatch(int ray) {
+        return hitBatch[ray];
+    }
+    
+    public Spatial getHitSpatial(int ray) {
+        return hitSpatial[ray];
+    }
+    
+    // the result arrays, indexed by the ray
+    public float[] getHitDistances() {
+        return hitDistance;
+    }
+    
+    public int[] getHitTriangles() {
+        return hitTriangle;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.bounding;
+
+import com.vlengine.resource.model.ModelPackReader;
+import com.vlengine.resource.model.ModelPackWriter;
+import java.util.Arrays;
+
+/**
+ * Sparse storage of the cells of a collision volume. The cells are grouped
+ * into bricks of 8x8x8 cells, only the bricks having set cells are
+ * allocated. Bricks are looked up in an index over the brick grid, so
+ * empty bricks cost 4 bytes instead of 64.
+ * 
+ * Inside a brick, each x has a long, with the bit (y*8 + z), so a row of
+ * cells along z is a byte in a brick.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class SparseCellMap {
+    
+    public static final int BRICK_SHIFT = 3;
+    public static final int BRICK_SIZE = 1 << BRICK_SHIFT;
+    private static final int BRICK_MASK = BRICK_SIZE - 1;
+    // the longs in a brick
+    private static final int BRICK_LONGS = BRICK_SIZE;
+    
+    protected int sizeX, sizeY, sizeZ;
+    protected int bricksX, bricksY, bricksZ;
+    
+    // the position of each brick in the bits, -1 for empty bricks
+    protected int[] brickIndex;
+    // the allocated bricks
+    protected long[] bits;
+    protected int brickCount;
+    
+    public SparseCellMap(int sizeX, int sizeY, int sizeZ) {
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        bricksX = (sizeX + BRICK_MASK) >> BRICK_SHIFT;
+        bricksY = (sizeY + BRICK_MASK) >> BRICK_SHIFT;
+        bricksZ = (sizeZ + BRICK_MASK) >> BRICK_SHIFT;
+        brickIndex = new int[bricksX * bricksY * bricksZ];
+        Arrays.fill(brickIndex, -1);
+        bits = new long[BRICK_LONGS * 16];
+    }
+    
+    public int getSizeX() {
+        return sizeX;
+    }
+
+    public int getSizeY() {
+        return sizeY;
+    }
+
+    public int getSizeZ() {
+        return sizeZ;
+    }
+    
+    public int getBricksX() {
+        return bricksX;
+    }
+
+    public int getBricksY() {
+        return bricksY;
+    }
+
+    public int getBricksZ() {
+        return bricksZ;
+    }
+    
+    protected int getBrick(int x, int y, int z) {
+        return ((x >> BRICK_SHIFT) * bricksY + (y >> BRICK_SHIFT)) * bricksZ + (z >> BRICK_SHIFT);
+    }
+    
+    public boolean get(int x, int y, int z) {
+        int bi = brickIndex[getBrick(x, y, z)];
+        if(bi < 0)
+            return false;
+        return (bits[bi + (x & BRICK_MASK)] & (1L << (((y & BRICK_MASK) << BRICK_SHIFT) | (z & BRICK_MASK)))) != 0;
+    }
+    
+    public void set(int x, int y, int z) {
+        int b = getBrick(x, y, z);
+        int bi = brickIndex[b];
+        if(bi < 0) {
+            bi = allocateBrick();
+            brickIndex[b] = bi;
+        }
+        bits[bi + (x & BRICK_MASK)] |= 1L << (((y & BRICK_MASK) << BRICK_SHIFT) | (z & BRICK_MASK));
+    }
+    
+    private int allocateBrick() {
+        int bi = brickCount * BRICK_LONGS;
+        if(bi + BRICK_LONGS > bits.length) {
+            long[] nb = new long[bits.length * 2];
+            System.arraycopy(bits, 0, nb, 0, bits.length);
+            bits = nb;
+        }
+        brickCount++;
+        return bi;
+    }
+    
+    /**
+     * Returns true if the brick with the given brick coordinates
+     * has no cells set.
+     */
+    public boolean isBrickEmpty(int bx, int by, int bz) {
+        return brickIndex[(bx * bricksY + by) * bricksZ + bz] < 0;
+    }
+    
+    /**
+     * Returns 64 cells of the row along z, starting at z, the lowest
+     * bit is the cell at z. Cells outside the map are 0.
+     */
+    public long getRow(int x, int y, int z) {
+        if(x < 0 || x >= sizeX || y < 0 || y >= sizeY || z >= sizeZ)
+            return 0;
+        int zs = z;
+        if(zs < 0) {
+            if(zs <= -64)
+                return 0;
+            zs = 0;
+        }
+        int ze = Math.min(z + 64, sizeZ);
+        int col = ((x >> BRICK_SHIFT) * bricksY + (y >> BRICK_SHIFT)) * bricksZ;
+        int lx = x & BRICK_MASK;
+        int sh = (y & BRICK_MASK) << BRICK_SHIFT;
+        long row = 0;
+        for(int bz = zs >> BRICK_SHIFT, bze = (ze - 1) >> BRICK_SHIFT; bz <= bze; bz++) {
+            int bi = brickIndex[col + bz];
+            if(bi < 0)
+                continue;
+            long seg = (bits[bi + lx] >>> sh) & 0xFF;
+            int off = (bz << BRICK_SHIFT) - z;
+            if(off >= 0)
+                row |= seg << off;
+            else
+                row |= seg >>> -off;
+        }
+        return row;
+    }
+    
+    /**
+     * Frees the unused part of the brick storage.
+     */
+    public void trim() {
+        int len = Math.max(brickCount * BRICK_LONGS, BRICK_LONGS);
+        if(bits.length > len) {
+            long[] nb = new long[len];
+            System.arraycopy(bits, 0, nb, 0, len);
+            bits = nb;
+        }
+    }
+    
+    public int getBrickCount() {
+        return brickCount;
+    }
+    
+    /**
+     * The number of set cells.
+     */
+    public int getCellCount() {
+        int count = 0;
+        for(int i=0, mi=brickCount * BRICK_LONGS; i<mi; i++)
+            count += Long.bitCount(bits[i]);
+        return count;
+    }
+    
+    /**
+     * The memory used by the index and the bricks, in bytes.
+     */
+    public int getMemorySize() {
+        return brickIndex.length * 4 + bits.length * 8;
+    }
+    
+    public void save(ModelPackWriter out) {
+        out.putInt(sizeX);
+        out.putInt(sizeY);
+        out.putInt(sizeZ);
+        out.putInt(brickCount);
+        // the allocated bricks with their index in the grid
+        for(int b=0; b<brickIndex.length; b++) {
+            int bi = brickIndex[b];
+            if(bi < 0)
+                continue;
+            out.putInt(b);
+            for(int i=0; i<BRICK_LONGS; i++)
+                out.putLong(bits[bi + i]);
+        }
+    }
+    
+    public static SparseCellMap load(ModelPackReader in) {
+        SparseCellMap map = new SparseCellMap(in.getInt(), in.getInt(), in.getInt());
+        int count = in.getInt();
+        map.bits = new long[Math.max(count, 1) * BRICK_LONGS];
+        for(int c=0; c<count; c++) {
+            int b = in.getInt();
+            int bi = map.allocateBrick();
+            map.brickIndex[b] = bi;
+            for(int i=0; i<BRICK_LONGS; i++)
+                map.bits[bi + i] = in.getLong();
+        }
+        return map;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.bounding;
+
+import com.vlengine.math.Vector3f;
+import com.vlengine.scene.Spatial;
+
+/**
+ * The result of a CharacterSweep query. A sweep stores the first contact
+ * along the motion, a move stores the position reached and the contacts
+ * found while sliding.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class SweepResult {
+    
+    // was there a contact
+    protected boolean hit;
+    // the fraction of the motion before the contact, 1 if no contact
+    protected float time = 1;
+    // the length of the motion before the contact
+    protected float distance;
+    // the normal of the last contact, pointing from the obstacle
+    // to the shape
+    protected final Vector3f normal = new Vector3f();
+    // the spatial of the last contact
+    protected Spatial spatial;
+    // the triangle of the last contact, -1 for a cell of a volume
+    protected int triangle = -1;
+    // the batch index in a LodMesh, -1 for a Mesh
+    protected int batch = -1;
+    
+    // the position reached by a move
+    protected final Vector3f position = new Vector3f();
+    // did the move touch walkable ground, or a surface too steep
+    protected boolean ground;
+    protected boolean wall;
+    protected final Vector3f groundNormal = new Vector3f();
+    // the number of sweeps done
+    protected int sweeps;
+    
+    public void clear() {
+        hit = false;
+        time = 1;
+        distance = 0;
+        normal.zero();
+        spatial = null;
+        triangle = -1;
+        batch = -1;
+        ground = false;
+        wall = false;
+        groundNormal.zero();
+        sweeps = 0;
+    }
+    
+    public boolean isHit() {
+        return hit;
+    }
+    
+    public float getTime() {
+        return time;
+    }
+    
+    public float getDistance() {
+        return distance;
+    }
+    
+    public Vector3f getNormal() {
+        return normal;
+    }
+    
+    public Spatial getSpatial() {
+        return spatial;
+    }
+    
+    public int getTriangle() {
+        return triangle;
+    }
+    
+    public int getBatch() {
+        return batch;
+    }
+    
+    public Vector3f getPosition() {
+        return position;
+    }
+    
+    public boolean isOnGround() {
+        return ground;
+    }
+    
+    public boolean isOnWall() {
+        return wall;
+    }
+    
+    public Vector3f getGroundNormal() {
+        return groundNormal;
+    }
+    
+    public int getSweepCount() {
+        return sweeps;
+    }
+}
@@ -291,6 +291,67 @@ public class Intersection {
 		return true;		
 	}
 
+	/**
+	 * Tests a triangle against an axis aligned box with the separating axis
+	 * theorem (Akenine-Moller). Touching counts as overlap.
+	 * 
+	 * @param tri
+	 *            The vertices of the triangle, x, y, z of each.
+	 * @return True if the triangle and the box overlap.
+	 */
+	public static boolean triangleBoxIntersection(float[] tri, float cx, float cy, float cz,
+			float hx, float hy, float hz) {
+		// move the box to the origin
+		float v0x = tri[0] - cx, v0y = tri[1] - cy, v0z = tri[2] - cz;
+		float v1x = tri[3] - cx, v1y = tri[4] - cy, v1z = tri[5] - cz;
+		float v2x = tri[6] - cx, v2y = tri[7] - cy, v2z = tri[8] - cz;
+		// the box axes
+		if (Math.min(v0x, Math.min(v1x, v2x)) > hx || Math.max(v0x, Math.max(v1x, v2x)) < -hx)
+			return false;
+		if (Math.min(v0y, Math.min(v1y, v2y)) > hy || Math.max(v0y, Math.max(v1y, v2y)) < -hy)
+			return false;
+		if (Math.min(v0z, Math.min(v1z, v2z)) > hz || Math.max(v0z, Math.max(v1z, v2z)) < -hz)
+			return false;
+		float e0x = v1x - v0x, e0y = v1y - v0y, e0z = v1z - v0z;
+		float e1x = v2x - v1x, e1y = v2y - v1y, e1z = v2z - v1z;
+		float e2x = v0x - v2x, e2y = v0y - v2y, e2z = v0z - v2z;
+		// the plane of the triangle
+		float nx = e0y * e1z - e0z * e1y;
+		float ny = e0z * e1x - e0x * e1z;
+		float nz = e0x * e1y - e0y * e1x;
+		float r = hx * Math.abs(nx) + hy * Math.abs(ny) + hz * Math.abs(nz);
+		float d = nx * v0x + ny * v0y + nz * v0z;
+		if (d > r || d < -r)
+			return false;
+		// the cross products of the edges and the box axes
+		return edgeAxes(e0x, e0y, e0z, v0x, v0y, v0z, v2x, v2y, v2z, hx, hy, hz)
+				&& edgeAxes(e1x, e1y, e1z, v1x, v1y, v1z, v0x, v0y, v0z, hx, hy, hz)
+				&& edgeAxes(e2x, e2y, e2z, v2x, v2y, v2z, v1x, v1y, v1z, hx, hy, hz);
+	}
+
+	// tests the axes edge x (1,0,0), (0,1,0), (0,0,1), the triangle is
+	// projected by a vertex of the edge and the opposite vertex
+	private static boolean edgeAxes(float ex, float ey, float ez, float ax, float ay, float az,
+			float bx, float by, float bz, float hx, float hy, float hz) {
+		// edge x (1,0,0) = (0, ez, -ey)
+		float p0 = ez * ay - ey * az;
+		float p1 = ez * by - ey * bz;
+		float r = hy * Math.abs(ez) + hz * Math.abs(ey);
+		if (Math.min(p0, p1) > r || Math.max(p0, p1) < -r)
+			return false;
+		// edge x (0,1,0) = (-ez, 0, ex)
+		p0 = ex * az - ez * ax;
+		p1 = ex * bz - ez * bx;
+		r = hx * Math.abs(ez) + hz * Math.abs(ex);
+		if (Math.min(p0, p1) > r || Math.max(p0, p1) < -r)
+			return false;
+		// edge x (0,0,1) = (ey, -ex, 0)
+		p0 = ey * ax - ex * ay;
+		p1 = ey * bx - ex * by;
+		r = hx * Math.abs(ey) + hy * Math.abs(ex);
+		return !(Math.min(p0, p1) > r || Math.max(p0, p1) < -r);
+	}
+
 	private static void sort(float[] f) {
 		if (f[0] > f[1]) {
 			float c = f[0];
@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.light;
+
+import com.vlengine.bounding.BoundingBox;
+import com.vlengine.bounding.BoundingSphere;
+import com.vlengine.bounding.BoundingVolume;
+import com.vlengine.scene.Renderable;
+import com.vlengine.scene.batch.LightBatch;
+import com.vlengine.util.FastList;
+import com.vlengine.util.IntList;
+import java.util.Arrays;
+
+/**
+ * Uniform world grid of the lights, built each frame from the world bounds
+ * of the LightBatch-es. A renderable needs to be checked only against the
+ * lights whose bounds touch the cells its bound touches, and against the
+ * lights without bound (global lights).
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class LightGrid {
+
+    // maximum number of cells along one axis
+    public static final int MAX_DIVISIONS = 32;
+    
+    // the enabled lights, in the order of the light queue
+    protected final FastList<LightBatch> lights = new FastList<LightBatch>();
+    
+    // the lights without bound, these affect everything
+    protected final IntList global = new IntList();
+    
+    // the number of lights with bound
+    protected int bounded;
+    
+    // the cell ranges of the bounded lights, 6 values per light
+    protected int[] lightCells = new int[6*16];
+    
+    // the min and max corner, and the cell size of the grid
+    protected float ox, oy, oz;
+    protected float mx, my, mz;
+    protected float sx, sy, sz;
+    // divisions along the axes
+    protected int nx, ny, nz;
+    
+    // cell starts into cellLights, one more than cells
+    protected int[] cellStart = new int[2];
+    protected int[] cellLights = new int[16];
+    
+    // the query marks for removing duplicates
+    protected int[] mark = new int[16];
+    protected int stamp = 0;
+    
+    // temporary for min/max of bounds
+    protected final float[] tmpBox = new float[6];
+    
+    /**
+     * Rebuilds the grid from the LightBatch-es in the given queue.
+     * Disabled lights, and anything else than LightBatch is ignored.
+     */
+    public void build(FastList<Renderable> queue) {
+        lights.clear();
+        global.clear();
+        bounded = 0;
+        
+        int n = queue != null ? queue.size() : 0;
+        if(lightCells.length < n*6) {
+            lightCells = new int[n*6];
+        }
+        if(mark.length < n) {
+            mark = new int[n];
+            stamp = 0;
+        }
+        
+        // gather the lights, and the extent of the bounded ones
+        float minx = Float.MAX_VALUE, miny = Float.MAX_VALUE, minz = Float.MAX_VALUE;
+        float maxx = -Float.MAX_VALUE, maxy = -Float.MAX_VALUE, maxz = -Float.MAX_VALUE;
+        float sumx = 0, sumy = 0, sumz = 0;
+        for(int i=0; i<n; i++) {
+            if(!(queue.get(i) instanceof LightBatch))
+                continue;
+            LightBatch lb = (LightBatch) queue.get(i);
+            if(!lb.getLight().isEnabled())
+                continue;
+            int li = lights.size();
+            lights.add(lb);
+            if(!getMinMax(lb.getWorldBound(), tmpBox)) {
+                global.add(li);
+                continue;
+            }
+            bounded++;
+            minx = Math.min(minx, tmpBox[0]); maxx = Math.max(maxx, tmpBox[3]);
+            miny = Math.min(miny, tmpBox[1]); maxy = Math.max(maxy, tmpBox[4]);
+            minz = Math.min(minz, tmpBox[2]); maxz = Math.max(maxz, tmpBox[5]);
+            sumx += tmpBox[3] - tmpBox[0];
+            sumy += tmpBox[4] - tmpBox[1];
+            sumz += tmpBox[5] - tmpBox[2];
+        }
+        
+        if(bounded == 0) {
+            nx = ny = nz = 0;
+            return;
+        }
+        
+        // the cells are about the average size of a light
+        nx = divisions(maxx - minx, sumx/bounded);
+        ny = divisions(maxy - miny, sumy/bounded);
+        nz = divisions(maxz - minz, sumz/bounded);
+        ox = minx; oy = miny; oz = minz;
+        mx = maxx; my = maxy; mz = maxz;
+        sx = Math.max((maxx - minx)/nx, 0.0001f);
+        sy = Math.max((maxy - miny)/ny, 0.0001f);
+        sz = Math.max((maxz - minz)/nz, 0.0001f);
+        
+        int cells = nx*ny*nz;
+        if(cellStart.length < cells + 1) {
+            cellStart = new int[cells + 1];
+        } else {
+            Arrays.fill(cellStart, 0, cells + 1, 0);
+        }
+        
+        // count the lights in each cell
+        int total = 0;
+        for(int li=0, mi=lights.size(); li<mi; li++) {
+            int[] c = lightCells;
+            int o = li*6;
+            if(!getMinMax(lights.get(li).getWorldBound(), tmpBox)) {
+                // empty range for global lights
+                c[o] = c[o+1] = c[o+2] = 0;
+                c[o+3] = c[o+4] = c[o+5] = -1;
+                continue;
+            }
+            cellRange(tmpBox, c, o);
+            for(int z=c[o+2]; z<=c[o+5]; z++) {
+                for(int y=c[o+1]; y<=c[o+4]; y++) {
+                    for(int x=c[o]; x<=c[o+3]; x++) {
+                        cellStart[(z*ny + y)*nx + x + 1]++;
+                        total++;
+                    }
+                }
+            }
+        }
+        for(int i=1; i<=cells; i++) {
+            cellStart[i] += cellStart[i-1];
+        }
+        if(cellLights.length < total) {
+            cellLights = new int[total];
+        }
+        
+        // fill in the cells, cellStart is advanced while filling
+        // the lights are added in increasing order into every cell
+        for(int li=0, mi=lights.size(); li<mi; li++) {
+            int[] c = lightCells;
+            int o = li*6;
+            for(int z=c[o+2]; z<=c[o+5]; z++) {
+                for(int y=c[o+1]; y<=c[o+4]; y++) {
+                    for(int x=c[o]; x<=c[o+3]; x++) {
+                        cellLights[cellStart[(z*ny + y)*nx + x]++] = li;
+                    }
+                }
+            }
+        }
+        // restore the starts
+        for(int i=cells; i>0; i--) {
+            cellStart[i] = cellStart[i-1];
+        }
+        cellStart[0] = 0;
+    }
+    
+    /**
+     * The number of enabled lights in the grid.
+     */
+    public int getLightCount() {
+        return lights.size();
+    }
+    
+    public LightBatch getLight(int index) {
+        return lights.get(index);
+    }
+    
+    /**
+     * Gathers the index of the lights that possibly affect the given bound,
+     * in increasing order. For a null bound, all the lights are returned.
+     */
+    public void query(BoundingVolume bound, IntList store) {
+        store.clear();
+        int n = lights.size();
+        if(n == 0)
+            return;
+        if(bounded == 0 || !getMinMax(bound, tmpBox)) {
+            for(int i=0; i<n; i++)
+                store.add(i);
+            return;
+        }
+        
+        stamp++;
+        if(stamp == Integer.MAX_VALUE) {
+            Arrays.fill(mark, 0);
+            stamp = 1;
+        }
+        for(int i=0, mi=global.size(); i<mi; i++) {
+            store.add(global.get(i));
+            mark[global.get(i)] = stamp;
+        }
+        
+        // completely outside of the grid
+        if(tmpBox[3] < ox || tmpBox[4] < oy || tmpBox[5] < oz
+                || tmpBox[0] > mx || tmpBox[1] > my || tmpBox[2] > mz) {
+            return;
+        }
+        
+        int x0 = cell(tmpBox[0], ox, sx, nx), x1 = cell(tmpBox[3], ox, sx, nx);
+        int y0 = cell(tmpBox[1], oy, sy, ny), y1 = cell(tmpBox[4], oy, sy, ny);
+        int z0 = cell(tmpBox[2], oz, sz, nz), z1 = cell(tmpBox[5], oz, sz, nz);
+        
+        // if the bound covers more cells than there are lights, 
+        // its faster to check all of them
+        if((x1-x0+1)*(y1-y0+1)*(z1-z0+1) > bounded) {
+            store.clear();
+            for(int i=0; i<n; i++)
+                store.add(i);
+            return;
+        }
+        
+        boolean sorted = true;
+        for(int z=z0; z<=z1; z++) {
+            for(int y=y0; y<=y1; y++) {
+                for(int x=x0; x<=x1; x++) {
+                    int c = (z*ny + y)*nx + x;
+                    for(int i=cellStart[c], mi=cellStart[c+1]; i<mi; i++) {
+                        int li = cellLights[i];
+                        if(mark[li] != stamp) {
+                            mark[li] = stamp;
+                            if(store.size() > 0 && store.get(store.size()-1) > li)
+                                sorted = false;
+                            store.add(li);
+                        }
+                    }
+                }
+            }
+        }
+        
+        if(!sorted) {
+            // keep the order of the light queue
+            int[] a = store.getArray();
+            for(int i=1, mi=store.size(); i<mi; i++) {
+                int v = a[i];
+                int j = i - 1;
+                while(j >= 0 && a[j] > v) {
+                    a[j+1] = a[j];
+                    j--;
+                }
+                a[j+1] = v;
+            }
+        }
+    }
+    
+    protected int divisions(float extent, float lightSize) {
+        if(lightSize <= 0)
+            return 1;
+        int d = (int) (extent/lightSize) + 1;
+        return Math.max(1, Math.min(d, MAX_DIVISIONS));
+    }
+    
+    protected int cell(float v, float o, float s, int n) {
+        int c = (int) ((v - o)/s);
+        return c < 0 ? 0 : (c >= n ? n - 1 : c);
+    }
+    
+    protected void cellRange(float[] box, int[] store, int o) {
+        store[o]   = cell(box[0], ox, sx, nx);
+        store[o+1] = cell(box[1], oy, sy, ny);
+        store[o+2] = cell(box[2], oz, sz, nz);
+        store[o+3] = cell(box[3], ox, sx, nx);
+        store[o+4] = cell(box[4], oy, sy, ny);
+        store[o+5] = cell(box[5], oz, sz, nz);
+    }
+    
+    /**
+     * Stores the axis aligned min and max corner of the bound.
+     * Returns false for unknown bounds.
+     */
+    protected boolean getMinMax(BoundingVolume bv, float[] store) {
+        if(bv == null)
+            return false;
+        float ex, ey, ez;
+        switch(bv.getType()) {
+            case BoundingVolume.BOUNDING_BOX : {
+                BoundingBox bb = (BoundingBox) bv;
+                ex = bb.xExtent; ey = bb.yExtent; ez = bb.zExtent;
+            } break;
+            case BoundingVolume.BOUNDING_SPHERE : {
+                ex = ey = ez = ((BoundingSphere) bv).radius;
+            } break;
+            default: return false;
+        }
+        store[0] = bv.getCenter().x - ex;
+        store[1] = bv.getCenter().y - ey;
+        store[2] = bv.getCenter().z - ez;
+        store[3] = bv.getCenter().x + ex;
+        store[4] = bv.getCenter().y + ey;
+        store[5] = bv.getCenter().z + ez;
+        return true;
+    }
+}
@@ -46,6 +46,7 @@ import com.vlengine.scene.control.UpdateContext;
 import com.vlengine.scene.state.LightState;
 import com.vlengine.scene.state.RenderState;
 import com.vlengine.util.FastList;
+import com.vlengine.util.IntList;
 import com.vlengine.util.IntMap;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -59,6 +60,17 @@ public class LightSorterGameState extends GameState {
 
     // the sorter used to sort lights
     protected LightSorter ls = new LightSorter();
+    
+    // the spatial index of the lights, so a renderable is only
+    // checked against the lights near it
+    protected LightGrid grid = new LightGrid();
+    protected boolean useLightGrid = true;
+    // the lights found for a renderable
+    protected final IntList candidates = new IntList();
+    
+    public void setUseLightGrid(boolean useLightGrid) {
+        this.useLightGrid = useLightGrid;
+    }
         
     @Override
     public void preFrame(AppContext ctx) {
@@ -139,16 +151,19 @@ public class LightSorterGameState extends GameState {
         //queuPool.addAll(usedPool);
         //usedPool.clear();
         
+        // put the lights into the grid
+        buildLightGrid(lights);
+        
         // sort out the opaque queue
-        sortQueueForLights(f, 0, opaque, lights);
+        sortQueueForLights(f, 0, opaque);
         
         // sort out the tranparent queue, those will be lit like opaque
         if(transparent.size()>0) {
-            sortQueueForLights(f, 1, transparent, lights);
+            sortQueueForLights(f, 1, transparent);
         }
         
         // sort out the twosided transparent, thise will be lit like tranparent
-        sortQueueForLights(f, 2, twosided, lights);
+        sortQueueForLights(f, 2, twosided);
         
         // clear out the main queues
         
@@ -177,68 +192,86 @@ public class LightSorterGameState extends GameState {
     }
      */
     
-    protected void sortQueueForLights(Frame f, int listno, FastList<Renderable> queue, FastList<Renderable> lights) {
-        int frameid = f.getFrameId();
-        // clear out the lights for opaque (we will fill them later in)
+    /**
+     * Builds the light grid for the frame from the light queue,
+     * and ensures all the lights have an id.
+     */
+    public LightGrid buildLightGrid(FastList<Renderable> lights) {
+        grid.build(lights);
+        for(int i=0, mi=grid.getLightCount(); i<mi; i++) {
+            LightBatch lb = grid.getLight(i);
+            // ensure the light has id
+            Integer lightid = lightId.get(lb);
+            if(lightid==null) {
+                lightid = new Integer(++lightIdCounter);
+                lightId.put(lb, lightid);
+                lightById.put(lightid, lb);
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Selects the most influential lights for each renderable in the queue,
+     * the lights are taken from the light grid, built with buildLightGrid.
+     */
+    public void assignLights(int frameid, FastList<Renderable> queue) {
         for(int j=0, mj=queue.size(); j<mj; j++) {
             Renderable or=queue.get(j);
-            if(or.getMaterial()!=null) {
-                for(int i=0; i<Renderable.LOWPROFILE_LIGHTS; i++) {
-                    or.lights[frameid][i] = null;
-                    or.lightpriority[frameid][i] = 0;
-                }
-                // clear out the lightstate too
-                if(or.getMaterial().states!=null)
-                    or.getMaterial().states[RenderState.RS_LIGHT] = null;
+            if(or.getMaterial()==null)
+                continue;
+            // clear out the lights (we will fill them later in)
+            LightBatch[] batchLights = or.lights[frameid];
+            float[] batchLightPriority = or.lightpriority[frameid];
+            for(int i=0; i<Renderable.LOWPROFILE_LIGHTS; i++) {
+                batchLights[i] = null;
+                batchLightPriority[i] = 0;
             }
-        }
-        //process all the lights
-        for(int i=0, mi=lights.size(); i<mi; i++) {
-            // ignore anything other than lightbatch in light queue
-            if(lights.get(i) instanceof LightBatch) {
-                LightBatch lb = (LightBatch) lights.get(i);
-                // skip disabled lights
-                if(!lb.getLight().isEnabled())
+            // clear out the lightstate too
+            if(or.getMaterial().states!=null)
+                or.getMaterial().states[RenderState.RS_LIGHT] = null;
+            if(or.getMaterial().getLightCombineMode() == LightState.OFF )
+                continue;
+            
+            // the lights that can affect the batch
+            if(useLightGrid) {
+                grid.query(or.getWorldBound(), candidates);
+            } else {
+                candidates.clear();
+                for(int i=0, mi=grid.getLightCount(); i<mi; i++)
+                    candidates.add(i);
+            }
+            
+            // check the lights, calculate a coeficient based on distance
+            for(int i=0, mi=candidates.size(); i<mi; i++) {
+                LightBatch lb = grid.getLight(candidates.get(i));
+                float value = ls.getValueFor(lb, or);
+                // if the batch isnt lit by this light, skip
+                if(value==0)
                     continue;
-                
-                // ensure the light has id
-                Integer lightid = lightId.get(lb);
-                if(lightid==null) {
-                    lightid = new Integer(++lightIdCounter);
-                    lightId.put(lb, lightid);
-                    lightById.put(lightid, lb);
-                }
-                
-                // check this light against all the opaque, calculate a coeficient
-                // based on distance
-                for(int j=0, mj=queue.size(); j<mj; j++) {
-                    Renderable or=queue.get(j);
-                    if(or.getMaterial() == null || or.getMaterial().getLightCombineMode() == LightState.OFF )
-                        continue;
-                    float value = ls.getValueFor(lb, or);//or.getWorldBound(frameid));
-                    // if the batch isnt lit by this light, skip
-                    if(value==0)
-                        continue;
-                    LightBatch[] batchLights = or.lights[frameid];
-                    float[] batchLightPriority = or.lightpriority[frameid];
-                    boolean found = false;
-                    
-                    for(int k=0; k<Renderable.LOWPROFILE_LIGHTS && !found; k++) {
-                        if(value>batchLightPriority[k]) {
-                            // we have a light with bigger priority
-                            // shift the lower priority lights
-                            if(k<Renderable.LOWPROFILE_LIGHTS-1 && batchLightPriority[k]!=0) {
-                                System.arraycopy(batchLights, k, batchLights, k+1, Renderable.LOWPROFILE_LIGHTS-k-1);
-                                System.arraycopy(batchLightPriority, k, batchLightPriority, k+1, Renderable.LOWPROFILE_LIGHTS-k-1);
-                            }
-                            batchLights[k] = lb;
-                            batchLightPriority[k] = value;
-                            found = true;
+                boolean found = false;
+
+                for(int k=0; k<Renderable.LOWPROFILE_LIGHTS && !found; k++) {
+                    if(value>batchLightPriority[k]) {
+                        // we have a light with bigger priority
+                        // shift the lower priority lights
+                        if(k<Renderable.LOWPROFILE_LIGHTS-1 && batchLightPriority[k]!=0) {
+                            System.arraycopy(batchLights, k, batchLights, k+1, Renderable.LOWPROFILE_LIGHTS-k-1);
+                            System.arraycopy(batchLightPriority, k, batchLightPriority, k+1, Renderable.LOWPROFILE_LIGHTS-k-1);
                         }
+                        batchLights[k] = lb;
+                        batchLightPriority[k] = value;
+                        found = true;
                     }
                 }
             }
-        }        
+        }
+    }
+    
+    protected void sortQueueForLights(Frame f, int listno, FastList<Renderable> queue) {
+        int frameid = f.getFrameId();
+        
+        assignLights(frameid, queue);
 
         // collect all lights that finished as the 2 most influential lights for
         // a batch
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.model;
+
+import com.vlengine.util.geom.VertexAttribute;
+import java.nio.FloatBuffer;
+
+/**
+ * Structure of arrays copy of the skinning attributes of a weighted
+ * geometry. Every vector component and every influence is stored in its
+ * own float array, so the skinning loops run over flat arrays instead of
+ * the interleaved buffers. Influences not used by a vertex have a zero
+ * weight, so every vertex is skinned with the same number of influences.
+ * The data is created once for every geometry and shared by all the
+ * skinners of it.
+ * @author vear (Arpad Vekas)
+ */
+public class XSkinData {
+    
+    // the maximum number of bones influencing a vertex
+    public static final int MAX_INFLUENCES = 4;
+    
+    // the number of floats per bone in a matrix palette (3x4 matrix)
+    public static final int PALETTE_STRIDE = 12;
+    
+    public final int numVertex;
+    
+    // the bind pose positions
+    public final float[] px, py, pz;
+    // the bind pose normals
+    public final float[] nx, ny, nz;
+    
+    // the weight of influence k of vertex i is at k*numVertex+i
+    public final float[] weights;
+    // the palette offset of the bone of influence k of vertex i
+    // is at k*numVertex+i
+    public final int[] bones;
+    
+    // the most influences any of the vertices has
+    public final int influences;
+    
+    public XSkinData(XWeightedGeometry geom) {
+        int n = geom.getNumVertex();
+        numVertex = n;
+        px = new float[n]; py = new float[n]; pz = new float[n];
+        nx = new float[n]; ny = new float[n]; nz = new float[n];
+        weights = new float[n*MAX_INFLUENCES];
+        bones = new int[n*MAX_INFLUENCES];
+        
+        FloatBuffer pb = geom.getAttribBuffer(VertexAttribute.USAGE_POSITION).getDataBuffer();
+        FloatBuffer nb = geom.getAttribBuffer(VertexAttribute.USAGE_NORMAL).getDataBuffer();
+        FloatBuffer wb = geom.getAttribBuffer(VertexAttribute.USAGE_WEIGHTS).getDataBuffer();
+        FloatBuffer ib = geom.getAttribBuffer(VertexAttribute.USAGE_WEIGHTINDICES).getDataBuffer();
+        FloatBuffer inb = geom.getAttribBuffer(VertexAttribute.USAGE_NUMWEIGHTS).getDataBuffer();
+        
+        int maxInf = 0;
+        // only absolute gets, the buffers are shared with the renderer
+        for(int i=0; i<n; i++) {
+            px[i] = pb.get(i*3); py[i] = pb.get(i*3+1); pz[i] = pb.get(i*3+2);
+            nx[i] = nb.get(i*3); ny[i] = nb.get(i*3+1); nz[i] = nb.get(i*3+2);
+            
+            int numIndex = Math.min(Float.floatToIntBits(inb.get(i)) & 0xff, MAX_INFLUENCES);
+            // the bone indices are packed into the bytes of the float
+            int matIndex = Float.floatToIntBits(ib.get(i));
+            for(int k=0; k<numIndex; k++) {
+                weights[k*n+i] = wb.get(i*4+k);
+                bones[k*n+i] = (matIndex & 0xff) * PALETTE_STRIDE;
+                matIndex = matIndex >> 8;
+            }
+            if(numIndex > maxInf)
+                maxInf = numIndex;
+        }
+        influences = maxInf;
+    }
+}
@@ -44,6 +44,10 @@ public class XWeightedGeometry extends Geometry {
 
     protected IntList boneMapping;
     
+    // the structure of arrays copy of the skinning data, used
+    // by software skinning
+    protected XSkinData skinData;
+    
     public IntList getBoneMapping() {
         return boneMapping;
     }
@@ -51,4 +55,14 @@ public class XWeightedGeometry extends Geometry {
     public void setBoneMapping(IntList mapping) {
         boneMapping = mapping;
     }
+    
+    /**
+     * Returns the skinning data of this geometry in structure of arrays
+     * form, it is created on first call.
+     */
+    public synchronized XSkinData getSkinData() {
+        if(skinData == null)
+            skinData = new XSkinData(this);
+        return skinData;
+    }
 }
@@ -192,6 +192,31 @@ public class Camera {
         return rVal;
     }
     
+    /**
+     * <code>contains</code> tests a bounding sphere against the planes of
+     * the frustum not yet marked in the plane state. The plane state is
+     * not changed, so many small objects can be tested in a tight loop
+     * after their common bound was tested.
+     *
+     * @return OUTSIDE_FRUSTUM, INTERSECTS_FRUSTUM or INSIDE_FRUSTUM
+     */
+    public int contains( float x, float y, float z, float radius ) {
+        int rVal = INSIDE_FRUSTUM;
+        for ( int planeId = 0; planeId < FRUSTUM_PLANES; planeId++ ) {
+            if ( ( planeState & ( 1 << planeId ) ) != 0 ) {
+                continue;
+            }
+            Plane p = worldPlane[planeId];
+            float dist = p.normal.x * x + p.normal.y * y + p.normal.z * z - p.constant;
+            if ( dist <= -radius ) {
+                return OUTSIDE_FRUSTUM;
+            } else if ( dist < radius ) {
+                rVal = INTERSECTS_FRUSTUM;
+            }
+        }
+        return rVal;
+    }
+    
     public Camera copy( Camera other  ) {
         other.planeState = this.planeState;
         other.viewId = this.viewId;
@@ -34,6 +34,7 @@ package com.vlengine.renderer;
 
 import com.vlengine.renderer.pass.RenderPass;
 import com.vlengine.app.frame.Frame;
+import com.vlengine.renderer.pass.OcclusionCheckPass;
 import com.vlengine.renderer.pass.PassManager;
 import com.vlengine.scene.Node;
 import com.vlengine.scene.Renderable;
@@ -42,8 +43,6 @@ import com.vlengine.system.VleException;
 import com.vlengine.thread.LocalContext;
 import com.vlengine.util.FastList;
 import java.util.Arrays;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  * Gathers data in the cull traversal of the scene,
@@ -54,16 +53,18 @@ import java.util.logging.Logger;
  * traversal of the scene, but only one thread will touch
  * one Spatial. It will cull the Spatial for all the used cameras,
  * and will put the spatial in all the proper queues.
+ * In multithreaded traversal each worker of the ParallelCuller
+ * has its own context, nodes can be split off into other workers
+ * with the fork() method.
  * 
  * @author vear
  */
-public class CullContext implements Runnable {
+public class CullContext {
 
-    // is this SceneContext busy now
-    protected volatile boolean busy = false;
-    protected volatile boolean started = false;
-    
-    protected Thread thread;
+    // the parallel culler this context works for, null in single threaded culling
+    protected ParallelCuller culler;
+    // the index of the worker in the culler using this context
+    protected int workerIndex;
     
     // the frame we are working with
     private Frame frame;
@@ -97,6 +98,9 @@ public class CullContext implements Runnable {
     // the camera used for culling 
     protected Camera cam = new Camera();
     
+    // the occluders for the camera, null if not used
+    protected OcclusionCheckPass occlusion;
+    
     // clear all the data from this context, and allow reuse
     public void clear() {
         frame = null;
@@ -113,6 +117,7 @@ public class CullContext implements Runnable {
         }
         rlist.clear();
         vcam = null;
+        occlusion = null;
     }
     
     // returns the unique id of the frame this context is working on
@@ -132,6 +137,14 @@ public class CullContext implements Runnable {
         return cam;
     }
     
+    /**
+     * Returns the occlusion pass for the camera being culled against,
+     * null if there is none.
+     */
+    public OcclusionCheckPass getOcclusion() {
+        return occlusion;
+    }
+    
     public RenderState[] getRenderStateList(int index ) {
         if( index < 0 || index >= states.size() )
             return null;
@@ -182,8 +195,11 @@ public class CullContext implements Runnable {
             ViewCamera pc=p.getCamera();
             if(pc==null)
                 pc=frame.getCamera();
-            if(pc==vcam)
+            if(pc==vcam) {
                 pass.addPass(p);
+                if(p instanceof OcclusionCheckPass && p.isEnabled())
+                    occlusion = (OcclusionCheckPass) p;
+            }
         }
         //pass.merge(f.getPasses());
         this.rootNode = e;
@@ -215,32 +231,76 @@ public class CullContext implements Runnable {
         vcam = parent.vcam;
         vcam.copy(cam);
         pass.merge(parent.pass);
+        occlusion = parent.occlusion;
         this.rootNode = e;       
         que.createQueue( parent.getQueueManager() );
         passfilter = parent.passfilter;
         
         // copy states from parent
-        states.ensureCapacity(parent.states.size());
-        for(int i=0; i<parent.states.size(); i++ ) {
-            RenderState[] stp = parent.states.get(i);
+        copyStates(parent.states, states);
+    }
+
+    public void setCuller(ParallelCuller culler, int workerIndex) {
+        this.culler = culler;
+        this.workerIndex = workerIndex;
+    }
+    
+    public int getWorkerIndex() {
+        return workerIndex;
+    }
+    
+    /**
+     * Tries to hand off the culling of the given node to another
+     * worker of the parallel culler.
+     * 
+     * @param node  The node to cull
+     * @return      true if the node was split off, and the caller should
+     *              not cull it, false if the caller should cull it
+     */
+    public boolean fork(Node node) {
+        return culler != null && culler.fork(this, node);
+    }
+    
+    // save the current culling state into a task
+    void saveTask(ParallelCuller.CullTask t, Node node) {
+        t.node = node;
+        t.passes.clear();
+        t.passes.addAll(pass.getPasses());
+        t.passfilter = passfilter;
+        t.planeState = cam.getPlaneState();
+        copyStates(states, t.states);
+    }
+    
+    // continue culling from the state saved into a task
+    // the queues and the prepare list are not touched
+    void restoreTask(ParallelCuller.CullTask t) {
+        pass.clear();
+        pass.addAll(t.passes);
+        passfilter = t.passfilter;
+        cam.setPlaneState(t.planeState);
+        copyStates(t.states, states);
+        rootNode = t.node;
+    }
+    
+    private static void copyStates(FastList<RenderState[]> from, FastList<RenderState[]> to) {
+        for(int i=0; i<to.size(); i++ ) {
+            RenderState[] st = to.get(i);
+            if(st != null)
+                Arrays.fill(st, null);
+        }
+        to.ensureCapacity(from.size());
+        for(int i=0; i<from.size(); i++ ) {
+            RenderState[] stp = from.get(i);
             if( stp != null ) {
-                RenderState[] st = states.get(i);
+                RenderState[] st = i < to.size() ? to.get(i) : null;
                 if(st == null) {
                     st = new RenderState[RenderState.RS_MAX_STATE];
-                    states.set(i, st);
+                    to.set(i, st);
                 }
                 System.arraycopy(stp, 0, st, 0, RenderState.RS_MAX_STATE);
             }
         }
     }
-
-    public void setThread(Thread t) {
-        thread = t;
-    }
-    
-    public Thread getThread() {
-        return thread;
-    }
     
     public PassManager getPassManager() {
         return pass;
@@ -282,16 +342,6 @@ public class CullContext implements Runnable {
         return rlist;
     }
     
-    public void start() {
-        if( !started ) {
-            started = true;
-            thread.start();
-        } else {
-            this.notify();
-        }
-    }
-    
-    
     public void setThreadContext() {
         CullContext scx = LocalContext.getContext().scene;
         if( scx == null ) {
@@ -300,33 +350,4 @@ public class CullContext implements Runnable {
             throw new VleException("SceneContext does not match thread");
         }
     }
-    
-    public void run() {
-        busy = true;
-        setThreadContext();
-        while(true) {
-            try {
-                busy = true;
-                if( rootNode != null) {
-                    rootNode.docull(this);
-                    // pass our data to the frame
-                    frame.merge(this);
-                }
-                
-                rootNode = null;
-                // finished processing, ready for the next job
-                busy = false;
-                // report to frame that we are finished working
-                frame.workFinished(this);
-                
-                // pause until another thread wakes us up
-                this.wait();
-            } catch (InterruptedException ex) {
-                if( busy ) {
-                    Logger.getLogger(CullContext.class.getName()).log(Level.SEVERE, "Thread interrupted, while it was busy", ex);
-                    throw new VleException("Thread interrupted, while it was busy");
-                }
-            }
-        }
-    }
 }
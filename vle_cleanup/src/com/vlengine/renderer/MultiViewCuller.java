@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.renderer;
+
+import com.vlengine.renderer.pass.RenderPass;
+import com.vlengine.scene.SceneElement;
+import com.vlengine.scene.Spatial;
+import com.vlengine.util.FastList;
+
+/**
+ * Culls the scene against multiple cameras in a single traversal. 
+ * Every view has its own CullContext (and with it its own queues),
+ * the traversal keeps a mask of the views for which the current element
+ * is still visible, and keeps the frustum plane state and the frustum
+ * intersection of every view for every level of the hierarchy. Children
+ * are only tested against the views their parent was visible in.
+ * 
+ * Nodes which return their children trough getCullChildren() are traversed
+ * by the culler, other elements are queued by calling their queue() method
+ * for every view they are visible in.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class MultiViewCuller {
+    
+    // the maximum number of views culled in one traversal
+    public static final int MAX_VIEWS = 32;
+    
+    // the contexts of the views
+    protected final FastList<CullContext> views = new FastList<CullContext>();
+    
+    // per level and view data, indexed by level*MAX_VIEWS+view
+    // the frustum plane states
+    protected int[] planes = new int[8*MAX_VIEWS];
+    // the frustum intersection of the element on the level
+    protected int[] intersects = new int[8*MAX_VIEWS];
+    // the pass filter of the view before entering the level
+    protected long[] passfilters = new long[8*MAX_VIEWS];
+    
+    /**
+     * Removes all the views.
+     */
+    public void clear() {
+        views.clear();
+    }
+    
+    /**
+     * Adds a view, the context should be set up with the camera
+     * and the frame it is culling.
+     * 
+     * @param ctx   The context of the view
+     * @return      false if no more views can be added
+     */
+    public boolean addView(CullContext ctx) {
+        if(views.size() >= MAX_VIEWS)
+            return false;
+        views.add(ctx);
+        return true;
+    }
+    
+    public int getViewCount() {
+        return views.size();
+    }
+    
+    public CullContext getView(int i) {
+        return views.get(i);
+    }
+    
+    /**
+     * Culls the given element against all the views, and fills the
+     * queues of the view contexts.
+     * 
+     * @param root  The element to start culling from
+     */
+    public void cull(SceneElement root) {
+        int nv = views.size();
+        if(nv == 0)
+            return;
+        int mask = 0;
+        for(int v=0; v<nv; v++) {
+            planes[v] = views.get(v).getCullCamera().getPlaneState();
+            intersects[v] = Camera.INTERSECTS_FRUSTUM;
+            mask |= 1 << v;
+        }
+        cull(root, mask, 0);
+    }
+    
+    protected void ensureLevel(int level) {
+        int size = (level + 1) * MAX_VIEWS;
+        if(size > planes.length) {
+            int ns = Math.max(size, planes.length * 2);
+            int[] np = new int[ns];
+            System.arraycopy(planes, 0, np, 0, planes.length);
+            planes = np;
+            int[] ni = new int[ns];
+            System.arraycopy(intersects, 0, ni, 0, intersects.length);
+            intersects = ni;
+            long[] nf = new long[ns];
+            System.arraycopy(passfilters, 0, nf, 0, passfilters.length);
+            passfilters = nf;
+        }
+    }
+    
+    // culls the element against the views in mask, the data of the parent
+    // is at the given level
+    protected void cull(SceneElement s, int mask, int level) {
+        ensureLevel(level + 1);
+        int pbase = level * MAX_VIEWS;
+        int base = pbase + MAX_VIEWS;
+        Spatial parent = s.getParent();
+        
+        // test the element against the views
+        int visible = 0;
+        for(int v=0, m=mask; m != 0; v++, m >>>= 1) {
+            if((m & 1) == 0)
+                continue;
+            CullContext ctx = views.get(v);
+            Camera cam = ctx.getCullCamera();
+            // restore the state of the parent for this view
+            cam.setPlaneState(planes[pbase+v]);
+            if(parent != null)
+                parent.setLastFrustumIntersection(intersects[pbase+v]);
+            if(s.docull(ctx)) {
+                visible |= 1 << v;
+                planes[base+v] = cam.getPlaneState();
+                intersects[base+v] = s.getLastFrustumIntersection();
+            }
+        }
+        if(visible == 0)
+            return;
+        
+        FastList<? extends SceneElement> children = s.getCullChildren();
+        if(children == null) {
+            // the element does its own queueing
+            for(int v=0, m=visible; m != 0; v++, m >>>= 1) {
+                if((m & 1) == 0)
+                    continue;
+                CullContext ctx = views.get(v);
+                ctx.getCullCamera().setPlaneState(planes[base+v]);
+                s.setLastFrustumIntersection(intersects[base+v]);
+                s.queue(ctx);
+            }
+            return;
+        }
+        
+        // narrow down the passes of the views to the passes
+        // used by this element (same as removing the passes in SetNode)
+        int active = 0;
+        for(int v=0, m=visible; m != 0; v++, m >>>= 1) {
+            if((m & 1) == 0)
+                continue;
+            CullContext ctx = views.get(v);
+            passfilters[base+v] = ctx.passfilter;
+            long pf = 0;
+            for(int i=0, mx=ctx.getPassQuantity(); i<mx; i++) {
+                RenderPass p = ctx.getPass(i);
+                if(s.isUsePass(ctx, p))
+                    pf |= 1L << p.getId();
+            }
+            if(pf != 0) {
+                ctx.passfilter = pf;
+                active |= 1 << v;
+            }
+        }
+        
+        if(active != 0) {
+            for(int i=0, mx=children.size(); i<mx; i++) {
+                SceneElement child = children.get(i);
+                if(child != null)
+                    cull(child, active, level + 1);
+            }
+        }
+        
+        // restore the pass filters
+        for(int v=0, m=visible; m != 0; v++, m >>>= 1) {
+            if((m & 1) == 0)
+                continue;
+            views.get(v).passfilter = passfilters[base+v];
+        }
+    }
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.renderer;
+
+import com.vlengine.bounding.BoundingBox;
+import com.vlengine.bounding.BoundingSphere;
+import com.vlengine.bounding.BoundingVolume;
+import com.vlengine.math.Matrix3f;
+import com.vlengine.math.Transform;
+import com.vlengine.math.Vector3f;
+
+/**
+ * A low resolution depth buffer, into which occluder triangles are
+ * rasterized on the CPU, and against which bounding volumes can be tested.
+ * The depth is stored as 1-near/w for perspective, and linear depth for
+ * parallel projection, both can be interpolated linearly in screen space.
+ * Smaller values are nearer, the buffer is cleared to 1.
+ * 
+ * Occluders are only drawn into the pixels they cover completely, and
+ * bounds are tested against every pixel they touch, so a bound is never
+ * found hidden when a part of it is visible.
+ * 
+ * The buffer is divided into tiles, each tile holds the farthest depth
+ * of its pixels. Bounds are tested against the tiles first, and only
+ * against the pixels of tiles where the tile depth is not enough.
+ * 
+ * Rasterizing is done by bands of tile rows, so multiple threads can
+ * rasterize into the buffer at the same time, each into its own band.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class OcclusionBuffer {
+
+    // the size of the tiles in pixels
+    public static final int TILE_WIDTH = 16;
+    public static final int TILE_HEIGHT = 8;
+    
+    // the number of floats for a projected triangle
+    public static final int TRIANGLE_FLOATS = 9;
+    
+    protected final int width;
+    protected final int height;
+    protected final int tilesX;
+    protected final int tilesY;
+    
+    // the depth of every pixel, row by row, from the bottom
+    protected final float[] depth;
+    // the farthest depth in every tile
+    protected final float[] tileDepth;
+    
+    // the view the buffer was set up for
+    protected final Vector3f location = new Vector3f();
+    protected final Vector3f left = new Vector3f();
+    protected final Vector3f up = new Vector3f();
+    protected final Vector3f direction = new Vector3f();
+    protected float near, far;
+    protected float frustumLeft, frustumRight, frustumBottom, frustumTop;
+    protected boolean parallel;
+    
+    // the scale from the near plane to pixels
+    protected float scaleX, scaleY;
+    
+    // skip the triangles facing away from the camera
+    protected boolean cullBackFaces = true;
+    
+    public OcclusionBuffer(int width, int height) {
+        this.tilesX = (width + TILE_WIDTH - 1) / TILE_WIDTH;
+        this.tilesY = (height + TILE_HEIGHT - 1) / TILE_HEIGHT;
+        this.width = tilesX * TILE_WIDTH;
+        this.height = tilesY * TILE_HEIGHT;
+        depth = new float[this.width * this.height];
+        tileDepth = new float[tilesX * tilesY];
+    }
+    
+    /**
+     * Sets if triangles facing away from the camera are skipped. Skipping
+     * them is safe for closed occluders, for open occluders it only lowers
+     * the number of objects found hidden. Enabled by default.
+     */
+    public void setCullBackFaces(boolean cull) {
+        this.cullBackFaces = cull;
+    }
+    
+    public boolean isCullBackFaces() {
+        return cullBackFaces;
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public int getHeight() {
+        return height;
+    }
+    
+    public int getTileRows() {
+        return tilesY;
+    }
+    
+    /**
+     * Sets the view the occluders will be rasterized with. 
+     */
+    public void setView(ViewCamera cam) {
+        location.set(cam.getLocation());
+        left.set(cam.getLeft());
+        up.set(cam.getUp());
+        direction.set(cam.getDirection());
+        near = cam.getFrustumNear();
+        far = cam.getFrustumFar();
+        frustumLeft = cam.getFrustumLeft();
+        frustumRight = cam.getFrustumRight();
+        frustumBottom = cam.getFrustumBottom();
+        frustumTop = cam.getFrustumTop();
+        parallel = cam.isParallelProjection();
+        scaleX = width / (frustumRight - frustumLeft);
+        scaleY = height / (frustumTop - frustumBottom);
+    }
+    
+    /**
+     * Creates the transformation from the model space of an object into
+     * the view space of the buffer. The result is a 3x3 matrix in row
+     * order, followed by the translation.
+     * 
+     * @param t         The world transform of the object
+     * @param rot       Temporary matrix
+     * @param store     Array of at least 12 floats
+     */
+    public void getViewTransform(Transform t, Matrix3f rot, float[] store) {
+        t.getRotation().toRotationMatrix(rot);
+        Vector3f s = t.getScale();
+        Vector3f tr = t.getTranslation();
+        // the rows of the view rotation are right, up and direction
+        for(int r=0; r<3; r++) {
+            float ax, ay, az;
+            if(r == 0) {
+                ax = -left.x; ay = -left.y; az = -left.z;
+            } else if(r == 1) {
+                ax = up.x; ay = up.y; az = up.z;
+            } else {
+                ax = direction.x; ay = direction.y; az = direction.z;
+            }
+            store[r*3] = (ax * rot.m00 + ay * rot.m10 + az * rot.m20) * s.x;
+            store[r*3+1] = (ax * rot.m01 + ay * rot.m11 + az * rot.m21) * s.y;
+            store[r*3+2] = (ax * rot.m02 + ay * rot.m12 + az * rot.m22) * s.z;
+            store[9+r] = ax * (tr.x - location.x) + ay * (tr.y - location.y) + az * (tr.z - location.z);
+        }
+    }
+    
+    public float getNear() {
+        return near;
+    }
+    
+    public float getFar() {
+        return far;
+    }
+    
+    /**
+     * Projects a triangle given in view space, clipping it to the near
+     * plane, and stores the result into a list of screen triangles.
+     * 
+     * @param v         The view space coordinates
+     * @param a         The offset of the first vertex in v
+     * @param b         The offset of the second vertex in v
+     * @param c         The offset of the third vertex in v
+     * @param store     The array to store into
+     * @param pos       The position in store to write to
+     * @return          The number of triangles stored, 0 to 2
+     */
+    public int projectTriangle(float[] v, int a, int b, int c, float[] store, int pos) {
+        float wa = v[a+2], wb = v[b+2], wc = v[c+2];
+        if(wa > far && wb > far && wc > far)
+            return 0;
+        int inside = (wa >= near ? 1 : 0) + (wb >= near ? 1 : 0) + (wc >= near ? 1 : 0);
+        if(inside == 0)
+            return 0;
+        if(inside == 3) {
+            project(v, a, store, pos);
+            project(v, b, store, pos+3);
+            project(v, c, store, pos+6);
+            return 1;
+        }
+        // rotate so the first vertex is the odd one out
+        if(inside == 1) {
+            if(wb >= near) { int t = a; a = b; b = c; c = t; }
+            else if(wc >= near) { int t = a; a = c; c = b; b = t; }
+            // a is inside, b and c are clipped
+            project(v, a, store, pos);
+            clip(v, a, b, store, pos+3);
+            clip(v, a, c, store, pos+6);
+            return 1;
+        }
+        if(wb < near) { int t = a; a = b; b = c; c = t; }
+        else if(wc < near) { int t = a; a = c; c = b; b = t; }
+        // a is outside, b and c are inside, the result is a quad
+        clip(v, b, a, store, pos);
+        project(v, b, store, pos+3);
+        project(v, c, store, pos+6);
+        clip(v, b, a, store, pos+9);
+        project(v, c, store, pos+12);
+        clip(v, c, a, store, pos+15);
+        return 2;
+    }
+    
+    // project a view space point onto the screen
+    private void project(float[] v, int i, float[] store, int pos) {
+        float w = v[i+2];
+        if(parallel) {
+            store[pos] = (v[i] - frustumLeft) * scaleX;
+            store[pos+1] = (v[i+1] - frustumBottom) * scaleY;
+            store[pos+2] = (w - near) / (far - near);
+        } else {
+            float p = near / w;
+            store[pos] = (v[i] * p - frustumLeft) * scaleX;
+            store[pos+1] = (v[i+1] * p - frustumBottom) * scaleY;
+            store[pos+2] = 1f - p;
+        }
+    }
+    
+    // project the point where the edge from in to out crosses the near plane
+    private void clip(float[] v, int in, int out, float[] store, int pos) {
+        float t = (v[in+2] - near) / (v[in+2] - v[out+2]);
+        float x = v[in] + (v[out] - v[in]) * t;
+        float y = v[in+1] + (v[out+1] - v[in+1]) * t;
+        store[pos] = (x - frustumLeft) * scaleX;
+        store[pos+1] = (y - frustumBottom) * scaleY;
+        store[pos+2] = 0;
+    }
+    
+    /**
+     * Clears a band of tile rows.
+     */
+    public void clear(int tileRowFrom, int tileRowTo) {
+        int from = tileRowFrom * TILE_HEIGHT * width;
+        int to = tileRowTo * TILE_HEIGHT * width;
+        for(int i=from; i<to; i++)
+            depth[i] = 1f;
+        for(int i=tileRowFrom * tilesX, mx = tileRowTo * tilesX; i<mx; i++)
+            tileDepth[i] = 1f;
+    }
+    
+    /**
+     * Rasterizes screen triangles into a band of tile rows.
+     * 
+     * @param tris          The projected triangles
+     * @param count         The number of triangles
+     * @param tileRowFrom   The first tile row to draw to
+     * @param tileRowTo     The tile row after the last
+     */
+    public void rasterize(float[] tris, int count, int tileRowFrom, int tileRowTo) {
+        int rowFrom = tileRowFrom * TILE_HEIGHT;
+        int rowTo = tileRowTo * TILE_HEIGHT;
+        for(int t=0, p=0; t<count; t++, p+=TRIANGLE_FLOATS) {
+            rasterizeTriangle(tris, p, rowFrom, rowTo);
+        }
+    }
+    
+    /**
+     * Updates the farthest depth of the tiles in a band of tile rows,
+     * after all the triangles were rasterized.
+     */
+    public void updateTiles(int tileRowFrom, int tileRowTo) {
+        for(int ty=tileRowFrom; ty<tileRowTo; ty++) {
+            for(int tx=0; tx<tilesX; tx++) {
+                float max = 0;
+                int row = ty * TILE_HEIGHT * width + tx * TILE_WIDTH;
+                for(int y=0; y<TILE_HEIGHT; y++, row += width) {
+                    for(int x=0; x<TILE_WIDTH; x++) {
+                        float d = depth[row + x];
+                        if(d > max)
+                            max = d;
+                    }
+                }
+                tileDepth[ty * tilesX + tx] = max;
+            }
+        }
+    }
+    
+    protected void rasterizeTriangle(float[] tri, int p, int rowFrom, int rowTo) {
+        float x0 = tri[p], y0 = tri[p+1], z0 = tri[p+2];
+        float x1 = tri[p+3], y1 = tri[p+4], z1 = tri[p+5];
+        float x2 = tri[p+6], y2 = tri[p+7], z2 = tri[p+8];
+        
+        // the bounding rectangle, clamped to the band
+        float minx = Math.min(x0, Math.min(x1, x2));
+        float maxx = Math.max(x0, Math.max(x1, x2));
+        float miny = Math.min(y0, Math.min(y1, y2));
+        float maxy = Math.max(y0, Math.max(y1, y2));
+        if(maxx < 0 || minx >= width || maxy < rowFrom || miny >= rowTo)
+            return;
+        int px0 = Math.max(0, (int) Math.ceil(minx - 0.5f));
+        int px1 = Math.min(width - 1, (int) Math.floor(maxx - 0.5f));
+        int py0 = Math.max(rowFrom, (int) Math.ceil(miny - 0.5f));
+        int py1 = Math.min(rowTo - 1, (int) Math.floor(maxy - 0.5f));
+        if(px0 > px1 || py0 > py1)
+            return;
+        
+        float area = (x1 - x0) * (y2 - y0) - (x2 - x0) * (y1 - y0);
+        if(area > -1e-6f && area < 1e-6f)
+            return;
+        if(area < 0) {
+            if(cullBackFaces)
+                return;
+            // make it counter clockwise
+            float t = x1; x1 = x2; x2 = t;
+            t = y1; y1 = y2; y2 = t;
+            t = z1; z1 = z2; z2 = t;
+            area = -area;
+        }
+        // the edge functions, positive inside
+        float a0 = y1 - y2, b0 = x2 - x1;
+        float a1 = y2 - y0, b1 = x0 - x2;
+        float a2 = y0 - y1, b2 = x1 - x0;
+        // the depth plane
+        float inv = 1f / area;
+        float dzdx = (a0 * z0 + a1 * z1 + a2 * z2) * inv;
+        float dzdy = (b0 * z0 + b1 * z1 + b2 * z2) * inv;
+        
+        // the edges are pulled in by half a pixel, so only the pixels
+        // completely inside the triangle are drawn, and the pixels get
+        // the farthest depth of the triangle over them
+        float sx = px0 + 0.5f, sy = py0 + 0.5f;
+        float e0r = a0 * (sx - x1) + b0 * (sy - y1) - 0.5f * (Math.abs(a0) + Math.abs(b0));
+        float e1r = a1 * (sx - x2) + b1 * (sy - y2) - 0.5f * (Math.abs(a1) + Math.abs(b1));
+        float e2r = a2 * (sx - x0) + b2 * (sy - y0) - 0.5f * (Math.abs(a2) + Math.abs(b2));
+        float zr = z0 + dzdx * (sx - x0) + dzdy * (sy - y0)
+                + 0.5f * (Math.abs(dzdx) + Math.abs(dzdy));
+        
+        for(int y=py0; y<=py1; y++) {
+            // find the span of the row inside all the edges
+            float from = 0, to = px1 - px0;
+            from = spanFrom(e0r, a0, from);
+            from = spanFrom(e1r, a1, from);
+            from = spanFrom(e2r, a2, from);
+            to = spanTo(e0r, a0, to);
+            to = spanTo(e1r, a1, to);
+            to = spanTo(e2r, a2, to);
+            int x0i = (int) Math.ceil(from);
+            int x1i = (int) Math.floor(to);
+            if(x0i <= x1i) {
+                float z = zr + dzdx * x0i;
+                int row = y * width + px0;
+                for(int x=x0i; x<=x1i; x++, z+=dzdx) {
+                    if(z < depth[row + x])
+                        depth[row + x] = z < 0 ? 0 : z;
+                }
+            }
+            e0r += b0;
+            e1r += b1;
+            e2r += b2;
+            zr += dzdy;
+        }
+    }
+    
+    // the first pixel offset where the edge e + a*x is not negative
+    private static float spanFrom(float e, float a, float from) {
+        if(a > 0) {
+            float x = -e / a;
+            return x > from ? x : from;
+        } else if(a == 0 && e < 0) {
+            return Float.MAX_VALUE;
+        }
+        return from;
+    }
+    
+    // the last pixel offset where the edge e + a*x is not negative
+    private static float spanTo(float e, float a, float to) {
+        if(a < 0) {
+            float x = e / -a;
+            return x < to ? x : to;
+        } else if(a == 0 && e < 0) {
+            return -Float.MAX_VALUE;
+        }
+        return to;
+    }
+    
+    /**
+     * Checks if a world bound is completely hidden behind the rasterized
+     * occluders. Bounds which are partially behind the camera are
+     * never occluded.
+     * 
+     * @param bv    The world bound to test
+     * @return      true if the bound is hidden
+     */
+    public boolean isOccluded(BoundingVolume bv) {
+        float ex, ey, ez;
+        if(bv instanceof BoundingBox) {
+            BoundingBox bb = (BoundingBox) bv;
+            ex = bb.xExtent;
+            ey = bb.yExtent;
+            ez = bb.zExtent;
+        } else if(bv instanceof BoundingSphere) {
+            ex = ey = ez = ((BoundingSphere) bv).getRadius();
+        } else {
+            return false;
+        }
+        Vector3f c = bv.getCenter();
+        float cx = c.x - location.x, cy = c.y - location.y, cz = c.z - location.z;
+        // the center and the axes of the box in view space
+        float vx = -(cx * left.x + cy * left.y + cz * left.z);
+        float vy = cx * up.x + cy * up.y + cz * up.z;
+        float vw = cx * direction.x + cy * direction.y + cz * direction.z;
+        // the extents of the box along the view axes
+        float ext = ex * Math.abs(left.x) + ey * Math.abs(left.y) + ez * Math.abs(left.z);
+        float eyt = ex * Math.abs(up.x) + ey * Math.abs(up.y) + ez * Math.abs(up.z);
+        float ewt = ex * Math.abs(direction.x) + ey * Math.abs(direction.y) + ez * Math.abs(direction.z);
+        float wmin = vw - ewt;
+        if(wmin < near)
+            return false;
+        float minx = vx - ext, maxx = vx + ext;
+        float miny = vy - eyt, maxy = vy + eyt;
+        float mind;
+        if(parallel) {
+            mind = (wmin - near) / (far - near);
+        } else {
+            // the rectangle covering the box at its nearest and farthest depth
+            float pn = near / wmin;
+            float pf = near / (vw + ewt);
+            minx *= minx < 0 ? pn : pf;
+            maxx *= maxx > 0 ? pn : pf;
+            miny *= miny < 0 ? pn : pf;
+            maxy *= maxy > 0 ? pn : pf;
+            mind = 1f - pn;
+        }
+        minx = (minx - frustumLeft) * scaleX;
+        maxx = (maxx - frustumLeft) * scaleX;
+        miny = (miny - frustumBottom) * scaleY;
+        maxy = (maxy - frustumBottom) * scaleY;
+        if(maxx < 0 || maxy < 0 || minx >= width || miny >= height)
+            return false;
+        // every pixel the rectangle touches
+        int px0 = minx <= 0 ? 0 : (int) minx;
+        int px1 = maxx >= width ? width - 1 : (int) maxx;
+        int py0 = miny <= 0 ? 0 : (int) miny;
+        int py1 = maxy >= height ? height - 1 : (int) maxy;
+        
+        for(int ty=py0 / TILE_HEIGHT, tmy = py1 / TILE_HEIGHT; ty<=tmy; ty++) {
+            for(int tx=px0 / TILE_WIDTH, tmx = px1 / TILE_WIDTH; tx<=tmx; tx++) {
+                if(tileDepth[ty * tilesX + tx] < mind)
+                    continue;
+                // check the pixels of the tile inside the rectangle
+                int y0 = Math.max(py0, ty * TILE_HEIGHT);
+                int y1 = Math.min(py1, ty * TILE_HEIGHT + TILE_HEIGHT - 1);
+                int x0 = Math.max(px0, tx * TILE_WIDTH);
+                int x1 = Math.min(px1, tx * TILE_WIDTH + TILE_WIDTH - 1);
+                for(int y=y0; y<=y1; y++) {
+                    int row = y * width;
+                    for(int x=x0; x<=x1; x++) {
+                        if(depth[row + x] >= mind)
+                            return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Returns the depth of a pixel, 1 if nothing was drawn there.
+     */
+    public float getDepth(int x, int y) {
+        return depth[y * width + x];
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.renderer;
+
+import com.vlengine.app.frame.Frame;
+import com.vlengine.renderer.pass.RenderPass;
+import com.vlengine.scene.Node;
+import com.vlengine.scene.state.RenderState;
+import com.vlengine.system.VleException;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.FastList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Work-stealing culler of the scene. The scene hierarchy is split into
+ * tasks at nodes, which contain enough elements (by the maxelements count
+ * of the node). Each worker has its own CullContext, and with it its own
+ * RenderQueue, PassManager and prepare list, so no synchronization is
+ * needed while culling. Workers push the split off nodes into their
+ * own task list, idle workers steal tasks from the other workers.
+ * When all the tasks are done, the frame thread merges the results of the
+ * workers into the frame.
+ * 
+ * The thread calling cull() is used as worker 0, the other workers
+ * are daemon threads, waiting for the next cull.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class ParallelCuller {
+    private static final Logger logger = Logger.getLogger(ParallelCuller.class.getName());
+    
+    // the number of tasks we want to create for every worker
+    public static final int TASKS_PER_WORKER = 4;
+    
+    // nodes with less elements are never split off into a separate task
+    public static final int MIN_SPLIT_ELEMENTS = 16;
+    
+    // the frame we are culling for
+    private final Frame frame;
+    
+    // the workers, worker 0 is the thread calling cull()
+    private final Worker[] workers;
+    
+    // the number of tasks not yet finished, including the root traversal
+    private final AtomicInteger pending = new AtomicInteger();
+    
+    // the number of tasks split off in the current cull
+    private final AtomicInteger forked = new AtomicInteger();
+    
+    // nodes with at least this many elements are split off into tasks
+    private volatile int splitElements = Integer.MAX_VALUE;
+    
+    // the number of cull runs started, workers wait for it to change
+    private int generation = 0;
+    
+    private volatile boolean running = true;
+    
+    // the first error happened in a worker during the current cull
+    private volatile Throwable error;
+    
+    // pooled task objects
+    private final FastList<CullTask> taskPool = new FastList<CullTask>();
+    
+    /**
+     * Creates the culler.
+     * 
+     * @param f         The frame this culler works for
+     * @param rootCtx   The culling context of the frame thread
+     * @param threads   The total number of threads used for culling, including
+     *                  the frame thread
+     */
+    public ParallelCuller(Frame f, CullContext rootCtx, int threads) {
+        this.frame = f;
+        if(threads < 1)
+            threads = 1;
+        workers = new Worker[threads];
+        workers[0] = new Worker(0, rootCtx);
+        for(int i=1; i<threads; i++) {
+            workers[i] = new Worker(i, new CullContext());
+            Thread t = new Thread(workers[i], "Culler-"+f.getFrameId()+"-"+i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+    
+    public int getThreadCount() {
+        return workers.length;
+    }
+    
+    /**
+     * Returns the number of tasks the scene was split into during
+     * the last cull, not counting the root traversal.
+     */
+    public int getTaskCount() {
+        return forked.get();
+    }
+    
+    /**
+     * Culls the given node against the given camera using all the workers.
+     * The root context should be already set up for the camera, the results
+     * of all the other workers are merged into the frame before returning.
+     * The results gathered in the root context are not merged, that is
+     * left to the caller, as in the single threaded route.
+     * 
+     * @param rootCtx   The context of the frame thread
+     * @param node      The node to cull
+     * @param vcam      The camera to cull against
+     */
+    public void cull(CullContext rootCtx, Node node, ViewCamera vcam) {
+        if(rootCtx != workers[0].ctx) {
+            throw new VleException("ParallelCuller called with a foreign CullContext");
+        }
+        // prepare the contexts of the other workers, they are idle now
+        for(int i=1; i<workers.length; i++) {
+            workers[i].ctx.setState(frame, null, vcam);
+        }
+        for(int i=0; i<workers.length; i++) {
+            workers[i].ctx.setCuller(this, i);
+        }
+        error = null;
+        // split the scene into a few tasks for every worker
+        splitElements = Math.max(MIN_SPLIT_ELEMENTS, 
+                node.getMaxElements() / ( workers.length * TASKS_PER_WORKER ) );
+        // the root traversal counts as a pending task
+        pending.set(1);
+        forked.set(0);
+        synchronized(this) {
+            generation++;
+            this.notifyAll();
+        }
+        
+        // do the root traversal in this thread
+        try {
+            if(node.docull(rootCtx))
+                node.queue(rootCtx);
+        } catch(Throwable t) {
+            error = t;
+        }
+        pending.decrementAndGet();
+        
+        // help out the other workers until all the tasks are done
+        workers[0].work();
+        
+        splitElements = Integer.MAX_VALUE;
+        for(int i=0; i<workers.length; i++) {
+            workers[i].ctx.setCuller(null, 0);
+        }
+        
+        if(error != null) {
+            throw new VleException("Exception during parallel culling", error);
+        }
+        
+        // the workers are idle, merge their results without locking
+        for(int i=1; i<workers.length; i++) {
+            frame.merge(workers[i].ctx);
+        }
+    }
+    
+    /**
+     * Called from SetNode trough CullContext, to split off a child node into
+     * a separate task.
+     * 
+     * @param ctx   The context currently culling the parent of the node
+     * @param node  The node to split off
+     * @return      true if the node will be culled in a separate task, false
+     *              if it should be culled by the caller
+     */
+    boolean fork(CullContext ctx, Node node) {
+        if(node.getMaxElements() < splitElements)
+            return false;
+        CullTask t;
+        synchronized(taskPool) {
+            int ts = taskPool.size();
+            if(ts > 0) {
+                t = taskPool.get(ts-1);
+                taskPool.remove(ts-1);
+            } else {
+                t = new CullTask();
+            }
+        }
+        ctx.saveTask(t, node);
+        pending.incrementAndGet();
+        forked.incrementAndGet();
+        workers[ctx.getWorkerIndex()].push(t);
+        return true;
+    }
+    
+    /**
+     * Stops the worker threads, the culler cannot be used after this.
+     */
+    public void shutdown() {
+        running = false;
+        synchronized(this) {
+            this.notifyAll();
+        }
+    }
+    
+    private void execute(Worker w, CullTask t) {
+        try {
+            w.ctx.restoreTask(t);
+            Node node = t.node;
+            if(node.docull(w.ctx))
+                node.queue(w.ctx);
+        } catch(Throwable e) {
+            if(error == null)
+                error = e;
+            logger.log(Level.SEVERE, "Exception in culling task", e);
+        }
+        t.clear();
+        synchronized(taskPool) {
+            taskPool.add(t);
+        }
+        // this must be the last operation in the task
+        pending.decrementAndGet();
+    }
+    
+    /**
+     * Holds a split off part of the scene, together with the state
+     * of the context at the point where it was split off.
+     */
+    static class CullTask {
+        Node node;
+        long passfilter;
+        int planeState;
+        final FastList<RenderPass> passes = new FastList<RenderPass>();
+        final FastList<RenderState[]> states = new FastList<RenderState[]>();
+        
+        void clear() {
+            node = null;
+            passes.clear();
+        }
+    }
+    
+    private class Worker implements Runnable {
+        final int index;
+        final CullContext ctx;
+        // the owner pushes and pops at the end, thieves take from the start
+        final FastList<CullTask> deque = new FastList<CullTask>();
+        
+        Worker(int index, CullContext ctx) {
+            this.index = index;
+            this.ctx = ctx;
+        }
+        
+        void push(CullTask t) {
+            synchronized(deque) {
+                deque.add(t);
+            }
+        }
+        
+        CullTask pop() {
+            synchronized(deque) {
+                int s = deque.size();
+                if(s == 0)
+                    return null;
+                CullTask t = deque.get(s-1);
+                deque.remove(s-1);
+                return t;
+            }
+        }
+        
+        CullTask steal() {
+            synchronized(deque) {
+                if(deque.isEmpty())
+                    return null;
+                CullTask t = deque.get(0);
+                deque.remove(0);
+                return t;
+            }
+        }
+        
+        // process tasks until every task of the current cull is done
+        void work() {
+            while(pending.get() > 0) {
+                CullTask t = pop();
+                for(int i=1; t == null && i<workers.length; i++) {
+                    t = workers[(index + i) % workers.length].steal();
+                }
+                if(t != null) {
+                    execute(this, t);
+                } else {
+                    Thread.yield();
+                }
+            }
+        }
+        
+        public void run() {
+            ctx.setThreadContext();
+            LocalContext.getContext().app = frame.getApp();
+            int seen = 0;
+            while(running) {
+                synchronized(ParallelCuller.this) {
+                    while(running && generation == seen) {
+                        try {
+                            ParallelCuller.this.wait();
+                        } catch (InterruptedException ex) {
+                        }
+                    }
+                    seen = generation;
+                }
+                if(running)
+                    work();
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.renderer;
+
+import com.vlengine.renderer.material.Material;
+import com.vlengine.renderer.pass.RenderPass;
+import com.vlengine.scene.Renderable;
+import com.vlengine.util.FastList;
+import com.vlengine.util.IntList;
+
+/**
+ * A compact list of rendering commands, recorded from the render queues
+ * during FRAME_MATERIAL, and replayed by the renderer when the passes
+ * are rendered.
+ * 
+ * Each command is a single int, the opcode in the upper bits, and the
+ * index of the referenced pass, material or renderable in the lower bits.
+ * Material binds are deduplicated while recording, a material is only
+ * bound again if it differs from the previously bound one in the same
+ * pass. The commands follow the order of the (sorted) render queues, so
+ * the opaque queue sorted by material keys needs the least binds.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class RenderCommandBuffer {
+
+    // start of the commands of a pass
+    public static final int CMD_PASS = 1;
+    // bind the referenced material
+    public static final int CMD_MATERIAL = 2;
+    // draw the referenced renderable
+    public static final int CMD_DRAW = 3;
+    // end of the commands of a pass
+    public static final int CMD_END = 4;
+
+    private static final int OP_SHIFT = 28;
+    private static final int REF_MASK = (1 << OP_SHIFT) - 1;
+
+    // the commands
+    protected int[] cmds = new int[1024];
+    protected int cmdCount = 0;
+    
+    // the objects the commands reference
+    protected Object[] refs = new Object[1024];
+    protected int refCount = 0;
+    
+    // the recorded passes, and index of their CMD_PASS command
+    protected final FastList<RenderPass> passes = new FastList<RenderPass>();
+    protected final IntList passStart = new IntList();
+    
+    // the material bound last in the pass being recorded
+    protected Material lastMaterial;
+    
+    // the frame this buffer was recorded for
+    protected int frameId = -1;
+    
+    // number of material binds recorded, and binds dropped as redundant
+    protected int materialBinds = 0;
+    protected int skippedBinds = 0;
+
+    /**
+     * Clears the buffer for recording the given frame.
+     */
+    public void clear(int frameId) {
+        this.frameId = frameId;
+        // release the references
+        for(int i=0; i<refCount; i++)
+            refs[i] = null;
+        refCount = 0;
+        cmdCount = 0;
+        passes.clear();
+        passStart.clear();
+        lastMaterial = null;
+        materialBinds = 0;
+        skippedBinds = 0;
+    }
+    
+    public int getFrameId() {
+        return frameId;
+    }
+    
+    public void beginPass(RenderPass pass) {
+        passes.add(pass);
+        passStart.add(cmdCount);
+        add(CMD_PASS, pass);
+        // the material state is not known at the start of the pass
+        lastMaterial = null;
+    }
+    
+    /**
+     * Records binding of a material, the bind is skipped if the
+     * same material is already bound in this pass.
+     */
+    public void bindMaterial(Material mat) {
+        if(mat == lastMaterial) {
+            skippedBinds++;
+            return;
+        }
+        lastMaterial = mat;
+        materialBinds++;
+        add(CMD_MATERIAL, mat);
+    }
+    
+    public void draw(Renderable e) {
+        add(CMD_DRAW, e);
+    }
+    
+    public void endPass() {
+        int c = ensure();
+        cmds[c] = CMD_END << OP_SHIFT;
+        lastMaterial = null;
+    }
+    
+    private int ensure() {
+        if(cmdCount == cmds.length) {
+            int[] n = new int[cmds.length*2];
+            System.arraycopy(cmds, 0, n, 0, cmdCount);
+            cmds = n;
+        }
+        return cmdCount++;
+    }
+    
+    private void add(int op, Object ref) {
+        if(refCount == refs.length) {
+            Object[] n = new Object[refs.length*2];
+            System.arraycopy(refs, 0, n, 0, refCount);
+            refs = n;
+        }
+        refs[refCount] = ref;
+        int c = ensure();
+        cmds[c] = (op << OP_SHIFT) | refCount;
+        refCount++;
+    }
+    
+    /**
+     * Returns the index of the first command of the given pass,
+     * or -1 if the pass was not recorded.
+     */
+    public int getPassStart(RenderPass pass) {
+        for(int i=0, mx=passes.size(); i<mx; i++) {
+            if(passes.get(i) == pass)
+                return passStart.get(i);
+        }
+        return -1;
+    }
+    
+    public int size() {
+        return cmdCount;
+    }
+    
+    public int getOpcode(int cmd) {
+        return cmds[cmd] >>> OP_SHIFT;
+    }
+    
+    public Object getReference(int cmd) {
+        return refs[cmds[cmd] & REF_MASK];
+    }
+    
+    public int getPassCount() {
+        return passes.size();
+    }
+
+    public int getMaterialBinds() {
+        return materialBinds;
+    }
+
+    public int getSkippedBinds() {
+        return skippedBinds;
+    }
+}
@@ -113,6 +113,10 @@ public class RenderContext {
     // position only mode processing
     public boolean positionmode = false;
     
+    // the commands recorded for the frame, or null if the passes
+    // draw their queues directly
+    public RenderCommandBuffer commands;
+    
     // the renderer stack
     protected FastList<Renderer> rendererStack = new FastList<Renderer>();
     //protected FastList<FrameBuffer> frameBufferStack = new FastList<FrameBuffer>();
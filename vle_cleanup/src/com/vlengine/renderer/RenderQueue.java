@@ -104,6 +104,10 @@ public class RenderQueue {
     
     private FastList<RenderableList> queue = new FastList<RenderableList>(3);
     
+    // sort the queues by the packed 64 bit keys of the renderables
+    // with radix sort, instead of comparing their sort id-s
+    private boolean sortKeys = false;
+    
     public RenderQueue( int frameId ) {
         this.frameId = frameId;
     }
@@ -114,6 +118,14 @@ public class RenderQueue {
         this.frameId = frameId;
     }
 
+    public void setSortKeys(boolean sortKeys) {
+        this.sortKeys = sortKeys;
+    }
+
+    public boolean isSortKeys() {
+        return sortKeys;
+    }
+
     // clear the queues
     public void clear() {
         for(int i=0, mx=queue.size(); i < mx; i++) {
@@ -189,6 +201,22 @@ public class RenderQueue {
         return queue.get(qn).list;
     }
             
+    /**
+     * Returns how many times the queue was sorted by the packed keys.
+     */
+    public int getKeySortCount(int qn) {
+        return queue.get(qn).keySorts;
+    }
+    
+    /**
+     * Returns how many of the key sorts of the queue were skipped, because
+     * the queue was already in order, or the order of the previous frame
+     * could be reused.
+     */
+    public int getSkippedKeySortCount(int qn) {
+        return queue.get(qn).skippedKeySorts;
+    }
+            
     public void sortAll() {
         for(int i=0, mi=queue.size(); i<mi; i++) {
             queue.get(i).sort();
@@ -210,6 +238,17 @@ public class RenderQueue {
         // the unique id of the queue
         private int queueId = -1;
         
+        // the buffers for sorting by the packed keys
+        private long[] keys, tkeys;
+        private int[] order, torder;
+        private int[] hist;
+        // the input and the resulting order of the previous key sort
+        private Renderable[] lastInput;
+        private int[] lastOrder;
+        private int lastSize = 0;
+        // the statistics of the key sorts
+        int keySorts = 0, skippedKeySorts = 0;
+        
         RenderableList() {
             list = new FastList<Renderable>(DEFAULT_SIZE);
             this.c = new IdComparator();
@@ -242,6 +281,10 @@ public class RenderQueue {
          */
         void sort() {
             if ( list.size() > 1 && sortId != null ) {
+                if( sortKeys ) {
+                    radixSort();
+                    return;
+                }
                 // resize or populate our temporary array as necessary
                 if (tlist == null ) {
                     tlist = new FastList<Renderable>(list.size());
@@ -254,6 +297,100 @@ public class RenderQueue {
             }
         }
         
+        /**
+         * Sorts the elements by their packed sort keys with radix sort.
+         * If the order is the same as in the previous frame, the
+         * sort is skipped.
+         */
+        void radixSort() {
+            int n = list.size();
+            ensureKeyCapacity(n);
+            keySorts++;
+            // the backing arrays of the lists are plain Object arrays
+            Object[] arr = list.getArray();
+            
+            // gather the keys, and check if the list is already in order
+            boolean ordered = true;
+            long prev = 0;
+            for(int i=0; i<n; i++) {
+                long k = ((Renderable) arr[i]).getSortKey(queueId);
+                keys[i] = k;
+                order[i] = i;
+                if( k < prev )
+                    ordered = false;
+                prev = k;
+            }
+            if( ordered ) {
+                skippedKeySorts++;
+                return;
+            }
+            
+            if (tlist == null ) {
+                tlist = new FastList<Renderable>(n);
+            } else {
+                tlist.clear();
+            }
+            tlist.addAll(list);
+            Object[] src = tlist.getArray();
+            
+            // if the same renderables arrived as in the previous frame
+            // try the order of the previous frame first
+            if( n == lastSize && isSameInput(src, n) ) {
+                boolean same = true;
+                prev = 0;
+                for(int i=0; i<n; i++) {
+                    long k = keys[lastOrder[i]];
+                    if( k < prev ) {
+                        same = false;
+                        break;
+                    }
+                    prev = k;
+                }
+                if( same ) {
+                    for(int i=0; i<n; i++) {
+                        arr[i] = src[lastOrder[i]];
+                    }
+                    skippedKeySorts++;
+                    return;
+                }
+            }
+            
+            SortUtil.rsort(keys, order, tkeys, torder, n, hist);
+            for(int i=0; i<n; i++) {
+                arr[i] = src[order[i]];
+            }
+            
+            // remember the order for the next frame
+            System.arraycopy(src, 0, lastInput, 0, n);
+            System.arraycopy(order, 0, lastOrder, 0, n);
+            lastSize = n;
+        }
+        
+        private boolean isSameInput(Object[] src, int n) {
+            for(int i=0; i<n; i++) {
+                if( src[i] != lastInput[i] )
+                    return false;
+            }
+            return true;
+        }
+        
+        private void ensureKeyCapacity(int n) {
+            if( keys == null || keys.length < n ) {
+                int size = Math.max(n, DEFAULT_SIZE);
+                if( keys != null )
+                    size = Math.max(size, keys.length*3/2);
+                keys = new long[size];
+                tkeys = new long[size];
+                order = new int[size];
+                torder = new int[size];
+                lastOrder = new int[size];
+                lastInput = new Renderable[size];
+                lastSize = 0;
+                if( hist == null )
+                    hist = new int[SortUtil.RADIX_HISTOGRAM_SIZE];
+            }
+        }
+        
         private class IdComparator implements Comparator<Renderable> {
 
             //private int comparebyMat;
@@ -49,6 +49,18 @@ public class RenderStatistics {
     public long numberOfTris;
     public long numberOfMesh;
     public long numberOfQuads;
+    // bone animations updated, throttled and not updated because hidden
+    public long numberOfAnimUpdated;
+    public long numberOfAnimThrottled;
+    public long numberOfAnimHidden;
+    // instances drawn from instanced batches
+    public long numberOfInstances;
+    // renderables tested against the occluders, and found hidden
+    public long numberOfOcclusionTested;
+    public long numberOfOccluded;
+    // materials bound and render states changed by replayed commands
+    public long numberOfMaterialBinds;
+    public long numberOfStateChanges;
     
     /**
      * <code>clearStatistics</code> resets the statistics information
@@ -61,6 +73,14 @@ public class RenderStatistics {
         numberOfLines = 0;
         numberOfMesh = 0;
         numberOfQuads = 0;
+        numberOfAnimUpdated = 0;
+        numberOfAnimThrottled = 0;
+        numberOfAnimHidden = 0;
+        numberOfInstances = 0;
+        numberOfOcclusionTested = 0;
+        numberOfOccluded = 0;
+        numberOfMaterialBinds = 0;
+        numberOfStateChanges = 0;
     }
 
     public long getNumberOfLines() {
@@ -111,6 +131,18 @@ public class RenderStatistics {
         this.numberOfVerts = numberOfVerts;
     }
 
+    public long getNumberOfAnimUpdated() {
+        return numberOfAnimUpdated;
+    }
+
+    public long getNumberOfAnimThrottled() {
+        return numberOfAnimThrottled;
+    }
+
+    public long getNumberOfAnimHidden() {
+        return numberOfAnimHidden;
+    }
+
     @Override
     public String toString() {
         StringBuffer buf = new StringBuffer();
@@ -157,6 +189,38 @@ public class RenderStatistics {
             buf.append(")");
             showing = true;
         }
+        if (numberOfAnimUpdated != 0 || numberOfAnimThrottled != 0 || numberOfAnimHidden != 0) {
+            buf.append(" Anim(");
+            buf.append(numberOfAnimUpdated);
+            buf.append("/");
+            buf.append(numberOfAnimThrottled);
+            buf.append("/");
+            buf.append(numberOfAnimHidden);
+            buf.append(")");
+            showing = true;
+        }
+        if (numberOfInstances != 0) {
+            buf.append(" Inst(");
+            buf.append(numberOfInstances);
+            buf.append(")");
+            showing = true;
+        }
+        if (numberOfOcclusionTested != 0) {
+            buf.append(" Occl(");
+            buf.append(numberOfOccluded);
+            buf.append("/");
+            buf.append(numberOfOcclusionTested);
+            buf.append(")");
+            showing = true;
+        }
+        if (numberOfMaterialBinds != 0) {
+            buf.append(" Bind(");
+            buf.append(numberOfMaterialBinds);
+            buf.append("/");
+            buf.append(numberOfStateChanges);
+            buf.append(")");
+            showing = true;
+        }
         if (!showing) {
             buf.append(" nothing");
         }
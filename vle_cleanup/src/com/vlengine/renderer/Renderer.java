@@ -39,8 +39,10 @@ package com.vlengine.renderer;
 import com.vlengine.image.Texture;
 import com.vlengine.renderer.material.Material;
 import com.vlengine.scene.Node;
+import com.vlengine.scene.Renderable;
 import com.vlengine.scene.SceneElement;
 import com.vlengine.scene.Spatial;
+import com.vlengine.scene.batch.InstancedBatch;
 import com.vlengine.scene.batch.TextBatch;
 import com.vlengine.scene.batch.TriBatch;
 import com.vlengine.scene.state.RenderState;
@@ -66,6 +68,9 @@ public class Renderer {
     private boolean headless = false;
         
     protected boolean inOrthoMode = false;
+    
+    // the render states before a replayed material bind
+    protected final RenderState[] replayStates = new RenderState[RenderState.RS_MAX_STATE];
 
     // the rendercontext we are currently working with
     protected RenderContext ctx = null;
@@ -81,12 +86,24 @@ public class Renderer {
         return cam;
     }
     
+    /**
+     * Locks the renderer for the given context. If the renderer is held
+     * by another context, waits until it is released and returns false,
+     * the caller should try again.
+     */
     public boolean lockRenderer( RenderContext ctx ) {
         boolean locked = false;
         synchronized (this ) {
             if( this.ctx == null ) {
                 this.ctx = ctx;
                 locked = true;
+            } else {
+                // wait until the renderer is released
+                try {
+                    this.wait();
+                } catch(InterruptedException e) {
+                    
+                }
             }
         }
         return locked;
@@ -95,9 +112,9 @@ public class Renderer {
     public void unlockRenderer( ) {
         synchronized ( this ) {
             ctx = null;
+            // wake up the threads waiting for this renderer
+            notifyAll();
         }
-        //TODO: notify threads waiting for this renderer
-        //notify();
     }
     
     public void setBackgroundColor(ColorRGBA c) {
@@ -252,6 +269,82 @@ public class Renderer {
     
     public void draw(TriBatch aThis) {
         //throw new UnsupportedOperationException("Not yet implemented");
+        if (statisticsOn) {
+            stats.numberOfTris += aThis.getModel().getTriangleCount();
+            stats.numberOfVerts += aThis.getModel().getNumVertex();
+            stats.numberOfMesh++;
+        }
+    }
+    
+    /**
+     * Draws the visible instances of the batch. Without hardware
+     * instancing the instances are drawn one after the other.
+     */
+    public void draw(InstancedBatch batch) {
+        int frameId = ctx.frameId;
+        int num = batch.getVisibleCount(frameId);
+        if (statisticsOn) {
+            stats.numberOfInstances += num;
+        }
+        for (int i = 0; i < num; i++) {
+            batch.setDrawInstance(frameId, i);
+            draw((TriBatch) batch);
+        }
+    }
+    
+    /**
+     * Replays the commands of a pass recorded into the command buffer,
+     * starting from the pass command at the given index.
+     */
+    public void replay(RenderCommandBuffer cmds, int start) {
+        for(int i=start+1, mx=cmds.size(); i<mx; i++) {
+            switch(cmds.getOpcode(i)) {
+                case RenderCommandBuffer.CMD_MATERIAL: {
+                    Material mat = (Material) cmds.getReference(i);
+                    if( ctx.currentMaterial == mat 
+                      && ctx.currentMaterialDepthOnly == ctx.positionmode )
+                        break;
+                    if (statisticsOn) {
+                        System.arraycopy(ctx.currentStates, 0, replayStates, 0, replayStates.length);
+                        applyMaterial(mat);
+                        stats.numberOfMaterialBinds++;
+                        for(int j=0; j<replayStates.length; j++) {
+                            if(replayStates[j] != ctx.currentStates[j])
+                                stats.numberOfStateChanges++;
+                        }
+                    } else {
+                        applyMaterial(mat);
+                    }
+                } break;
+                case RenderCommandBuffer.CMD_DRAW:
+                    ((Renderable) cmds.getReference(i)).draw(ctx);
+                    break;
+                case RenderCommandBuffer.CMD_END:
+                    return;
+            }
+        }
+    }
+    
+    /**
+     * Applies a material from replayed commands. Without a GPU only the
+     * state tracking of Material.apply is done, so the state changes
+     * can be counted.
+     */
+    protected void applyMaterial(Material mat) {
+        ctx.currentMaterial = mat;
+        ctx.currentMaterialDepthOnly = ctx.positionmode;
+        if(ctx.positionmode)
+            return;
+        RenderState[] s = mat.states;
+        if(s == null)
+            s = ctx.defaultStateList;
+        for(int i=0; i<s.length; i++) {
+            RenderState st = ctx.enforcedStateList[i] != null ? ctx.enforcedStateList[i] : s[i];
+            if(st == null)
+                st = ctx.defaultStateList[i];
+            if(st != null)
+                ctx.currentStates[i] = st;
+        }
     }
     
     public void drawDirect(SceneElement s) {
@@ -222,8 +222,8 @@ public class LWJGLRenderer extends Renderer {
             } catch(Exception e) {
                 
             }
-            //TODO: notify threads waiting for this renderer
-            notify();
+            // wake up the threads waiting for this renderer
+            notifyAll();
         }
     }
     
@@ -492,6 +492,11 @@ public class LWJGLRenderer extends Renderer {
         GL11.glColor4f(red, green, blue, alpha);
     }
 
+    @Override
+    protected void applyMaterial(Material mat) {
+        mat.apply(ctx);
+    }
+
     @Override
     public void draw(TriBatch batch) {
         BaseGeometry g = batch.getModel();
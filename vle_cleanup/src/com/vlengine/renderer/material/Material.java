@@ -44,6 +44,7 @@ import com.vlengine.scene.state.ShaderParameters;
 import com.vlengine.scene.state.TextureState;
 import com.vlengine.util.FastList;
 import com.vlengine.util.IntMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A material (rendering state) of an object in a pass
@@ -75,8 +76,19 @@ public class Material {
     
     protected int lightCombineMode = LightState.INHERIT;
 
+    // source of the material id-s
+    private static final AtomicInteger nextMaterialId = new AtomicInteger(1);
+    
+    // unique id of the material, used for grouping renderables
+    // with the same material in the render queues
+    protected final int materialId = nextMaterialId.getAndIncrement();
+    
     public Material() {}
    
+    public int getMaterialId() {
+        return materialId;
+    }
+   
     public boolean isNeedUpdate() {
         return needupdate;
     }
@@ -90,6 +90,8 @@ public class DepthTexturePass extends RenderPass {
     
     public DepthTexturePass( String name ) {
         super(name);
+        // does not draw through the base renderPass
+        recordable = false;
         // default parameters for this pass
         // this pass uses only depth information from material
         // TODO:
@@ -49,6 +49,8 @@ public class LightExtractPass extends RenderPass {
     
     public LightExtractPass(String name) {
         super(name);
+        // does not draw through the base renderPass
+        recordable = false;
         setId(RenderPass.StandardPass.Ligh.passId);
         setUsedMaterialFlags(-1);
         // renders queue 0
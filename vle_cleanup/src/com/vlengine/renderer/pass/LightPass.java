@@ -66,6 +66,8 @@ public class LightPass extends RenderPass {
     
     public LightPass(String name) {
         super(name);
+        // does not draw through the base renderPass
+        recordable = false;
     }
     
     public LightState getLigthState() {
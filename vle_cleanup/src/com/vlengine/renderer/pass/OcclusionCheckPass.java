@@ -32,10 +32,379 @@
 
 package com.vlengine.renderer.pass;
 
+import com.vlengine.app.frame.Frame;
+import com.vlengine.bounding.BoundingVolume;
+import com.vlengine.math.Matrix3f;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.BaseGeometry;
+import com.vlengine.model.Geometry;
+import com.vlengine.renderer.Camera;
+import com.vlengine.renderer.CullContext;
+import com.vlengine.renderer.OcclusionBuffer;
+import com.vlengine.renderer.RenderContext;
+import com.vlengine.renderer.RenderStatistics;
+import com.vlengine.renderer.ViewCamera;
+import com.vlengine.scene.LodMesh;
+import com.vlengine.scene.Mesh;
+import com.vlengine.scene.SetNode;
+import com.vlengine.scene.Spatial;
+import com.vlengine.scene.batch.TriBatch;
+import com.vlengine.util.FastList;
+import com.vlengine.util.geom.IndexBuffer;
+import com.vlengine.util.geom.VertexAttribute;
+import com.vlengine.util.geom.VertexIterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 /**
- *
+ * Software occlusion culling. The designated occluders are rasterized
+ * on the CPU into a low resolution OcclusionBuffer before the scene is
+ * culled against the camera of the pass, and the Renderables passing the
+ * frustum test are tested against the buffer before they are queued.
+ * 
+ * The pass does not queue or render anything, it is enough to add it to
+ * the passes with the camera to check. The Frame rasterizes the occluders
+ * when it culls against that camera. The occluders are projected and 
+ * rasterized by multiple threads, the buffer is split into bands of tile
+ * rows between the threads.
+ * 
+ * Occluders should be simple closed meshes (walls, buildings, terrain),
+ * they are rasterized with their full detail geometry.
+ * 
  * @author vear (Arpad Vekas)
  */
-public class OcclusionCheckPass {
+public class OcclusionCheckPass extends RenderPass {
+    private static final Logger logger = Logger.getLogger(OcclusionCheckPass.class.getName());
 
+    // the batches rasterized into the buffer
+    protected final FastList<TriBatch> occluders = new FastList<TriBatch>();
+    
+    protected final int width;
+    protected final int height;
+    
+    // the buffer for every frame, and the frame count it was prepared for
+    protected final OcclusionBuffer[] buffers = new OcclusionBuffer[Frame.MAX_FRAMES];
+    protected final long[] prepared = new long[Frame.MAX_FRAMES];
+    
+    // the counts for every frame
+    protected final AtomicIntegerArray tested = new AtomicIntegerArray(Frame.MAX_FRAMES);
+    protected final AtomicIntegerArray occluded = new AtomicIntegerArray(Frame.MAX_FRAMES);
+    protected final int[] occluderTris = new int[Frame.MAX_FRAMES];
+    
+    // the workers, worker 0 is the thread calling prepare()
+    private final Worker[] workers;
+    
+    // the current job
+    private OcclusionBuffer buffer;
+    private int frameId;
+    private int phase;
+    private final AtomicInteger nextOccluder = new AtomicInteger();
+    private final AtomicInteger pending = new AtomicInteger();
+    private int generation = 0;
+    private volatile boolean running = true;
+    private volatile Throwable error;
+    private final Object prepareLock = new Object();
+    
+    private static final int PHASE_PROJECT = 0;
+    private static final int PHASE_RASTERIZE = 1;
+    
+    /**
+     * Creates the pass.
+     * 
+     * @param name      The name of the pass
+     * @param width     The width of the occlusion buffer
+     * @param height    The height of the occlusion buffer
+     * @param threads   The number of threads used for rasterizing, 
+     *                  including the culling thread
+     */
+    public OcclusionCheckPass(String name, int width, int height, int threads) {
+        super(name);
+        // does not draw through the base renderPass
+        recordable = false;
+        this.width = width;
+        this.height = height;
+        if(threads < 1)
+            threads = 1;
+        workers = new Worker[threads];
+        workers[0] = new Worker(0);
+        for(int i=1; i<threads; i++) {
+            workers[i] = new Worker(i);
+            Thread t = new Thread(workers[i], "Occlusion-"+i);
+            t.setDaemon(true);
+            t.start();
+        }
+        for(int i=0; i<prepared.length; i++)
+            prepared[i] = -1;
+    }
+    
+    public void addOccluder(TriBatch batch) {
+        if(!occluders.contains(batch))
+            occluders.add(batch);
+    }
+    
+    /**
+     * Adds the batches of a spatial and its children as occluders. For
+     * LodMeshes only the most detailed lod is used.
+     */
+    public void addOccluder(Spatial s) {
+        if(s instanceof SetNode) {
+            FastList<Spatial> ch = ((SetNode) s).getChildren();
+            for(int i=0; i<ch.size(); i++) {
+                if(ch.get(i) != null)
+                    addOccluder(ch.get(i));
+            }
+        } else if(s instanceof Mesh) {
+            TriBatch tb = ((Mesh) s).getBatch();
+            if(tb != null)
+                addOccluder(tb);
+        } else if(s instanceof LodMesh) {
+            LodMesh lm = (LodMesh) s;
+            for(int i=0; lm.getLodCount() > 0 && i<lm.getBatchCount(0); i++) {
+                addOccluder(lm.getBatch(0, i));
+            }
+        }
+    }
+    
+    public void removeOccluder(TriBatch batch) {
+        occluders.remove(batch);
+    }
+    
+    public void clearOccluders() {
+        occluders.clear();
+    }
+    
+    public FastList<TriBatch> getOccluders() {
+        return occluders;
+    }
+    
+    /**
+     * Rasterizes the occluders for the camera of the context. Called by
+     * the Frame before culling the scene against the camera.
+     */
+    public void prepare(CullContext ctx) {
+        // only one camera can be prepared at a time
+        synchronized(prepareLock) {
+            doPrepare(ctx);
+        }
+    }
+    
+    private void doPrepare(CullContext ctx) {
+        frameId = ctx.getFrameId();
+        buffer = buffers[frameId];
+        if(buffer == null) {
+            buffer = new OcclusionBuffer(width, height);
+            buffers[frameId] = buffer;
+        }
+        ViewCamera vcam = ctx.getViewCamera();
+        buffer.setView(vcam);
+        for(int i=0; i<workers.length; i++) {
+            Worker w = workers[i];
+            vcam.copy(w.cam);
+            w.triCount = 0;
+        }
+        error = null;
+        nextOccluder.set(0);
+        runPhase(PHASE_PROJECT);
+        runPhase(PHASE_RASTERIZE);
+        int tris = 0;
+        for(int i=0; i<workers.length; i++)
+            tris += workers[i].triCount;
+        occluderTris[frameId] = tris;
+        prepared[frameId] = ctx.getFrame() != null ? ctx.getFrame().getFrameCount() : 0;
+        buffer = null;
+        if(error != null) {
+            prepared[frameId] = -1;
+            logger.log(Level.SEVERE, "Exception while rasterizing occluders", error);
+        }
+    }
+    
+    // run a phase on all the workers, and wait for them to finish
+    private void runPhase(int p) {
+        phase = p;
+        pending.set(workers.length);
+        if(workers.length > 1) {
+            synchronized(this) {
+                generation++;
+                this.notifyAll();
+            }
+        }
+        workers[0].execute();
+        while(pending.get() > 0) {
+            Thread.yield();
+        }
+    }
+    
+    /**
+     * Tests a bound against the occluders, called from culling. Returns
+     * false if the occluders were not rasterized for the frame of the
+     * context.
+     * 
+     * @param ctx   The context culling the scene
+     * @param bv    The world bound of the element
+     * @return      true if the bound is completely hidden
+     */
+    public boolean isOccluded(CullContext ctx, BoundingVolume bv) {
+        int fid = ctx.getFrameId();
+        if(bv == null || prepared[fid] == -1 
+                || (ctx.getFrame() != null && prepared[fid] != ctx.getFrame().getFrameCount()))
+            return false;
+        tested.incrementAndGet(fid);
+        if(buffers[fid].isOccluded(bv)) {
+            occluded.incrementAndGet(fid);
+            return true;
+        }
+        return false;
+    }
+    
+    public OcclusionBuffer getBuffer(int frameId) {
+        return buffers[frameId];
+    }
+    
+    public int getTestedCount(int frameId) {
+        return tested.get(frameId);
+    }
+    
+    public int getOccludedCount(int frameId) {
+        return occluded.get(frameId);
+    }
+    
+    public int getOccluderTriangles(int frameId) {
+        return occluderTris[frameId];
+    }
+    
+    /**
+     * Puts the counts of the frame into the statistics, and resets them.
+     */
+    public void report(int frameId, RenderStatistics stats) {
+        if(stats != null) {
+            stats.numberOfOcclusionTested += tested.get(frameId);
+            stats.numberOfOccluded += occluded.get(frameId);
+        }
+        tested.set(frameId, 0);
+        occluded.set(frameId, 0);
+    }
+    
+    @Override
+    public void renderPass(RenderContext ctx) {
+        if(!enabled)
+            return;
+        report(ctx.frameId, ctx.getRenderer().getStatistics());
+    }
+    
+    /**
+     * Stops the worker threads.
+     */
+    @Override
+    public void cleanup() {
+        running = false;
+        synchronized(this) {
+            this.notifyAll();
+        }
+    }
+    
+    private class Worker implements Runnable {
+        final int index;
+        // the culling camera, for the frustum test of the occluders
+        final Camera cam = new Camera();
+        // the view space positions of the current occluder
+        float[] view = new float[3*256];
+        // the projected triangles
+        float[] tris = new float[OcclusionBuffer.TRIANGLE_FLOATS*256];
+        int triCount;
+        final float[] xform = new float[12];
+        final Matrix3f rot = new Matrix3f();
+        final Vector3f v = new Vector3f();
+        
+        Worker(int index) {
+            this.index = index;
+        }
+        
+        void execute() {
+            try {
+                if(phase == PHASE_PROJECT) {
+                    int i;
+                    while((i = nextOccluder.getAndIncrement()) < occluders.size()) {
+                        project(occluders.get(i));
+                    }
+                } else {
+                    // rasterize our band with the triangles of all workers
+                    int rows = buffer.getTileRows();
+                    int from = rows * index / workers.length;
+                    int to = rows * (index + 1) / workers.length;
+                    buffer.clear(from, to);
+                    for(int i=0; i<workers.length; i++) {
+                        buffer.rasterize(workers[i].tris, workers[i].triCount, from, to);
+                    }
+                    buffer.updateTiles(from, to);
+                }
+            } catch(Throwable t) {
+                if(error == null)
+                    error = t;
+            }
+            // this must be the last operation
+            pending.decrementAndGet();
+        }
+        
+        void project(TriBatch tb) {
+            BaseGeometry bg = tb.getModel();
+            if(!(bg instanceof Geometry) || bg.getMode() != BaseGeometry.TRIANGLES
+                    || bg.getNumIndex() == 0)
+                return;
+            Geometry g = (Geometry) bg;
+            if(g.getAttribBuffer(VertexAttribute.USAGE_POSITION) == null)
+                return;
+            BoundingVolume bv = tb.getWorldBound(frameId);
+            if(bv != null) {
+                cam.setPlaneState(0);
+                if(cam.contains(bv) == Camera.OUTSIDE_FRUSTUM)
+                    return;
+            }
+            buffer.getViewTransform(tb.getWorldTransForm(frameId), rot, xform);
+            float[] m = xform;
+            
+            int nv = g.getNumVertex();
+            if(view.length < nv*3)
+                view = new float[nv*3];
+            VertexIterator vi = g.createIterator().getIterator(VertexAttribute.USAGE_POSITION);
+            for(int n=0, p=0; n<nv; n++, p+=3) {
+                vi.get(n, v);
+                view[p] = m[0]*v.x + m[1]*v.y + m[2]*v.z + m[9];
+                view[p+1] = m[3]*v.x + m[4]*v.y + m[5]*v.z + m[10];
+                view[p+2] = m[6]*v.x + m[7]*v.y + m[8]*v.z + m[11];
+            }
+            
+            IndexBuffer ib = g.getIndexBuffer();
+            int si = g.getStartIndex();
+            for(int n=0, ni=g.getNumIndex(); n+2<ni; n+=3) {
+                // a triangle can be clipped into two
+                if(tris.length < (triCount + 2) * OcclusionBuffer.TRIANGLE_FLOATS) {
+                    float[] nt = new float[tris.length * 2];
+                    System.arraycopy(tris, 0, nt, 0, triCount * OcclusionBuffer.TRIANGLE_FLOATS);
+                    tris = nt;
+                }
+                triCount += buffer.projectTriangle(view, 
+                        ib.get(si+n)*3, ib.get(si+n+1)*3, ib.get(si+n+2)*3, 
+                        tris, triCount * OcclusionBuffer.TRIANGLE_FLOATS);
+            }
+        }
+        
+        public void run() {
+            int seen = 0;
+            while(running) {
+                synchronized(OcclusionCheckPass.this) {
+                    while(running && generation == seen) {
+                        try {
+                            OcclusionCheckPass.this.wait();
+                        } catch (InterruptedException ex) {
+                        }
+                    }
+                    seen = generation;
+                }
+                if(running)
+                    execute();
+            }
+        }
+    }
 }
@@ -34,6 +34,7 @@ package com.vlengine.renderer.pass;
 
 import com.vlengine.renderer.ColorRGBA;
 import com.vlengine.renderer.FrameBuffer;
+import com.vlengine.renderer.RenderCommandBuffer;
 import com.vlengine.renderer.RenderContext;
 import com.vlengine.renderer.Renderer;
 import com.vlengine.renderer.ViewCamera;
@@ -141,6 +142,10 @@ public class RenderPass {
     // the target framebuffer
     protected FrameBuffer target;
     
+    // is the queue drawn by the base renderPass, so it can be
+    // recorded into the command buffer
+    protected boolean recordable = true;
+    
     public RenderPass(String name) {
         this.name = name;
     }
@@ -233,6 +238,35 @@ public class RenderPass {
     AlphaBlendState as;
     FogState fs;
     
+    public boolean isRecordable() {
+        return recordable;
+    }
+    
+    /**
+     * Records the material binds and draws of this pass into the
+     * command buffer, in the order of the render queue.
+     */
+    public void record(RenderContext ctx, RenderCommandBuffer cmds) {
+        if(!enabled || !recordable)
+            return;
+        FastList<Renderable> list = ctx.getRenderQueue().getQueue(this.queueNo);
+        if( list ==null || list.size() == 0 )
+            return;
+        cmds.beginPass(this);
+        for(int i=0, ls=list.size(); i<ls; i++) {
+            Renderable e= list.get(i);
+            if( materialNo != -1 ) {
+                Material mat = e.getMaterial();
+                if(mat == null)
+                    mat = ctx.defaultMaterial;
+                if( mat!= null )
+                    cmds.bindMaterial(mat);
+            }
+            cmds.draw(e);
+        }
+        cmds.endPass();
+    }
+    
     public void renderPass(RenderContext ctx) {
         if(!enabled)
             return;
@@ -282,6 +316,12 @@ public class RenderPass {
             ctx.enforcedStateList[RenderState.RS_FOG] = fs;
         }
         
+        RenderCommandBuffer cmds = ctx.commands;
+        int start = cmds != null && cmds.getFrameId() == ctx.frameId ? cmds.getPassStart(this) : -1;
+        if(start != -1) {
+            // replay the commands recorded in FRAME_MATERIAL
+            renderer.replay(cmds, start);
+        } else
         // draw all the elements
         for(int i=0, ls=list.size(); i<ls; i++) {
             Renderable e= list.get(i);
@@ -33,18 +33,17 @@
 package com.vlengine.resource;
 
 import com.vlengine.util.geom.BufferUtils;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -57,6 +56,12 @@ import java.util.logging.Logger;
 public class FileResource {
     private static final Logger logger = Logger.getLogger(FileResource.class.getName());
     
+    // header of the typed (float, short, int) data files: the magic "VLEB",
+    // and a byte order mark written in the byte order of the data
+    private static final int DATA_MAGIC = 0x564C4542;
+    private static final int BYTE_ORDER_MARK = 0x01020304;
+    private static final int DATA_HEADER_SIZE = 8;
+    
     public static void save(String path, Object data) {
         if(data instanceof ByteBuffer) {
             save(path,(ByteBuffer)data);
@@ -112,160 +117,165 @@ public class FileResource {
     }
     
     public static boolean save( String path, FloatBuffer data ) {
-        try {
-            data.rewind();
-            DataOutputStream fos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
-            int limit = data.limit();
-            for(int i=0; i<limit; i++)
-                fos.writeFloat(data.get());
-            fos.close();
-            data.position(0);
-            return true;
-        } catch (Exception ex) {
-            logger.log(Level.SEVERE, null, ex);
-            return false;
-        }
+        data.rewind();
+        ByteBuffer bb = createDataBuffer(data.limit()*4);
+        bb.asFloatBuffer().put(data);
+        data.position(0);
+        return save(path, bb);
     }
 
     public static FloatBuffer loadFloatBuffer(String path, ParameterMap params) {
-        DataInputStream dis = null;
-        FloatBuffer fb = null;
-        try {
-            File inf = new File(path);
-            int len = (int) inf.length();
-            if (len == 0) {
-                return null;
-            }
-
-            int datasize = 4;
-            
-            if (params.getBoolean(ParameterMap.KEY_DIRECTBUFFER, true)) {
-                fb = BufferUtils.createFloatBuffer(len / datasize);
-            } else {
-                fb = ByteBuffer.allocate(len/datasize).asFloatBuffer();
-            }
-            fb.clear();
-            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
-            int dlen = len/datasize;
-            for(int i=0; i<dlen; i++) {
-                fb.put(dis.readFloat());
-            }
-            fb.rewind();
-        } catch (Exception ex) {
-            Logger.getLogger(FileResource.class.getName()).log(Level.SEVERE, null, ex);
-            fb = null;
-        } finally {
-            try {
-                if(dis!=null)
-                    dis.close();
-            } catch (IOException ex) {
-                Logger.getLogger(FileResource.class.getName()).log(Level.SEVERE, null, ex);
-            }
+        ByteBuffer bb = mapDataBuffer(path, 4);
+        if(bb == null) {
+            return null;
         }
+        boolean direct = params.getBoolean(ParameterMap.KEY_DIRECTBUFFER, true);
+        if(direct && bb.order() == ByteOrder.nativeOrder()) {
+            // use the mapped file directly
+            return bb.asFloatBuffer();
+        }
+        // other byte order (old file), convert it
+        int len = bb.remaining() / 4;
+        FloatBuffer fb;
+        if (direct) {
+            fb = BufferUtils.createFloatBuffer(len);
+        } else {
+            fb = FloatBuffer.allocate(len);
+        }
+        fb.clear();
+        fb.put(bb.asFloatBuffer());
+        fb.rewind();
         return fb;
     }
 
     public static boolean save( String path, ShortBuffer data ) {
-        try {
-            data.position(0);
-            DataOutputStream fos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
-            int limit = data.limit();
-            for(int i=0; i<limit; i++)
-                fos.writeShort(data.get());
-            fos.close();
-            data.position(0);
-            return true;
-        } catch (Exception ex) {
-            logger.log(Level.SEVERE, null, ex);
-            return false;
-        }
+        data.position(0);
+        ByteBuffer bb = createDataBuffer(data.limit()*2);
+        bb.asShortBuffer().put(data);
+        data.position(0);
+        return save(path, bb);
     }
     
     public static ShortBuffer loadShortBuffer(String path, ParameterMap params) {
-        DataInputStream dis = null;
-        ShortBuffer fb = null;
-        try {
-            File inf = new File(path);
-            int len = (int) inf.length();
-            if (len == 0) {
-                return null;
-            }
-
-            if (params.getBoolean(ParameterMap.KEY_DIRECTBUFFER, true)) {
-                fb = BufferUtils.createShortBuffer(len / 2);
-            } else {
-                fb = ByteBuffer.allocate(len).asShortBuffer();
-            }
-            fb.clear();
-            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
-            int dlen = len/2;
-            for(int i=0; i<dlen; i++) {
-                fb.put(dis.readShort());
-            }
-            fb.rewind();
-        } catch (Exception ex) {
-            Logger.getLogger(FileResource.class.getName()).log(Level.SEVERE, null, ex);
-            fb = null;
-        } finally {
-            try {
-                if(dis!=null)
-                    dis.close();
-            } catch (IOException ex) {
-                Logger.getLogger(FileResource.class.getName()).log(Level.SEVERE, null, ex);
-            }
+        ByteBuffer bb = mapDataBuffer(path, 2);
+        if(bb == null) {
+            return null;
+        }
+        boolean direct = params.getBoolean(ParameterMap.KEY_DIRECTBUFFER, true);
+        if(direct && bb.order() == ByteOrder.nativeOrder()) {
+            return bb.asShortBuffer();
+        }
+        int len = bb.remaining() / 2;
+        ShortBuffer fb;
+        if (direct) {
+            fb = BufferUtils.createShortBuffer(len);
+        } else {
+            fb = ShortBuffer.allocate(len);
         }
+        fb.clear();
+        fb.put(bb.asShortBuffer());
+        fb.rewind();
         return fb;
     }
 
     public static boolean save( String path, IntBuffer data ) {
-        try {
-            data.position(0);
-            DataOutputStream fos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
-            int limit = data.limit();
-            for(int i=0; i<limit; i++)
-                fos.writeInt(data.get());
-            fos.close();
-            data.position(0);
-            return true;
-        } catch (Exception ex) {
-            logger.log(Level.SEVERE, null, ex);
-            return false;
-        }
+        data.position(0);
+        ByteBuffer bb = createDataBuffer(data.limit()*4);
+        bb.asIntBuffer().put(data);
+        data.position(0);
+        return save(path, bb);
     }
     
     public static IntBuffer loadIntBuffer(String path, ParameterMap params) {
-        DataInputStream dis = null;
-        IntBuffer fb = null;
+        ByteBuffer bb = mapDataBuffer(path, 4);
+        if(bb == null) {
+            return null;
+        }
+        boolean direct = params.getBoolean(ParameterMap.KEY_DIRECTBUFFER, true);
+        if(direct && bb.order() == ByteOrder.nativeOrder()) {
+            return bb.asIntBuffer();
+        }
+        int len = bb.remaining() / 4;
+        IntBuffer fb;
+        if (direct) {
+            fb = BufferUtils.createIntBuffer(len);
+        } else {
+            fb = IntBuffer.allocate(len);
+        }
+        fb.clear();
+        fb.put(bb.asIntBuffer());
+        fb.rewind();
+        return fb;
+    }
+    
+    /**
+     * Creates a buffer for saving typed data, the header is already
+     * written, the data is to be put after it in native byte order.
+     */
+    protected static ByteBuffer createDataBuffer(int size) {
+        ByteBuffer bb = ByteBuffer.allocate(DATA_HEADER_SIZE + size);
+        bb.order(ByteOrder.BIG_ENDIAN).putInt(DATA_MAGIC);
+        bb.order(ByteOrder.nativeOrder()).putInt(BYTE_ORDER_MARK);
+        return bb;
+    }
+    
+    /**
+     * Maps a typed data file into memory. The returned buffer is positioned
+     * on the data, and has the byte order of the data. Files without the 
+     * header are the old format, with big endian data.
+     * 
+     * On some systems a mapped file cannot be overwritten, until the
+     * buffer is garbage collected.
+     */
+    protected static ByteBuffer mapDataBuffer(String path, int datasize) {
+        RandomAccessFile raf = null;
         try {
             File inf = new File(path);
-            int len = (int) inf.length();
+            long len = inf.length();
             if (len == 0) {
                 return null;
             }
-
-            if (params.getBoolean(ParameterMap.KEY_DIRECTBUFFER, true)) {
-                fb = BufferUtils.createIntBuffer(len / 4);
+            // map copy-on-write if we can, so the data can be modified
+            // without changing the file
+            MappedByteBuffer mb;
+            if(inf.canWrite()) {
+                raf = new RandomAccessFile(inf, "rw");
+                mb = raf.getChannel().map(FileChannel.MapMode.PRIVATE, 0, len);
             } else {
-                fb = ByteBuffer.allocate(len).asIntBuffer();
+                raf = new RandomAccessFile(inf, "r");
+                mb = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, len);
             }
-            fb.clear();
-            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
-            int dlen = len/4;
-            for(int i=0; i<dlen; i++) {
-                fb.put(dis.readInt());
+            mb.order(ByteOrder.BIG_ENDIAN);
+            if(len >= DATA_HEADER_SIZE && (len - DATA_HEADER_SIZE) % datasize == 0
+                    && mb.getInt(0) == DATA_MAGIC) {
+                int bom = mb.getInt(4);
+                ByteOrder order = null;
+                if(bom == BYTE_ORDER_MARK) {
+                    order = ByteOrder.BIG_ENDIAN;
+                } else if(bom == Integer.reverseBytes(BYTE_ORDER_MARK)) {
+                    order = ByteOrder.LITTLE_ENDIAN;
+                }
+                if(order != null) {
+                    mb.position(DATA_HEADER_SIZE);
+                    ByteBuffer data = mb.slice();
+                    data.order(order);
+                    return data;
+                }
             }
-            fb.rewind();
+            // old file, big endian data without header
+            mb.limit((int) (len - len % datasize));
+            return mb;
         } catch (Exception ex) {
-            Logger.getLogger(FileResource.class.getName()).log(Level.SEVERE, null, ex);
-            fb = null;
+            logger.log(Level.SEVERE, "Cannot load file "+path, ex);
         } finally {
             try {
-                if(dis!=null)
-                    dis.close();
+                // the mapping stays valid after closing
+                if(raf!=null)
+                    raf.close();
             } catch (IOException ex) {
-                Logger.getLogger(FileResource.class.getName()).log(Level.SEVERE, null, ex);
+                logger.log(Level.SEVERE, null, ex);
             }
         }
-        return fb;
+        return null;
     }
 }
@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.resource;
+
+import com.vlengine.image.Image;
+import com.vlengine.image.Texture;
+import com.vlengine.resource.model.ModelPack;
+import java.lang.ref.SoftReference;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps account of the objects created by the ResourceFolders, and limits
+ * their total size to a given byte budget. When the budget is exceeded,
+ * the least recently used objects are dropped from their folder. The dropped
+ * objects are kept with a SoftReference, so if the garbage collector did not
+ * yet free them, they are given back on the next request instead of
+ * loading them again.
+ * 
+ * Pinned objects, and images which are uploaded to the card, are never
+ * dropped.
+ * 
+ * Dropping an object changes the map of its folder, which is only
+ * accessed under the folder lock (the ResourceFinder), so every eviction
+ * runs under the folder lock. The folder lock is always taken before the
+ * lock of the cache.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class ResourceCache {
+    private static final Logger logger = Logger.getLogger(ResourceCache.class.getName());
+    
+    // the size we account for objects we dont know the size of
+    public static final long DEFAULT_SIZE = 4096;
+    
+    // key of a cached object: the folder and the key in the folder
+    protected static class Key {
+        protected final ResourceFolder folder;
+        protected final Object key;
+        
+        protected Key(ResourceFolder folder, Object key) {
+            this.folder = folder;
+            this.key = key;
+        }
+        
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(folder) * 31 + key.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Key))
+                return false;
+            Key o = (Key) obj;
+            return folder == o.folder && key.equals(o.key);
+        }
+    }
+    
+    protected static class Entry {
+        protected Object value;
+        protected long size;
+    }
+    
+    // the entries, in the order of last access
+    protected final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+    // the dropped entries, kept until the GC frees them
+    protected final HashMap<Key, SoftReference<Object>> dropped = new HashMap<Key, SoftReference<Object>>();
+    // the pinned objects, with the number of pins
+    protected final IdentityHashMap<Object, Integer> pinned = new IdentityHashMap<Object, Integer>();
+    
+    // the lock guarding the cached objects of the folders
+    protected final Object folderLock;
+    
+    // the budget in bytes, 0 means no limit
+    protected long budget;
+    // the current accounted size
+    protected long size = 0;
+    
+    // statistics
+    protected long hits = 0;
+    protected long misses = 0;
+    protected long evictions = 0;
+    protected long recovered = 0;
+    
+    public ResourceCache(long budget) {
+        this(budget, null);
+    }
+    
+    /**
+     * Creates the cache.
+     * 
+     * @param budget        The budget in bytes, 0 for no limit
+     * @param folderLock    The lock held while the folders are accessed,
+     *                      null if only this cache accesses the folders
+     */
+    public ResourceCache(long budget, Object folderLock) {
+        this.budget = budget;
+        this.folderLock = folderLock != null ? folderLock : this;
+    }
+    
+    public void setBudget(long budget) {
+        synchronized(folderLock) {
+            synchronized(this) {
+                this.budget = budget;
+                evict();
+            }
+        }
+    }
+    
+    public synchronized long getBudget() {
+        return budget;
+    }
+    
+    /**
+     * Called when an object is added to a folder, with the folder lock held.
+     */
+    public synchronized void add(ResourceFolder folder, Object key, Object value) {
+        Key k = new Key(folder, key);
+        dropped.remove(k);
+        Entry e = entries.get(k);
+        if(e == null) {
+            e = new Entry();
+            entries.put(k, e);
+        } else {
+            size -= e.size;
+        }
+        e.value = value;
+        e.size = sizeOf(value);
+        size += e.size;
+        evict();
+    }
+    
+    /**
+     * Called when an object is found in a folder, marks it as used.
+     */
+    public synchronized void hit(ResourceFolder folder, Object key) {
+        if(entries.get(new Key(folder, key)) != null) {
+            hits++;
+        }
+    }
+    
+    /**
+     * Called when an object is not found in a folder, returns the object
+     * if it was dropped, but not yet freed by the GC.
+     */
+    public synchronized Object recover(ResourceFolder folder, Object key) {
+        Key k = new Key(folder, key);
+        SoftReference<Object> ref = dropped.remove(k);
+        Object value = ref != null ? ref.get() : null;
+        if(value == null) {
+            misses++;
+            return null;
+        }
+        recovered++;
+        hits++;
+        return value;
+    }
+    
+    /**
+     * Called when an object is removed from a folder.
+     */
+    public synchronized void remove(ResourceFolder folder, Object key) {
+        Key k = new Key(folder, key);
+        Entry e = entries.remove(k);
+        if(e != null) {
+            size -= e.size;
+        }
+        dropped.remove(k);
+    }
+    
+    /**
+     * Forgets all the objects of a folder.
+     */
+    public synchronized void clear(ResourceFolder folder) {
+        for(Iterator<java.util.Map.Entry<Key, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            java.util.Map.Entry<Key, Entry> me = it.next();
+            if(me.getKey().folder == folder) {
+                size -= me.getValue().size;
+                it.remove();
+            }
+        }
+        for(Iterator<Key> it = dropped.keySet().iterator(); it.hasNext(); ) {
+            if(it.next().folder == folder)
+                it.remove();
+        }
+    }
+    
+    /**
+     * Pins an object, so that it is not dropped from the cache, until
+     * unpinned the same number of times.
+     */
+    public synchronized void pin(Object value) {
+        if(value == null)
+            return;
+        Integer cnt = pinned.get(value);
+        pinned.put(value, new Integer(cnt == null ? 1 : cnt.intValue() + 1));
+    }
+    
+    public void unpin(Object value) {
+        synchronized(folderLock) {
+            synchronized(this) {
+                Integer cnt = pinned.get(value);
+                if(cnt == null)
+                    return;
+                if(cnt.intValue() <= 1) {
+                    pinned.remove(value);
+                    evict();
+                } else {
+                    pinned.put(value, new Integer(cnt.intValue() - 1));
+                }
+            }
+        }
+    }
+    
+    public synchronized boolean isPinned(Object value) {
+        return pinned.containsKey(value);
+    }
+    
+    // can the object be dropped
+    protected boolean isEvictable(Object value) {
+        if(pinned.containsKey(value))
+            return false;
+        // the texture id can only be deleted in the OGL thread, and 
+        // the folder cleanup needs the image to delete it
+        if(value instanceof Image && ((Image)value).getTextureId() != 0)
+            return false;
+        return true;
+    }
+    
+    // drop the least recently used objects, until we are in budget
+    // called with both the folder lock and the lock of the cache held
+    protected void evict() {
+        if(budget <= 0 || size <= budget)
+            return;
+        for(Iterator<java.util.Map.Entry<Key, Entry>> it = entries.entrySet().iterator(); 
+                it.hasNext() && size > budget; ) {
+            java.util.Map.Entry<Key, Entry> me = it.next();
+            Entry e = me.getValue();
+            if(!isEvictable(e.value))
+                continue;
+            Key k = me.getKey();
+            it.remove();
+            size -= e.size;
+            evictions++;
+            dropped.put(k, new SoftReference<Object>(e.value));
+            k.folder.evictCached(k.key);
+        }
+        if(size > budget && logger.isLoggable(Level.FINE)) {
+            logger.fine("Resource cache over budget with pinned objects: "+size+" bytes");
+        }
+    }
+    
+    /**
+     * Estimates the memory used by an object.
+     */
+    public static long sizeOf(Object value) {
+        if(value == null)
+            return 0;
+        if(value instanceof Buffer) {
+            return sizeOf((Buffer) value);
+        }
+        if(value instanceof Image) {
+            Image img = (Image) value;
+            if(img.getData() != null)
+                return img.getData().capacity();
+            return (long) img.getWidth() * img.getHeight() * 4;
+        }
+        if(value instanceof Texture) {
+            // the image is accounted separately
+            return 256;
+        }
+        if(value instanceof ModelPack) {
+            return ((ModelPack)value).getDataSize() + DEFAULT_SIZE;
+        }
+        return DEFAULT_SIZE;
+    }
+    
+    public static long sizeOf(Buffer b) {
+        if(b == null)
+            return 0;
+        long cap = b.capacity();
+        if(b instanceof ByteBuffer)
+            return cap;
+        if(b instanceof ShortBuffer)
+            return cap*2;
+        if(b instanceof IntBuffer || b instanceof FloatBuffer)
+            return cap*4;
+        if(b instanceof LongBuffer || b instanceof DoubleBuffer)
+            return cap*8;
+        return cap*2;
+    }
+    
+    public synchronized long getSize() {
+        return size;
+    }
+    
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+    
+    // the number of dropped objects given back from soft references
+    public synchronized long getRecovered() {
+        return recovered;
+    }
+    
+    public synchronized void resetStats() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        recovered = 0;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "ResourceCache: " + entries.size() + " objects, " + (size / 1024) + "/" 
+                + (budget / 1024) + " KB, hits " + hits + ", misses " + misses 
+                + ", evictions " + evictions + ", recovered " + recovered;
+    }
+}
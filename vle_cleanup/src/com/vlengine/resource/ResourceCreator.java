@@ -265,6 +265,9 @@ public class ResourceCreator {
             if( data != null ) {
                 MD5BoneAnimation omod = md5animLoader.convert(data, parameters);
                 omod.name = name;
+                if(app.conf.animCompression) {
+                    omod.compress(app.conf.animCompressionAngle, app.conf.animCompressionTranslation);
+                }
                 // add it to the cashed
                 rof.addCached(newName, omod);
                 return;
@@ -362,6 +365,10 @@ public class ResourceCreator {
             mp.setName(name.substring(0, name.length()-8));
             mp.load(rof.getCachePathFull());
             if(mp!=null) {
+                // convert the XML descriptor to binary, for faster loading next time
+                if(!mp.isLoadedBinary()) {
+                    mp.saveBinary(rof.getCachePathFull());
+                }
                 rof.addCached(name, mp);
             }
         }
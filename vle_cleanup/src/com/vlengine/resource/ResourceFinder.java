@@ -82,6 +82,12 @@ public class ResourceFinder {
     
     private Config conf;
     private AppContext app;
+    
+    // the background loader, created on first async request
+    private ResourceLoader loader;
+    
+    // the memory budget of the objects held by the folders
+    private final ResourceCache cache;
 
     private static class FolderComparator implements Comparator {
         public int compare(Object o1, Object o2) {
@@ -95,6 +101,8 @@ public class ResourceFinder {
     public ResourceFinder(AppContext app) {
         conf = app.conf;
         this.app = app;
+        // the folders are accessed in getResource, under our lock
+        cache = new ResourceCache(conf.resourceCacheBudget, this);
     }
     
     public void setResourceCreator(ResourceCreator roc) {
@@ -226,6 +234,7 @@ public class ResourceFinder {
         
         // refresh all the file lists in folders
         for( int i=0, m=folders.size(); i<m; i++ ) {
+            folders.get(i).setCache(cache);
             folders.get(i).readFileList();
         }
         // sort resource folders by length of their id
@@ -252,6 +261,7 @@ public class ResourceFinder {
         fol.setCachePath(id);
         fol.setMod(mod);
         fol.setResourcePath(folder);
+        fol.setCache(cache);
         folders.add( fol );
     }
     
@@ -259,6 +269,25 @@ public class ResourceFinder {
         return folders;
     }
     
+    public ResourceCache getResourceCache() {
+        return cache;
+    }
+    
+    /**
+     * Prevents a loaded resource (for example a texture or model in use) 
+     * from being dropped from memory, when the resource budget is exceeded.
+     * Every pin should be matched by an unpin. Resources are not pinned
+     * automatically, since nothing tells when they are no longer used,
+     * only images uploaded to the card are never dropped.
+     */
+    public void pinResource(Object resource) {
+        cache.pin(resource);
+    }
+    
+    public void unpinResource(Object resource) {
+        cache.unpin(resource);
+    }
+    
     /*
     public FastList<ObjectStore> getObjectLists() {
         return items;
@@ -386,6 +415,68 @@ public class ResourceFinder {
         return null;
     }
     
+    /**
+     * Gets a resource by its type, this is the entry point for the
+     * background loader.
+     */
+    protected Object getResource(String name, int type, ParameterMap params) {
+        switch(type) {
+            case RESOURCE_IMAGE: return getImage(name, params);
+            case RESOURCE_TEXTURE: return getTexture(name, params);
+            case RESOURCE_FILE: return getFile(name, params);
+            case RESOURCE_MODEL: return getModel(name, params);
+            case RESOURCE_MODELPACK: return getModelPack(name, params);
+            case RESOURCE_MTLLIB: return getObjMaterialLib(name, params);
+            case RESOURCE_AUDIO: return getAudioTrack(name, params);
+            case RESOURCE_ANIMATION: return getAnimation(name, params);
+            case RESOURCE_XML: return getXML(name, params);
+        }
+        logger.warning("Unknown resource type "+type+" for "+name);
+        return null;
+    }
+    
+    /**
+     * Requests a resource to be loaded in the background. The listener
+     * (if given) is called in the OGL thread when the resource is loaded.
+     * Requesting the same resource again does not load it twice.
+     * 
+     * @param name      The name of the resource
+     * @param type      One of the RESOURCE_ constants
+     * @param params    The parameters, same as for the blocking getters
+     * @param priority  ResourceRequest.PRIORITY_NOW, PRIORITY_PREFETCH or lower
+     * @param listener  The listener to call, can be null
+     * @return          The request, which can be polled or waited on
+     */
+    public ResourceRequest requestResource(String name, int type, ParameterMap params, int priority, ResourceListener listener) {
+        if(type == RESOURCE_MODELPACK && !name.endsWith(".pack.gz"))
+            name = name + ".pack.gz";
+        return getLoader().request(name, type, params, priority, listener);
+    }
+    
+    public ResourceRequest getTextureAsync(String name, ParameterMap params, ResourceListener listener) {
+        return requestResource(name, RESOURCE_TEXTURE, params, ResourceRequest.PRIORITY_NOW, listener);
+    }
+    
+    public ResourceRequest getModelPackAsync(String name, ParameterMap params, ResourceListener listener) {
+        return requestResource(name, RESOURCE_MODELPACK, params, ResourceRequest.PRIORITY_NOW, listener);
+    }
+    
+    public ResourceRequest getAudioTrackAsync(String name, ParameterMap params, ResourceListener listener) {
+        return requestResource(name, RESOURCE_AUDIO, params, ResourceRequest.PRIORITY_NOW, listener);
+    }
+    
+    // request a resource to be loaded, when there is nothing else to load
+    public ResourceRequest prefetchResource(String name, int type, ParameterMap params) {
+        return requestResource(name, type, params, ResourceRequest.PRIORITY_PREFETCH, null);
+    }
+    
+    protected synchronized ResourceLoader getLoader() {
+        if(loader == null) {
+            loader = new ResourceLoader(this, app, conf.resourceIoThreads, conf.resourceDecodeThreads);
+        }
+        return loader;
+    }
+    
     /*
     public TerrainInfo getTerrainInfo(String name, ParameterMap params) {
         ResourceFolderNL rf = findResource(name, params);
@@ -509,6 +600,10 @@ public class ResourceFinder {
     }
     
     public void cleanup() {
+        // stop background loading
+        if(loader != null) {
+            loader.shutdown();
+        }
         // go trough all the folders
         for(int i=0; i<folders.size(); i++) {
             ResourceFolder rf = folders.get(i);
@@ -36,12 +36,14 @@ import com.vlengine.app.AppContext;
 import com.vlengine.app.Config;
 import com.vlengine.image.Texture;
 import com.vlengine.util.FastList;
+import com.vlengine.util.geom.BufferUtils;
 import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -104,9 +106,16 @@ public class ResourceFolder {
     // the list of all files in this folder
     private FastList<String> allfiles = null;
     
+    // files read in advance by the ResourceLoader, by cache
+    // or design path and name
+    protected final ConcurrentHashMap<String, ByteBuffer> prefetched = new ConcurrentHashMap<String, ByteBuffer>();
+    
     // the application we are serving
     protected Config conf;
     
+    // the budget keeping the created objects, null if not limited
+    protected ResourceCache cache;
+    
     
     public ResourceFolder(AppContext app) {
         this.conf = app.conf;
@@ -253,20 +262,65 @@ public class ResourceFolder {
         return allfiles;
     }
     
+    public void setCache(ResourceCache cache) {
+        this.cache = cache;
+    }
+    
+    public ResourceCache getCache() {
+        return cache;
+    }
+    
     protected void addCached( String name, Object data ) {
         cached.put(name, data);
+        if(cache != null && data != null)
+            cache.add(this, name, data);
     }
     
     protected void addCached( TextureKey name, Texture data ) {
         cached.put(name, data);
+        if(cache != null && data != null)
+            cache.add(this, name, data);
     }
     
     public Object getCached(String name) {
-        return cached.get(name);
+        return getCachedObject(name);
     }
     
     public Texture getCached(TextureKey name) {
-        return (Texture) cached.get(name);
+        return (Texture) getCachedObject(name);
+    }
+    
+    protected Object getCachedObject(Object name) {
+        Object data = cached.get(name);
+        if(cache != null) {
+            if(data != null) {
+                cache.hit(this, name);
+            } else {
+                // maybe it was dropped, but is still in memory
+                data = cache.recover(this, name);
+                if(data != null)
+                    addCached(name, data);
+            }
+        }
+        return data;
+    }
+    
+    private void addCached(Object name, Object data) {
+        if(name instanceof TextureKey)
+            addCached((TextureKey)name, (Texture)data);
+        else
+            addCached((String)name, data);
+    }
+    
+    /**
+     * Called by the ResourceCache to drop an object. Names of files are 
+     * kept, so that the file is loaded again on the next request.
+     */
+    protected void evictCached(Object name) {
+        if(name instanceof String)
+            cached.put(name, null);
+        else
+            cached.remove(name);
     }
     
     public boolean isCached(String name) {
@@ -290,6 +344,10 @@ public class ResourceFolder {
         //if( data == null ) {
             // load it from file, no need for direct buffer
         String fullname = getCachePathFull() + "/" + name;
+        data = getPrefetched(fullname, params);
+        if(data != null) {
+            return data;
+        }
         if(new File(fullname).exists()) {
             data = FileResource.load( fullname, params);
         }
@@ -338,11 +396,74 @@ public class ResourceFolder {
                 //prepared.get(name);
         //if( data == null ) {
             // load it from file, no need for direct buffer
-            data = FileResource.load( getDesignPathFull() + "/" + name, params);
+            String fullname = getDesignPathFull() + "/" + name;
+            data = getPrefetched(fullname, params);
+            if(data == null) {
+                data = FileResource.load( fullname, params);
+            }
         //}
         return data;
     }
 
+    /**
+     * Reads the file with the given name from the cache or design path
+     * into memory, for the next loadPrepared or loadDesigned. Does not 
+     * touch the file lists, so it can be called from any thread.
+     * @return true if the file was found
+     */
+    public boolean prefetch(String name) {
+        boolean found = false;
+        if( conf.p_usecaching && cachepath != null ) {
+            found |= prefetchFile(getCachePathFull() + "/" + name);
+        }
+        if( conf.p_use_design_path && getDesignPathFull() != null ) {
+            found |= prefetchFile(getDesignPathFull() + "/" + name);
+        }
+        return found;
+    }
+    
+    private boolean prefetchFile(String fullname) {
+        if(prefetched.containsKey(fullname))
+            return true;
+        File f = new File(fullname);
+        if(!f.isFile())
+            return false;
+        ByteBuffer data = FileResource.load(fullname, ParameterMap.NODIRECTBUFFER);
+        if(data == null)
+            return false;
+        prefetched.put(fullname, data);
+        return true;
+    }
+    
+    // removes the prefetched files, if they were not used
+    public void dropPrefetched(String name) {
+        if( cachepath != null )
+            prefetched.remove(getCachePathFull() + "/" + name);
+        if( getDesignPathFull() != null )
+            prefetched.remove(getDesignPathFull() + "/" + name);
+    }
+    
+    // gets the prefetched data for a file, the prefetched data is in
+    // heap buffer, copy it into direct buffer if that is requested
+    private ByteBuffer getPrefetched(String fullname, ParameterMap params) {
+        if(prefetched.isEmpty())
+            return null;
+        ByteBuffer data = prefetched.remove(fullname);
+        if(data == null)
+            return null;
+        boolean direct = true;
+        if(params != null) {
+            direct = params.getBoolean(ParameterMap.KEY_DIRECTBUFFER, direct);
+        }
+        if(direct) {
+            ByteBuffer dd = BufferUtils.createByteBuffer(data.remaining());
+            dd.put(data);
+            dd.rewind();
+            data = dd;
+        }
+        return data;
+    }
+
     // request a file, return true, if the file is availible
     // false, if this file cannot be retrieved from this folder
     // the procedure is to request all the files needed
@@ -365,6 +486,9 @@ public class ResourceFolder {
     public void clearMemory() {
         //prepared.clear();
         cached.clear();
+        if(cache != null)
+            cache.clear(this);
+        prefetched.clear();
         designed.clear();
         if(allfiles!=null)
             allfiles.clear();
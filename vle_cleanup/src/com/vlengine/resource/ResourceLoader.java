@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.resource;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.util.FastList;
+import java.util.HashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads resources in the background for ResourceFinder. A request first
+ * goes to the I/O threads, which read the files of the resource into
+ * memory, then to the decode threads, which create the resource object.
+ * Decoding goes trough ResourceFinder.getResource, so it is serialized
+ * with the blocking requests. The listeners of the finished requests are
+ * called trough the ThreadTaskManager of the application, so they run
+ * in the OGL thread.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class ResourceLoader {
+    private static final Logger logger = Logger.getLogger(ResourceLoader.class.getName());
+    
+    protected final ResourceFinder finder;
+    protected final AppContext app;
+    
+    // the requests waiting for reading of files
+    protected final PriorityBlockingQueue<ResourceRequest> ioQueue = new PriorityBlockingQueue<ResourceRequest>();
+    // the requests waiting for creating the resource
+    protected final PriorityBlockingQueue<ResourceRequest> decodeQueue = new PriorityBlockingQueue<ResourceRequest>();
+    
+    // the requests not yet done, by type and name
+    protected final HashMap<String, FastList<ResourceRequest>> pending = new HashMap<String, FastList<ResourceRequest>>();
+    
+    protected long sequence = 0;
+    
+    protected int ioThreads;
+    protected int decodeThreads;
+    protected Thread[] threads;
+    protected volatile boolean running = false;
+    
+    public ResourceLoader(ResourceFinder finder, AppContext app, int ioThreads, int decodeThreads) {
+        this.finder = finder;
+        this.app = app;
+        this.ioThreads = Math.max(1, ioThreads);
+        this.decodeThreads = Math.max(1, decodeThreads);
+    }
+    
+    /**
+     * Requests a resource, if the same resource is already requested, the
+     * existing request is returned, with the priority raised if needed.
+     */
+    public ResourceRequest request(String name, int type, ParameterMap params, int priority, ResourceListener listener) {
+        ResourceRequest req = null;
+        synchronized(pending) {
+            start();
+            String key = type + ":" + name;
+            FastList<ResourceRequest> list = pending.get(key);
+            if(list == null) {
+                list = new FastList<ResourceRequest>(1);
+                pending.put(key, list);
+            }
+            for(int i=0; i<list.size() && req == null; i++) {
+                if(list.get(i).matches(name, type, params))
+                    req = list.get(i);
+            }
+            if(req == null) {
+                req = new ResourceRequest(this, name, type, params, priority);
+                req.sequence = sequence++;
+                list.add(req);
+                ioQueue.add(req);
+            } else if(priority < req.getPriority()) {
+                // raise the priority, the request is reinserted, if its still waiting
+                if(ioQueue.remove(req)) {
+                    setPriority(req, priority);
+                    ioQueue.add(req);
+                } else if(decodeQueue.remove(req)) {
+                    setPriority(req, priority);
+                    decodeQueue.add(req);
+                } else {
+                    setPriority(req, priority);
+                }
+            }
+        }
+        req.addListener(listener);
+        return req;
+    }
+    
+    private void setPriority(ResourceRequest req, int priority) {
+        synchronized(req) {
+            req.priority = priority;
+        }
+    }
+
+    protected void start() {
+        if(running)
+            return;
+        running = true;
+        threads = new Thread[ioThreads + decodeThreads];
+        for(int i=0; i<threads.length; i++) {
+            final boolean io = i < ioThreads;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    work(io);
+                }
+            }, (io ? "ResourceIO-" : "ResourceDecode-") + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+    
+    protected void work(boolean io) {
+        PriorityBlockingQueue<ResourceRequest> queue = io ? ioQueue : decodeQueue;
+        while(running) {
+            ResourceRequest req;
+            try {
+                req = queue.take();
+            } catch (InterruptedException ex) {
+                continue;
+            }
+            if(io) {
+                try {
+                    prefetch(req);
+                } catch(Exception ex) {
+                    logger.log(Level.WARNING, "Cannot read "+req.getName(), ex);
+                }
+                decodeQueue.add(req);
+            } else {
+                Object result = null;
+                try {
+                    result = finder.getResource(req.getName(), req.getType(), req.getParams());
+                } catch(Exception ex) {
+                    logger.log(Level.SEVERE, "Cannot load "+req.getName(), ex);
+                }
+                finish(req, result);
+            }
+        }
+    }
+    
+    /**
+     * Reads the files of the resource from the cache or design folders,
+     * the folder file lists are not used, as they are modified
+     * by the decoding.
+     */
+    protected void prefetch(ResourceRequest req) {
+        String nm = ResourceFinder.getConvertedName(req.getName());
+        FastList<ResourceFolder> folders = finder.getFolderList();
+        for(int i=0, mi=folders.size(); i<mi; i++) {
+            ResourceFolder rf = folders.get(i);
+            if(rf.prefetch(nm) | (!nm.equals(req.getName()) && rf.prefetch(req.getName()))) {
+                req.prefetched.add(rf);
+                return;
+            }
+        }
+    }
+    
+    protected void finish(ResourceRequest req, Object result) {
+        // drop the read files, which were not used
+        for(int i=0; i<req.prefetched.size(); i++) {
+            ResourceFolder rf = req.prefetched.get(i);
+            rf.dropPrefetched(ResourceFinder.getConvertedName(req.getName()));
+            rf.dropPrefetched(req.getName());
+        }
+        req.prefetched.clear();
+        synchronized(pending) {
+            String key = req.getType() + ":" + req.getName();
+            FastList<ResourceRequest> list = pending.get(key);
+            if(list != null) {
+                list.remove(req);
+                if(list.size() == 0)
+                    pending.remove(key);
+            }
+        }
+        req.complete(result);
+    }
+    
+    /**
+     * Calls the listener in the OGL thread, or right away,
+     * if there is no ThreadTaskManager.
+     */
+    protected void dispatch(final ResourceRequest req, final ResourceListener l) {
+        Runnable r = new Runnable() {
+            public void run() {
+                l.resourceLoaded(req);
+            }
+        };
+        if(app != null && app.glQueue != null) {
+            app.glQueue.invokeLater(r);
+        } else {
+            try {
+                r.run();
+            } catch(Exception ex) {
+                logger.log(Level.WARNING, "Listener caused exception", ex);
+            }
+        }
+    }
+    
+    /**
+     * Stops the loader threads, the requests waiting are dropped.
+     */
+    public void shutdown() {
+        synchronized(pending) {
+            if(!running)
+                return;
+            running = false;
+            for(int i=0; i<threads.length; i++) {
+                threads[i].interrupt();
+            }
+            threads = null;
+            ioQueue.clear();
+            decodeQueue.clear();
+            // release the ones waiting for the dropped requests
+            for(FastList<ResourceRequest> list : pending.values()) {
+                for(int i=0; i<list.size(); i++) {
+                    list.get(i).complete(null);
+                }
+            }
+            pending.clear();
+        }
+    }
+}
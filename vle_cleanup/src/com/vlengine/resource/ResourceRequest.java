@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.resource;
+
+import com.vlengine.util.FastList;
+
+/**
+ * An asynchronous request for a resource, returned by ResourceFinder.
+ * The same request is returned for all the requests for the same
+ * resource while its loading.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class ResourceRequest implements Comparable<ResourceRequest> {
+
+    // the resource is needed for the current view
+    public static final int PRIORITY_NOW = 0;
+    // the resource will be needed later
+    public static final int PRIORITY_PREFETCH = 1;
+    
+    protected final String name;
+    protected final int type;
+    protected final ParameterMap params;
+    
+    // the priority, lower is more important, only changed
+    // while the request is not in a queue
+    protected int priority;
+    // order of the requests with the same priority
+    protected long sequence;
+    
+    protected Object result;
+    protected boolean done = false;
+    
+    // the listeners to notify, when done
+    protected final FastList<ResourceListener> listeners = new FastList<ResourceListener>(1);
+    
+    // the folders, where the files of this request were read in advance
+    protected final FastList<ResourceFolder> prefetched = new FastList<ResourceFolder>(1);
+    
+    protected ResourceLoader loader;
+    
+    protected ResourceRequest(ResourceLoader loader, String name, int type, ParameterMap params, int priority) {
+        this.loader = loader;
+        this.name = name;
+        this.type = type;
+        // the caller may reuse its map
+        this.params = new ParameterMap();
+        if(params != null) {
+            this.params.putAll(params);
+        }
+        this.priority = priority;
+    }
+    
+    public String getName() {
+        return name;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public ParameterMap getParams() {
+        return params;
+    }
+
+    public synchronized int getPriority() {
+        return priority;
+    }
+    
+    public synchronized boolean isDone() {
+        return done;
+    }
+    
+    /**
+     * The loaded resource, or null, if its not loaded (yet)
+     */
+    public synchronized Object getResult() {
+        return result;
+    }
+
+    /**
+     * Waits for the resource to load.
+     */
+    public synchronized Object get() throws InterruptedException {
+        while(!done) {
+            wait();
+        }
+        return result;
+    }
+
+    /**
+     * Waits at most the given milliseconds for the resource to load.
+     */
+    public synchronized Object get(long millis) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        while(!done) {
+            long left = end - System.currentTimeMillis();
+            if(left <= 0)
+                break;
+            wait(left);
+        }
+        return result;
+    }
+    
+    /**
+     * Adds a listener, if the request is already done, the listener is
+     * notified right away.
+     */
+    public void addListener(ResourceListener l) {
+        if(l == null)
+            return;
+        synchronized(this) {
+            if(!done) {
+                listeners.add(l);
+                return;
+            }
+        }
+        loader.dispatch(this, l);
+    }
+    
+    protected boolean matches(String name, int type, ParameterMap params) {
+        return this.type == type && this.name.equals(name)
+                && this.params.equals(params != null ? params : ParameterMap.MAP_EMPTY);
+    }
+    
+    protected void complete(Object result) {
+        FastList<ResourceListener> toNotify;
+        synchronized(this) {
+            if(done)
+                return;
+            this.result = result;
+            done = true;
+            notifyAll();
+            toNotify = new FastList<ResourceListener>(listeners.size());
+            toNotify.addAll(listeners);
+            listeners.clear();
+        }
+        for(int i=0; i<toNotify.size(); i++) {
+            loader.dispatch(this, toNotify.get(i));
+        }
+    }
+
+    public int compareTo(ResourceRequest o) {
+        if(priority != o.priority)
+            return priority < o.priority ? -1 : 1;
+        return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+    }
+}
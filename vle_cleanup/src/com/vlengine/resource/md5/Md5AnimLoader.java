@@ -42,6 +42,7 @@ import com.vlengine.resource.ParameterMap;
 import com.vlengine.scene.animation.MD5.MD5BoneAnimation;
 import com.vlengine.resource.obj.Tokens;
 import com.vlengine.util.BufferInputStream;
+import com.vlengine.util.IntList;
 import com.vlengine.scene.animation.MD5.MD5AnimationFrame;
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -110,8 +111,13 @@ public class Md5AnimLoader {
     
     protected void processLine(String line) {
         if (line == null || line.length() == 0) return;
+        // strip trailing comments
+        int comment = line.indexOf("//");
+        if(comment >= 0)
+            line = line.substring(0, comment);
         
-        Tokens tokens = new Tokens(line);
+        // brackets carry no information, drop them with the whitespace
+        Tokens tokens = new Tokens(line, " \t\r\n()");
         if (tokens.isEmpty()) return;
         String token = tokens.pop();
         
@@ -145,6 +151,7 @@ public class Md5AnimLoader {
                 obj.jointParent = new int[obj.numJoints];
                 obj.jointTransformMask = new int[obj.numJoints];
                 obj.jointStartIndex = new int[obj.numJoints];
+                obj.transformJoint = new IntList(obj.numJoints*6);
                 return;
             } else if("frameRate".equals(token)) {
                 obj.frameRate = Integer.parseInt(tokens.pop());
@@ -174,6 +181,8 @@ public class Md5AnimLoader {
                 currentTransform = 0;
                 // allocate transform arrays
                 obj.baseFrame = new MD5AnimationFrame();
+                obj.baseFrame.translation = new Vector3f[obj.numJoints];
+                obj.baseFrame.rotation = new Quaternion[obj.numJoints];
                 //obj.baseTranslation = new Vector3f[obj.numJoints];
                 //obj.baseRotatition = new Quaternion[obj.numJoints];
                 return;
@@ -185,6 +194,7 @@ public class Md5AnimLoader {
                 // get index
                 currentFrame = Integer.parseInt(tokens.pop());
                 // allocate transform arrays
+                obj.frame[currentFrame] = new MD5AnimationFrame();
                 obj.frame[currentFrame].translation = new Vector3f[obj.numJoints];
                 obj.frame[currentFrame].rotation = new Quaternion[obj.numJoints];
                 // fill in default data from baseframe
@@ -209,10 +219,10 @@ public class Md5AnimLoader {
             obj.jointParent[currentJoint] = Integer.parseInt(tokens.pop());
             obj.jointTransformMask[currentJoint] = Integer.parseInt(tokens.pop());
             obj.jointStartIndex[currentJoint] = Integer.parseInt(tokens.pop());
-            if(obj.jointTransformMask[currentJoint]!=0) {
-                // store joint number by data start index
-                obj.transformJoint.ensureCapacity(obj.jointStartIndex[currentJoint]+1);
-                obj.transformJoint.set(obj.jointStartIndex[currentJoint], currentJoint);
+            // store joint number for each of its animated components
+            int components = Integer.bitCount(obj.jointTransformMask[currentJoint]);
+            for(int i=0; i<components; i++) {
+                obj.transformJoint.set(obj.jointStartIndex[currentJoint]+i, currentJoint);
             }
 
             // increase joint number
@@ -226,13 +236,12 @@ public class Md5AnimLoader {
             }
             // create new bound (BoundingBox)
             //( -20.5229568481 -17.552526474 -2.1456007957 ) ( 26.4583339691 16.6007442474 68.7835159302 )
-            // skip bracket
             // create min and max vector
             obj.boundMin[currentBound] = new Vector3f();
             obj.boundMax[currentBound] = new Vector3f();
             // read data
             // bound min
-            obj.boundMin[currentBound].x = Float.parseFloat(tokens.pop());
+            obj.boundMin[currentBound].x = Float.parseFloat(token);
             obj.boundMin[currentBound].y = Float.parseFloat(tokens.pop());
             obj.boundMin[currentBound].z = Float.parseFloat(tokens.pop());
             // bound max
@@ -254,14 +263,10 @@ public class Md5AnimLoader {
             obj.baseFrame.rotation[currentTransform] = new Quaternion();
             
             // ( 0 0 0 ) ( -0.5 -0.5 -0.5 )
-            // skipped bracket
             // translation
-            obj.baseFrame.translation[currentTransform].x = Float.parseFloat(tokens.pop());
+            obj.baseFrame.translation[currentTransform].x = Float.parseFloat(token);
             obj.baseFrame.translation[currentTransform].y = Float.parseFloat(tokens.pop());
             obj.baseFrame.translation[currentTransform].z = Float.parseFloat(tokens.pop());
-            // skip backets
-            //tokens.pop();
-            //tokens.pop();
             // rotation
             obj.baseFrame.rotation[currentTransform].x = Float.parseFloat(tokens.pop());
             obj.baseFrame.rotation[currentTransform].y = Float.parseFloat(tokens.pop());
@@ -279,57 +284,38 @@ public class Md5AnimLoader {
                 section = 0;
                 return;
             }
-            // get which joint we are putting data into
-            int joint = obj.transformJoint.get(currentFrameData);
-            // based on bitmask get data into proper places
-            if((obj.jointTransformMask[joint]&(1))!=0) {
-                // translation x
-                obj.frame[currentFrame].translation[joint].x = Float.parseFloat(token);
-                if(!tokens.isEmpty())
-                    token = tokens.pop();
-                currentFrameData++;
-            }
-            if((obj.jointTransformMask[joint]&(1<<1))!=0) {
-                // translation y
-                obj.frame[currentFrame].translation[joint].y = Float.parseFloat(token);
-                if(!tokens.isEmpty())
-                    token = tokens.pop();
-                currentFrameData++;
-            }
-            if((obj.jointTransformMask[joint]&(1<<2))!=0) {
-                // translation z
-                obj.frame[currentFrame].translation[joint].z = Float.parseFloat(token);
-                if(!tokens.isEmpty())
-                    token = tokens.pop();
-                currentFrameData++;
-            }
-            boolean computew = false;
-            if((obj.jointTransformMask[joint]&(1<<3))!=0) {
-                // rotation x
-                obj.frame[currentFrame].rotation[joint].x = Float.parseFloat(token);
-                computew = true;
-                if(!tokens.isEmpty())
-                    token = tokens.pop();
-                currentFrameData++;
-            }
-            if((obj.jointTransformMask[joint]&(1<<4))!=0) {
-                // rotation y
-                obj.frame[currentFrame].rotation[joint].y = Float.parseFloat(token);
-                computew = true;
-                if(!tokens.isEmpty())
-                    token = tokens.pop();
-                currentFrameData++;
-            }
-            if((obj.jointTransformMask[joint]&(1<<5))!=0) {
-                // rotation x
-                obj.frame[currentFrame].rotation[joint].y = Float.parseFloat(token);
-                computew = true;
-                if(!tokens.isEmpty())
-                    token = tokens.pop();
+            // the components are listed in a stream, not bound to lines
+            MD5AnimationFrame frm = obj.frame[currentFrame];
+            while(true) {
+                float value = Float.parseFloat(token);
+                // get which joint we are putting data into
+                int joint = obj.transformJoint.get(currentFrameData);
+                // find which component of the joint this is, based on bitmask
+                int mask = obj.jointTransformMask[joint];
+                int component = currentFrameData - obj.jointStartIndex[joint];
+                int bit = 0;
+                for(; bit<6; bit++) {
+                    if((mask&(1<<bit))!=0) {
+                        if(component==0)
+                            break;
+                        component--;
+                    }
+                }
+                switch(bit) {
+                    case 0: frm.translation[joint].x = value; break;
+                    case 1: frm.translation[joint].y = value; break;
+                    case 2: frm.translation[joint].z = value; break;
+                    case 3: frm.rotation[joint].x = value; break;
+                    case 4: frm.rotation[joint].y = value; break;
+                    case 5: frm.rotation[joint].z = value; break;
+                }
+                if(bit>=3) {
+                    frm.rotation[joint].computeW();
+                }
                 currentFrameData++;
-            }
-            if(computew) {
-                obj.frame[currentFrame].rotation[joint].computeW();
+                if(tokens.isEmpty())
+                    break;
+                token = tokens.pop();
             }
         }
     }
@@ -47,6 +47,7 @@ import com.vlengine.renderer.material.MatParameters;
 import com.vlengine.renderer.material.Material;
 import com.vlengine.renderer.material.MaterialLib;
 import com.vlengine.resource.ParameterMap;
+import com.vlengine.scene.InstancedMesh;
 import com.vlengine.scene.LodMesh;
 import com.vlengine.scene.SceneElement;
 import com.vlengine.scene.SetNode;
@@ -57,6 +58,7 @@ import com.vlengine.scene.animation.x.XBoneAnimationController;
 import com.vlengine.scene.animation.x.XBoneAnimationPack;
 import com.vlengine.scene.animation.x.XGPUAnimatedItem;
 import com.vlengine.scene.animation.x.XSoftSkinner;
+import com.vlengine.scene.batch.InstancedBatch;
 import com.vlengine.scene.batch.TriBatch;
 import com.vlengine.scene.state.shader.ShaderVariableMatrix4Buffer;
 import com.vlengine.util.FastList;
@@ -101,6 +103,9 @@ public class Model {
     // all the parts of the model
     protected FastList<FastList<ModelPart>> modelLod = new FastList<FastList<ModelPart>>();
     
+    // the geometric error of each lod compared to lod 0, in model space
+    protected float[] lodError;
+    
     // the materials in this model
     protected HashMap<String, ModelMaterial> materials = new HashMap<String, ModelMaterial>();
     
@@ -134,6 +139,8 @@ public class Model {
             Element lode = new Element("lod");
             mode.addContent(lode);
             lode.addContent(new Element("index").setText(lod));
+            if(getLodError(lod) > 0)
+                lode.addContent(new Element("error").setText(getLodError(lod)));
             FastList<ModelPart> plist = modelLod.get(lod);
             for(int mi = 0; mi<plist.size(); mi++) {
                 Element parte = new Element("mesh");
@@ -214,6 +221,8 @@ public class Model {
                 mplist = new FastList<ModelPart>();
                 modelLod.set(index, mplist);
             }
+            if(lode.getChild("error") != null)
+                setLodError(index, lode.getChildfloat("error"));
             FastList<Element> meshlist = lode.getChildren("mesh");
             for(int j=0; j<meshlist.size(); j++) {
                 Element parte = meshlist.get(j);
@@ -235,6 +244,107 @@ public class Model {
         }
     }
 
+    protected void save(ModelPackWriter out) {
+        out.putString(name);
+        // save the materials
+        out.putInt(materials.size());
+        for(ModelMaterial mma : materials.values()) {
+            mma.save(out);
+        }
+        // save the parts
+        out.putInt(modelLod.size());
+        for(int lod=0; lod<modelLod.size(); lod++) {
+            FastList<ModelPart> plist = modelLod.get(lod);
+            if(plist == null) {
+                out.putInt(-1);
+                continue;
+            }
+            out.putInt(plist.size());
+            for(int mi = 0; mi<plist.size(); mi++) {
+                plist.get(mi).save(out);
+            }
+        }
+        out.putVector(cellSize);
+        for(int lod=0; lod<modelLod.size(); lod++) {
+            out.putFloat(getLodError(lod));
+        }
+        // the collision volume, if it was built
+        boolean hasVolume = collVolume != null && collVolume.getCells() != null;
+        out.putBoolean(hasVolume);
+        if(hasVolume)
+            collVolume.save(out);
+        // TODO: save the animations
+    }
+
+    protected void load(ModelPackReader in) {
+        name = in.getString();
+        // load the materials
+        int nummat = in.getInt();
+        for(int i=0; i<nummat; i++) {
+            ModelMaterial mma = new ModelMaterial();
+            mma.load(in);
+            materials.put(mma.id, mma);
+        }
+        int numlod = in.getInt();
+        modelLod.ensureCapacity(numlod);
+        for(int lod=0; lod<numlod; lod++) {
+            int numparts = in.getInt();
+            if(numparts < 0) {
+                modelLod.set(lod, null);
+                continue;
+            }
+            FastList<ModelPart> mplist = new FastList<ModelPart>(Math.max(numparts, 1));
+            modelLod.set(lod, mplist);
+            for(int j=0; j<numparts; j++) {
+                ModelPart prt = new ModelPart();
+                prt.load(in);
+                mplist.add(prt);
+            }
+        }
+        cellSize = in.getVector();
+        if(in.getVersion() >= 2) {
+            for(int lod=0; lod<numlod; lod++) {
+                float err = in.getFloat();
+                if(err > 0)
+                    setLodError(lod, err);
+            }
+        }
+        if(in.getVersion() >= 3 && in.getBoolean()) {
+            collVolume = CollisionVolume.load(in);
+        }
+    }
+
+    /**
+     * Builds the collision volume of the model from the most detailed lod.
+     */
+    public CollisionVolume buildCollisionVolume(Vector3f csize) {
+        collVolume = new CollisionVolume();
+        collVolume.buildVolume(this, csize);
+        return collVolume;
+    }
+    
+    public CollisionVolume getCollisionVolume() {
+        return collVolume;
+    }
+    
+    /**
+     * Sets the geometric error of the lod, the maximal distance from
+     * the surface of lod 0.
+     */
+    public void setLodError(int lod, float error) {
+        if(lodError == null || lodError.length <= lod) {
+            float[] ne = new float[lod + 1];
+            if(lodError != null)
+                System.arraycopy(lodError, 0, ne, 0, lodError.length);
+            lodError = ne;
+        }
+        lodError[lod] = error;
+    }
+
+    public float getLodError(int lod) {
+        return lodError != null && lodError.length > lod ? lodError[lod] : 0;
+    }
+
     public void addPart(int lod, ModelPart part) {
         modelLod.ensureCapacity(lod);
         FastList<ModelPart> mlod = modelLod.get(lod);
@@ -280,6 +390,7 @@ public class Model {
             xAnimC = new XBoneAnimationController("BoneAnim");
             // set in the animations
             xAnimC.setAniamtionPack(animations);
+            xAnimC.setPoseCache(app.getPoseCache());
         }
         // parameters to pass down to material
         MatParameters matParams = new MatParameters();
@@ -313,6 +424,7 @@ public class Model {
                         // we always create a new skinner
                         XSoftSkinner sa = new XSoftSkinner();
                         sa.setModel((XWeightedGeometry) mp.geom);
+                        sa.setSkinningEngine(app.getSkinningEngine());
                         
                         animItem = sa;
                         xAnimC.getAnimatedItems().add(animItem);
@@ -414,6 +526,10 @@ public class Model {
 
                 tb.setModel(geom);
                 tb.setCullMode(SceneElement.CullMode.DYNAMIC);
+                if(animItem!=null) {
+                    // the animation is updated only if the batch is visible
+                    xAnimC.addLodRenderable(tb);
+                }
                 //tb.setCullMode(SceneElement.CULL_NEVER);
                 // if we have animation, mark that we need skinning shaders
                 matParams.clear();
@@ -446,12 +562,20 @@ public class Model {
         // create the node
         SetNode n = new SetNode(name);
         for(LodMesh mesh:namedparts.values()) {
+            if(lodError != null && mesh.getLodCount() > 1) {
+                // select the lods by their error on screen
+                for(int i=0; i<mesh.getLodCount(); i++) {
+                    mesh.setLodError(i, getLodError(i));
+                }
+                mesh.setLodPixelError(app.conf.lodPixelError);
+            }
             n.attachChild(mesh);
         }
         n.setCullMode(SceneElement.CullMode.DYNAMIC);
         
         // do we need collision volume?
-        if(params.getBoolean("colvolume", false) && this.collVolume == null) {
+        boolean colvolume = params.getBoolean("colvolume", false);
+        if(colvolume && this.collVolume == null) {
             // do we have a scale
             Vector3f csize = cellSize;
             if(csize==null) {
@@ -462,19 +586,19 @@ public class Model {
                     csize = CollisionVolume.DEFAULT_CELLSIZE_STATIC;
                 }
             }
-            // create the volume
-            collVolume = new CollisionVolume();
-            collVolume.buildVolume(this, csize);
+            buildCollisionVolume(csize);
         }
 
-        // if we have a collision volume, attach it to the node
-        if(collVolume!=null) {
+        // attach the collision volume to the node, if it was requested,
+        // the volume can also come built from the modelpack
+        if(colvolume && collVolume!=null) {
             n.setCollisionVolume(collVolume);
         }
 
         // if we have an animation controller attach it
         if(xAnimC!=null && hasAnimated) {
             n.addController(xAnimC);
+            xAnimC.setLod(app.getAnimationLod(), n);
         }
 
         //clear out all the material instances from the materials
@@ -486,6 +610,55 @@ public class Model {
         return n;
     }
 
+    /**
+     * Creates a spatial for placing many instances of this model. Every
+     * part of the most detailed lod becomes one InstancedBatch, sharing
+     * the geometry and the material between all the instances. Bone
+     * animated parts are drawn in the bind pose.
+     */
+    public InstancedMesh getInstancedMesh(AppContext app, ParameterMap params) {
+        InstancedMesh im = new InstancedMesh(name);
+        im.setCullMode(SceneElement.CullMode.DYNAMIC);
+        FastList<ModelPart> lod = modelLod.size() > 0 ? modelLod.get(0) : null;
+        if(lod == null)
+            return im;
+        MatParameters matParams = new MatParameters();
+        for(int j=0; j<lod.size(); j++) {
+            ModelPart mp = lod.get(j);
+            Geometry geom = mp.geom;
+            if(geom instanceof MD5WeightedGeometry)
+                continue;
+            // override vbo and display list mode
+            geom.setVBOMode(params.getInt("vbomode", geom.getVBOMode()));
+            geom.setDisplayListMode(params.getInt("listmode", geom.getDisplayListMode()));
+            if(geom.getVBOMode()!=BaseGeometry.VBO_NO) {
+                geom.createVBOInfos();
+            }
+            InstancedBatch ib = new InstancedBatch(geom);
+            ib.setCullMode(SceneElement.CullMode.DYNAMIC);
+            matParams.clear();
+            if(geom.getAttribBuffer(VertexAttribute.Usage.Normal)==null
+                    || geom.getAttribBuffer(VertexAttribute.Usage.Binormal)==null
+                    || geom.getAttribBuffer(VertexAttribute.Usage.Tangent)==null
+                    ) {
+                // no bump
+                matParams.put(MatParameters.ParamKey.NoTNB, true);
+            }
+            Material mat = mp.modelMaterial.getInstance(app, matParams);
+            if(mat != null) {
+                ib.setMaterial(mat);
+                ib.setRenderQueueMode(mat.getRenderQueueMode());
+                ib.setLightCombineMode(mat.getLightCombineMode());
+            }
+            im.addBatch(ib);
+        }
+        //clear out all the material instances from the materials
+        for(ModelMaterial mm:materials.values()) {
+            mm.material = null;
+        }
+        return im;
+    }
+
     public FastList<FastList<ModelPart>> getLods() {
         return modelLod;
     }
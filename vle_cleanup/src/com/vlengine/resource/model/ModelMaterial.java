@@ -169,6 +169,49 @@ public class ModelMaterial {
         }
     }
 
+    protected void save(ModelPackWriter out) {
+        out.putString(id);
+        out.putString(render_func);
+        out.putFloat(alpha);
+        out.putFloat(dissolve);
+        out.putBoolean(alpha_test);
+        out.putBoolean(alpha_blend);
+        out.putFloat(shininess);
+        out.putFloat(refraction_index);
+        out.putColor(ambient);
+        out.putColor(diffuse);
+        out.putColor(specular);
+        out.putColor(transmissive);
+        out.putColor(emissive);
+        // save the textures
+        out.putInt(textures.size());
+        for(int i=0; i<textures.size(); i++) {
+            textures.get(i).save(out);
+        }
+    }
+
+    protected void load(ModelPackReader in) {
+        id = in.getString();
+        render_func = in.getString();
+        alpha = in.getFloat();
+        dissolve = in.getFloat();
+        alpha_test = in.getBoolean();
+        alpha_blend = in.getBoolean();
+        shininess = in.getFloat();
+        refraction_index = in.getFloat();
+        ambient = in.getColor();
+        diffuse = in.getColor();
+        specular = in.getColor();
+        transmissive = in.getColor();
+        emissive = in.getColor();
+        int numtex = in.getInt();
+        for(int i=0; i<numtex; i++) {
+            ModelMaterialPart mmp = new ModelMaterialPart();
+            mmp.load(in);
+            textures.add(mmp);
+        }
+    }
+
     public Material getInstance(AppContext app, MatParameters params) {
         // check that the params match the materials params
         if(material!=null) {
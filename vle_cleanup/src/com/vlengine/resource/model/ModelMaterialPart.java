@@ -101,6 +101,23 @@ public class ModelMaterialPart {
 
     }
 
+    public void save(ModelPackWriter out) {
+        out.putString(textureName);
+        out.putInt(type.value);
+        out.putVector(translation);
+        out.putVector(scale);
+    }
+
+    public void load(ModelPackReader in) {
+        textureName = in.getString();
+        type = TextureType.getByValue(in.getInt());
+        translation = in.getVector();
+        Vector3f sc = in.getVector();
+        if ( sc != null ) {
+            setScale(sc);
+        }
+    }
+
     public void setTextureName(String textureName) {
         this.textureName = textureName;
         // TODO: determine type by the file name
@@ -36,18 +36,26 @@ import com.vlengine.bounding.BoundingBox;
 import com.vlengine.bounding.CollisionVolume;
 import com.vlengine.model.Geometry;
 import com.vlengine.model.XWeightedGeometry;
+import com.vlengine.resource.FileResource;
+import com.vlengine.resource.ParameterMap;
 import com.vlengine.util.FastList;
 import com.vlengine.util.geom.VertexFormat;
 import com.vlengine.util.xml.Element;
 import com.vlengine.util.xml.XMLFile;
+import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  *
  * @author vear (Arpad Vekas)
  */
 public class ModelPack {
+    private static final Logger logger = Logger.getLogger(ModelPack.class.getName());
+    
     // the name of the modelpack, its used for the
     // file names also.
     protected String name;
@@ -61,6 +69,10 @@ public class ModelPack {
     // and every VBO mode we encounter
     protected HashMap<String, ModelPartPack> createdPacks = new HashMap<String, ModelPartPack>();
 
+    // the path of the binary descriptor, if it was loaded or saved
+    protected String binaryPath;
+    // was the pack loaded from the binary descriptor
+    protected boolean loadedBinary = false;
     
 
     public ModelPack() {};
@@ -128,14 +140,90 @@ public class ModelPack {
         this.path = filepath;
         
         XMLFile.toXML(filepath, doc, true);
+        
+        // the data files are saved, create the binary descriptor too
+        saveBinary(path);
     }
 
+    /**
+     * Saves the binary descriptor of the modelpack, the data files
+     * of the pack parts must have been already saved.
+     * @param path The path where the modelpack is
+     */
+    public boolean saveBinary(String path) {
+        ModelPackWriter out = new ModelPackWriter();
+        // the pack parts
+        out.putInt(createdPacks.size());
+        for(ModelPartPack mpp : createdPacks.values()) {
+            mpp.save(out);
+        }
+        // the models
+        out.putInt(models.size());
+        for(Model mo : models.values()) {
+            mo.save(out);
+        }
+        String filepath = path +"/" + name+".pack.bin";
+        if(out.save(filepath)) {
+            binaryPath = filepath;
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Loads the modelpack, from the binary descriptor if it exists
+     * and is not older than the XML one. If the binary descriptor cannot
+     * be read, the XML one is loaded.
+     * @param path The path where the modelpack is
+     */
     public void load(String path) {
-        
         String filepath = path +"/" + name+".pack.gz";
         this.path = filepath;
         
-        Element doc = XMLFile.fromXML(filepath, true);
+        File xmlfile = new File(filepath);
+        File binfile = new File(path +"/" + name+".pack.bin");
+        if(binfile.exists() && (!xmlfile.exists() || binfile.lastModified() >= xmlfile.lastModified())) {
+            ByteBuffer data = FileResource.load(binfile.getPath(), ParameterMap.NODIRECTBUFFER);
+            if(data != null) {
+                try {
+                    loadBinary(new ModelPackReader(data), path);
+                    binaryPath = binfile.getPath();
+                    loadedBinary = true;
+                    return;
+                } catch(RuntimeException ex) {
+                    // corrupt, truncated or of a newer version
+                    logger.log(Level.WARNING, "Cannot load binary modelpack "+binfile.getPath()
+                            +", loading the XML descriptor", ex);
+                    createdPacks.clear();
+                    models.clear();
+                }
+            }
+        }
+        loadXML(path);
+    }
+    
+    public boolean isLoadedBinary() {
+        return loadedBinary;
+    }
+    
+    protected void loadBinary(ModelPackReader in, String path) {
+        int numpacks = in.getInt();
+        for(int i=0; i<numpacks; i++) {
+            ModelPartPack pp = new ModelPartPack();
+            pp.load(in, path);
+            createdPacks.put(pp.name, pp);
+        }
+        int nummodels = in.getInt();
+        for(int i=0; i<nummodels; i++) {
+            Model mo = new Model();
+            mo.load(in);
+            models.put(mo.name, mo);
+        }
+        createGeometries();
+    }
+    
+    protected void loadXML(String path) {
+        Element doc = XMLFile.fromXML(this.path, true);
         
         Element packparts = doc.getChild("packparts");
         if(packparts!=null) {
@@ -159,7 +247,11 @@ public class ModelPack {
                 models.put(mo.name, mo);
             }
         }
-
+        createGeometries();
+    }
+    
+    // create the geometries of the loaded model parts
+    protected void createGeometries() {
         // process the model parts
         for(Model mo : models.values()) {
             for(int mlod=0; mlod<mo.modelLod.size(); mlod++) {
@@ -249,6 +341,23 @@ public class ModelPack {
         return ms;
     }
     
+    public FastList<ModelPartPack> getPartPacks() {
+        FastList<ModelPartPack> pps = new FastList<ModelPartPack>();
+        for(ModelPartPack pp : createdPacks.values()) {
+            pps.add(pp);
+        }
+        return pps;
+    }
+    
+    // the size of the geometry data of all the parts in bytes
+    public long getDataSize() {
+        long size = 0;
+        for(ModelPartPack pp : createdPacks.values()) {
+            size += pp.getDataSize();
+        }
+        return size;
+    }
+    
     /**
      * Returns the list of files used by this modelpack:
      * geometry and texture files
@@ -261,6 +370,9 @@ public class ModelPack {
             return null;
         // add the main file
         files.add(path);
+        if(binaryPath != null) {
+            files.add(binaryPath);
+        }
         
         // add the files of pack parts
         for(ModelPartPack pp:createdPacks.values()) {
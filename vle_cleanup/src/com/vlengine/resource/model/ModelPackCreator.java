@@ -33,17 +33,24 @@
 package com.vlengine.resource.model;
 
 import com.vlengine.bounding.BoundingBox;
+import com.vlengine.bounding.CollisionVolume;
+import com.vlengine.math.Vector3f;
 import com.vlengine.model.Geometry;
 import com.vlengine.model.XWeightedGeometry;
 import com.vlengine.renderer.VBOAttributeInfo;
+import com.vlengine.resource.util.MeshSimplifier;
 import com.vlengine.resource.util.TangentGenerator;
+import com.vlengine.resource.util.VertexCacheOptimizer;
 import com.vlengine.util.FastList;
 import com.vlengine.util.IntList;
+import com.vlengine.util.geom.GeometryIterator;
 import com.vlengine.util.geom.IndexBuffer;
 import com.vlengine.util.geom.VertexAttribute;
 import com.vlengine.util.geom.VertexBuffer;
 import com.vlengine.util.geom.VertexFormat;
+import com.vlengine.util.geom.VertexIterator;
 import java.nio.FloatBuffer;
+import java.util.HashMap;
 
 
 /**
@@ -62,9 +69,45 @@ public class ModelPackCreator {
     // modelpack we are creating now
     protected ModelPack pack;
     
+    // reorder triangles and vertices for the vertex cache
+    protected boolean optimizeCache = true;
+    // sort triangle clusters to reduce overdraw, needs optimizeCache
+    protected boolean optimizeOverdraw = false;
+    // the triangle ratios of the generated lods, compared to lod 0
+    // for models having only one lod, null to not generate lods
+    protected float[] lodRatios;
+    // build the collision volumes of static models into the pack
+    protected boolean collisionVolumes = false;
+    
     public ModelPackCreator() {
         
     }
+    
+    public void setOptimizeCache(boolean optimize) {
+        this.optimizeCache = optimize;
+    }
+    
+    public void setOptimizeOverdraw(boolean optimize) {
+        this.optimizeOverdraw = optimize;
+    }
+
+    /**
+     * Sets the lods to generate for models which only have the most
+     * detailed lod, each ratio is the fraction of triangles to keep,
+     * in decreasing order, for example {0.5f, 0.25f, 0.1f}. The parts are
+     * simplified separately, with the vertices shared between parts kept.
+     */
+    public void setLodRatios(float[] ratios) {
+        this.lodRatios = ratios;
+    }
+
+    /**
+     * Builds the collision volumes of the not animated models, so they
+     * are loaded from the binary modelpack instead of built at runtime.
+     */
+    public void setCollisionVolumes(boolean build) {
+        this.collisionVolumes = build;
+    }
 
     public void addModel(Model rawModel) {
         unpacked.add(rawModel);
@@ -91,6 +134,13 @@ public class ModelPackCreator {
             pack.models.put(mdl.name, mdl);
             // the id we will use for generated material names
             int matid = 1;
+            
+            if(lodRatios != null && mdl.modelLod.size() == 1) {
+                generateLods(mdl);
+            }
+            if(collisionVolumes && mdl.getCollisionVolume() == null && !isAnimated(mdl)) {
+                mdl.buildCollisionVolume(mdl.cellSize != null ? mdl.cellSize : CollisionVolume.DEFAULT_CELLSIZE_STATIC);
+            }
 
             for(int lod=0; lod<mdl.modelLod.size(); lod++) {
                 FastList<ModelPart> mlod = mdl.modelLod.get(lod);
@@ -123,6 +173,156 @@ public class ModelPackCreator {
         return pack;
     }
 
+    // animated models use a different cell size
+    protected boolean isAnimated(Model mdl) {
+        for(int lod=0; lod<mdl.modelLod.size(); lod++) {
+            FastList<ModelPart> mlod = mdl.modelLod.get(lod);
+            for(int mp=0; mlod != null && mp<mlod.size(); mp++) {
+                ModelPart part = mlod.get(mp);
+                if(part.boneMapping != null || part.geom instanceof XWeightedGeometry)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    protected void generateLods(Model mdl) {
+        FastList<ModelPart> mlod = mdl.modelLod.get(0);
+        int numParts = mlod.size();
+        // the simplified indices of each part for each lod
+        int[][][] lodIndices = new int[lodRatios.length][numParts][];
+        // the error of each lod is the max of the errors of the parts
+        float[] error = new float[lodRatios.length];
+        int[] triangles = new int[lodRatios.length + 1];
+        int[][] partIndices = new int[numParts][];
+        float[][] partPositions = new float[numParts][];
+        // the part using each position, -1 if used by more parts
+        HashMap<Vector3f,Integer> owner = new HashMap<Vector3f,Integer>();
+        for(int mp=0; mp<numParts; mp++) {
+            Geometry geom = mlod.get(mp).geom;
+            if(geom.getMode() != Geometry.TRIANGLES || geom.getNumIndex() < 3
+                    || geom.getAttribBuffer(VertexAttribute.USAGE_POSITION) == null)
+                return;
+            int[] indices = new int[geom.getNumIndex()];
+            IndexBuffer srcidx = geom.getIndexBuffer();
+            for(int k=0; k<indices.length; k++) {
+                indices[k] = srcidx.get(geom.getStartIndex() + k);
+            }
+            triangles[0] += indices.length / 3;
+            float[] positions = new float[geom.getNumVertex()*3];
+            VertexIterator pit = geom.createIterator().getIterator(VertexAttribute.USAGE_POSITION);
+            Vector3f pos = new Vector3f();
+            for(int v=0; v<geom.getNumVertex(); v++) {
+                pit.get(v, pos);
+                positions[v*3] = pos.x;
+                positions[v*3+1] = pos.y;
+                positions[v*3+2] = pos.z;
+            }
+            for(int k=0; k<indices.length; k++) {
+                int v = indices[k];
+                pos = new Vector3f(positions[v*3], positions[v*3+1], positions[v*3+2]);
+                Integer o = owner.get(pos);
+                if(o == null)
+                    owner.put(pos, mp);
+                else if(o.intValue() != mp)
+                    owner.put(pos, -1);
+            }
+            partIndices[mp] = indices;
+            partPositions[mp] = positions;
+        }
+        Vector3f pos = new Vector3f();
+        for(int mp=0; mp<numParts; mp++) {
+            int[] indices = partIndices[mp];
+            float[] positions = partPositions[mp];
+            // simplify progressively, each lod from the previous one
+            MeshSimplifier ms = new MeshSimplifier(positions);
+            // the vertices shared with other parts are kept, so the
+            // borders between the parts do not crack
+            for(int k=0; k<indices.length; k++) {
+                int v = indices[k];
+                pos.set(positions[v*3], positions[v*3+1], positions[v*3+2]);
+                if(owner.get(pos).intValue() < 0)
+                    ms.lock(v);
+            }
+            ms.setTriangles(indices);
+            for(int lod=0; lod<lodRatios.length; lod++) {
+                lodIndices[lod][mp] = ms.simplify(Math.max(1, (int) (indices.length / 3 * lodRatios[lod])));
+                error[lod] = Math.max(error[lod], ms.getError());
+                triangles[lod + 1] += lodIndices[lod][mp].length / 3;
+            }
+        }
+        // add the lods as long as they reduce the triangle count
+        for(int lod=0; lod<lodRatios.length; lod++) {
+            if(triangles[lod + 1] >= triangles[lod])
+                break;
+            for(int mp=0; mp<numParts; mp++) {
+                ModelPart mprt = mlod.get(mp);
+                ModelPart lprt = new ModelPart();
+                lprt.setName(mprt.getName());
+                lprt.setMaterial(mprt.getMaterial());
+                lprt.setGeometry(createLodGeometry(mprt.geom, lodIndices[lod][mp]));
+                mdl.addPart(lod + 1, lprt);
+            }
+            mdl.setLodError(lod + 1, error[lod]);
+        }
+    }
+
+    // create geometry with only the vertices used by the indices
+    private Geometry createLodGeometry(Geometry geom, int[] indices) {
+        int[] oldToNew = new int[geom.getNumVertex()];
+        IntList newToOld = new IntList();
+        for(int i=0; i<oldToNew.length; i++)
+            oldToNew[i] = -1;
+        int[] lodIndices = new int[indices.length];
+        for(int i=0; i<indices.length; i++) {
+            int v = indices[i];
+            if(oldToNew[v] < 0) {
+                oldToNew[v] = newToOld.size();
+                newToOld.add(v);
+            }
+            lodIndices[i] = oldToNew[v];
+        }
+        int numVertex = newToOld.size();
+        
+        Geometry target;
+        if(geom instanceof XWeightedGeometry) {
+            XWeightedGeometry xg = new XWeightedGeometry();
+            xg.setBoneMapping(((XWeightedGeometry)geom).getBoneMapping());
+            target = xg;
+        } else {
+            target = new Geometry();
+        }
+        target.setMode(Geometry.TRIANGLES);
+        target.setIndexBuffer(IndexBuffer.createBuffer(lodIndices, numVertex, null));
+        // same buffer layout as the source
+        FastList<VertexBuffer> buffers = geom.getBuffers();
+        for(int i=0; i<buffers.size(); i++) {
+            VertexBuffer vb = new VertexBuffer();
+            vb.setFormat(buffers.get(i).getFormat());
+            vb.setVertexCount(numVertex);
+            vb.createDataBuffer();
+            target.addAttribBuffer(vb, 0);
+        }
+        GeometryIterator srci = geom.createIterator();
+        GeometryIterator trgi = target.createIterator();
+        FastList<VertexAttribute> attributes = srci.getAttributes();
+        for(int i=0; i<attributes.size(); i++) {
+            VertexAttribute.Usage type = attributes.get(i).type;
+            VertexIterator src = srci.getIterator(type);
+            VertexIterator trg = trgi.getIterator(type);
+            for(int v=0; v<numVertex; v++) {
+                trg.put(v, src, newToOld.get(v));
+            }
+        }
+        target.setDisplayListMode(geom.getDisplayListMode());
+        target.setVBOMode(geom.getVBOMode());
+        if(geom.getModelBound() != null) {
+            target.setModelBound(geom.getModelBound().clone(null));
+            target.updateModelBound();
+        }
+        return target;
+    }
+
     protected void checkTangentBinormal(ModelPart mprt) {
         // fo all the bumpmapped/normalmapped geometryes
         ModelMaterial mm = mprt.getMaterial();
@@ -229,6 +429,11 @@ public class ModelPackCreator {
         
         // the stride for the target buffer
         int stride = mprt.vb.getFormat().getSize();
+        
+        VertexCacheOptimizer optimizer = optimizeCache ? new VertexCacheOptimizer() : null;
+        mprt.optimizedTriangles = 0;
+        mprt.cacheMissesBefore = 0;
+        mprt.cacheMissesAfter = 0;
 
         // go over each model and put it into the proper buffer
         for(int i=0; i<mprt.parts.size(); i++) {
@@ -296,9 +501,30 @@ public class ModelPackCreator {
                 }
             }
             
+            // reorder the triangles and vertices of the part
+            int[] partIndex = null;
+            int[] vertexRemap = null;
+            if(optimizer != null && geom.getMode() == Geometry.TRIANGLES && part.numIndex >= 3) {
+                partIndex = new int[part.numIndex];
+                IndexBuffer srcidx = geom.getIndexBuffer();
+                for(int k=0; k<part.numIndex; k++) {
+                    partIndex[k] = srcidx.get(geom.getStartIndex() + k);
+                }
+                mprt.cacheMissesBefore += VertexCacheOptimizer.countCacheMisses(partIndex, 0, part.numIndex, VertexCacheOptimizer.FIFO_SIZE);
+                partIndex = optimizer.optimizeTriangles(partIndex, part.numVertex);
+                if(optimizeOverdraw && bfr[VertexAttribute.USAGE_POSITION.id] != null) {
+                    partIndex = optimizer.sortClusters(partIndex, getPositions(part, bfr, attr, attrStartVertex));
+                }
+                vertexRemap = optimizer.remapVertices(partIndex, part.numVertex);
+                mprt.cacheMissesAfter += VertexCacheOptimizer.countCacheMisses(partIndex, 0, part.numIndex, VertexCacheOptimizer.FIFO_SIZE);
+                mprt.optimizedTriangles += part.numIndex / 3;
+            }
+            
             // go over all the vertices, and weave them into the new buffer
             for(int vn=0; vn<part.numVertex; vn++) {
                 int fstartDst = (vn+part.startVertex) * stride;
+                // the source vertex
+                int vs = vertexRemap != null ? vertexRemap[vn] : vn;
                 //int vstartSrc = part.geom.getStartVertex()+vn;
                 // go over all the target attributes
                 for(int ac=0; ac<patr.size(); ac++ ) {
@@ -316,7 +542,7 @@ public class ModelPackCreator {
                     // destination postion
                     vertBuf.position(fstartDst + vaDst.startfloat);
                     // source position
-                    fbSrc.position((attrStartVertex[vaSrc.type.id] +vn)* strideSrc + vaSrc.startfloat);
+                    fbSrc.position((attrStartVertex[vaSrc.type.id] +vs)* strideSrc + vaSrc.startfloat);
                     // copy data
                     for(int fcount = 0; fcount < num; fcount++) {
                         vertBuf.put(fbSrc.get());
@@ -326,9 +552,13 @@ public class ModelPackCreator {
             
             // transfer the indices to the proper index buffer
             idx.position(part.startIndex);
-            IndexBuffer srcidx = geom.getIndexBuffer();
-            srcidx.position(geom.getStartIndex());
-            idx.put(srcidx, part.numIndex);
+            if(partIndex != null) {
+                idx.put(partIndex);
+            } else {
+                IndexBuffer srcidx = geom.getIndexBuffer();
+                srcidx.position(geom.getStartIndex());
+                idx.put(srcidx, part.numIndex);
+            }
             
             // change the part
             
@@ -360,4 +590,20 @@ public class ModelPackCreator {
             part.geom = cg;
         }
     }
+
+    // get the positions of the part vertices
+    private float[] getPositions(ModelPart part, VertexBuffer[] bfr, VertexAttribute[] attr, int[] attrStartVertex) {
+        int an = VertexAttribute.USAGE_POSITION.id;
+        FloatBuffer fbSrc = bfr[an].getDataBuffer();
+        int strideSrc = bfr[an].getFormat().getSize();
+        VertexAttribute vaSrc = attr[an];
+        float[] pos = new float[part.numVertex*3];
+        for(int vn=0; vn<part.numVertex; vn++) {
+            int src = (attrStartVertex[an] + vn) * strideSrc + vaSrc.startfloat;
+            pos[vn*3] = fbSrc.get(src);
+            pos[vn*3+1] = fbSrc.get(src+1);
+            pos[vn*3+2] = fbSrc.get(src+2);
+        }
+        return pos;
+    }
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.resource.model;
+
+import com.vlengine.math.Vector3f;
+import com.vlengine.renderer.ColorRGBA;
+import com.vlengine.system.VleException;
+import com.vlengine.util.IntList;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the binary modelpack descriptor written by ModelPackWriter,
+ * in a single sequential pass over the buffer.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class ModelPackReader {
+
+    protected ByteBuffer data;
+    protected String[] strings;
+    protected int version;
+    
+    public ModelPackReader(ByteBuffer data) {
+        this.data = data;
+        data.rewind();
+        if(data.remaining() < 12 || data.getInt() != ModelPackWriter.MAGIC) {
+            throw new VleException("Not a binary modelpack");
+        }
+        version = data.getInt();
+        if(version > ModelPackWriter.VERSION) {
+            throw new VleException("Unsupported binary modelpack version "+version);
+        }
+        // read the string table
+        strings = new String[data.getInt()];
+        byte[] buf = new byte[64];
+        try {
+            for(int i=0; i<strings.length; i++) {
+                int len = data.getInt();
+                if(buf.length < len) {
+                    buf = new byte[len];
+                }
+                data.get(buf, 0, len);
+                strings[i] = new String(buf, 0, len, "UTF-8");
+            }
+        } catch (UnsupportedEncodingException ex) {
+            throw new VleException(ex);
+        }
+    }
+
+    public int getVersion() {
+        return version;
+    }
+    
+    public int getInt() {
+        return data.getInt();
+    }
+
+    public long getLong() {
+        return data.getLong();
+    }
+    
+    public float getFloat() {
+        return data.getFloat();
+    }
+
+    public boolean getBoolean() {
+        return data.get() != 0;
+    }
+    
+    public String getString() {
+        int id = data.getInt();
+        return id < 0 ? null : strings[id];
+    }
+    
+    public Vector3f getVector() {
+        if(!getBoolean())
+            return null;
+        return new Vector3f(data.getFloat(), data.getFloat(), data.getFloat());
+    }
+
+    public ColorRGBA getColor() {
+        if(!getBoolean())
+            return null;
+        return new ColorRGBA(data.getFloat(), data.getFloat(), data.getFloat(), data.getFloat());
+    }
+
+    public IntList getIntList() {
+        int len = data.getInt();
+        if(len < 0)
+            return null;
+        IntList il = new IntList(Math.max(len, 1));
+        for(int i=0; i<len; i++) {
+            il.add(data.getInt());
+        }
+        return il;
+    }
+}
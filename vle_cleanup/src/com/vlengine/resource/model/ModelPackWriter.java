@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.resource.model;
+
+import com.vlengine.math.Vector3f;
+import com.vlengine.renderer.ColorRGBA;
+import com.vlengine.resource.FileResource;
+import com.vlengine.system.VleException;
+import com.vlengine.util.FastList;
+import com.vlengine.util.IntList;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Writes the binary modelpack descriptor. The values are collected into
+ * a buffer, the strings are replaced by indices into a string table, 
+ * which is written in front of the data, so the file can be read in
+ * one sequential pass by ModelPackReader.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class ModelPackWriter {
+
+    // "VLMP"
+    public static final int MAGIC = 0x564C4D50;
+    // 2: geometric error of the lods
+    // 3: collision volume of the models
+    public static final int VERSION = 3;
+    
+    // the string table
+    protected final FastList<String> strings = new FastList<String>();
+    protected final HashMap<String,Integer> stringIds = new HashMap<String,Integer>();
+    
+    // the data following the string table
+    protected ByteBuffer data = ByteBuffer.allocate(4096);
+
+    protected void ensure(int bytes) {
+        if(data.remaining() < bytes) {
+            ByteBuffer nd = ByteBuffer.allocate(Math.max(data.capacity()*2, data.position() + bytes));
+            data.flip();
+            nd.put(data);
+            data = nd;
+        }
+    }
+    
+    public void putInt(int value) {
+        ensure(4);
+        data.putInt(value);
+    }
+
+    public void putLong(long value) {
+        ensure(8);
+        data.putLong(value);
+    }
+
+    public void putFloat(float value) {
+        ensure(4);
+        data.putFloat(value);
+    }
+
+    public void putBoolean(boolean value) {
+        ensure(1);
+        data.put(value ? (byte)1 : (byte)0);
+    }
+    
+    // null string is written as -1
+    public void putString(String value) {
+        if(value == null) {
+            putInt(-1);
+            return;
+        }
+        Integer id = stringIds.get(value);
+        if(id == null) {
+            id = new Integer(strings.size());
+            strings.add(value);
+            stringIds.put(value, id);
+        }
+        putInt(id.intValue());
+    }
+    
+    // vector or color is preceded by a boolean telling if its present
+    public void putVector(Vector3f value) {
+        putBoolean(value != null);
+        if(value != null) {
+            putFloat(value.x); putFloat(value.y); putFloat(value.z);
+        }
+    }
+
+    public void putColor(ColorRGBA value) {
+        putBoolean(value != null);
+        if(value != null) {
+            putFloat(value.r); putFloat(value.g); putFloat(value.b); putFloat(value.a);
+        }
+    }
+
+    // null list is written as -1 length
+    public void putIntList(IntList value) {
+        if(value == null) {
+            putInt(-1);
+            return;
+        }
+        putInt(value.size());
+        for(int i=0; i<value.size(); i++) {
+            putInt(value.get(i));
+        }
+    }
+    
+    /**
+     * Creates the content of the file: header, string table, and data.
+     */
+    public ByteBuffer toBuffer() {
+        byte[][] encoded = new byte[strings.size()][];
+        int size = 12;
+        try {
+            for(int i=0; i<strings.size(); i++) {
+                encoded[i] = strings.get(i).getBytes("UTF-8");
+                size += 4 + encoded[i].length;
+            }
+        } catch (UnsupportedEncodingException ex) {
+            // UTF-8 is always supported
+            throw new VleException(ex);
+        }
+        size += data.position();
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(strings.size());
+        for(int i=0; i<encoded.length; i++) {
+            out.putInt(encoded[i].length);
+            out.put(encoded[i]);
+        }
+        ByteBuffer d = data.duplicate();
+        d.flip();
+        out.put(d);
+        out.flip();
+        return out;
+    }
+    
+    public boolean save(String filepath) {
+        return FileResource.save(filepath, toBuffer());
+    }
+}
@@ -180,6 +180,56 @@ public class ModelPart {
         }
     }
 
+    protected void save(ModelPackWriter out) {
+        out.putString(name);
+        out.putString(partpack);
+        out.putInt(listMode);
+        out.putInt(startVertex);
+        out.putInt(numVertex);
+        out.putBoolean(intIndex);
+        out.putInt(startIndex);
+        out.putInt(numIndex);
+        // the bound type 0-no, 1-box
+        if(bound instanceof BoundingBox) {
+            BoundingBox bb = (BoundingBox) bound;
+            out.putInt(1);
+            out.putVector(bb.getCenter());
+            out.putFloat(bb.xExtent);
+            out.putFloat(bb.yExtent);
+            out.putFloat(bb.zExtent);
+        } else {
+            out.putInt(0);
+        }
+        out.putBoolean(hasColTree);
+        out.putBoolean(hasColVolume);
+        out.putIntList(boneMapping);
+        // save the material id
+        out.putString(modelMaterial.id);
+    }
+
+    protected void load(ModelPackReader in) {
+        name = in.getString();
+        partpack = in.getString();
+        listMode = in.getInt();
+        startVertex = in.getInt();
+        numVertex = in.getInt();
+        intIndex = in.getBoolean();
+        startIndex = in.getInt();
+        numIndex = in.getInt();
+        int boundtype = in.getInt();
+        if(boundtype==1) {
+            Vector3f center = in.getVector();
+            float xExtent = in.getFloat();
+            float yExtent = in.getFloat();
+            float zExtent = in.getFloat();
+            bound = new BoundingBox(center, xExtent, yExtent, zExtent);
+        }
+        hasColTree = in.getBoolean();
+        hasColVolume = in.getBoolean();
+        boneMapping = in.getIntList();
+        materialname = in.getString();
+    }
+
     public void setGeometry(Geometry geom) {
         this.geom = geom;        
     }
@@ -94,6 +94,11 @@ public class ModelPartPack {
     // the model parts to be processed in this pack
     protected FastList<ModelPart> parts = new FastList<ModelPart>();
 
+    // vertex cache statistics of the optimized triangles, when the pack was created
+    protected int optimizedTriangles = 0;
+    protected int cacheMissesBefore = 0;
+    protected int cacheMissesAfter = 0;
+
     // the file names for this pack
     // 0-vertices
     // 1-indices short
@@ -157,14 +162,48 @@ public class ModelPartPack {
     }
     
     public void load(Element parent, String path) {
-        fileNames[0] =null; fileNames[1] =null; fileNames[2] =null;
-
         name = parent.getChildText("name");
         long vsig = parent.getChild("format_signature").getTextlong();
         format = VertexFormat.getDefaultFormat(vsig);
         VBOMode = parent.getChildint("vbo_mode");
+        loadData(path, parent.getChildText("vertices"), 
+                parent.getChildText("indices_short"),
+                parent.getChildText("indices_int"));
+    }
+
+    /**
+     * Stores the pack information into the binary modelpack descriptor.
+     * The data files must have been already saved (with the XML descriptor).
+     */
+    public void save(ModelPackWriter out) {
+        out.putString(name);
+        out.putLong(format.getBinarySignature());
+        out.putInt(VBOMode);
+        out.putString(getFileName(fileNames[0]));
+        out.putString(getFileName(fileNames[1]));
+        out.putString(getFileName(fileNames[2]));
+    }
+    
+    public void load(ModelPackReader in, String path) {
+        name = in.getString();
+        format = VertexFormat.getDefaultFormat(in.getLong());
+        VBOMode = in.getInt();
+        String vfile = in.getString();
+        String isfile = in.getString();
+        String iifile = in.getString();
+        loadData(path, vfile, isfile, iifile);
+    }
+    
+    protected String getFileName(String filepath) {
+        if(filepath == null)
+            return null;
+        return new File(filepath).getName();
+    }
+    
+    protected void loadData(String path, String vfile, String isfile, String iifile) {
+        fileNames[0] =null; fileNames[1] =null; fileNames[2] =null;
         // load the vertices
-        String filename = parent.getChildText("vertices");
+        String filename = vfile;
         String filepath = path+"/"+filename;
         fileNames[0] = filepath;
 
@@ -188,7 +227,7 @@ public class ModelPartPack {
         }
 
         // load indices short
-        filename = parent.getChildText("indices_short");
+        filename = isfile;
         if(filename != null ) {
             filepath = path+"/"+filename;
             // store the file name for later
@@ -208,7 +247,7 @@ public class ModelPartPack {
         }
 
         // load indices int
-        filename = parent.getChildText("indices_int");
+        filename = iifile;
         if(filename != null ) {
             filepath = path+"/"+filename;
             
@@ -229,6 +268,42 @@ public class ModelPartPack {
         }
     }
 
+    public String getName() {
+        return name;
+    }
+    
+    public int getOptimizedTriangles() {
+        return optimizedTriangles;
+    }
+    
+    /**
+     * The average cache miss ratio of the optimized triangles, in their
+     * original order.
+     */
+    public float getACMRBefore() {
+        return optimizedTriangles > 0 ? (float) cacheMissesBefore / optimizedTriangles : 0;
+    }
+    
+    /**
+     * The average cache miss ratio of the optimized triangles, after
+     * optimization.
+     */
+    public float getACMRAfter() {
+        return optimizedTriangles > 0 ? (float) cacheMissesAfter / optimizedTriangles : 0;
+    }
+
+    // the size of the vertex and index data in bytes
+    public long getDataSize() {
+        long size = 0;
+        if(vb != null && vb.getDataBuffer() != null)
+            size += vb.getDataBuffer().capacity() * 4L;
+        if(ibs != null && ibs.getBuffer() != null)
+            size += ibs.getBuffer().capacity() * 2L;
+        if(ibi != null && ibi.getBuffer() != null)
+            size += ibi.getBuffer().capacity() * 4L;
+        return size;
+    }
+
     public HashSet<String> getFiles(HashSet<String> fls) {
         if(fls == null ) {
             fls = new HashSet<String>();
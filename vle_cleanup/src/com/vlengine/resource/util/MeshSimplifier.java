@@ -0,0 +1,477 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.resource.util;
+
+import com.vlengine.util.IntList;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * Simplifies an indexed triangle list with quadric error metric edge
+ * collapses (Garland-Heckbert). Vertices are collapsed onto existing
+ * vertices (half-edge collapse), so normals, texture coordinates and bone
+ * weights of the remaining vertices are kept as they are, and the
+ * simplified triangles can reference the original vertex data.
+ * 
+ * Vertices with the same position are handled together, a collapse moves
+ * every vertex of a position onto the vertex of the target position it
+ * shares a triangle with. Collapses which would move a vertex across an
+ * attribute seam are not done, so texture seams and normal creases are
+ * kept. Vertices on the open border of the mesh only collapse along
+ * the border. Locked vertices are never moved, other vertices can still
+ * be collapsed onto them.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class MeshSimplifier {
+
+    // the weight of the border planes in the quadrics
+    private static final double BORDER_WEIGHT = 4;
+    // the minimum cosinus between a triangle normal before and after a collapse
+    private static final float FLIP_COS = 0.2f;
+
+    // the vertex positions, 3 per vertex
+    protected float[] positions;
+    protected int numVertex;
+    
+    // the position group of each vertex
+    protected int[] group;
+    // the vertices in a group as linked lists
+    protected int[] groupFirst;
+    protected int[] vertexNext;
+    protected int numGroups;
+    // the quadric of each group, 10 per group
+    protected double[] quadric;
+    // changed whenever the group changes, for invalidating collapses
+    protected int[] version;
+    protected boolean[] collapsed;
+    // the groups which are never moved
+    protected boolean[] locked;
+
+    // the triangles, and the triangles of each vertex
+    protected int[] tri;
+    protected boolean[] removed;
+    protected IntList[] vertTris;
+    protected int liveTriangles;
+    
+    // the largest error of the collapses done
+    protected float maxError;
+
+    // the candidate collapses
+    protected PriorityQueue<Collapse> queue;
+
+    protected static class Collapse implements Comparable<Collapse> {
+        double cost;
+        int from, to;
+        int fromVersion, toVersion;
+        
+        public int compareTo(Collapse o) {
+            return Double.compare(cost, o.cost);
+        }
+    }
+
+    /**
+     * @param positions The vertex positions, 3 floats per vertex
+     */
+    public MeshSimplifier(float[] positions) {
+        this.positions = positions;
+        this.numVertex = positions.length / 3;
+        // group the vertices by position
+        group = new int[numVertex];
+        groupFirst = new int[numVertex];
+        vertexNext = new int[numVertex];
+        HashMap<Long,Integer> byPos = new HashMap<Long,Integer>();
+        for(int v=0; v<numVertex; v++) {
+            long h = ((long) Float.floatToIntBits(positions[v*3]) * 73856093L)
+                    ^ ((long) Float.floatToIntBits(positions[v*3+1]) * 19349663L)
+                    ^ ((long) Float.floatToIntBits(positions[v*3+2]) * 83492791L);
+            Integer g = null;
+            // follow the chain of groups with the same hash
+            for(long k = h; ; k++) {
+                g = byPos.get(k);
+                if(g == null) {
+                    g = numGroups++;
+                    byPos.put(k, g);
+                    groupFirst[g] = -1;
+                    break;
+                }
+                int f = groupFirst[g];
+                if(positions[f*3] == positions[v*3] && positions[f*3+1] == positions[v*3+1]
+                        && positions[f*3+2] == positions[v*3+2])
+                    break;
+            }
+            group[v] = g;
+            vertexNext[v] = groupFirst[g];
+            groupFirst[g] = v;
+        }
+        locked = new boolean[numGroups];
+    }
+
+    /**
+     * Locks the position of the vertex, so it stays in the simplified
+     * mesh. Used for the vertices shared with other meshes, which would
+     * crack if simplified separately. Locks are kept by setTriangles.
+     */
+    public void lock(int vertex) {
+        locked[group[vertex]] = true;
+    }
+
+    /**
+     * Sets the triangles to simplify, this resets the simplification.
+     */
+    public void setTriangles(int[] indices) {
+        int numTri = indices.length / 3;
+        tri = indices.clone();
+        removed = new boolean[numTri];
+        liveTriangles = numTri;
+        maxError = 0;
+        vertTris = new IntList[numVertex];
+        for(int t=0; t<numTri; t++) {
+            for(int k=0; k<3; k++) {
+                int v = tri[t*3+k];
+                if(vertTris[v] == null)
+                    vertTris[v] = new IntList(6);
+                vertTris[v].add(t);
+            }
+            // remove triangles degenerate in position
+            int g0 = group[tri[t*3]], g1 = group[tri[t*3+1]], g2 = group[tri[t*3+2]];
+            if(g0 == g1 || g1 == g2 || g0 == g2) {
+                removed[t] = true;
+                liveTriangles--;
+            }
+        }
+        quadric = new double[numGroups*10];
+        version = new int[numGroups];
+        collapsed = new boolean[numGroups];
+        // the plane quadrics of the triangles
+        float[] n = new float[3];
+        for(int t=0; t<numTri; t++) {
+            if(removed[t])
+                continue;
+            if(!normal(tri[t*3]*3, tri[t*3+1]*3, tri[t*3+2]*3, n))
+                continue;
+            int a = tri[t*3]*3;
+            double d = -(n[0]*positions[a] + n[1]*positions[a+1] + n[2]*positions[a+2]);
+            for(int k=0; k<3; k++) {
+                addPlane(group[tri[t*3+k]], n[0], n[1], n[2], d, 1);
+            }
+        }
+        // the border planes, perpendicular to the triangle on the border edges
+        for(int t=0; t<numTri; t++) {
+            if(removed[t] || !normal(tri[t*3]*3, tri[t*3+1]*3, tri[t*3+2]*3, n))
+                continue;
+            for(int k=0; k<3; k++) {
+                int v0 = tri[t*3+k], v1 = tri[t*3+(k+1)%3];
+                if(edgeTriangles(group[v0], group[v1]) != 1)
+                    continue;
+                float ex = positions[v1*3] - positions[v0*3];
+                float ey = positions[v1*3+1] - positions[v0*3+1];
+                float ez = positions[v1*3+2] - positions[v0*3+2];
+                float mx = ey*n[2] - ez*n[1];
+                float my = ez*n[0] - ex*n[2];
+                float mz = ex*n[1] - ey*n[0];
+                float len = (float) Math.sqrt(mx*mx + my*my + mz*mz);
+                if(len == 0)
+                    continue;
+                mx /= len; my /= len; mz /= len;
+                double d = -(mx*positions[v0*3] + my*positions[v0*3+1] + mz*positions[v0*3+2]);
+                addPlane(group[v0], mx, my, mz, d, BORDER_WEIGHT);
+                addPlane(group[v1], mx, my, mz, d, BORDER_WEIGHT);
+            }
+        }
+        // the candidate collapses for all the edges
+        queue = new PriorityQueue<Collapse>(Math.max(11, numTri*3));
+        for(int t=0; t<numTri; t++) {
+            if(removed[t])
+                continue;
+            for(int k=0; k<3; k++) {
+                int g0 = group[tri[t*3+k]], g1 = group[tri[t*3+(k+1)%3]];
+                addCollapse(g0, g1);
+                addCollapse(g1, g0);
+            }
+        }
+    }
+
+    /**
+     * Collapses edges until the triangle count is at most the target,
+     * or no more collapses can be done. Can be called with decreasing
+     * targets to create successive levels of detail.
+     * 
+     * @param targetTriangles   The desired triangle count
+     * @return                  The indices of the remaining triangles
+     */
+    public int[] simplify(int targetTriangles) {
+        while(liveTriangles > targetTriangles && !queue.isEmpty()) {
+            Collapse c = queue.poll();
+            if(collapsed[c.from] || collapsed[c.to]
+                    || version[c.from] != c.fromVersion || version[c.to] != c.toVersion)
+                continue;
+            if(!canCollapse(c.from, c.to))
+                continue;
+            doCollapse(c.from, c.to);
+            maxError = Math.max(maxError, (float) Math.sqrt(Math.max(0, c.cost)));
+        }
+        return getIndices();
+    }
+
+    /**
+     * The error of the simplified mesh, estimated from the quadrics
+     * of the collapses done, as a distance.
+     */
+    public float getError() {
+        return maxError;
+    }
+
+    public int getTriangleCount() {
+        return liveTriangles;
+    }
+
+    /**
+     * Returns the indices of the remaining triangles.
+     */
+    public int[] getIndices() {
+        int[] out = new int[liveTriangles*3];
+        int o = 0;
+        for(int t=0; t<removed.length; t++) {
+            if(removed[t])
+                continue;
+            out[o++] = tri[t*3];
+            out[o++] = tri[t*3+1];
+            out[o++] = tri[t*3+2];
+        }
+        return out;
+    }
+
+    private void addPlane(int g, double a, double b, double c, double d, double w) {
+        int q = g*10;
+        quadric[q] += w*a*a;   quadric[q+1] += w*a*b; quadric[q+2] += w*a*c; quadric[q+3] += w*a*d;
+        quadric[q+4] += w*b*b; quadric[q+5] += w*b*c; quadric[q+6] += w*b*d;
+        quadric[q+7] += w*c*c; quadric[q+8] += w*c*d;
+        quadric[q+9] += w*d*d;
+    }
+
+    // the error of moving the group to the position
+    private double evaluate(int g, float x, float y, float z) {
+        int q = g*10;
+        return quadric[q]*x*x + 2*quadric[q+1]*x*y + 2*quadric[q+2]*x*z + 2*quadric[q+3]*x
+                + quadric[q+4]*y*y + 2*quadric[q+5]*y*z + 2*quadric[q+6]*y
+                + quadric[q+7]*z*z + 2*quadric[q+8]*z
+                + quadric[q+9];
+    }
+
+    private void addCollapse(int from, int to) {
+        int p = groupFirst[to]*3;
+        Collapse c = new Collapse();
+        c.from = from;
+        c.to = to;
+        c.fromVersion = version[from];
+        c.toVersion = version[to];
+        c.cost = evaluate(from, positions[p], positions[p+1], positions[p+2]);
+        queue.add(c);
+    }
+
+    // the unit normal of the triangle with the vertex positions at the offsets
+    private boolean normal(int a, int b, int c, float[] n) {
+        float e1x = positions[b] - positions[a], e1y = positions[b+1] - positions[a+1], e1z = positions[b+2] - positions[a+2];
+        float e2x = positions[c] - positions[a], e2y = positions[c+1] - positions[a+1], e2z = positions[c+2] - positions[a+2];
+        n[0] = e1y*e2z - e1z*e2y;
+        n[1] = e1z*e2x - e1x*e2z;
+        n[2] = e1x*e2y - e1y*e2x;
+        float len = (float) Math.sqrt(n[0]*n[0] + n[1]*n[1] + n[2]*n[2]);
+        if(len == 0)
+            return false;
+        n[0] /= len; n[1] /= len; n[2] /= len;
+        return true;
+    }
+
+    // the number of live triangles using the edge between the groups
+    private int edgeTriangles(int ga, int gb) {
+        int count = 0;
+        for(int a = groupFirst[ga]; a >= 0; a = vertexNext[a]) {
+            IntList tl = vertTris[a];
+            if(tl == null)
+                continue;
+            for(int i=0; i<tl.size(); i++) {
+                int t = tl.get(i);
+                if(removed[t])
+                    continue;
+                if(group[tri[t*3]] == gb || group[tri[t*3+1]] == gb || group[tri[t*3+2]] == gb)
+                    count++;
+            }
+        }
+        return count;
+    }
+
+    // collect the neighbour groups of the group
+    private void neighbours(int g, IntList store) {
+        store.clear();
+        for(int a = groupFirst[g]; a >= 0; a = vertexNext[a]) {
+            IntList tl = vertTris[a];
+            if(tl == null)
+                continue;
+            for(int i=0; i<tl.size(); i++) {
+                int t = tl.get(i);
+                if(removed[t])
+                    continue;
+                for(int k=0; k<3; k++) {
+                    int n = group[tri[t*3+k]];
+                    if(n != g && !store.contains(n))
+                        store.add(n);
+                }
+            }
+        }
+    }
+
+    private IntList neighboursFrom = new IntList();
+    private IntList neighboursTo = new IntList();
+    private int[] target;
+    private float[] nBefore = new float[3];
+    private float[] nAfter = new float[3];
+
+    private boolean canCollapse(int from, int to) {
+        if(locked[from])
+            return false;
+        if(target == null)
+            target = new int[numVertex];
+        // find the vertex of the target group for each vertex, along
+        // a triangle edge, so the vertex attributes stay continuous
+        for(int a = groupFirst[from]; a >= 0; a = vertexNext[a]) {
+            int tv = -1;
+            boolean used = false;
+            IntList tl = vertTris[a];
+            if(tl != null) {
+                for(int i=0; i<tl.size(); i++) {
+                    int t = tl.get(i);
+                    if(removed[t])
+                        continue;
+                    used = true;
+                    for(int k=0; k<3; k++) {
+                        int v = tri[t*3+k];
+                        if(group[v] == to) {
+                            if(tv >= 0 && tv != v)
+                                return false;
+                            tv = v;
+                        }
+                    }
+                }
+            }
+            if(used && tv < 0)
+                return false;
+            target[a] = tv;
+        }
+        // the neighbours of both can only be the ones on the triangles
+        // of the edge, else the mesh would fold
+        neighbours(from, neighboursFrom);
+        neighbours(to, neighboursTo);
+        int shared = 0;
+        boolean border = false;
+        for(int i=0; i<neighboursFrom.size(); i++) {
+            int n = neighboursFrom.get(i);
+            if(n != to && neighboursTo.contains(n))
+                shared++;
+            if(!border && edgeTriangles(from, n) == 1)
+                border = true;
+        }
+        int edge = edgeTriangles(from, to);
+        if(shared > edge)
+            return false;
+        // border vertices only move along the border
+        if(border && edge != 1)
+            return false;
+        // the triangles should not flip
+        int tp = groupFirst[to]*3;
+        for(int a = groupFirst[from]; a >= 0; a = vertexNext[a]) {
+            IntList tl = vertTris[a];
+            if(tl == null)
+                continue;
+            for(int i=0; i<tl.size(); i++) {
+                int t = tl.get(i);
+                if(removed[t])
+                    continue;
+                int v0 = tri[t*3], v1 = tri[t*3+1], v2 = tri[t*3+2];
+                if(group[v0] == to || group[v1] == to || group[v2] == to)
+                    continue;
+                if(!normal(v0*3, v1*3, v2*3, nBefore))
+                    continue;
+                if(!normal(v0 == a ? tp : v0*3, v1 == a ? tp : v1*3, v2 == a ? tp : v2*3, nAfter))
+                    return false;
+                if(nBefore[0]*nAfter[0] + nBefore[1]*nAfter[1] + nBefore[2]*nAfter[2] < FLIP_COS)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private void doCollapse(int from, int to) {
+        for(int a = groupFirst[from]; a >= 0; a = vertexNext[a]) {
+            IntList tl = vertTris[a];
+            if(tl == null)
+                continue;
+            int tv = target[a];
+            for(int i=0; i<tl.size(); i++) {
+                int t = tl.get(i);
+                if(removed[t])
+                    continue;
+                boolean degenerate = false;
+                for(int k=0; k<3; k++) {
+                    int v = tri[t*3+k];
+                    if(v == a)
+                        tri[t*3+k] = tv;
+                    else if(group[v] == to)
+                        degenerate = true;
+                }
+                if(degenerate) {
+                    removed[t] = true;
+                    liveTriangles--;
+                } else {
+                    vertTris[tv].add(t);
+                }
+            }
+            vertTris[a] = null;
+        }
+        collapsed[from] = true;
+        int qf = from*10, qt = to*10;
+        for(int i=0; i<10; i++) {
+            quadric[qt+i] += quadric[qf+i];
+        }
+        version[to]++;
+        // the costs around the target changed
+        neighbours(to, neighboursTo);
+        for(int i=0; i<neighboursTo.size(); i++) {
+            int n = neighboursTo.get(i);
+            addCollapse(to, n);
+            addCollapse(n, to);
+        }
+    }
+}
+
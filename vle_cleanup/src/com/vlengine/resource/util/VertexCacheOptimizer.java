@@ -0,0 +1,405 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.resource.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Reorders the triangles of an indexed triangle list for the post-transform
+ * vertex cache, using the linear-speed algorithm of Tom Forsyth. Optionally
+ * splits the reordered triangles into clusters at points where the cache
+ * is mostly cold, and sorts the clusters to draw outward facing parts first,
+ * which reduces overdraw without losing much of the cache efficiency.
+ * Finally the vertices can be renumbered in the order they are first used,
+ * for vertex fetch locality.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class VertexCacheOptimizer {
+
+    // the size of the FIFO cache used to measure the ACMR
+    public static final int FIFO_SIZE = 16;
+    // the size of the LRU cache used for scoring
+    public static final int CACHE_SIZE = 32;
+
+    private static final float CACHE_DECAY = 1.5f;
+    private static final float LAST_TRI_SCORE = 0.75f;
+    private static final float VALENCE_SCALE = 2.0f;
+    private static final float VALENCE_POWER = 0.5f;
+
+    // the vertex scores by cache position and by remaining valence
+    private static final float[] cacheScore = new float[CACHE_SIZE];
+    private static final float[] valenceScore = new float[64];
+    static {
+        for(int i=0; i<CACHE_SIZE; i++) {
+            if(i < 3) {
+                // the vertices of the last triangle, dont favour them,
+                // so we dont build strips
+                cacheScore[i] = LAST_TRI_SCORE;
+            } else {
+                float s = 1f - (float)(i-3)/(CACHE_SIZE-3);
+                cacheScore[i] = (float) Math.pow(s, CACHE_DECAY);
+            }
+        }
+        for(int i=1; i<valenceScore.length; i++) {
+            valenceScore[i] = VALENCE_SCALE * (float) Math.pow(i, -VALENCE_POWER);
+        }
+    }
+
+    // the allowed ACMR of a cluster compared to the whole mesh,
+    // for splitting into clusters for overdraw sorting
+    protected float clusterThreshold = 1.05f;
+    // the minimum number of triangles in a cluster
+    protected int minClusterTriangles = 32;
+
+    public VertexCacheOptimizer() {
+    }
+
+    public void setClusterThreshold(float threshold) {
+        this.clusterThreshold = threshold;
+    }
+
+    public void setMinClusterTriangles(int triangles) {
+        this.minClusterTriangles = triangles;
+    }
+
+    /**
+     * Counts the vertex transforms needed for the triangles with a FIFO
+     * cache. Divided by the triangle count, this gives the ACMR
+     * (average cache miss ratio).
+     */
+    public static int countCacheMisses(int[] indices, int start, int numIndex, int cacheSize) {
+        int[] cache = new int[cacheSize];
+        Arrays.fill(cache, -1);
+        int head = 0;
+        int misses = 0;
+        for(int i=start, mi=start+numIndex; i<mi; i++) {
+            int v = indices[i];
+            boolean found = false;
+            for(int c=0; c<cacheSize; c++) {
+                if(cache[c] == v) {
+                    found = true;
+                    break;
+                }
+            }
+            if(!found) {
+                misses++;
+                cache[head] = v;
+                head = (head + 1) % cacheSize;
+            }
+        }
+        return misses;
+    }
+
+    private static float vertexScore(int cachePos, int remaining) {
+        if(remaining == 0)
+            return -1;
+        float score = cachePos < 0 ? 0 : cacheScore[cachePos];
+        return score + valenceScore[Math.min(remaining, valenceScore.length-1)];
+    }
+
+    /**
+     * Reorders the triangles for the vertex cache.
+     * 
+     * @param indices   The indices of the triangle list
+     * @param numVertex The number of vertices the indices reference
+     * @return          The reordered indices
+     */
+    public int[] optimizeTriangles(int[] indices, int numVertex) {
+        int numTri = indices.length / 3;
+        // the triangles of each vertex
+        int[] remaining = new int[numVertex];
+        for(int i=0; i<numTri*3; i++) {
+            remaining[indices[i]]++;
+        }
+        int[] triStart = new int[numVertex+1];
+        for(int v=0; v<numVertex; v++) {
+            triStart[v+1] = triStart[v] + remaining[v];
+        }
+        int[] vertTris = new int[numTri*3];
+        int[] fill = new int[numVertex];
+        for(int t=0; t<numTri; t++) {
+            for(int k=0; k<3; k++) {
+                int v = indices[t*3+k];
+                vertTris[triStart[v] + fill[v]++] = t;
+            }
+        }
+        
+        int[] cachePos = new int[numVertex];
+        Arrays.fill(cachePos, -1);
+        float[] vScore = new float[numVertex];
+        for(int v=0; v<numVertex; v++) {
+            vScore[v] = vertexScore(-1, remaining[v]);
+        }
+        float[] tScore = new float[numTri];
+        boolean[] added = new boolean[numTri];
+        for(int t=0; t<numTri; t++) {
+            tScore[t] = vScore[indices[t*3]] + vScore[indices[t*3+1]] + vScore[indices[t*3+2]];
+        }
+        
+        int[] cache = new int[CACHE_SIZE+3];
+        int cacheCount = 0;
+        int[] newCache = new int[CACHE_SIZE+3];
+        
+        int[] out = new int[numTri*3];
+        int outTri = 0;
+        // the next triangle to check, when the cache gives no candidate
+        int scan = 0;
+        int best = -1;
+        while(outTri < numTri) {
+            if(best < 0) {
+                // find the best not yet added triangle
+                float bestScore = -1;
+                for(int t=0; t<numTri; t++) {
+                    if(!added[t] && tScore[t] > bestScore) {
+                        bestScore = tScore[t];
+                        best = t;
+                    }
+                }
+                // all the triangles have the same score if nothing is
+                // in the cache, take the first not added
+                if(best < 0) {
+                    while(added[scan])
+                        scan++;
+                    best = scan;
+                }
+            }
+            // add the triangle
+            int t = best;
+            added[t] = true;
+            for(int k=0; k<3; k++) {
+                int v = indices[t*3+k];
+                out[outTri*3+k] = v;
+                // remove the triangle from the vertex
+                int s = triStart[v];
+                int e = s + remaining[v];
+                for(int j=s; j<e; j++) {
+                    if(vertTris[j] == t) {
+                        vertTris[j] = vertTris[e-1];
+                        break;
+                    }
+                }
+                remaining[v]--;
+            }
+            outTri++;
+            
+            // put the vertices of the triangle to the front of the cache
+            int newCount = 0;
+            for(int k=0; k<3; k++) {
+                newCache[newCount++] = indices[t*3+k];
+            }
+            for(int c=0; c<cacheCount; c++) {
+                int v = cache[c];
+                if(v != indices[t*3] && v != indices[t*3+1] && v != indices[t*3+2])
+                    newCache[newCount++] = v;
+            }
+            int[] tmp = cache;
+            cache = newCache;
+            newCache = tmp;
+            cacheCount = newCount;
+            
+            // update the scores of the cached vertices, the ones
+            // pushed out of the cache are also updated
+            for(int c=0; c<cacheCount; c++) {
+                int v = cache[c];
+                cachePos[v] = c < CACHE_SIZE ? c : -1;
+                vScore[v] = vertexScore(cachePos[v], remaining[v]);
+            }
+            if(cacheCount > CACHE_SIZE)
+                cacheCount = CACHE_SIZE;
+            
+            // update the triangles of the cached vertices, and find the best
+            best = -1;
+            float bestScore = -1;
+            for(int c=0; c<cacheCount; c++) {
+                int v = cache[c];
+                for(int j=triStart[v], e=triStart[v]+remaining[v]; j<e; j++) {
+                    int tr = vertTris[j];
+                    float sc = vScore[indices[tr*3]] + vScore[indices[tr*3+1]] + vScore[indices[tr*3+2]];
+                    tScore[tr] = sc;
+                    if(sc > bestScore) {
+                        bestScore = sc;
+                        best = tr;
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Splits the cache optimized triangles into clusters, and sorts the 
+     * clusters so that the ones facing away from the center of the mesh
+     * are drawn first. A cluster ends where the next triangle has at least
+     * two vertices out of the cache, and the cluster alone has an ACMR not
+     * much worse than the whole mesh.
+     * 
+     * @param indices   The cache optimized indices of the triangle list
+     * @param positions The vertex positions, 3 floats per vertex
+     * @return          The indices with the clusters reordered
+     */
+    public int[] sortClusters(int[] indices, float[] positions) {
+        int numTri = indices.length / 3;
+        if(numTri < minClusterTriangles*2)
+            return indices;
+        float acmr = (float) countCacheMisses(indices, 0, indices.length, FIFO_SIZE) / numTri;
+        
+        // find the cluster boundaries, simulating the FIFO cache
+        int[] clusterStart = new int[numTri+1];
+        int numClusters = 0;
+        clusterStart[numClusters++] = 0;
+        int[] cache = new int[FIFO_SIZE];
+        Arrays.fill(cache, -1);
+        int head = 0;
+        int clusterMisses = 0;
+        for(int t=0; t<numTri; t++) {
+            int triMisses = 0;
+            for(int k=0; k<3; k++) {
+                int v = indices[t*3+k];
+                boolean found = false;
+                for(int c=0; c<FIFO_SIZE; c++) {
+                    if(cache[c] == v) {
+                        found = true;
+                        break;
+                    }
+                }
+                if(!found) {
+                    triMisses++;
+                    cache[head] = v;
+                    head = (head + 1) % FIFO_SIZE;
+                }
+            }
+            int clusterTris = t - clusterStart[numClusters-1];
+            if(triMisses >= 2 && clusterTris >= minClusterTriangles
+                    && clusterMisses <= clusterThreshold * acmr * clusterTris) {
+                // a new cluster starts with this triangle
+                clusterStart[numClusters++] = t;
+                clusterMisses = 0;
+            }
+            clusterMisses += triMisses;
+        }
+        clusterStart[numClusters] = numTri;
+        if(numClusters < 2)
+            return indices;
+        
+        // the center of the mesh
+        float mx = 0, my = 0, mz = 0;
+        int nv = positions.length / 3;
+        for(int v=0; v<nv; v++) {
+            mx += positions[v*3];
+            my += positions[v*3+1];
+            mz += positions[v*3+2];
+        }
+        mx /= nv; my /= nv; mz /= nv;
+        
+        // the sort key of a cluster is how much its area weighted normal 
+        // faces away from the center of the mesh
+        float[] sortKey = new float[numClusters];
+        Integer[] order = new Integer[numClusters];
+        for(int c=0; c<numClusters; c++) {
+            float cx = 0, cy = 0, cz = 0;
+            float nx = 0, ny = 0, nz = 0;
+            float area = 0;
+            for(int t=clusterStart[c]; t<clusterStart[c+1]; t++) {
+                int a = indices[t*3]*3, b = indices[t*3+1]*3, d = indices[t*3+2]*3;
+                float e1x = positions[b] - positions[a], e1y = positions[b+1] - positions[a+1], e1z = positions[b+2] - positions[a+2];
+                float e2x = positions[d] - positions[a], e2y = positions[d+1] - positions[a+1], e2z = positions[d+2] - positions[a+2];
+                // the cross product is the normal, scaled by twice the area
+                float tnx = e1y*e2z - e1z*e2y;
+                float tny = e1z*e2x - e1x*e2z;
+                float tnz = e1x*e2y - e1y*e2x;
+                float ta = (float) Math.sqrt(tnx*tnx + tny*tny + tnz*tnz);
+                nx += tnx; ny += tny; nz += tnz;
+                cx += (positions[a] + positions[b] + positions[d]) * ta;
+                cy += (positions[a+1] + positions[b+1] + positions[d+1]) * ta;
+                cz += (positions[a+2] + positions[b+2] + positions[d+2]) * ta;
+                area += ta;
+            }
+            if(area > 0) {
+                cx /= area*3; cy /= area*3; cz /= area*3;
+                sortKey[c] = ((cx - mx)*nx + (cy - my)*ny + (cz - mz)*nz) / area;
+            }
+            order[c] = c;
+        }
+        final float[] key = sortKey;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                return Float.compare(key[o2], key[o1]);
+            }
+        });
+        
+        int[] out = new int[indices.length];
+        int pos = 0;
+        for(int i=0; i<numClusters; i++) {
+            int c = order[i];
+            int len = (clusterStart[c+1] - clusterStart[c]) * 3;
+            System.arraycopy(indices, clusterStart[c]*3, out, pos, len);
+            pos += len;
+        }
+        return out;
+    }
+
+    /**
+     * Renumbers the vertices in the order they are first referenced by
+     * the indices, the indices are changed in place. Vertices not referenced
+     * are put at the end.
+     * 
+     * @param indices   The indices of the triangle list
+     * @param numVertex The number of vertices
+     * @return          For each new vertex the original vertex number
+     */
+    public int[] remapVertices(int[] indices, int numVertex) {
+        int[] newIndex = new int[numVertex];
+        Arrays.fill(newIndex, -1);
+        int[] oldIndex = new int[numVertex];
+        int next = 0;
+        for(int i=0; i<indices.length; i++) {
+            int v = indices[i];
+            if(newIndex[v] < 0) {
+                newIndex[v] = next;
+                oldIndex[next] = v;
+                next++;
+            }
+            indices[i] = newIndex[v];
+        }
+        for(int v=0; v<numVertex; v++) {
+            if(newIndex[v] < 0) {
+                newIndex[v] = next;
+                oldIndex[next] = v;
+                next++;
+            }
+        }
+        return oldIndex;
+    }
+}
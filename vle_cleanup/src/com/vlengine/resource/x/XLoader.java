@@ -199,6 +199,14 @@ public class XLoader {
             // based on used materials and bones
             createModel();
 
+            if(app.conf.animCompression && obj.getAnimations() != null) {
+                FastList<XBoneAnimation> anims = obj.getAnimations().getAnimations();
+                for(int i=0; i<anims.size(); i++) {
+                    anims.get(i).compress(app.conf.animCompressionAngle, 
+                            app.conf.animCompressionTranslation, app.conf.animCompressionScale);
+                }
+            }
+
         } catch (Exception ex) {
             log.log(Level.SEVERE, null, ex);
             obj = null;
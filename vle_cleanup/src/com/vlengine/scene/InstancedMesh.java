@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.scene;
+
+import com.vlengine.math.Transform;
+import com.vlengine.renderer.CullContext;
+import com.vlengine.renderer.RenderQueue;
+import com.vlengine.renderer.pass.RenderPass;
+import com.vlengine.scene.batch.InstancedBatch;
+import com.vlengine.util.FastList;
+
+/**
+ * Spatial holding many instances of the same model. Every part of the
+ * model is an InstancedBatch, all the batches hold the same instances.
+ * The instance transforms are in world space, the transform of this
+ * spatial is not used.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class InstancedMesh extends Spatial {
+
+    protected FastList<InstancedBatch> batches = new FastList<InstancedBatch>();
+    
+    // the list of passes this node removed from active passes
+    protected FastList<RenderPass> nopasses = new FastList<RenderPass>();
+
+    public InstancedMesh(String name) {
+        super(name);
+    }
+    
+    public void addBatch(InstancedBatch batch) {
+        batch.setParent(this);
+        // bring the new batch to the same instances
+        if(batches.size() > 0) {
+            InstancedBatch first = batches.get(0);
+            Transform t = new Transform();
+            batch.clearInstances();
+            for(int i=0; i<first.getInstanceCount(); i++) {
+                batch.addInstance(first.getInstance(i, t));
+            }
+        }
+        batches.add(batch);
+    }
+    
+    public int getBatchCount() {
+        return batches.size();
+    }
+    
+    public InstancedBatch getBatch(int index) {
+        return batches.get(index);
+    }
+
+    /**
+     * Adds an instance of the model.
+     * 
+     * @param t     The world transform of the instance
+     * @return      The index of the instance
+     */
+    public int addInstance(Transform t) {
+        int index = -1;
+        for(int i=0; i<batches.size(); i++) {
+            index = batches.get(i).addInstance(t);
+        }
+        return index;
+    }
+    
+    public void setInstance(int index, Transform t) {
+        for(int i=0; i<batches.size(); i++) {
+            batches.get(i).setInstance(index, t);
+        }
+    }
+    
+    /**
+     * Removes an instance, the last instance is moved to its place.
+     * 
+     * @return      The old index of the instance now at the given index
+     */
+    public int removeInstance(int index) {
+        int moved = -1;
+        for(int i=0; i<batches.size(); i++) {
+            moved = batches.get(i).removeInstance(index);
+        }
+        return moved;
+    }
+    
+    public int getInstanceCount() {
+        return batches.size() > 0 ? batches.get(0).getInstanceCount() : 0;
+    }
+
+    @Override
+    public void updateWorldBound() {
+        worldBound = null;
+        for(int i=0; i<batches.size(); i++) {
+            InstancedBatch b = batches.get(i);
+            // the bound of the instances is the same for all the frames
+            b.updateWorldBound(0);
+            if(b.getWorldBound(0) == null)
+                continue;
+            if(worldBound == null)
+                worldBound = b.getWorldBound(0).clone(null);
+            else
+                worldBound.mergeLocal(b.getWorldBound(0));
+        }
+    }
+    
+    @Override
+    public boolean queue(CullContext ctx) {
+        if ( renderQueueMode != RenderQueue.QueueFilter.None.value ) {
+            // prepare the list of passes, that dont need to be processed on children
+            nopasses.clear();
+            boolean found = false;
+            boolean removed = false;
+            // check for every our pass
+            for(int i = 0; i < ctx.getPassQuantity(); i++) {
+                RenderPass p = ctx.getPass(i);
+                if(isUsePass(ctx, p)) {
+                    found = true;
+                } else {
+                    ctx.removePass(p);
+                    nopasses.add(p);
+                    removed = true;
+                    i--;
+                }
+            }
+            if( found ) {
+                // save the camera plane state
+                int state = ctx.getCullCamera().getPlaneState();
+                for(int i=0, mx=batches.size(); i<mx; i++) {
+                    InstancedBatch batch = batches.get(i);
+                    if( batch.docull(ctx) )
+                        batch.queue(ctx);
+                    // restore the camera plane state
+                    ctx.getCullCamera().setPlaneState(state);
+                }
+            }
+            // after culling the children, restore previous passes
+            if( removed ) {
+                ctx.addPass(nopasses);
+                nopasses.clear();
+            }
+            return found;
+        }
+        return false;
+    }
+
+    @Override
+    public void updateCounts(boolean initiator) {
+        if(initiator && parent!=null)
+            parent.updateCounts(true);
+        
+        // calcualte depth now, so children get proper value
+        if(parent!=null)
+            depth = parent.depth + 1;
+        else
+            depth = 0;
+        
+        // we are 1 element
+        maxelements = 1;
+        
+        // clear the queue mode
+        renderQueueMode = 0;
+
+        for(int i=0; i<batches.size(); i++) {
+            batches.get(i).updateCounts(false);
+        }
+
+        // pass our values up
+        if( parent != null) {
+            // compile elements into parent
+            parent.maxelements += maxelements;
+            // compile renderQueueMode into parent
+            parent.renderQueueMode |= renderQueueMode;
+        }
+    }
+}
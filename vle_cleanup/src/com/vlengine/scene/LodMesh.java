@@ -69,6 +69,11 @@ public class LodMesh extends Spatial {
     // the list of passes this node removed from active passes
     protected FastList<RenderPass> nopasses = new FastList<RenderPass>();
     
+    // the geometric error of each lod, in model space, if known
+    protected float[] lodError;
+    // the maximal allowed error of the selected lod in pixels
+    protected float lodPixelError = 2f;
+    
     
     public LodMesh() {
         super();
@@ -179,6 +184,7 @@ public class LodMesh extends Spatial {
                 updateWorldBound();
             }
         }
+        updateBroadphase();
     }
 
     /**
@@ -286,12 +292,55 @@ public class LodMesh extends Spatial {
         return false;
     }
     
+    /**
+     * Sets the geometric error of the given lod, measured in model space
+     * as the distance from the most detailed surface.
+     */
+    public void setLodError(int lod, float error) {
+        if(lodError == null || lodError.length <= lod) {
+            float[] ne = new float[lod + 1];
+            if(lodError != null)
+                System.arraycopy(lodError, 0, ne, 0, lodError.length);
+            lodError = ne;
+        }
+        lodError[lod] = error;
+    }
+
+    public float getLodError(int lod) {
+        return lodError != null && lodError.length > lod ? lodError[lod] : 0;
+    }
+
+    public void setLodPixelError(float pixels) {
+        this.lodPixelError = pixels;
+    }
+
+    public float getLodPixelError() {
+        return lodPixelError;
+    }
+
     public int getLodIndex( ViewCamera cam ) {
-        // get camera range (far - near)
-        float range = cam.getFrustumFar() - cam.getFrustumNear();
         Vector3f cmp = cam.getLocation();
         float dst = cmp.distance(this.getWorldTranslation());
-        return (int) Math.min((dst/range)*lodList.size(), lodList.size()-1);
+        if(lodError == null || lodError.length < lodList.size()) {
+            // get camera range (far - near)
+            float range = cam.getFrustumFar() - cam.getFrustumNear();
+            return (int) Math.min((dst/range)*lodList.size(), lodList.size()-1);
+        }
+        // pixels per world unit at the distance of the mesh
+        float frustumHeight = cam.getFrustumTop() - cam.getFrustumBottom();
+        float scale = cam.getHeight() / frustumHeight;
+        if(!cam.isParallelProjection()) {
+            // closer than the near plane counts as on the near plane
+            scale *= cam.getFrustumNear() / Math.max(dst, cam.getFrustumNear());
+        }
+        Vector3f ws = getWorldScale();
+        scale *= Math.max(ws.x, Math.max(ws.y, ws.z));
+        // the coarsest lod with the error still under the limit
+        for(int i = lodList.size() - 1; i > 0; i--) {
+            if(lodList.get(i) != null && lodError[i] * scale <= lodPixelError)
+                return i;
+        }
+        return 0;
     }
     
     @Override
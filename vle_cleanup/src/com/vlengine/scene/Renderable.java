@@ -42,6 +42,7 @@ import com.vlengine.renderer.RenderQueue;
 import com.vlengine.renderer.CullContext;
 import com.vlengine.renderer.ViewCamera;
 import com.vlengine.renderer.material.Material;
+import com.vlengine.renderer.pass.OcclusionCheckPass;
 import com.vlengine.renderer.pass.RenderPass;
 import com.vlengine.scene.batch.LightBatch;
 import com.vlengine.scene.state.RenderState;
@@ -75,12 +76,17 @@ public abstract class Renderable extends SceneElement {
    
     protected boolean needupdate[];
     
+    // the number of the last frame this renderable was queued in
+    protected long lastQueued = -1;
+    
     // the set of materials which need to be updated
     //protected final BitSet mlist = new BitSet();
     protected boolean updateMaterial = false;
     
     // the id-s for sorting the queues
     protected final IntList idlist = new IntList( 3 );
+    // the packed material/depth keys for the radix sorted queues
+    protected long[] keylist = new long[3];
     
     // how many lights we handle in the low profile
     public static final int LOWPROFILE_LIGHTS = 3;
@@ -108,6 +114,10 @@ public abstract class Renderable extends SceneElement {
         return needupdate[frameId];
     }
     
+    public long getLastQueuedFrame() {
+        return lastQueued;
+    }
+    
     @Override
     public BoundingVolume getWorldBound( ) {
         return getWorldBound(getFrameId());
@@ -168,6 +178,12 @@ public abstract class Renderable extends SceneElement {
         }
 
         if (frustrumIntersects != Camera.OUTSIDE_FRUSTUM) {
+            // check if hidden behind the occluders
+            OcclusionCheckPass occ = ctx.getOcclusion();
+            if (occ != null && cm == Spatial.CullMode.DYNAMIC
+                    && occ.isOccluded(ctx, worldBound[ctx.getFrameId()])) {
+                return false;
+            }
             return true;
         }
         
@@ -238,6 +254,9 @@ public abstract class Renderable extends SceneElement {
                 }
             }
         }
+        if(found && ctx.getFrame() != null) {
+            lastQueued = ctx.getFrame().getFrameCount();
+        }
         return found;
     }
     
@@ -253,7 +272,7 @@ public abstract class Renderable extends SceneElement {
     // for rendering in a given queue
     protected void recalculateId(CullContext ctx, int idn) {
         // reset
-        idlist.set(idn, 0);
+        setSortId(idn, null, 0);
 
         // the fixed queues:
         // 0 opaque         - sort by material (shader, texture)
@@ -283,7 +302,7 @@ public abstract class Renderable extends SceneElement {
                     } else {
                         sid = (int)(dist*((float)Integer.MAX_VALUE)/frustSq);
                     }
-                    idlist.set(idn, sid);
+                    setSortId(idn, st, sid);
                 } break;
                 // back to front
                 case InverseDistanceSquaredFromCamera : {
@@ -303,7 +322,7 @@ public abstract class Renderable extends SceneElement {
                     } else {
                         sid = (int)(((float)Integer.MAX_VALUE)/dist);
                     }
-                    idlist.set(idn, sid);
+                    setSortId(idn, st, sid);
                 } break;
                 // back to front
                 case AbsoluteDepth : {
@@ -314,17 +333,39 @@ public abstract class Renderable extends SceneElement {
                     } else {
                         sid = (int)(((float)Integer.MAX_VALUE)/dpth);
                     }
-                    idlist.set(idn, sid);
+                    setSortId(idn, st, sid);
                 } break;
             }
         }
     }
     
+    // sets the sort id for the queue, and packs it into the 64 bit
+    // sort key: material id in the high, depth in the low 32 bits
+    // the key is ascending, where the sort id is descending
+    protected void setSortId(int idn, RenderQueue.SortType st, int sid) {
+        idlist.set(idn, sid);
+        if(idn >= keylist.length) {
+            keylist = Arrays.copyOf(keylist, idn + 1);
+        }
+        long key = (Integer.MAX_VALUE - sid) & 0xFFFFFFFFL;
+        // only the opaque (front to back) queue is grouped by material
+        // the others need to keep strict depth order for blending
+        if(st == RenderQueue.SortType.DistanceSquaredFromCamera && material != null) {
+            key |= ((long)(material.getMaterialId() & 0x7FFF)) << 32;
+        }
+        keylist[idn] = key;
+    }
+    
     // this method is used by the renderqueue to order the batch
     public int getSortId( int queueNo ) {
         return idlist.get( queueNo );
     }
     
+    // the packed key used by the radix sorted renderqueue
+    public long getSortKey( int queueNo ) {
+        return keylist[ queueNo ];
+    }
+    
     
     /**
      * this method is called in MATERIAL phase
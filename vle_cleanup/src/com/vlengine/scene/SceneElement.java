@@ -46,6 +46,7 @@ import com.vlengine.scene.batch.TriBatch;
 import com.vlengine.scene.state.LightState;
 import com.vlengine.thread.Context;
 import com.vlengine.thread.LocalContext;
+import com.vlengine.util.FastList;
 import java.util.logging.Logger;
 
 /**
@@ -93,6 +94,14 @@ public abstract class SceneElement {
         return worldBound;
     }
     
+    /**
+     * Returns the number of elements in the subtree of this element,
+     * including this element.
+     */
+    public int getMaxElements() {
+        return maxelements;
+    }
+    
     public abstract void updateWorldBound();
     
     public void setCullMode( CullMode mode ) {
@@ -145,6 +154,18 @@ public abstract class SceneElement {
         return false;
     }
     
+    /**
+     * Returns the elements below this one, which need culling after
+     * this element is found visible. Used when culling multiple views
+     * in a single traversal. Elements returning null do their own
+     * queueing in the queue() method.
+     * 
+     * @return  The list of child elements, or null
+     */
+    public FastList<? extends SceneElement> getCullChildren() {
+        return null;
+    }
+    
     public CullMode getCullMode() {
         if (cullMode != CullMode.INHERIT)
             return cullMode;
@@ -57,6 +57,10 @@ public class SetNode extends Node {
     // the list of passes this node removed from active passes
     protected FastList<RenderPass> nopasses = new FastList<RenderPass>();
 
+    // merge the batches of locked children into static batches
+    protected boolean staticBatching = false;
+    protected StaticBatcher batcher;
+
     public SetNode(String name ) {
         super(name);
     }
@@ -242,6 +246,7 @@ public class SetNode extends Node {
         }
         // update world bound
         updateWorldBound();
+        updateBroadphase();
     }
 
     /**
@@ -286,6 +291,41 @@ public class SetNode extends Node {
                 child.updateGeometricState(ctx, false);
             }
         }
+        // merge the locked children
+        if(staticBatching && isLockedTransforms() && isLockedMeshes()
+                && (controllers == null || controllers.size() == 0)) {
+            if(batcher == null)
+                batcher = new StaticBatcher(this, ctx.frame.getApp().conf.staticBatchChunkSize);
+            if(batcher.update(ctx))
+                updateCounts(true);
+        } else if(batcher != null) {
+            batcher = null;
+            updateCounts(true);
+        }
+    }
+
+    /**
+     * Enables merging the batches of the locked children of this node
+     * into static batches. The merging is done when this node is locked
+     * with lockTransforms and lockMeshes, children which are unlocked
+     * later are removed from the static batches on the next update.
+     * 
+     * @see StaticBatcher
+     */
+    public void setStaticBatching(boolean enable) {
+        this.staticBatching = enable;
+    }
+
+    public boolean isStaticBatching() {
+        return staticBatching;
+    }
+
+    /**
+     * Returns the StaticBatcher of this node, or null if static batching
+     * is not active.
+     */
+    public StaticBatcher getStaticBatcher() {
+        return batcher;
     }
 
     // inheritted docs
@@ -425,45 +465,25 @@ public class SetNode extends Node {
                  */
 
                 // check and cull children
-                Spatial child;
-                int work = maxelements;
+                FastList<? extends SceneElement> cull = getCullChildren();
+                SceneElement child;
                 // save the camera plane state
                 int state = ctx.getCullCamera().getPlaneState();
-                for (int i = 0, cSize = children.size(); i < cSize; i++) {
-                    child =  children.get(i);
-                    // TODO: if child is a node, process it in other free thread
+                for (int i = 0, cSize = cull.size(); i < cSize; i++) {
+                    child =  cull.get(i);
                     if (child != null ) {
-                        boolean check = false;
-                        if( ctx.getFrame().getApp().isMultithreaded()) {
-                            if( work > 16
-                                    && child instanceof Node 
-                                    && child.maxelements > work /4 
-                                    && child.maxelements < work /2 
-                                    ) {
-                                // if the elements needs to be processed is large enugh
-                                // and it is big chunk of all the work
-                                // but it is not all the work
-                                // this formula allows for creation of 2 to 4 culler threads
-
-                                // then try to delegate the work to another thread
-                                CullContext cctx = ctx.getFrame().cullNode(ctx, (Node)child, ctx.getViewCamera());
-                                if( cctx != null ) {
-                                    // start the child culler context
-                                    cctx.start();
-                                    check = true;
-                                }
-                            }
-                        }
+                        // big enough child nodes are handed off to 
+                        // other culler threads, if culling is parallel
+                        boolean check = child instanceof Node
+                                && ctx.fork((Node)child);
                         
-                        // if the child is not a (big) node or no other thread is ready
+                        // if the child is not a (big) node or culling is not parallel
                         // do the culling and queueing
                         if( !check && child.docull(ctx) )
                             child.queue(ctx);
                         
                         // restore the camera plane state
                         ctx.getCullCamera().setPlaneState(state);
-                        // calculate elements still needs to be done
-                        work -= child.maxelements;
                     }
                 }
                 
@@ -517,6 +537,13 @@ public class SetNode extends Node {
         this.worldBound = worldBound;
     }
 
+    @Override
+    public FastList<? extends SceneElement> getCullChildren() {
+        if(batcher != null)
+            return batcher.getCullList();
+        return children;
+    }
+
     /**
      * Returns all children to this node.
      *
@@ -550,6 +577,9 @@ public class SetNode extends Node {
                 s.updateCounts(false);
             }
         }
+        // the static batches are culled as separate elements
+        if(batcher != null)
+            maxelements += batcher.getBatchCount();
 
         // pass our values up
         if( parent != null) {
@@ -36,6 +36,7 @@
 
 package com.vlengine.scene;
 
+import com.vlengine.bounding.CollisionBroadphase;
 import com.vlengine.bounding.CollisionVolume;
 import com.vlengine.scene.control.Controller;
 import com.vlengine.math.Quaternion;
@@ -91,6 +92,10 @@ public abstract class Spatial extends SceneElement {
     
     protected CollisionVolume collVolume;
     
+    // the broadphase this spatial is registered in, and its leaf there
+    protected CollisionBroadphase broadphase;
+    protected int broadphaseProxy = -1;
+    
     protected boolean changed = true;
     
     // managing attributes of the spatial
@@ -190,6 +195,7 @@ public abstract class Spatial extends SceneElement {
                 propagateBoundToRoot();
             }
         }
+        updateBroadphase();
         // update child counts
         updateCounts(initiator);
         changed = false;
@@ -202,6 +208,17 @@ public abstract class Spatial extends SceneElement {
             updateWorldTranslation();
         }
         updateWorldBound();
+        updateBroadphase();
+    }
+    
+    /**
+     * Moves the leaf of this spatial in the broadphase, if the world
+     * bound changed enough.
+     */
+    protected void updateBroadphase() {
+        if (broadphase != null) {
+            broadphase.update(this);
+        }
     }
 
     /**
@@ -278,6 +295,10 @@ public abstract class Spatial extends SceneElement {
         changed = true;
     }
 
+    public boolean isLockedMeshes() {
+        return ((lockedMode & Spatial.LOCKED_MESH_DATA) != 0);
+    }
+
     public void lockEffects() {
         lockedMode |= LOCKED_EFFECTS;
         changed = true;
@@ -588,4 +609,21 @@ public abstract class Spatial extends SceneElement {
     public CollisionVolume getCollisionVolume() {
         return collVolume;
     }
+    
+    /**
+     * Called by the broadphase when the spatial is added to or
+     * removed from it.
+     */
+    public void setBroadphase(CollisionBroadphase bp, int proxy) {
+        broadphase = bp;
+        broadphaseProxy = proxy;
+    }
+    
+    public CollisionBroadphase getBroadphase() {
+        return broadphase;
+    }
+    
+    public int getBroadphaseProxy() {
+        return broadphaseProxy;
+    }
 }
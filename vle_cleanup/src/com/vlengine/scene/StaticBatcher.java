@@ -0,0 +1,566 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.scene;
+
+import com.vlengine.app.frame.Frame;
+import com.vlengine.bounding.BoundingBox;
+import com.vlengine.math.Matrix3f;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.BaseGeometry;
+import com.vlengine.model.Geometry;
+import com.vlengine.model.MD5WeightedGeometry;
+import com.vlengine.renderer.RenderContext;
+import com.vlengine.renderer.Renderer;
+import com.vlengine.renderer.material.Material;
+import com.vlengine.scene.animation.x.XAnimatedItem;
+import com.vlengine.scene.batch.StaticBatch;
+import com.vlengine.scene.batch.TriBatch;
+import com.vlengine.scene.control.UpdateContext;
+import com.vlengine.util.FastList;
+import com.vlengine.util.geom.GeometryIterator;
+import com.vlengine.util.geom.IndexBuffer;
+import com.vlengine.util.geom.VertexAttribute;
+import com.vlengine.util.geom.VertexBuffer;
+import com.vlengine.util.geom.VertexFormat;
+import com.vlengine.util.geom.VertexIterator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Merges the batches of the locked children of a SetNode into static
+ * batches. Batches with the same material, vertex format and render modes
+ * are merged, split into chunks by a grid, so the chunks can still be
+ * culled. The merged geometry is transformed to world space.
+ * 
+ * The children are checked on every update, and only the chunks of
+ * children which were unlocked, detached or newly locked are rebuilt.
+ * Children which are not locked, or have parts which can't be merged
+ * (animated, multiple lods) are culled as usual.
+ * 
+ * A rebuilt chunk gets a new static batch, the previous frame can still
+ * be rendering the old one. The buffers of the old batch are released
+ * on the rendering thread, when no frame in flight can draw it.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class StaticBatcher {
+
+    protected final SetNode node;
+    protected float chunkSize;
+    
+    // the merged batches of every child
+    protected HashMap<Spatial, FastList<Source>> batched = new HashMap<Spatial, FastList<Source>>();
+    // the locked children which can't be merged
+    protected HashSet<Spatial> rejected = new HashSet<Spatial>();
+    // the chunks
+    protected HashMap<ChunkKey, Chunk> chunks = new HashMap<ChunkKey, Chunk>();
+    // the elements to cull instead of the children
+    protected FastList<SceneElement> cullList = new FastList<SceneElement>();
+    protected boolean rebuildList = true;
+    
+    // the number of batches merged and the number of static batches
+    protected int sourceCount;
+    protected int batchCount;
+    
+    // the frame count of the last update
+    protected long frameCount;
+    // the geometry of the replaced static batches, waiting to be released
+    protected final FastList<Retired> retired = new FastList<Retired>();
+    
+    private final FastList<TriBatch> tmpBatches = new FastList<TriBatch>();
+    private final Vector3f tmpVec = new Vector3f();
+    private final Matrix3f tmpRot = new Matrix3f();
+    
+    protected static class Retired {
+        BaseGeometry geom;
+        // the frame in which the batch was replaced
+        long frame;
+    }
+    
+    protected static class Source {
+        Spatial child;
+        TriBatch batch;
+        Chunk chunk;
+    }
+    
+    protected static class ChunkKey {
+        Material material;
+        long signature;
+        long queueMode;
+        long passMode;
+        int lightCombineMode;
+        int x, y, z;
+        
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof ChunkKey))
+                return false;
+            ChunkKey k = (ChunkKey) o;
+            return material == k.material && signature == k.signature
+                    && queueMode == k.queueMode && passMode == k.passMode
+                    && lightCombineMode == k.lightCombineMode
+                    && x == k.x && y == k.y && z == k.z;
+        }
+        
+        @Override
+        public int hashCode() {
+            int h = material != null ? System.identityHashCode(material) : 0;
+            h = h * 31 + (int) (signature ^ (signature >>> 32));
+            h = h * 31 + (int) queueMode;
+            h = h * 31 + x * 73856093 + y * 19349663 + z * 83492791;
+            return h;
+        }
+    }
+    
+    protected static class Chunk {
+        ChunkKey key;
+        FastList<Source> sources = new FastList<Source>();
+        StaticBatch batch;
+        boolean dirty;
+    }
+    
+    public StaticBatcher(SetNode node, float chunkSize) {
+        this.node = node;
+        this.chunkSize = chunkSize;
+    }
+    
+    /**
+     * Sets the size of the grid cells, the batches in a cell are
+     * merged together. Bigger cells give less batches, but worse culling.
+     * The static batches are rebuilt on the next update.
+     */
+    public void setChunkSize(float size) {
+        if(size != chunkSize) {
+            chunkSize = size;
+            clear();
+        }
+    }
+    
+    public float getChunkSize() {
+        return chunkSize;
+    }
+    
+    /**
+     * The elements to cull instead of the children of the node:
+     * the children which are not merged, and the static batches.
+     */
+    public FastList<SceneElement> getCullList() {
+        return cullList;
+    }
+    
+    /**
+     * The number of batches merged into static batches.
+     */
+    public int getSourceCount() {
+        return sourceCount;
+    }
+    
+    /**
+     * The number of static batches created.
+     */
+    public int getBatchCount() {
+        return batchCount;
+    }
+    
+    protected boolean isLocked(Spatial s) {
+        return s.isLockedTransforms() && s.isLockedMeshes();
+    }
+    
+    /**
+     * Checks the children of the node, and rebuilds the chunks
+     * which changed.
+     * 
+     * @param ctx   The update context of the frame
+     * @return      true if the cull list changed
+     */
+    public boolean update(UpdateContext ctx) {
+        if(ctx != null && ctx.frame != null)
+            frameCount = ctx.frame.getFrameCount();
+        boolean changed = rebuildList;
+        FastList<Spatial> children = node.getChildren();
+        // remove the children no longer locked or attached
+        if(batched.size() > 0) {
+            FastList<Spatial> remove = null;
+            for(Spatial child : batched.keySet()) {
+                if(child.getParent() != node || !isLocked(child)) {
+                    if(remove == null)
+                        remove = new FastList<Spatial>();
+                    remove.add(child);
+                }
+            }
+            if(remove != null) {
+                for(int i=0; i<remove.size(); i++) {
+                    removeChild(remove.get(i));
+                }
+                changed = true;
+            }
+        }
+        if(rejected.size() > 0) {
+            FastList<Spatial> remove = null;
+            for(Spatial child : rejected) {
+                if(child.getParent() != node || !isLocked(child)) {
+                    if(remove == null)
+                        remove = new FastList<Spatial>();
+                    remove.add(child);
+                }
+            }
+            if(remove != null) {
+                for(int i=0; i<remove.size(); i++) {
+                    rejected.remove(remove.get(i));
+                }
+            }
+        }
+        // add the newly locked children
+        for(int i=0, mx=children.size(); i<mx; i++) {
+            Spatial child = children.get(i);
+            if(child == null || batched.containsKey(child) || rejected.contains(child)
+                    || !isLocked(child))
+                continue;
+            if(addChild(child)) {
+                changed = true;
+            } else {
+                rejected.add(child);
+            }
+        }
+        // rebuild the changed chunks
+        FastList<ChunkKey> empty = null;
+        for(Chunk c : chunks.values()) {
+            if(!c.dirty)
+                continue;
+            changed = true;
+            c.dirty = false;
+            if(c.sources.size() == 0) {
+                if(empty == null)
+                    empty = new FastList<ChunkKey>();
+                empty.add(c.key);
+                retire(c.batch);
+                c.batch = null;
+            } else {
+                buildChunk(c);
+            }
+        }
+        if(empty != null) {
+            for(int i=0; i<empty.size(); i++)
+                chunks.remove(empty.get(i));
+        }
+        if(changed) {
+            rebuildList = false;
+            // collect the elements to cull
+            cullList.clear();
+            for(int i=0, mx=children.size(); i<mx; i++) {
+                Spatial child = children.get(i);
+                if(child != null && !batched.containsKey(child))
+                    cullList.add(child);
+            }
+            sourceCount = 0;
+            batchCount = 0;
+            for(Chunk c : chunks.values()) {
+                cullList.add(c.batch);
+                sourceCount += c.sources.size();
+                batchCount++;
+            }
+        }
+        return changed;
+    }
+    
+    /**
+     * Removes all the static batches, the children will be culled
+     * as usual.
+     */
+    public void clear() {
+        for(Chunk c : chunks.values()) {
+            retire(c.batch);
+        }
+        batched.clear();
+        rejected.clear();
+        chunks.clear();
+        cullList.clear();
+        rebuildList = true;
+        sourceCount = 0;
+        batchCount = 0;
+    }
+    
+    // queue the geometry of a replaced static batch for release
+    protected void retire(StaticBatch sb) {
+        if(sb == null || sb.getModel() == null)
+            return;
+        Retired r = new Retired();
+        r.geom = sb.getModel();
+        r.frame = frameCount;
+        synchronized(retired) {
+            retired.add(r);
+        }
+    }
+    
+    /**
+     * Releases the buffers of the replaced static batches, which are not
+     * rendered by any frame in flight. Called by the static batches in
+     * the material phase, on the rendering thread.
+     */
+    public void releaseRetired(RenderContext ctx) {
+        synchronized(retired) {
+            if(retired.size() == 0 || ctx.frame == null)
+                return;
+            // the frames before the replacing one can still draw the batch
+            long safe = ctx.frame.getFrameCount() - (Frame.MAX_FRAMES - 1);
+            Renderer r = ctx.getRenderer();
+            for(int i=0; i<retired.size(); i++) {
+                Retired rt = retired.get(i);
+                if(rt.frame > safe)
+                    continue;
+                if(rt.geom instanceof Geometry) {
+                    Geometry g = (Geometry) rt.geom;
+                    FastList<VertexBuffer> buffers = g.getBuffers();
+                    for(int j=0; j<buffers.size(); j++) {
+                        if(buffers.get(j) != null)
+                            r.releaseBuffer(buffers.get(j));
+                    }
+                    if(g.getIndexBuffer() != null)
+                        r.releaseBuffer(g.getIndexBuffer());
+                }
+                retired.remove(i);
+                i--;
+            }
+        }
+    }
+    
+    /**
+     * The number of replaced static batches not yet released.
+     */
+    public int getRetiredCount() {
+        synchronized(retired) {
+            return retired.size();
+        }
+    }
+    
+    protected void removeChild(Spatial child) {
+        FastList<Source> sources = batched.remove(child);
+        for(int i=0; i<sources.size(); i++) {
+            Source s = sources.get(i);
+            s.chunk.sources.remove(s);
+            s.chunk.dirty = true;
+        }
+    }
+    
+    protected boolean addChild(Spatial child) {
+        tmpBatches.clear();
+        if(!collect(child, tmpBatches) || tmpBatches.size() == 0)
+            return false;
+        FastList<Source> sources = new FastList<Source>(tmpBatches.size());
+        for(int i=0; i<tmpBatches.size(); i++) {
+            TriBatch tb = tmpBatches.get(i);
+            Source s = new Source();
+            s.child = child;
+            s.batch = tb;
+            ChunkKey key = createKey(tb);
+            Chunk c = chunks.get(key);
+            if(c == null) {
+                c = new Chunk();
+                c.key = key;
+                chunks.put(key, c);
+            }
+            c.sources.add(s);
+            c.dirty = true;
+            s.chunk = c;
+            sources.add(s);
+        }
+        batched.put(child, sources);
+        return true;
+    }
+    
+    // collect the batches of the subtree, false if some part can't be merged
+    protected boolean collect(Spatial s, FastList<TriBatch> store) {
+        if(s.controllers != null && s.controllers.size() > 0)
+            return false;
+        if(s instanceof SetNode) {
+            FastList<Spatial> ch = ((SetNode) s).getChildren();
+            for(int i=0; i<ch.size(); i++) {
+                if(ch.get(i) != null && !collect(ch.get(i), store))
+                    return false;
+            }
+            return true;
+        } else if(s instanceof Mesh) {
+            TriBatch tb = ((Mesh) s).getBatch();
+            return tb == null || addBatch(tb, store);
+        } else if(s instanceof LodMesh) {
+            LodMesh lm = (LodMesh) s;
+            if(lm.getLodCount() > 1)
+                return false;
+            for(int i=0; i<lm.getLodCount(); i++) {
+                for(int j=0; j<lm.getBatchCount(i); j++) {
+                    if(!addBatch(lm.getBatch(i, j), store))
+                        return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+    
+    protected boolean addBatch(TriBatch tb, FastList<TriBatch> store) {
+        BaseGeometry g = tb.getModel();
+        if(!(g instanceof Geometry) || g instanceof XAnimatedItem || g instanceof MD5WeightedGeometry
+                || g.getMode() != BaseGeometry.TRIANGLES || g.getNumIndex() == 0
+                || ((Geometry) g).getAttribBuffer(VertexAttribute.USAGE_POSITION) == null
+                || tb.getCullMode() == SceneElement.CullMode.ALWAYS)
+            return false;
+        store.add(tb);
+        return true;
+    }
+    
+    protected ChunkKey createKey(TriBatch tb) {
+        ChunkKey k = new ChunkKey();
+        k.material = tb.getMaterial();
+        Geometry g = (Geometry) tb.getModel();
+        FastList<VertexAttribute> attr = g.getAllAttributes(null);
+        for(int i=0; i<attr.size(); i++) {
+            k.signature = VertexFormat.setRequested(k.signature, attr.get(i).type);
+        }
+        k.queueMode = tb.getRenderQueueMode();
+        k.passMode = tb.getRenderPassMode();
+        k.lightCombineMode = tb.getLightCombineMode();
+        // the cell of the bound center
+        Spatial owner = tb.getParent();
+        if(g.getModelBound() != null)
+            g.getModelBound().getCenter(tmpVec);
+        else
+            tmpVec.set(0, 0, 0);
+        tmpVec.multLocal(owner.getWorldScale());
+        owner.getWorldRotation().multLocal(tmpVec);
+        tmpVec.addLocal(owner.getWorldTranslation());
+        k.x = (int) Math.floor(tmpVec.x / chunkSize);
+        k.y = (int) Math.floor(tmpVec.y / chunkSize);
+        k.z = (int) Math.floor(tmpVec.z / chunkSize);
+        return k;
+    }
+    
+    protected void buildChunk(Chunk c) {
+        int numVertex = 0, numIndex = 0;
+        for(int i=0; i<c.sources.size(); i++) {
+            BaseGeometry g = c.sources.get(i).batch.getModel();
+            numVertex += g.getNumVertex();
+            numIndex += g.getNumIndex();
+        }
+        Geometry first = (Geometry) c.sources.get(0).batch.getModel();
+        
+        Geometry target = new Geometry();
+        target.setMode(BaseGeometry.TRIANGLES);
+        VertexBuffer vb = new VertexBuffer();
+        vb.setFormat(VertexFormat.getDefaultFormat(c.key.signature));
+        vb.setVertexCount(numVertex);
+        vb.createDataBuffer();
+        target.addAttribBuffer(vb, 0);
+        IndexBuffer ib = IndexBuffer.createBuffer(numIndex, numVertex, null);
+        target.setIndexBuffer(ib);
+        target.setVBOMode(first.getVBOMode());
+        target.setDisplayListMode(first.getDisplayListMode());
+        
+        GeometryIterator ti = target.createIterator();
+        FastList<VertexAttribute> attr = ti.getAttributes();
+        int vbase = 0, ibase = 0;
+        Vector3f v = new Vector3f();
+        for(int i=0; i<c.sources.size(); i++) {
+            TriBatch tb = c.sources.get(i).batch;
+            Geometry g = (Geometry) tb.getModel();
+            Spatial owner = tb.getParent();
+            Matrix3f rot = owner.getWorldRotation().toRotationMatrix(tmpRot);
+            Vector3f scale = owner.getWorldScale();
+            Vector3f trans = owner.getWorldTranslation();
+            GeometryIterator si = g.createIterator();
+            int nv = g.getNumVertex();
+            for(int a=0; a<attr.size(); a++) {
+                VertexAttribute.Usage type = attr.get(a).type;
+                VertexIterator src = si.getIterator(type);
+                VertexIterator trg = ti.getIterator(type);
+                if(type == VertexAttribute.USAGE_POSITION) {
+                    for(int n=0; n<nv; n++) {
+                        src.get(n, v);
+                        v.multLocal(scale);
+                        rot.multLocal(v);
+                        v.addLocal(trans);
+                        trg.put(vbase + n, v);
+                    }
+                } else if(type == VertexAttribute.USAGE_NORMAL) {
+                    for(int n=0; n<nv; n++) {
+                        src.get(n, v);
+                        // normals scale inversely
+                        v.set(v.x / scale.x, v.y / scale.y, v.z / scale.z);
+                        rot.multLocal(v);
+                        v.normalizeLocal();
+                        trg.put(vbase + n, v);
+                    }
+                } else if(type == VertexAttribute.USAGE_TANGENT
+                        || type == VertexAttribute.USAGE_BINORMAL) {
+                    for(int n=0; n<nv; n++) {
+                        src.get(n, v);
+                        v.multLocal(scale);
+                        rot.multLocal(v);
+                        v.normalizeLocal();
+                        trg.put(vbase + n, v);
+                    }
+                } else {
+                    for(int n=0; n<nv; n++) {
+                        trg.put(vbase + n, src, n);
+                    }
+                }
+            }
+            IndexBuffer sib = g.getIndexBuffer();
+            int si0 = g.getStartIndex();
+            for(int n=0, ni=g.getNumIndex(); n<ni; n++) {
+                ib.put(ibase + n, sib.get(si0 + n) + vbase);
+            }
+            vbase += nv;
+            ibase += g.getNumIndex();
+        }
+        target.setModelBound(new BoundingBox());
+        target.updateModelBound();
+        if(target.getVBOMode() != BaseGeometry.VBO_NO) {
+            target.createVBOInfos();
+        }
+        
+        // a new batch, the old one can still be rendered by the previous frame
+        retire(c.batch);
+        StaticBatch sb = new StaticBatch();
+        sb.setBatcher(this);
+        sb.setModel(target);
+        sb.setSourceCount(c.sources.size());
+        sb.setMaterial(c.key.material);
+        sb.setRenderQueueMode(c.key.queueMode);
+        sb.setRenderPassMode(c.key.passMode);
+        sb.setLightCombineMode(c.key.lightCombineMode);
+        sb.setCullMode(SceneElement.CullMode.DYNAMIC);
+        sb.setParent(node);
+        sb.setNeedUpdate(true);
+        c.batch = sb;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.scene.animation;
+
+import com.vlengine.app.Config;
+import com.vlengine.app.frame.Frame;
+import com.vlengine.renderer.RenderStatistics;
+import com.vlengine.renderer.ViewCamera;
+import com.vlengine.scene.Renderable;
+import com.vlengine.scene.Spatial;
+import com.vlengine.scene.control.UpdateContext;
+import com.vlengine.util.FastList;
+
+/**
+ * Decides the level of detail of bone animations. Models whose renderables
+ * were not queued in the last frames are hidden, and are not animated.
+ * Visible models are put on detail levels by their distance from the
+ * camera, every level starts at double the distance of the previous one.
+ * On level N the animation is updated only every 2^N frames, and from
+ * the reduced level, bones deep in the hierarchy are not animated.
+ * 
+ * The number of updated, throttled and hidden animations is counted
+ * for every frame, and reported into the RenderStatistics.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class AnimationLod {
+    
+    // the level of models not visible
+    public static final int HIDDEN = -1;
+    
+    // the number of frames a model is considered visible after
+    // it was last queued for rendering
+    public static final int VISIBLE_FRAMES = 2;
+    
+    // the distance where level 1 starts
+    protected float distance;
+    // the highest detail level
+    protected int levels;
+    // the level where bones are reduced, and the deepest animated bone
+    protected int reducedLevel;
+    protected int boneDepth;
+    
+    // the counts for every frame
+    protected final int[] updated = new int[Frame.MAX_FRAMES];
+    protected final int[] throttled = new int[Frame.MAX_FRAMES];
+    protected final int[] hidden = new int[Frame.MAX_FRAMES];
+    
+    public AnimationLod(Config conf) {
+        distance = conf.animLodDistance;
+        levels = conf.animLodLevels;
+        reducedLevel = conf.animLodReducedLevel;
+        boneDepth = conf.animLodBoneDepth;
+    }
+    
+    /**
+     * Returns the detail level of an animated model.
+     * 
+     * @param ctx           The current update context
+     * @param target        The node of the model, used for distance, can be null
+     * @param renderables   The renderables of the model, used for visibility,
+     *                      if empty, the model is considered visible
+     * @return              The detail level, or HIDDEN
+     */
+    public int getLevel(UpdateContext ctx, Spatial target, FastList<Renderable> renderables) {
+        if(!renderables.isEmpty()) {
+            long since = ctx.frame.getFrameCount() - VISIBLE_FRAMES;
+            boolean visible = false;
+            for(int i=0, mi=renderables.size(); i<mi && !visible; i++) {
+                visible = renderables.get(i).getLastQueuedFrame() >= since;
+            }
+            if(!visible)
+                return HIDDEN;
+        }
+        ViewCamera cam = ctx.frame.getCamera();
+        if(target == null || cam == null || distance <= 0)
+            return 0;
+        float d = cam.getLocation().distance(target.getWorldTranslation());
+        int level = 0;
+        for(float ld = distance; d >= ld && level < levels; ld *= 2) {
+            level++;
+        }
+        return level;
+    }
+    
+    /**
+     * Returns every how many frames the animation is updated on the
+     * given level.
+     */
+    public int getFrameSkip(int level) {
+        return 1 << level;
+    }
+    
+    /**
+     * Returns the deepest bone animated on the given level, -1 if all
+     * the bones are animated.
+     */
+    public int getBoneDepth(int level) {
+        if(level >= reducedLevel)
+            return boneDepth;
+        return -1;
+    }
+    
+    public void countUpdated(int frameId) {
+        updated[frameId]++;
+    }
+    
+    public void countThrottled(int frameId) {
+        throttled[frameId]++;
+    }
+    
+    public void countHidden(int frameId) {
+        hidden[frameId]++;
+    }
+    
+    /**
+     * Called from the rendering of the frame, puts the counts of the frame
+     * into the statistics, and resets them.
+     */
+    public void report(int frameId, RenderStatistics stats) {
+        if(stats != null) {
+            stats.numberOfAnimUpdated += updated[frameId];
+            stats.numberOfAnimThrottled += throttled[frameId];
+            stats.numberOfAnimHidden += hidden[frameId];
+        }
+        updated[frameId] = 0;
+        throttled[frameId] = 0;
+        hidden[frameId] = 0;
+    }
+}
@@ -32,8 +32,11 @@
 
 package com.vlengine.scene.animation;
 
+import com.vlengine.scene.Renderable;
+import com.vlengine.scene.Spatial;
 import com.vlengine.scene.control.Controller;
 import com.vlengine.scene.control.UpdateContext;
+import com.vlengine.util.FastList;
 
 /**
  * Controller that runs animations based on BoneAnimation and WeightedGeometry
@@ -50,6 +53,17 @@ public abstract class BoneAnimationController extends Controller {
     protected float lastUpdate = 0;
     // do we force update
     protected boolean shouldUpdate = true;
+    
+    // the animation level of detail, if null, always animate at full detail
+    protected AnimationLod lod;
+    // the node of the animated model, for the distance to the camera
+    protected Spatial lodTarget;
+    // the renderables of the animated model, for visibility
+    protected FastList<Renderable> lodRenderables = new FastList<Renderable>();
+    // the current detail level
+    protected int lodLevel = 0;
+    // the frames since the last update
+    protected int skippedFrames = 0;
 
     public BoneAnimationController(String name) {
         super(name);
@@ -61,11 +75,29 @@ public abstract class BoneAnimationController extends Controller {
         float time = currTime - referenceTime;
         referenceTime=currTime;
         lastUpdate += time;
+        if(lod != null) {
+            int frameId = ctx.frame.getFrameId();
+            lodLevel = lod.getLevel(ctx, lodTarget, lodRenderables);
+            skippedFrames++;
+            if(!shouldUpdate) {
+                if(lodLevel == AnimationLod.HIDDEN) {
+                    lod.countHidden(frameId);
+                    return;
+                }
+                if(skippedFrames < lod.getFrameSkip(lodLevel)) {
+                    lod.countThrottled(frameId);
+                    return;
+                }
+            }
+        }
         if(lastUpdate<throttle && !shouldUpdate)
             return;
         updateAnimations(ctx);
         lastUpdate = 0;
+        skippedFrames = 0;
         shouldUpdate = false;
+        if(lod != null)
+            lod.countUpdated(ctx.frame.getFrameId());
     }
     
     protected abstract void updateAnimations(UpdateContext ctx);
@@ -79,4 +111,41 @@ public abstract class BoneAnimationController extends Controller {
     public void forceUpdate() {
         shouldUpdate = true;
     }
+    
+    /**
+     * Sets the level of detail used for this controller.
+     * 
+     * @param lod       The level of detail, null for always full detail
+     * @param target    The node of the animated model
+     */
+    public void setLod(AnimationLod lod, Spatial target) {
+        this.lod = lod;
+        this.lodTarget = target;
+    }
+    
+    public AnimationLod getLod() {
+        return lod;
+    }
+    
+    /**
+     * Adds a renderable of the animated model, the animation is not updated
+     * if none of the renderables were rendered in the last frames.
+     */
+    public void addLodRenderable(Renderable r) {
+        lodRenderables.add(r);
+    }
+    
+    public int getLodLevel() {
+        return lodLevel;
+    }
+    
+    /**
+     * Returns the deepest bone to animate on the current detail level,
+     * -1 for all the bones.
+     */
+    public int getBoneDepthLimit() {
+        if(lod == null || lodLevel == AnimationLod.HIDDEN)
+            return -1;
+        return lod.getBoneDepth(lodLevel);
+    }
 }
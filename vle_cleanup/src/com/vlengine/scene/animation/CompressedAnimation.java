@@ -0,0 +1,486 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.scene.animation;
+
+import com.vlengine.math.FastMath;
+import com.vlengine.math.Quaternion;
+import com.vlengine.math.Vector3f;
+import com.vlengine.util.IntList;
+
+/**
+ * Compact keyframe storage for bone animations. Every bone (track) has
+ * a rotation, a translation and a scale channel. Rotations are stored as
+ * smallest-three quaternions with 15 bits per component, vectors are
+ * quantized to 16 bits in the range of their channel. Keys which can be
+ * interpolated from their neighbours within a tolerance are dropped,
+ * constant channels are stored as a single key, and channels constant
+ * at their default value are not stored at all.
+ * All the key data is held in a few primitive arrays.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class CompressedAnimation {
+
+    // the channels of a track
+    public static final int ROTATION = 0;
+    public static final int TRANSLATION = 1;
+    public static final int SCALE = 2;
+    public static final int CHANNELS = 3;
+
+    // the range of the three smallest components of a unit quaternion
+    private static final float ROT_RANGE = FastMath.sqrt(0.5f);
+    private static final float ROT_QUANT = 32767f;
+    private static final float VEC_QUANT = 65535f;
+
+    // the number of tracks
+    protected int numTracks;
+    // the number of frames of the original animation
+    protected int numFrames;
+
+    // the first key of a channel (track*CHANNELS+channel)
+    protected int[] trackKey;
+    // the number of keys of a channel, 0 if not stored, 1 if constant
+    protected int[] trackKeys;
+    // quantization range of vector channels, min x,y,z and extent x,y,z
+    protected float[] trackRange;
+
+    // the frame of each key
+    protected char[] keyFrame;
+    // the quantized values of each key, 3 per key
+    protected short[] keyValue;
+
+    // keys collected during building, released on pack
+    protected IntList buildFrame;
+    protected IntList buildValue;
+
+    public CompressedAnimation(int numTracks, int numFrames) {
+        this.numTracks = numTracks;
+        this.numFrames = numFrames;
+        trackKey = new int[numTracks*CHANNELS];
+        trackKeys = new int[numTracks*CHANNELS];
+        trackRange = new float[numTracks*CHANNELS*6];
+        buildFrame = new IntList(numTracks*CHANNELS*4);
+        buildValue = new IntList(numTracks*CHANNELS*12);
+    }
+
+    public int getNumTracks() {
+        return numTracks;
+    }
+
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    /**
+     * Is the channel of a track stored, if not, the channel has
+     * its default value.
+     */
+    public boolean hasChannel(int track, int channel) {
+        return trackKeys[track*CHANNELS+channel] > 0;
+    }
+
+    /**
+     * Returns the number of keys stored for the channel of a track.
+     */
+    public int getNumKeys(int track, int channel) {
+        return trackKeys[track*CHANNELS+channel];
+    }
+
+    /**
+     * Returns the number of keys stored in all the channels.
+     */
+    public int getNumKeys() {
+        return keyFrame != null ? keyFrame.length : buildFrame.size();
+    }
+
+    /**
+     * Returns the size in bytes of the stored animation data.
+     */
+    public int getDataSize() {
+        return getNumKeys()*(2+3*2) + (trackKey.length + trackKeys.length + trackRange.length)*4;
+    }
+
+    /**
+     * Sets the rotation channel of a track, one rotation for each frame.
+     * 
+     * @param track     The track (bone) to set
+     * @param values    The rotation for each frame
+     * @param tolerance The maximum error in radians for dropping keys
+     * @param removeIdentity If a constant identity rotation is not stored
+     */
+    public void setRotations(int track, Quaternion[] values, float tolerance, boolean removeIdentity) {
+        int n = values.length;
+        int ch = track*CHANNELS+ROTATION;
+        // quantize all the values
+        short[] q = new short[n*3];
+        Quaternion[] dq = new Quaternion[n];
+        for(int i=0; i<n; i++) {
+            encodeRotation(values[i], q, i*3);
+            dq[i] = decodeRotation(q, i*3, new Quaternion());
+        }
+        Quaternion tmp = new Quaternion();
+        // check if the channel is constant
+        boolean constant = true;
+        for(int i=1; i<n && constant; i++) {
+            constant = angle(dq[0], values[i]) <= tolerance;
+        }
+        if(constant) {
+            tmp.loadIdentity();
+            if(removeIdentity && angle(tmp, values[0]) <= tolerance) {
+                trackKeys[ch] = 0;
+            } else {
+                beginChannel(ch);
+                addKey(ch, 0, q);
+            }
+            return;
+        }
+        // greedy key reduction, extend the segment while all
+        // the frames it covers are within tolerance
+        beginChannel(ch);
+        addKey(ch, 0, q);
+        int start = 0;
+        for(int end = 2; end < n; end++) {
+            boolean fits = true;
+            for(int i=start+1; i<end && fits; i++) {
+                nlerp(dq[start], dq[end], (float)(i-start)/(end-start), tmp);
+                fits = angle(tmp, values[i]) <= tolerance;
+            }
+            if(!fits) {
+                // the previous frame is needed as a key
+                start = end - 1;
+                addKey(ch, start, q);
+            }
+        }
+        addKey(ch, n-1, q);
+    }
+
+    /**
+     * Sets a translation or scale channel of a track, one vector for each frame.
+     * 
+     * @param track     The track (bone) to set
+     * @param channel   TRANSLATION or SCALE
+     * @param values    The vector for each frame
+     * @param tolerance The maximum error of a component for dropping keys
+     * @param removeDefault If not null, a channel constant at this value is not stored
+     */
+    public void setVectors(int track, int channel, Vector3f[] values, float tolerance, Vector3f removeDefault) {
+        int n = values.length;
+        int ch = track*CHANNELS+channel;
+        // calculate the range
+        int r = ch*6;
+        trackRange[r] = trackRange[r+1] = trackRange[r+2] = Float.MAX_VALUE;
+        trackRange[r+3] = trackRange[r+4] = trackRange[r+5] = -Float.MAX_VALUE;
+        for(int i=0; i<n; i++) {
+            Vector3f v = values[i];
+            trackRange[r] = Math.min(trackRange[r], v.x);
+            trackRange[r+1] = Math.min(trackRange[r+1], v.y);
+            trackRange[r+2] = Math.min(trackRange[r+2], v.z);
+            trackRange[r+3] = Math.max(trackRange[r+3], v.x);
+            trackRange[r+4] = Math.max(trackRange[r+4], v.y);
+            trackRange[r+5] = Math.max(trackRange[r+5], v.z);
+        }
+        // store the extent instead of the max
+        trackRange[r+3] -= trackRange[r];
+        trackRange[r+4] -= trackRange[r+1];
+        trackRange[r+5] -= trackRange[r+2];
+        // quantize all the values
+        short[] q = new short[n*3];
+        Vector3f[] dq = new Vector3f[n];
+        for(int i=0; i<n; i++) {
+            encodeVector(ch, values[i], q, i*3);
+            dq[i] = decodeVector(ch, q, i*3, new Vector3f());
+        }
+        // check if the channel is constant
+        boolean constant = true;
+        for(int i=1; i<n && constant; i++) {
+            constant = distance(dq[0], values[i]) <= tolerance;
+        }
+        if(constant) {
+            if(removeDefault != null && distance(removeDefault, values[0]) <= tolerance) {
+                trackKeys[ch] = 0;
+            } else {
+                beginChannel(ch);
+                addKey(ch, 0, q);
+            }
+            return;
+        }
+        // greedy key reduction
+        Vector3f tmp = new Vector3f();
+        beginChannel(ch);
+        addKey(ch, 0, q);
+        int start = 0;
+        for(int end = 2; end < n; end++) {
+            boolean fits = true;
+            for(int i=start+1; i<end && fits; i++) {
+                tmp.interpolate(dq[start], dq[end], (float)(i-start)/(end-start));
+                fits = distance(tmp, values[i]) <= tolerance;
+            }
+            if(!fits) {
+                start = end - 1;
+                addKey(ch, start, q);
+            }
+        }
+        addKey(ch, n-1, q);
+    }
+
+    private void beginChannel(int ch) {
+        trackKey[ch] = buildFrame.size();
+        trackKeys[ch] = 0;
+    }
+
+    private void addKey(int ch, int frame, short[] q) {
+        buildFrame.add(frame);
+        buildValue.add(q[frame*3]);
+        buildValue.add(q[frame*3+1]);
+        buildValue.add(q[frame*3+2]);
+        trackKeys[ch]++;
+    }
+
+    /**
+     * Packs the added keys into the final arrays, after this no more
+     * channels can be set.
+     */
+    public void pack() {
+        int numKeys = buildFrame.size();
+        keyFrame = new char[numKeys];
+        keyValue = new short[numKeys*3];
+        for(int i=0; i<numKeys; i++) {
+            keyFrame[i] = (char) buildFrame.get(i);
+        }
+        for(int i=0; i<numKeys*3; i++) {
+            keyValue[i] = (short) buildValue.get(i);
+        }
+        buildFrame = null;
+        buildValue = null;
+    }
+
+    /**
+     * Finds the key in the channel, at or before the given frame.
+     */
+    private int findKey(int ch, float frame) {
+        int first = trackKey[ch];
+        int last = first + trackKeys[ch] - 1;
+        if(first == last || frame <= keyFrame[first])
+            return first;
+        if(frame >= keyFrame[last])
+            return last;
+        // binary search for the segment
+        int lo = first, hi = last;
+        while(hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if(keyFrame[mid] <= frame)
+                lo = mid;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the rotation of the track at the given frame, interpolated
+     * between the stored keys. Not stored channels return identity.
+     */
+    public Quaternion getRotation(int track, float frame, Quaternion store) {
+        if(store == null)
+            store = new Quaternion();
+        int ch = track*CHANNELS+ROTATION;
+        if(trackKeys[ch] == 0) {
+            store.loadIdentity();
+            return store;
+        }
+        int k = findKey(ch, frame);
+        decodeRotation(keyValue, k*3, store);
+        if(k < trackKey[ch] + trackKeys[ch] - 1 && frame > keyFrame[k]) {
+            float t = (frame - keyFrame[k]) / (keyFrame[k+1] - keyFrame[k]);
+            blendRotation(keyValue, (k+1)*3, t, store);
+        }
+        return store;
+    }
+
+    /**
+     * Returns the translation or scale of the track at the given frame,
+     * interpolated between the stored keys. Not stored channels return
+     * the given default value.
+     */
+    public Vector3f getVector(int track, int channel, float frame, Vector3f defaultValue, Vector3f store) {
+        if(store == null)
+            store = new Vector3f();
+        int ch = track*CHANNELS+channel;
+        if(trackKeys[ch] == 0) {
+            store.set(defaultValue);
+            return store;
+        }
+        int k = findKey(ch, frame);
+        decodeVector(ch, keyValue, k*3, store);
+        if(k < trackKey[ch] + trackKeys[ch] - 1 && frame > keyFrame[k]) {
+            float t = (frame - keyFrame[k]) / (keyFrame[k+1] - keyFrame[k]);
+            int r = ch*6;
+            int idx = (k+1)*3;
+            float t1 = 1f - t;
+            store.x = store.x*t1 + (trackRange[r] + (keyValue[idx] + 32768) / VEC_QUANT * trackRange[r+3])*t;
+            store.y = store.y*t1 + (trackRange[r+1] + (keyValue[idx+1] + 32768) / VEC_QUANT * trackRange[r+4])*t;
+            store.z = store.z*t1 + (trackRange[r+2] + (keyValue[idx+2] + 32768) / VEC_QUANT * trackRange[r+5])*t;
+        }
+        return store;
+    }
+
+    // store the three smallest components, the index of the largest
+    // goes into the top bits of the first two components
+    private static void encodeRotation(Quaternion q, short[] store, int idx) {
+        float x = q.x, y = q.y, z = q.z, w = q.w;
+        float len = FastMath.sqrt(x*x + y*y + z*z + w*w);
+        if(len > 0) {
+            x /= len; y /= len; z /= len; w /= len;
+        } else {
+            w = 1;
+        }
+        float ax = Math.abs(x), ay = Math.abs(y), az = Math.abs(z), aw = Math.abs(w);
+        int largest = 0;
+        float max = ax;
+        if(ay > max) { largest = 1; max = ay; }
+        if(az > max) { largest = 2; max = az; }
+        if(aw > max) { largest = 3; }
+        float a, b, c, l;
+        switch(largest) {
+            case 0: l = x; a = y; b = z; c = w; break;
+            case 1: l = y; a = x; b = z; c = w; break;
+            case 2: l = z; a = x; b = y; c = w; break;
+            default: l = w; a = x; b = y; c = z; break;
+        }
+        // q and -q are the same rotation, make the dropped component positive
+        if(l < 0) {
+            a = -a; b = -b; c = -c;
+        }
+        store[idx] = (short) (((largest >> 1) << 15) | quantizeRotation(a));
+        store[idx+1] = (short) (((largest & 1) << 15) | quantizeRotation(b));
+        store[idx+2] = (short) quantizeRotation(c);
+    }
+
+    private static int quantizeRotation(float v) {
+        int q = Math.round((v + ROT_RANGE) / (2f*ROT_RANGE) * ROT_QUANT);
+        return Math.max(0, Math.min((int) ROT_QUANT, q));
+    }
+
+    private static float dequantizeRotation(int q) {
+        return (q & 0x7fff) / ROT_QUANT * (2f*ROT_RANGE) - ROT_RANGE;
+    }
+
+    private static Quaternion decodeRotation(short[] data, int idx, Quaternion store) {
+        int s0 = data[idx], s1 = data[idx+1], s2 = data[idx+2];
+        int largest = (((s0 >> 15) & 1) << 1) | ((s1 >> 15) & 1);
+        float a = dequantizeRotation(s0);
+        float b = dequantizeRotation(s1);
+        float c = dequantizeRotation(s2);
+        float l = FastMath.sqrt(Math.max(0f, 1f - a*a - b*b - c*c));
+        switch(largest) {
+            case 0: store.set(l, a, b, c); break;
+            case 1: store.set(a, l, b, c); break;
+            case 2: store.set(a, b, l, c); break;
+            default: store.set(a, b, c, l); break;
+        }
+        return store;
+    }
+
+    // decode the key and nlerp the store towards it, without temporaries
+    private static void blendRotation(short[] data, int idx, float t, Quaternion store) {
+        int s0 = data[idx], s1 = data[idx+1], s2 = data[idx+2];
+        int largest = (((s0 >> 15) & 1) << 1) | ((s1 >> 15) & 1);
+        float a = dequantizeRotation(s0);
+        float b = dequantizeRotation(s1);
+        float c = dequantizeRotation(s2);
+        float l = FastMath.sqrt(Math.max(0f, 1f - a*a - b*b - c*c));
+        float x, y, z, w;
+        switch(largest) {
+            case 0: x = l; y = a; z = b; w = c; break;
+            case 1: x = a; y = l; z = b; w = c; break;
+            case 2: x = a; y = b; z = l; w = c; break;
+            default: x = a; y = b; z = c; w = l; break;
+        }
+        float dot = store.x*x + store.y*y + store.z*z + store.w*w;
+        float t2 = dot < 0 ? -t : t;
+        float t1 = 1f - t;
+        store.set(store.x*t1 + x*t2, store.y*t1 + y*t2, store.z*t1 + z*t2, store.w*t1 + w*t2);
+        store.normalize();
+    }
+
+    private void encodeVector(int ch, Vector3f v, short[] store, int idx) {
+        int r = ch*6;
+        store[idx] = quantizeVector(v.x, trackRange[r], trackRange[r+3]);
+        store[idx+1] = quantizeVector(v.y, trackRange[r+1], trackRange[r+4]);
+        store[idx+2] = quantizeVector(v.z, trackRange[r+2], trackRange[r+5]);
+    }
+
+    private static short quantizeVector(float v, float min, float extent) {
+        if(extent <= 0)
+            return Short.MIN_VALUE;
+        int q = Math.round((v - min) / extent * VEC_QUANT);
+        q = Math.max(0, Math.min((int) VEC_QUANT, q));
+        return (short) (q - 32768);
+    }
+
+    private Vector3f decodeVector(int ch, short[] data, int idx, Vector3f store) {
+        int r = ch*6;
+        store.x = trackRange[r] + (data[idx] + 32768) / VEC_QUANT * trackRange[r+3];
+        store.y = trackRange[r+1] + (data[idx+1] + 32768) / VEC_QUANT * trackRange[r+4];
+        store.z = trackRange[r+2] + (data[idx+2] + 32768) / VEC_QUANT * trackRange[r+5];
+        return store;
+    }
+
+    /**
+     * Normalized linear interpolation along the shorter arc.
+     */
+    public static Quaternion nlerp(Quaternion q1, Quaternion q2, float t, Quaternion store) {
+        float dot = q1.x*q2.x + q1.y*q2.y + q1.z*q2.z + q1.w*q2.w;
+        float t2 = dot < 0 ? -t : t;
+        float t1 = 1f - t;
+        store.set(q1.x*t1 + q2.x*t2, q1.y*t1 + q2.y*t2, q1.z*t1 + q2.z*t2, q1.w*t1 + q2.w*t2);
+        store.normalize();
+        return store;
+    }
+
+    /**
+     * The angle in radians between two rotations.
+     */
+    public static float angle(Quaternion q1, Quaternion q2) {
+        float n1 = q1.x*q1.x + q1.y*q1.y + q1.z*q1.z + q1.w*q1.w;
+        float n2 = q2.x*q2.x + q2.y*q2.y + q2.z*q2.z + q2.w*q2.w;
+        float dot = Math.abs(q1.x*q2.x + q1.y*q2.y + q1.z*q2.z + q1.w*q2.w);
+        if(n1 > 0 && n2 > 0)
+            dot /= FastMath.sqrt(n1*n2);
+        return 2f * FastMath.acos(Math.min(1f, dot));
+    }
+
+    private static float distance(Vector3f v1, Vector3f v2) {
+        return Math.max(Math.abs(v1.x - v2.x), Math.max(Math.abs(v1.y - v2.y), Math.abs(v1.z - v2.z)));
+    }
+}
@@ -33,6 +33,7 @@
 package com.vlengine.scene.animation.MD5;
 
 import com.vlengine.scene.animation.*;
+import com.vlengine.math.Quaternion;
 import com.vlengine.math.Vector3f;
 import com.vlengine.util.IntList;
 
@@ -59,8 +60,10 @@ public class MD5BoneAnimation extends BoneAnimation {
     //public Quaternion[] baseRotatition;
     
 
-    // the frames of this animation
+    // the frames of this animation, null when the animation is compressed
     public MD5AnimationFrame[] frame;
+    // the compressed frames
+    public CompressedAnimation compressed;
     //public Vector3f[][] frameTranslation;
     //public Quaternion[][] frameRotation;
     
@@ -84,4 +87,58 @@ public class MD5BoneAnimation extends BoneAnimation {
     // the joint number by data index
     public IntList transformJoint;
 
+    /**
+     * Compresses the frames into quantized keys, and releases the frames.
+     * 
+     * @param angleTolerance        The maximum rotation error in radians
+     * @param translationTolerance  The maximum translation error
+     * @return if the animation was compressed
+     */
+    public boolean compress(float angleTolerance, float translationTolerance) {
+        if(compressed != null || frame == null || numFrames == 0)
+            return false;
+        for(int i=0; i<numFrames; i++) {
+            if(frame[i] == null || frame[i].rotation == null)
+                return false;
+        }
+        CompressedAnimation ca = new CompressedAnimation(numJoints, numFrames);
+        Quaternion[] rot = new Quaternion[numFrames];
+        Vector3f[] trans = new Vector3f[numFrames];
+        for(int j=0; j<numJoints; j++) {
+            for(int i=0; i<numFrames; i++) {
+                rot[i] = frame[i].rotation[j];
+                trans[i] = frame[i].translation[j];
+            }
+            ca.setRotations(j, rot, angleTolerance, true);
+            ca.setVectors(j, CompressedAnimation.TRANSLATION, trans, translationTolerance, Vector3f.ZERO);
+        }
+        ca.pack();
+        compressed = ca;
+        frame = null;
+        return true;
+    }
+
+    /**
+     * Returns a frame of the animation, compressed frames are decoded
+     * into the provided frame.
+     */
+    public MD5AnimationFrame getFrame(int index, MD5AnimationFrame store) {
+        if(compressed == null)
+            return frame[index];
+        if(store == null)
+            store = new MD5AnimationFrame();
+        if(store.rotation == null || store.rotation.length < numJoints) {
+            store.rotation = new Quaternion[numJoints];
+            store.translation = new Vector3f[numJoints];
+            for(int j=0; j<numJoints; j++) {
+                store.rotation[j] = new Quaternion();
+                store.translation[j] = new Vector3f();
+            }
+        }
+        for(int j=0; j<numJoints; j++) {
+            compressed.getRotation(j, index, store.rotation[j]);
+            compressed.getVector(j, CompressedAnimation.TRANSLATION, index, Vector3f.ZERO, store.translation[j]);
+        }
+        return store;
+    }
 }
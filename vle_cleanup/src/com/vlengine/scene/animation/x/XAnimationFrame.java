@@ -40,5 +40,20 @@ import com.vlengine.math.Matrix4f;
  * @author vear (Arpad Vekas)
  */
 public class XAnimationFrame extends AnimationFrame {
+    // the bone transforms, null when the animation is compressed
     public Matrix4f[] transform;
+    // the animation and index of this frame, for decoding compressed frames
+    public XBoneAnimation animation;
+    public int index;
+
+    /**
+     * Returns the bone transforms of this frame, compressed frames are
+     * decoded into the provided array. The returned array is a new one,
+     * if the provided array is null or too short.
+     */
+    public Matrix4f[] getTransform(Matrix4f[] store) {
+        if(transform != null || animation == null || animation.compressed == null)
+            return transform;
+        return animation.decodeFrame(index, store);
+    }
 }
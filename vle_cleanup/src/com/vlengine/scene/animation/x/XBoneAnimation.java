@@ -32,7 +32,14 @@
 
 package com.vlengine.scene.animation.x;
 
+import com.vlengine.math.FastMath;
+import com.vlengine.math.Matrix4f;
+import com.vlengine.math.Quaternion;
+import com.vlengine.math.Vector3f;
 import com.vlengine.scene.animation.BoneAnimation;
+import com.vlengine.scene.animation.CompressedAnimation;
+import com.vlengine.thread.Context;
+import com.vlengine.thread.LocalContext;
 
 /**
  *
@@ -41,4 +48,166 @@ import com.vlengine.scene.animation.BoneAnimation;
 public class XBoneAnimation extends BoneAnimation {
 
     public XAnimationFrame[] frames;
+    
+    // the compressed keyframes, when set, the frames hold no transforms
+    public CompressedAnimation compressed;
+    // the matrices have the translation in the last row, as in .x files
+    protected boolean rowLayout = true;
+
+    /**
+     * Compresses the transforms of the frames into quantized keys, and
+     * releases the matrices. The matrices are decomposed into rotation,
+     * translation and scale, each is compressed separately.
+     * 
+     * @param angleTolerance        The maximum rotation error in radians
+     * @param translationTolerance  The maximum translation error
+     * @param scaleTolerance        The maximum scale error
+     * @return if the animation was compressed
+     */
+    public boolean compress(float angleTolerance, float translationTolerance, float scaleTolerance) {
+        if(compressed != null || frames == null || frames.length == 0)
+            return false;
+        int n = frames.length;
+        int numTracks = 0;
+        boolean translated = false;
+        boolean rows = true;
+        for(int i=0; i<n; i++) {
+            if(frames[i] == null || frames[i].transform == null)
+                return false;
+            Matrix4f[] tr = frames[i].transform;
+            numTracks = Math.max(numTracks, tr.length);
+            for(int j=0; j<tr.length; j++) {
+                Matrix4f m = tr[j];
+                if(m == null)
+                    continue;
+                // find where the translation is
+                if(m.m30 != 0 || m.m31 != 0 || m.m32 != 0)
+                    translated = true;
+                if(m.m03 != 0 || m.m13 != 0 || m.m23 != 0)
+                    rows = false;
+            }
+        }
+        boolean rowLayout = rows && translated;
+        
+        CompressedAnimation ca = new CompressedAnimation(numTracks, n);
+        Quaternion[] rot = new Quaternion[n];
+        Vector3f[] trans = new Vector3f[n];
+        Vector3f[] scale = new Vector3f[n];
+        for(int i=0; i<n; i++) {
+            rot[i] = new Quaternion();
+            trans[i] = new Vector3f();
+            scale[i] = new Vector3f();
+        }
+        for(int t=0; t<numTracks; t++) {
+            int present = 0;
+            for(int i=0; i<n; i++) {
+                Matrix4f[] tr = frames[i].transform;
+                if(t < tr.length && tr[t] != null) {
+                    decompose(tr[t], rowLayout, rot[i], trans[i], scale[i]);
+                    present++;
+                }
+            }
+            if(present == 0)
+                continue;
+            if(present != n) {
+                // bone animated only in some frames, cannot be represented
+                return false;
+            }
+            // the rotation is always stored, it marks the track as present
+            ca.setRotations(t, rot, angleTolerance, false);
+            ca.setVectors(t, CompressedAnimation.TRANSLATION, trans, translationTolerance, Vector3f.ZERO);
+            ca.setVectors(t, CompressedAnimation.SCALE, scale, scaleTolerance, Vector3f.UNIT_XYZ);
+        }
+        ca.pack();
+        
+        this.rowLayout = rowLayout;
+        compressed = ca;
+        for(int i=0; i<n; i++) {
+            frames[i].animation = this;
+            frames[i].index = i;
+            frames[i].transform = null;
+        }
+        return true;
+    }
+
+    // decompose the matrix into rotation, translation and scale
+    private static void decompose(Matrix4f m, boolean rowLayout, Quaternion rot, Vector3f trans, Vector3f scale) {
+        // the rotation-scale part in column layout
+        float r00 = m.m00, r11 = m.m11, r22 = m.m22;
+        float r01, r02, r10, r12, r20, r21;
+        if(rowLayout) {
+            r01 = m.m10; r02 = m.m20;
+            r10 = m.m01; r12 = m.m21;
+            r20 = m.m02; r21 = m.m12;
+            trans.set(m.m30, m.m31, m.m32);
+        } else {
+            r01 = m.m01; r02 = m.m02;
+            r10 = m.m10; r12 = m.m12;
+            r20 = m.m20; r21 = m.m21;
+            trans.set(m.m03, m.m13, m.m23);
+        }
+        // the scale is the length of the axes
+        float sx = FastMath.sqrt(r00*r00 + r10*r10 + r20*r20);
+        float sy = FastMath.sqrt(r01*r01 + r11*r11 + r21*r21);
+        float sz = FastMath.sqrt(r02*r02 + r12*r12 + r22*r22);
+        // mirrored matrix, put the mirroring into the scale
+        float det = r00*(r11*r22 - r12*r21) - r01*(r10*r22 - r12*r20) + r02*(r10*r21 - r11*r20);
+        if(det < 0)
+            sx = -sx;
+        scale.set(sx, sy, sz);
+        if(sx != 0) { r00 /= sx; r10 /= sx; r20 /= sx; }
+        if(sy != 0) { r01 /= sy; r11 /= sy; r21 /= sy; }
+        if(sz != 0) { r02 /= sz; r12 /= sz; r22 /= sz; }
+        rot.fromRotationMatrix(r00, r01, r02, r10, r11, r12, r20, r21, r22);
+        rot.normalize();
+    }
+
+    /**
+     * Decodes the bone transforms of a frame from the compressed keys.
+     * Bones not animated get null, the matrices of the animated bones
+     * are allocated if needed. If the store is null or too short, a new
+     * array is returned, callers should keep the returned array.
+     */
+    public Matrix4f[] decodeFrame(int index, Matrix4f[] store) {
+        CompressedAnimation ca = compressed;
+        int numTracks = ca.getNumTracks();
+        if(store == null || store.length < numTracks)
+            store = new Matrix4f[numTracks];
+        Context tmp = LocalContext.getContext();
+        Quaternion rot = tmp.xbaRot;
+        Vector3f trans = tmp.xbaTrans;
+        Vector3f scale = tmp.xbaScale;
+        for(int t=0; t<numTracks; t++) {
+            if(!ca.hasChannel(t, CompressedAnimation.ROTATION)) {
+                store[t] = null;
+                continue;
+            }
+            Matrix4f m = store[t];
+            if(m == null) {
+                m = new Matrix4f();
+                store[t] = m;
+            }
+            ca.getRotation(t, index, rot);
+            ca.getVector(t, CompressedAnimation.TRANSLATION, index, Vector3f.ZERO, trans);
+            ca.getVector(t, CompressedAnimation.SCALE, index, Vector3f.UNIT_XYZ, scale);
+            rot.toRotationMatrix(m);
+            if(rowLayout) {
+                // the axes go into the rows
+                float t01 = m.m01, t02 = m.m02, t12 = m.m12;
+                m.m00 *= scale.x; m.m01 = m.m10*scale.x; m.m02 = m.m20*scale.x;
+                m.m10 = t01*scale.y; m.m11 *= scale.y; m.m12 = m.m21*scale.y;
+                m.m20 = t02*scale.z; m.m21 = t12*scale.z; m.m22 *= scale.z;
+                m.m03 = 0; m.m13 = 0; m.m23 = 0;
+                m.m30 = trans.x; m.m31 = trans.y; m.m32 = trans.z;
+            } else {
+                m.m00 *= scale.x; m.m10 *= scale.x; m.m20 *= scale.x;
+                m.m01 *= scale.y; m.m11 *= scale.y; m.m21 *= scale.y;
+                m.m02 *= scale.z; m.m12 *= scale.z; m.m22 *= scale.z;
+                m.m03 = trans.x; m.m13 = trans.y; m.m23 = trans.z;
+                m.m30 = 0; m.m31 = 0; m.m32 = 0;
+            }
+            m.m33 = 1;
+        }
+        return store;
+    }
 }
@@ -79,12 +79,22 @@ public class XBoneAnimationController extends BoneAnimationController {
     // the bone transforms in an animation state
     protected Matrix4f[] boneTransforms;
     protected Matrix4f[] skinTransforms;
+    // the depth of the bones in the hierarchy
+    protected int[] boneDepth;
+    // bones deeper than this keep the frame transform, -1 for no limit
+    protected int boneLimit = -1;
 
     // temp matrix for applying the matrixoffset
     private Matrix4f tempMat = new Matrix4f();
+    // the decoded transforms of compressed keyframes
+    private Matrix4f[] currentTransforms;
+    private Matrix4f[] nextTransforms;
     // tmp action when blending with next animation
     protected XAction nextAction = new XAction();
     
+    // the shared pose cache, if null, poses are always evaluated
+    protected XPoseCache poseCache;
+    
     public XBoneAnimationController(String name) {
         super(name);
     }
@@ -101,6 +111,14 @@ public class XBoneAnimationController extends BoneAnimationController {
         animPack = pack;
         shouldUpdate = true;
     }
+    
+    public void setPoseCache(XPoseCache cache) {
+        poseCache = cache;
+    }
+    
+    public XPoseCache getPoseCache() {
+        return poseCache;
+    }
 
     protected void setAction(XAction xa, Action a) {
         xa.sheduledTime = referenceTime+a.time;
@@ -337,35 +355,18 @@ public class XBoneAnimationController extends BoneAnimationController {
             // force update
             shouldUpdate=true;
         }
-        // reset active animations
-        if(activeBones==null) {
-            activeBones = new boolean[animPack.bones.size()];
-        }
+        initTransforms();
         Arrays.fill(activeBones, false);
-        // reset matrices
-        if(boneTransforms==null) {
-            boneTransforms = new Matrix4f[animPack.bones.size()];
-            for(int i=0; i<boneTransforms.length; i++) {
-                boneTransforms[i] = new Matrix4f();
-            }
-            // reset bone 0 to zero matrix
-            boneTransforms[0].zero();
-        }
-
-        if(skinTransforms==null) {
-            skinTransforms = new Matrix4f[animPack.bones.size()];
-            for(int i=0; i<skinTransforms.length; i++) {
-                skinTransforms[i] = new Matrix4f();
-            }
-            // reset bone 0 to zero matrix
-            skinTransforms[0].zero();
-        }
-        
+        boneLimit = getBoneDepthLimit();
        
         FastList<Bone> bones = animPack.bones;
 
         // do we need to update the items
         boolean updateItems = shouldUpdate;
+        // the pose taken from the pose cache
+        Matrix4f[] pose = null;
+        // is the pose already set by an action
+        boolean posed = false;
                 
         // calculate frames that needs to be interpolated
         for(int i=0; i< activeAnim.size(); i++) {
@@ -403,16 +404,26 @@ public class XBoneAnimationController extends BoneAnimationController {
                 if(a.currentFrame == null || a.nextFrame == null) {
                     System.out.append("null anim");
                 } else {
-                    for(int j=0; j<bones.size(); j++) {
-                        Bone b = bones.get(j);
-                        // this bone is already animated
-                        if(b==null || activeBones[j])
-                            continue;
-
-
-                        // calculate the bone transform
-                        calcBoneTransform(b, a.currentFrame.transform, a.nextFrame!=null?a.nextFrame.transform:null, interpolation);
+                    if(poseCache != null && !posed) {
+                        // the first updated action sets every bone, so the
+                        // pose depends only on its keyframes, and can be shared
+                        pose = poseCache.getPose(this, a.currentFrame, a.nextFrame, interpolation);
+                        Arrays.fill(activeBones, true);
+                    } else {
+                        Matrix4f[] current = getCurrentTransforms(a.currentFrame);
+                        Matrix4f[] next = getNextTransforms(a.nextFrame);
+                        for(int j=0; j<bones.size(); j++) {
+                            Bone b = bones.get(j);
+                            // this bone is already animated
+                            if(b==null || activeBones[j])
+                                continue;
+
+
+                            // calculate the bone transform
+                            calcBoneTransform(b, current, next, interpolation);
+                        }
                     }
+                    posed = true;
                     updateItems = true;
                 }
             }
@@ -429,21 +440,115 @@ public class XBoneAnimationController extends BoneAnimationController {
             updateItems = true;
         }
         if(updateItems) {
-            // apply matrix offset
-            skinTransforms[0].zero();
-            // not to matrix 0 (which is zero matrix)
-            for(int j=1, mj=bones.size(); j<mj; j++) {
-                Bone b = bones.get(j);
-                if(b==null || b.matrixOffset==null)
-                    continue;
-                
-                skinTransforms[j].set(b.matrixOffset).multLocal(boneTransforms[j]);//
+            if(pose == null) {
+                applyMatrixOffsets(skinTransforms);
+                pose = skinTransforms;
             }
 
             // apply the bones to animated items
             for(int k=0; k<animated.size(); k++) {
                 XAnimatedItem item = animated.get(k);
-                item.setMatrixValues(skinTransforms);
+                item.setMatrixValues(pose);
+            }
+        }
+    }
+    
+    /**
+     * Evaluates the pose for the given keyframes into a new array of
+     * skinning matrices, used by the pose cache.
+     */
+    Matrix4f[] evaluatePose(XAnimationFrame current, XAnimationFrame next, float interpolation) {
+        initTransforms();
+        Arrays.fill(activeBones, false);
+        FastList<Bone> bones = animPack.bones;
+        Matrix4f[] currentT = getCurrentTransforms(current);
+        Matrix4f[] nextT = getNextTransforms(next);
+        for(int j=0; j<bones.size(); j++) {
+            Bone b = bones.get(j);
+            if(b==null || activeBones[j])
+                continue;
+            calcBoneTransform(b, currentT, nextT, interpolation);
+        }
+        Matrix4f[] store = new Matrix4f[bones.size()];
+        for(int i=0; i<store.length; i++) {
+            store[i] = new Matrix4f();
+        }
+        applyMatrixOffsets(store);
+        return store;
+    }
+    
+    // the transforms of the current keyframe, compressed keyframes are
+    // decoded into currentTransforms, which is kept if it was reallocated
+    private Matrix4f[] getCurrentTransforms(XAnimationFrame frame) {
+        Matrix4f[] tr = frame.getTransform(currentTransforms);
+        if(tr != null && tr != frame.transform)
+            currentTransforms = tr;
+        return tr;
+    }
+    
+    // the transforms of the next keyframe, decoded into nextTransforms
+    private Matrix4f[] getNextTransforms(XAnimationFrame frame) {
+        if(frame == null)
+            return null;
+        Matrix4f[] tr = frame.getTransform(nextTransforms);
+        if(tr != null && tr != frame.transform)
+            nextTransforms = tr;
+        return tr;
+    }
+    
+    // apply the matrix offsets of the bones to the bone transforms
+    protected void applyMatrixOffsets(Matrix4f[] store) {
+        FastList<Bone> bones = animPack.bones;
+        store[0].zero();
+        // not to matrix 0 (which is zero matrix)
+        for(int j=1, mj=bones.size(); j<mj; j++) {
+            Bone b = bones.get(j);
+            if(b==null || b.matrixOffset==null)
+                continue;
+
+            store[j].set(b.matrixOffset).multLocal(boneTransforms[j]);//
+        }
+    }
+    
+    protected void initTransforms() {
+        // reset active animations
+        if(activeBones==null) {
+            activeBones = new boolean[animPack.bones.size()];
+        }
+        // reset matrices
+        if(boneTransforms==null) {
+            boneTransforms = new Matrix4f[animPack.bones.size()];
+            for(int i=0; i<boneTransforms.length; i++) {
+                boneTransforms[i] = new Matrix4f();
+            }
+            // reset bone 0 to zero matrix
+            boneTransforms[0].zero();
+        }
+
+        if(skinTransforms==null) {
+            skinTransforms = new Matrix4f[animPack.bones.size()];
+            for(int i=0; i<skinTransforms.length; i++) {
+                skinTransforms[i] = new Matrix4f();
+            }
+            // reset bone 0 to zero matrix
+            skinTransforms[0].zero();
+        }
+        
+        if(currentTransforms==null) {
+            currentTransforms = new Matrix4f[animPack.bones.size()];
+            nextTransforms = new Matrix4f[animPack.bones.size()];
+        }
+        
+        if(boneDepth==null) {
+            FastList<Bone> bones = animPack.bones;
+            boneDepth = new int[bones.size()];
+            for(int i=0; i<boneDepth.length; i++) {
+                Bone b = bones.get(i);
+                if(b == null)
+                    continue;
+                for(Bone p = b.parent; p != null; p = p.parent) {
+                    boneDepth[i]++;
+                }
             }
         }
     }
@@ -456,7 +561,8 @@ public class XBoneAnimationController extends BoneAnimationController {
         
         // this bone is already animated
         
-        if(transforms1!=null && transforms1[b.id]!=null) {
+        if(transforms1!=null && transforms1[b.id]!=null
+                && (boneLimit < 0 || boneDepth[b.id] <= boneLimit)) {
             // multiply matrix with parents matrix
             //boneTransforms[b.id].set(transforms1[b.id]);
             tempMat.set(transforms1[b.id]);
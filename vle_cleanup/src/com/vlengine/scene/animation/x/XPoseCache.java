@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.scene.animation.x;
+
+import com.vlengine.math.Matrix4f;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of evaluated poses, shared by all the bone animation controllers.
+ * A pose is the array of skinning matrices computed from a keyframe pair of
+ * an animation pack and the interpolation between them. The interpolation
+ * is quantized to a number of steps per keyframe, so instances playing the
+ * same animation at nearly the same time get the same pose, which is
+ * evaluated only once. The least recently used poses are dropped above
+ * the given number of poses.
+ * 
+ * Poses of whole animations can be baked in advance, baked poses are
+ * never dropped.
+ * 
+ * The returned matrix arrays are shared, and must not be modified.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class XPoseCache {
+    
+    // key of a pose, the keyframes identify the animation and the time,
+    // the bone limit is the animated bone depth of the controller
+    protected static class Key {
+        protected XBoneAnimationPack pack;
+        protected XAnimationFrame current;
+        protected XAnimationFrame next;
+        protected int step;
+        protected int limit;
+        
+        protected Key set(XBoneAnimationPack pack, XAnimationFrame current, XAnimationFrame next, int step, int limit) {
+            this.pack = pack;
+            this.current = current;
+            this.next = next;
+            this.step = step;
+            this.limit = limit;
+            return this;
+        }
+        
+        @Override
+        public int hashCode() {
+            int h = System.identityHashCode(pack);
+            h = h * 31 + System.identityHashCode(current);
+            h = h * 31 + System.identityHashCode(next);
+            h = h * 31 + limit;
+            return h * 31 + step;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return pack == k.pack && current == k.current && next == k.next && step == k.step
+                    && limit == k.limit;
+        }
+    }
+    
+    // the maximum number of poses kept, not counting the baked ones
+    protected final int maxPoses;
+    // the interpolation steps between two keyframes
+    protected final int steps;
+    
+    // the cached poses in least recently used order
+    protected final LinkedHashMap<Key,Matrix4f[]> poses;
+    // the baked poses
+    protected final HashMap<Key,Matrix4f[]> baked = new HashMap<Key,Matrix4f[]>();
+    
+    // key used for lookups
+    protected final Key lookup = new Key();
+    
+    // statistics
+    protected long hits;
+    protected long misses;
+    protected long evictions;
+    protected int frameHits;
+    protected int frameMisses;
+    protected int lastFrameHits;
+    protected int lastFrameMisses;
+    
+    /**
+     * Creates the pose cache.
+     * 
+     * @param maxPoses  The number of poses to keep
+     * @param steps     The number of interpolation steps between keyframes
+     */
+    public XPoseCache(int maxPoses, int steps) {
+        this.maxPoses = maxPoses;
+        this.steps = steps < 1 ? 1 : steps;
+        poses = new LinkedHashMap<Key,Matrix4f[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key,Matrix4f[]> eldest) {
+                if(size() > XPoseCache.this.maxPoses) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+    
+    public int getSteps() {
+        return steps;
+    }
+    
+    /**
+     * Returns the pose for the given keyframes, evaluating it with the
+     * given controller, if it is not yet in the cache.
+     * 
+     * @param c             The controller requesting the pose
+     * @param current       The current keyframe
+     * @param next          The next keyframe
+     * @param interpolation The interpolation between the keyframes
+     * @return              The shared skinning matrices of the pose
+     */
+    public synchronized Matrix4f[] getPose(XBoneAnimationController c, XAnimationFrame current, XAnimationFrame next, float interpolation) {
+        int step = Math.round(interpolation * steps);
+        lookup.set(c.getAnimationPack(), current, next, step, c.boneLimit);
+        Matrix4f[] pose = baked.get(lookup);
+        if(pose == null)
+            pose = poses.get(lookup);
+        if(pose != null) {
+            hits++;
+            frameHits++;
+            return pose;
+        }
+        misses++;
+        frameMisses++;
+        pose = c.evaluatePose(current, next, (float) step / steps);
+        if(maxPoses > 0)
+            poses.put(new Key().set(lookup.pack, current, next, step, lookup.limit), pose);
+        return pose;
+    }
+    
+    /**
+     * Evaluates all the poses of the given animation, for playback where
+     * every keyframe is followed by the next one, with all the bones
+     * animated. The baked poses are never dropped from the cache.
+     */
+    public synchronized void bake(XBoneAnimationPack pack, XBoneAnimation anim) {
+        XBoneAnimationController c = new XBoneAnimationController("PoseBake");
+        c.setAniamtionPack(pack);
+        for(int i=0; i+1<anim.frames.length; i++) {
+            XAnimationFrame current = anim.frames[i];
+            XAnimationFrame next = anim.frames[i+1];
+            for(int s=0; s<=steps; s++) {
+                Key k = new Key().set(pack, current, next, s, -1);
+                if(!baked.containsKey(k)) {
+                    baked.put(k, c.evaluatePose(current, next, (float) s / steps));
+                    poses.remove(k);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Removes all the poses of the given animation pack, baked or not.
+     */
+    public synchronized void remove(XBoneAnimationPack pack) {
+        for(Iterator<Key> it = baked.keySet().iterator(); it.hasNext(); ) {
+            if(it.next().pack == pack)
+                it.remove();
+        }
+        for(Iterator<Key> it = poses.keySet().iterator(); it.hasNext(); ) {
+            if(it.next().pack == pack)
+                it.remove();
+        }
+    }
+    
+    public synchronized void clear() {
+        poses.clear();
+        baked.clear();
+    }
+    
+    /**
+     * Called at the end of each frame update, to start counting the hits
+     * of the next frame.
+     */
+    public synchronized void endFrame() {
+        lastFrameHits = frameHits;
+        lastFrameMisses = frameMisses;
+        frameHits = 0;
+        frameMisses = 0;
+    }
+    
+    public synchronized int getPoseCount() {
+        return poses.size();
+    }
+    
+    public synchronized int getBakedCount() {
+        return baked.size();
+    }
+    
+    public long getHits() {
+        return hits;
+    }
+    
+    public long getMisses() {
+        return misses;
+    }
+    
+    public long getEvictions() {
+        return evictions;
+    }
+    
+    // the hits in the last finished frame
+    public int getFrameHits() {
+        return lastFrameHits;
+    }
+    
+    // the misses in the last finished frame
+    public int getFrameMisses() {
+        return lastFrameMisses;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.scene.animation.x;
+
+import com.vlengine.app.frame.Frame;
+import com.vlengine.system.VleException;
+import com.vlengine.util.FastList;
+import com.vlengine.util.IntList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Batched software skinning of all the skinners in the scene. Skinners
+ * whose bones changed are submitted during the update, and at the end of
+ * the update the frame calls skin(), which cuts the vertices of all the
+ * submitted skinners into fixed size ranges, and skins the ranges on all
+ * the workers. The skinned vertices are written into the output of the
+ * frame being updated, the renderer only uploads finished outputs.
+ * 
+ * The thread calling skin() is used as worker 0, the other workers
+ * are daemon threads, started on first use.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class XSkinningEngine {
+    private static final Logger logger = Logger.getLogger(XSkinningEngine.class.getName());
+    
+    // the number of vertices skinned in one task
+    public static final int TASK_VERTICES = 2048;
+    
+    // the total number of threads, including the frame thread
+    private final int threads;
+    
+    // the skinners waiting to be skinned for each of the frames
+    private final FastList<FastList<XSoftSkinner>> pending = new FastList<FastList<XSoftSkinner>>();
+    
+    // the tasks of the current run, the skinner and the first vertex
+    private final FastList<XSoftSkinner> taskSkinner = new FastList<XSoftSkinner>();
+    private final IntList taskStart = new IntList();
+    private int taskCount;
+    private int taskFrame;
+    
+    // the next task to take, and the number of tasks finished
+    private final AtomicInteger nextTask = new AtomicInteger();
+    private final AtomicInteger doneTask = new AtomicInteger();
+    // the number of workers inside work()
+    private final AtomicInteger active = new AtomicInteger();
+    
+    // the number of runs started, workers wait for it to change
+    private int generation = 0;
+    private boolean started = false;
+    private volatile boolean running = true;
+    
+    // the first error happened in a worker during the current run
+    private volatile Throwable error;
+    
+    // statistics of the last run
+    private int lastSkinners;
+    private int lastVertices;
+    private int lastTasks;
+    
+    /**
+     * Creates the skinning engine.
+     * 
+     * @param threads   The total number of threads used for skinning,
+     *                  including the frame thread
+     */
+    public XSkinningEngine(int threads) {
+        this.threads = threads < 1 ? 1 : threads;
+        for(int i=0; i<Frame.MAX_FRAMES; i++) {
+            pending.add(new FastList<XSoftSkinner>());
+        }
+    }
+    
+    public int getThreadCount() {
+        return threads;
+    }
+    
+    /**
+     * Called from the update, when the bones of a skinner change. The skinner
+     * is skinned in the next skin() call of each of the frames, so that
+     * the output of every frame is brought up to date.
+     */
+    public synchronized void submit(XSoftSkinner s) {
+        for(int i=0; i<Frame.MAX_FRAMES; i++) {
+            if(!s.queued[i]) {
+                s.queued[i] = true;
+                pending.get(i).add(s);
+            }
+        }
+    }
+    
+    /**
+     * Skins all the skinners submitted for the given frame, and returns
+     * when all of them are finished.
+     * 
+     * @param frameId   The id of the frame being updated
+     */
+    public void skin(int frameId) {
+        FastList<XSoftSkinner> jobs = pending.get(frameId);
+        if(jobs.isEmpty())
+            return;
+        synchronized(this) {
+            // a late worker may be still leaving the previous run, the
+            // tasks cannot be replaced under it
+            while(active.get() > 0) {
+                Thread.yield();
+            }
+            // cut the jobs into tasks
+            taskSkinner.clear();
+            taskStart.clear();
+            int vertices = 0;
+            for(int i=0, mi=jobs.size(); i<mi; i++) {
+                XSoftSkinner s = jobs.get(i);
+                s.queued[frameId] = false;
+                int n = s.beginSkin(frameId);
+                for(int v=0; v<n; v+=TASK_VERTICES) {
+                    taskSkinner.add(s);
+                    taskStart.add(v);
+                }
+                vertices += n;
+            }
+            taskCount = taskSkinner.size();
+            taskFrame = frameId;
+            lastSkinners = jobs.size();
+            lastVertices = vertices;
+            lastTasks = taskCount;
+            error = null;
+            nextTask.set(0);
+            doneTask.set(0);
+            if(threads > 1 && taskCount > 1) {
+                if(!started)
+                    startWorkers();
+                generation++;
+                this.notifyAll();
+            }
+        }
+        
+        // skin in this thread too, and wait for the other workers
+        work();
+        while(doneTask.get() < taskCount) {
+            Thread.yield();
+        }
+        
+        if(error != null) {
+            throw new VleException("Exception during skinning", error);
+        }
+        for(int i=0, mi=jobs.size(); i<mi; i++) {
+            jobs.get(i).endSkin(frameId);
+        }
+        jobs.clear();
+        taskSkinner.clear();
+    }
+    
+    public int getLastSkinnerCount() {
+        return lastSkinners;
+    }
+    
+    public int getLastVertexCount() {
+        return lastVertices;
+    }
+    
+    public int getLastTaskCount() {
+        return lastTasks;
+    }
+    
+    /**
+     * Removes a skinner from the pending lists, used when the skinner is
+     * no longer part of the scene.
+     */
+    public synchronized void remove(XSoftSkinner s) {
+        for(int i=0; i<Frame.MAX_FRAMES; i++) {
+            if(s.queued[i]) {
+                s.queued[i] = false;
+                pending.get(i).remove(s);
+            }
+        }
+    }
+    
+    /**
+     * Stops the worker threads, the engine cannot be used after this.
+     */
+    public void shutdown() {
+        running = false;
+        synchronized(this) {
+            this.notifyAll();
+        }
+    }
+    
+    private void startWorkers() {
+        started = true;
+        for(int i=1; i<threads; i++) {
+            Thread t = new Thread(new Worker(), "Skinner-"+i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+    
+    // process tasks until there are no more tasks to take
+    private void work() {
+        int t;
+        while((t = nextTask.getAndIncrement()) < taskCount) {
+            try {
+                int start = taskStart.get(t);
+                XSoftSkinner s = taskSkinner.get(t);
+                s.skinRange(taskFrame, start, Math.min(start + TASK_VERTICES, s.getSkinVertexCount()));
+            } catch(Throwable e) {
+                if(error == null)
+                    error = e;
+                logger.log(Level.SEVERE, "Exception in skinning task", e);
+            }
+            // this must be the last operation in the task
+            doneTask.incrementAndGet();
+        }
+    }
+    
+    private class Worker implements Runnable {
+        public void run() {
+            int seen = 0;
+            while(running) {
+                synchronized(XSkinningEngine.this) {
+                    while(running && generation == seen) {
+                        try {
+                            XSkinningEngine.this.wait();
+                        } catch (InterruptedException ex) {
+                        }
+                    }
+                    seen = generation;
+                    active.incrementAndGet();
+                }
+                if(running)
+                    work();
+                active.decrementAndGet();
+            }
+        }
+    }
+}
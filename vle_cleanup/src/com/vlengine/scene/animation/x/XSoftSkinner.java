@@ -32,11 +32,13 @@
 
 package com.vlengine.scene.animation.x;
 
+import com.vlengine.app.frame.Frame;
 import com.vlengine.bounding.BoundingVolume;
 import com.vlengine.bounding.CollisionVolume;
 import com.vlengine.math.Matrix4f;
 import com.vlengine.math.Vector3f;
 import com.vlengine.model.Geometry;
+import com.vlengine.model.XSkinData;
 import com.vlengine.model.XWeightedGeometry;
 import com.vlengine.renderer.RenderContext;
 import com.vlengine.scene.Renderable;
@@ -45,11 +47,15 @@ import com.vlengine.util.IntList;
 import com.vlengine.util.geom.VertexAttribute;
 import com.vlengine.util.geom.VertexBuffer;
 import com.vlengine.util.geom.VertexFormat;
-import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 
 /**
- * Class that perform software skinning on a single batch
+ * Class that perform software skinning on a single batch.
+ * The bone matrices are packed into a flat palette on update, the skinning
+ * is done by the XSkinningEngine from the structure of arrays data of the
+ * model. Every frame has its own output arrays, so the renderer uploads
+ * the vertices skinned for the frame it renders, while the next frame is
+ * skinning into the other output.
  * @author vear (Arpad Vekas)
  */
 public class XSoftSkinner extends Geometry implements XAnimatedItem {
@@ -57,33 +63,61 @@ public class XSoftSkinner extends Geometry implements XAnimatedItem {
     // buffers
     protected XWeightedGeometry model;
     
-    // the current transformation matrices for the bones
-    protected Matrix4f[] boneMats;
-
-    protected boolean needsRefresh = true;
+    // the skinning data of the model
+    protected XSkinData skinData;
+    
+    // the current transformation matrices for the bones, as 3x4 matrices
+    protected float[] palette;
+    
+    // incremented every time the palette changes
+    protected int version = 0;
+    
+    // the engine doing the skinning, if null, skinning is done in preDraw
+    protected XSkinningEngine engine;
+    
+    // skinned positions and normals for every frame
+    protected final float[][] outPosition = new float[Frame.MAX_FRAMES][];
+    protected final float[][] outNormal = new float[Frame.MAX_FRAMES][];
+    // the palette version skinned into the outputs of each frame, -1 if none
+    protected final int[] skinnedVersion = new int[Frame.MAX_FRAMES];
+    protected final int[] skinningVersion = new int[Frame.MAX_FRAMES];
+    // the version currently in the vertex buffers
+    protected int uploadedVersion = -1;
+    
+    // is the skinner waiting in the engine for each frame
+    final boolean[] queued = new boolean[Frame.MAX_FRAMES];
     
-    ByteBuffer mappedBuffer = null;
+    public XSoftSkinner() {
+        for(int i=0; i<Frame.MAX_FRAMES; i++) {
+            skinnedVersion[i] = -1;
+        }
+    }
+    
+    public void setSkinningEngine(XSkinningEngine engine) {
+        this.engine = engine;
+    }
+    
+    public XSkinningEngine getSkinningEngine() {
+        return engine;
+    }
     
     public void setMatrixValues(Matrix4f[] origBoneMats) {
         IntList boneMapping = model.getBoneMapping();
-        if(boneMats == null || boneMats.length != boneMapping.size()) {
-            boneMats = new Matrix4f[boneMapping.size()];
-            for(int i=0; i<boneMats.length; i++) {
-                boneMats[i] = new Matrix4f();
-            }
+        int ps = boneMapping.size() * XSkinData.PALETTE_STRIDE;
+        if(palette == null || palette.length != ps) {
+            palette = new float[ps];
         }
-        for(int l=0, ml=boneMapping.size(); l<ml; l++) {
+        for(int l=0, p=0, ml=boneMapping.size(); l<ml; l++, p+=XSkinData.PALETTE_STRIDE) {
             // the bone-s mapped id for this animated item
-            int origBone = boneMapping.get(l);
-            //if(origBone!=0) {
-                // TODO: just for testing
-                //skinTransforms[origBone].loadIdentity();
-                // if this bone is actualy required in the item
-                boneMats[l].set(origBoneMats[origBone]);
-                boneMats[l].transposeLocal();
-            //}
+            Matrix4f m = origBoneMats[boneMapping.get(l)];
+            // store the rows of the transposed matrix
+            palette[p]   = m.m00; palette[p+1]  = m.m10; palette[p+2]  = m.m20; palette[p+3]  = m.m30;
+            palette[p+4] = m.m01; palette[p+5]  = m.m11; palette[p+6]  = m.m21; palette[p+7]  = m.m31;
+            palette[p+8] = m.m02; palette[p+9]  = m.m12; palette[p+10] = m.m22; palette[p+11] = m.m32;
         }
-        needsRefresh = true;
+        version++;
+        if(engine != null)
+            engine.submit(this);
     }
 
     public IntList getBoneMapping() {
@@ -147,8 +181,6 @@ public class XSoftSkinner extends Geometry implements XAnimatedItem {
             
         }
         // map the ogl memory
-        // TODO: in multithreading environment we need to maintain two sets of the buffer
-        // switching to new one with each update
         ctx.getRenderer().mapVertexBuffer(vb);
         ctx.getRenderer().mapVertexBuffer(nb);
     }
@@ -160,123 +192,124 @@ public class XSoftSkinner extends Geometry implements XAnimatedItem {
         ctx.getRenderer().unMapVertexBuffer(nb);
     }
     
-    public void skinMesh() {
-        // get hte position buffer
-        FloatBuffer pb = model.getAttribBuffer(VertexAttribute.USAGE_POSITION).getDataBuffer();
-        pb.rewind();
-        // get the normal buffer
-        FloatBuffer nb = model.getAttribBuffer(VertexAttribute.USAGE_NORMAL).getDataBuffer();
-        nb.rewind();
-        
-        // TODO: this may need to be reworked to vertexiterators
-        // get matrix weights
-        FloatBuffer wb = model.getAttribBuffer(VertexAttribute.USAGE_WEIGHTS).getDataBuffer();
-        wb.rewind();
-        // get matrix indices
-        FloatBuffer ib = model.getAttribBuffer(VertexAttribute.USAGE_WEIGHTINDICES).getDataBuffer();
-        ib.rewind();
-        // get num indices
-        FloatBuffer inb = model.getAttribBuffer(VertexAttribute.USAGE_NUMWEIGHTS).getDataBuffer();
-        inb.rewind();
-        
-        // get the target position buffer
-        FloatBuffer tpb = getAttribBuffer(VertexAttribute.USAGE_POSITION).getDataBuffer();
-        tpb.rewind();
-
-        // get the target normal buffer
-        FloatBuffer tnb = getAttribBuffer(VertexAttribute.USAGE_NORMAL).getDataBuffer();
-        tnb.rewind();
-
-        // source vectors
-        Vector3f sPosition = new Vector3f();
-        Vector3f sNormal = new Vector3f();
-        // matrix weights
-        float[] matWeights = new float[4];
+    /**
+     * Called by the engine before skinning for the given frame,
+     * prepares the output arrays.
+     * @return the number of vertices to skin
+     */
+    int beginSkin(int frameId) {
+        if(skinData == null)
+            skinData = model.getSkinData();
+        int n = skinData.numVertex;
+        if(outPosition[frameId] == null) {
+            outPosition[frameId] = new float[n*3];
+            outNormal[frameId] = new float[n*3];
+        }
+        skinningVersion[frameId] = version;
+        // the output is being overwritten
+        skinnedVersion[frameId] = -1;
+        return n;
+    }
+    
+    /**
+     * Called by the engine after all the vertices are skinned for the
+     * given frame.
+     */
+    void endSkin(int frameId) {
+        skinnedVersion[frameId] = skinningVersion[frameId];
+    }
+    
+    int getSkinVertexCount() {
+        return skinData.numVertex;
+    }
+    
+    /**
+     * Returns the positions skinned into the output of the given frame,
+     * as x, y, z triplets, null if the output is not finished.
+     */
+    public float[] getSkinnedPositions(int frameId) {
+        return skinnedVersion[frameId] < 0 ? null : outPosition[frameId];
+    }
+    
+    /**
+     * Returns the normals skinned into the output of the given frame,
+     * as x, y, z triplets, null if the output is not finished.
+     */
+    public float[] getSkinnedNormals(int frameId) {
+        return skinnedVersion[frameId] < 0 ? null : outNormal[frameId];
+    }
+    
+    /**
+     * Skins the given range of vertices into the output of the given frame.
+     * The bone matrices of up to four influences are blended first, and
+     * the blended matrix is applied to the position and the normal.
+     */
+    void skinRange(int frameId, int start, int end) {
+        final XSkinData d = skinData;
+        final float[] pal = palette;
+        final float[] w = d.weights;
+        final int[] b = d.bones;
+        final float[] px = d.px, py = d.py, pz = d.pz;
+        final float[] nx = d.nx, ny = d.ny, nz = d.nz;
+        final float[] tp = outPosition[frameId];
+        final float[] tn = outNormal[frameId];
+        final int n = d.numVertex;
+        final int inf = d.influences;
         
-        Vector3f tvec = new Vector3f();
-
-        // target vectors
-        Vector3f tPosition = new Vector3f();
-        Vector3f tNormal = new Vector3f();
-
-        // go over every vertex
-        for(int i=0, mi=this.getNumVertex(); i<mi; i++) {
-            // rerieve source vectors
-            sPosition.x = pb.get(); sPosition.y = pb.get(); sPosition.z = pb.get();
-            sNormal.x = nb.get(); sNormal.y = nb.get(); sNormal.z = nb.get();
-            
-            
-            // number of indices
-            int numIndex = Float.floatToIntBits(inb.get(i)) & 0xff;
-            // the matrix indices
-            int matIndex = Float.floatToIntBits(ib.get(i));
-            // the matrix weights
-            wb.position(i*4);
-            wb.get(matWeights);
-
-            // clear vectors holding result values
-            tPosition.set(0,0,0);
-            tNormal.set(0, 0, 0);
-
-            // go over each of the weights
-            for(int j=0; j<numIndex; j++) {
-                // get the matrix index
-                int mati = matIndex & 0xff;
-                // shift the index
-                matIndex = matIndex >> 8;
-                
-                // fetch the matrix
-                Matrix4f mat = boneMats[mati];
-                
-                // transform position
-                tvec.set(sPosition);
-                mat.mult(tvec, tvec);
-                // scale the vector by weight
-                tvec.scale(matWeights[j]);
-                // sum up into final position
-                tPosition.addLocal(tvec);
-                
-                // rotate normal
-                tvec.set(sNormal);
-                mat.rotateVect(tvec);
-                tvec.scale(matWeights[j]);
-                tNormal.addLocal(tvec);
+        for(int i=start; i<end; i++) {
+            float m0=0, m1=0, m2=0, m3=0, m4=0, m5=0, m6=0, m7=0, m8=0, m9=0, m10=0, m11=0;
+            for(int k=0, o=i; k<inf; k++, o+=n) {
+                float wk = w[o];
+                int p = b[o];
+                m0 += wk*pal[p];   m1 += wk*pal[p+1]; m2 += wk*pal[p+2];   m3 += wk*pal[p+3];
+                m4 += wk*pal[p+4]; m5 += wk*pal[p+5]; m6 += wk*pal[p+6];   m7 += wk*pal[p+7];
+                m8 += wk*pal[p+8]; m9 += wk*pal[p+9]; m10 += wk*pal[p+10]; m11 += wk*pal[p+11];
             }
-             
-            //tPosition.set(sPosition);
-            //tNormal.set(sNormal);
-            
-            // we got the final position and normal, put them into the buffers
-            tpb.put(tPosition.x).put(tPosition.y).put(tPosition.z);
-            tnb.put(tNormal.x).put(tNormal.y).put(tNormal.z);
+            int t = i*3;
+            float x = px[i], y = py[i], z = pz[i];
+            tp[t]   = m0*x + m1*y + m2*z + m3;
+            tp[t+1] = m4*x + m5*y + m6*z + m7;
+            tp[t+2] = m8*x + m9*y + m10*z + m11;
+            x = nx[i]; y = ny[i]; z = nz[i];
+            tn[t]   = m0*x + m1*y + m2*z;
+            tn[t+1] = m4*x + m5*y + m6*z;
+            tn[t+2] = m8*x + m9*y + m10*z;
         }
-        
-        // rewind the buffers
-        pb.rewind();
-        nb.rewind();
-        wb.rewind();
-        ib.rewind();
-        inb.rewind();
-        tpb.rewind();
-        tnb.rewind();
     }
 
     @Override
     public boolean preDraw(RenderContext ctx, Renderable r) {
+        int frameId = ctx.frameId;
+        if(engine == null && palette != null && skinnedVersion[frameId] != version) {
+            // no engine, skin here
+            skinRange(frameId, 0, beginSkin(frameId));
+            endSkin(frameId);
+        }
+        int v = skinnedVersion[frameId];
+        if(v < 0) {
+            // nothing skinned for this frame yet, draw what we have
+            return uploadedVersion >= 0;
+        }
         // if the mesh needs to be updated, update it
-        if(needsRefresh) {
+        if(v != uploadedVersion) {
             // allocate ogl memory if its not yet allocated
             // map the buffer to java memory too
             mapBuffers(ctx);
             
-            // do the actual skinning (generate vertices)
-            skinMesh();
+            // copy the skinned vertices of this frame
+            FloatBuffer tpb = getAttribBuffer(VertexAttribute.USAGE_POSITION).getDataBuffer();
+            tpb.rewind();
+            tpb.put(outPosition[frameId]);
+            tpb.rewind();
+            FloatBuffer tnb = getAttribBuffer(VertexAttribute.USAGE_NORMAL).getDataBuffer();
+            tnb.rewind();
+            tnb.put(outNormal[frameId]);
+            tnb.rewind();
             
             // release the buffers, so OGL can use them during rendering
             unMapBuffers(ctx);
 
-            // map a buffer from OpenGL
-            needsRefresh = false;
+            uploadedVersion = v;
         }
         return true;
     }
@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.scene.batch;
+
+import com.vlengine.app.frame.Frame;
+import com.vlengine.bounding.BoundingBox;
+import com.vlengine.bounding.BoundingSphere;
+import com.vlengine.bounding.BoundingVolume;
+import com.vlengine.math.Quaternion;
+import com.vlengine.math.Transform;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.BaseGeometry;
+import com.vlengine.renderer.Camera;
+import com.vlengine.renderer.CullContext;
+import com.vlengine.renderer.RenderContext;
+import com.vlengine.scene.Spatial;
+
+/**
+ * A batch drawing the same geometry with the same material at many
+ * places. The transforms of the instances are in world space, and are
+ * kept packed in a float array. Culling tests the bounding sphere of
+ * every instance in a tight loop, and the visible instances of each
+ * frame are packed into a separate buffer, which the renderer draws
+ * either with hardware instancing, or one instance after the other.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class InstancedBatch extends TriBatch {
+
+    // the floats of one instance: translation, rotation, scale
+    public static final int STRIDE = 10;
+    
+    // the packed instance transforms
+    protected float[] instances = new float[STRIDE*16];
+    // the world bounding spheres of the instances: center, radius
+    protected float[] spheres = new float[4*16];
+    protected int numInstances;
+    // the instances changed, the bound needs to be recalculated
+    protected boolean boundDirty = true;
+    
+    // the local bounding sphere of the geometry
+    protected final Vector3f localCenter = new Vector3f();
+    protected float localRadius;
+    protected BoundingVolume localSphereOf;
+    
+    // the packed transforms of the visible instances for every frame
+    protected float[][] visible = new float[Frame.MAX_FRAMES][];
+    protected int[] numVisible = new int[Frame.MAX_FRAMES];
+    // the instance is visible in the frame, in one of the views
+    protected boolean[][] visibleFlag = new boolean[Frame.MAX_FRAMES][];
+    // the instance indices in the visible buffer
+    protected int[][] visibleIndex = new int[Frame.MAX_FRAMES][];
+    // the frame count of the last culling for each frameId
+    protected long[] cullFrame = new long[Frame.MAX_FRAMES];
+    
+    private final Quaternion tmpRot = new Quaternion();
+    private final Vector3f tmpVec = new Vector3f();
+    
+    public InstancedBatch() {
+        super();
+        setupTransforms();
+    }
+    
+    public InstancedBatch(BaseGeometry target) {
+        super(target);
+        setupTransforms();
+    }
+    
+    protected void setupTransforms() {
+        // the transforms used while drawing the instances one by one
+        worldTransform = new Transform[Frame.MAX_FRAMES];
+        for(int i=0; i<worldTransform.length; i++)
+            worldTransform[i] = new Transform();
+        for(int i=0; i<cullFrame.length; i++)
+            cullFrame[i] = -1;
+    }
+    
+    @Override
+    public void setWorldTransform(Transform[] t) {
+        // the instance transforms are in world space, parent transforms
+        // are not used
+    }
+
+    /**
+     * Adds an instance.
+     * 
+     * @param t     The world transform of the instance
+     * @return      The index of the instance
+     */
+    public int addInstance(Transform t) {
+        if((numInstances + 1) * STRIDE > instances.length) {
+            int size = Math.max(16, numInstances * 2);
+            float[] ni = new float[size * STRIDE];
+            System.arraycopy(instances, 0, ni, 0, numInstances * STRIDE);
+            instances = ni;
+            float[] ns = new float[size * 4];
+            System.arraycopy(spheres, 0, ns, 0, numInstances * 4);
+            spheres = ns;
+        }
+        int index = numInstances++;
+        setInstance(index, t);
+        return index;
+    }
+
+    /**
+     * Changes the transform of an instance.
+     */
+    public void setInstance(int index, Transform t) {
+        int p = index * STRIDE;
+        Vector3f tr = t.getTranslation();
+        Quaternion rot = t.getRotation();
+        Vector3f sc = t.getScale();
+        instances[p] = tr.x;
+        instances[p+1] = tr.y;
+        instances[p+2] = tr.z;
+        instances[p+3] = rot.x;
+        instances[p+4] = rot.y;
+        instances[p+5] = rot.z;
+        instances[p+6] = rot.w;
+        instances[p+7] = sc.x;
+        instances[p+8] = sc.y;
+        instances[p+9] = sc.z;
+        updateSphere(index);
+        boundDirty = true;
+    }
+    
+    public Transform getInstance(int index, Transform store) {
+        if(store == null)
+            store = new Transform();
+        int p = index * STRIDE;
+        store.getTranslation().set(instances[p], instances[p+1], instances[p+2]);
+        store.getRotation().set(instances[p+3], instances[p+4], instances[p+5], instances[p+6]);
+        store.getScale().set(instances[p+7], instances[p+8], instances[p+9]);
+        return store;
+    }
+
+    /**
+     * Removes an instance, the last instance is moved to its place.
+     * 
+     * @return      The old index of the instance now at the given index
+     */
+    public int removeInstance(int index) {
+        int last = --numInstances;
+        if(index != last) {
+            System.arraycopy(instances, last * STRIDE, instances, index * STRIDE, STRIDE);
+            System.arraycopy(spheres, last * 4, spheres, index * 4, 4);
+        }
+        boundDirty = true;
+        return last;
+    }
+    
+    public int getInstanceCount() {
+        return numInstances;
+    }
+    
+    public void clearInstances() {
+        numInstances = 0;
+        boundDirty = true;
+    }
+    
+    // get the bounding sphere of the geometry
+    protected void updateLocalSphere() {
+        BoundingVolume bv = target != null ? target.getModelBound() : null;
+        if(bv == localSphereOf)
+            return;
+        localSphereOf = bv;
+        if(bv == null) {
+            localCenter.set(0, 0, 0);
+            localRadius = 0;
+        } else {
+            bv.getCenter(localCenter);
+            if(bv instanceof BoundingSphere) {
+                localRadius = ((BoundingSphere) bv).getRadius();
+            } else if(bv instanceof BoundingBox) {
+                localRadius = ((BoundingBox) bv).getExtent(tmpVec).length();
+            } else {
+                // the sphere containing the volume of the bound
+                localRadius = (float) Math.cbrt(bv.getVolume() * 3 / (4 * Math.PI)) * 2;
+            }
+        }
+        for(int i=0; i<numInstances; i++) {
+            updateSphere(i);
+        }
+        boundDirty = true;
+    }
+    
+    protected void updateSphere(int index) {
+        updateLocalSphere();
+        int p = index * STRIDE;
+        float sx = instances[p+7], sy = instances[p+8], sz = instances[p+9];
+        tmpRot.set(instances[p+3], instances[p+4], instances[p+5], instances[p+6]);
+        tmpVec.set(localCenter.x * sx, localCenter.y * sy, localCenter.z * sz);
+        tmpRot.multLocal(tmpVec);
+        int s = index * 4;
+        spheres[s] = tmpVec.x + instances[p];
+        spheres[s+1] = tmpVec.y + instances[p+1];
+        spheres[s+2] = tmpVec.z + instances[p+2];
+        spheres[s+3] = localRadius * Math.max(Math.abs(sx), Math.max(Math.abs(sy), Math.abs(sz)));
+    }
+    
+    @Override
+    public void updateWorldBound(int frameId) {
+        updateLocalSphere();
+        if(!boundDirty && worldBound[frameId] != null)
+            return;
+        if(numInstances == 0) {
+            worldBound[frameId] = null;
+            return;
+        }
+        float minx = Float.MAX_VALUE, miny = Float.MAX_VALUE, minz = Float.MAX_VALUE;
+        float maxx = -Float.MAX_VALUE, maxy = -Float.MAX_VALUE, maxz = -Float.MAX_VALUE;
+        for(int i=0, s=0; i<numInstances; i++, s+=4) {
+            float r = spheres[s+3];
+            minx = Math.min(minx, spheres[s] - r);
+            miny = Math.min(miny, spheres[s+1] - r);
+            minz = Math.min(minz, spheres[s+2] - r);
+            maxx = Math.max(maxx, spheres[s] + r);
+            maxy = Math.max(maxy, spheres[s+1] + r);
+            maxz = Math.max(maxz, spheres[s+2] + r);
+        }
+        BoundingBox bb = new BoundingBox(new Vector3f((minx + maxx) * 0.5f, 
+                (miny + maxy) * 0.5f, (minz + maxz) * 0.5f),
+                (maxx - minx) * 0.5f, (maxy - miny) * 0.5f, (maxz - minz) * 0.5f);
+        // the bound is the same for all the frames
+        for(int i=0; i<worldBound.length; i++)
+            worldBound[i] = bb;
+        boundDirty = false;
+    }
+
+    @Override
+    public boolean docull(CullContext ctx) {
+        if(target == null)
+            return false;
+        Spatial.CullMode cm = getCullMode();
+        if(cm == Spatial.CullMode.ALWAYS) {
+            setLastFrustumIntersection(Camera.OUTSIDE_FRUSTUM);
+            return false;
+        }
+        int frameId = ctx.getFrameId();
+        updateWorldBound(frameId);
+        // start a new visible list, if this is the first view culling
+        // the batch in the frame, else add to the visible list
+        long frameCount = ctx.getFrame() != null ? ctx.getFrame().getFrameCount() : -1;
+        if(frameCount < 0 || frameCount != cullFrame[frameId]) {
+            beginFrame(frameId);
+            cullFrame[frameId] = frameCount;
+        }
+        
+        Camera cam = ctx.getCullCamera();
+        int intersects = parent != null ? parent.getLastFrustumIntersection() : Camera.INTERSECTS_FRUSTUM;
+        if(cm == Spatial.CullMode.NEVER) {
+            intersects = Camera.INSIDE_FRUSTUM;
+        } else if(intersects == Camera.INTERSECTS_FRUSTUM) {
+            // this also marks the planes the instances need not be tested against
+            intersects = cam.contains(worldBound[frameId]);
+        }
+        setLastFrustumIntersection(intersects);
+        if(intersects == Camera.OUTSIDE_FRUSTUM)
+            return false;
+        boolean[] flag = visibleFlag[frameId];
+        if(intersects == Camera.INSIDE_FRUSTUM) {
+            for(int i=0; i<numInstances; i++) {
+                if(!flag[i])
+                    addVisible(frameId, i);
+            }
+            return numInstances > 0;
+        }
+        // test every instance in a tight loop
+        int inView = 0;
+        float[] sp = spheres;
+        for(int i=0, s=0; i<numInstances; i++, s+=4) {
+            if(cam.contains(sp[s], sp[s+1], sp[s+2], sp[s+3]) != Camera.OUTSIDE_FRUSTUM) {
+                inView++;
+                if(!flag[i])
+                    addVisible(frameId, i);
+            }
+        }
+        return inView > 0;
+    }
+    
+    protected void beginFrame(int frameId) {
+        boolean[] flag = visibleFlag[frameId];
+        int[] idx = visibleIndex[frameId];
+        if(flag == null || flag.length < numInstances) {
+            int size = Math.max(16, instances.length / STRIDE);
+            visibleFlag[frameId] = new boolean[size];
+            visibleIndex[frameId] = new int[size];
+            visible[frameId] = new float[size * STRIDE];
+        } else {
+            // clear the flags of the last visible instances
+            for(int i=0, mx=numVisible[frameId]; i<mx; i++) {
+                if(idx[i] < flag.length)
+                    flag[idx[i]] = false;
+            }
+        }
+        numVisible[frameId] = 0;
+    }
+    
+    protected void addVisible(int frameId, int index) {
+        int n = numVisible[frameId]++;
+        visibleFlag[frameId][index] = true;
+        visibleIndex[frameId][n] = index;
+        System.arraycopy(instances, index * STRIDE, visible[frameId], n * STRIDE, STRIDE);
+    }
+    
+    /**
+     * The number of instances to draw in the given frame.
+     */
+    public int getVisibleCount(int frameId) {
+        return numVisible[frameId];
+    }
+    
+    /**
+     * The packed transforms of the instances to draw in the given frame,
+     * STRIDE floats for each instance: translation, rotation, scale.
+     */
+    public float[] getVisibleTransforms(int frameId) {
+        return visible[frameId];
+    }
+    
+    /**
+     * The index of the n-th visible instance in the given frame.
+     */
+    public int getVisibleInstance(int frameId, int n) {
+        return visibleIndex[frameId][n];
+    }
+    
+    /**
+     * Sets the draw transform of the frame to the n-th visible
+     * instance, used for drawing the instances one after the other.
+     */
+    public void setDrawInstance(int frameId, int n) {
+        float[] v = visible[frameId];
+        int p = n * STRIDE;
+        Transform t = worldTransform[frameId];
+        t.getTranslation().set(v[p], v[p+1], v[p+2]);
+        t.getRotation().set(v[p+3], v[p+4], v[p+5], v[p+6]);
+        t.getScale().set(v[p+7], v[p+8], v[p+9]);
+    }
+
+    @Override
+    public void draw(RenderContext ctx) {
+        ctx.getRenderer().draw(this);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.scene.batch;
+
+import com.vlengine.app.frame.Frame;
+import com.vlengine.math.Transform;
+import com.vlengine.model.BaseGeometry;
+import com.vlengine.renderer.RenderContext;
+import com.vlengine.scene.StaticBatcher;
+
+/**
+ * A batch holding the geometry of multiple static batches merged together
+ * by the StaticBatcher. The geometry is already in world space, so the
+ * batch is drawn with the identity transform, and its bound is the
+ * bound of the geometry.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class StaticBatch extends TriBatch {
+
+    // the number of batches merged into this one
+    protected int sourceCount;
+    // the batcher which created this batch
+    protected StaticBatcher batcher;
+    
+    public StaticBatch() {
+        super();
+        Transform[] identity = new Transform[Frame.MAX_FRAMES];
+        for(int i=0; i<identity.length; i++)
+            identity[i] = new Transform();
+        worldTransform = identity;
+    }
+    
+    @Override
+    public void setWorldTransform(Transform[] t) {
+        // always in world space
+    }
+    
+    @Override
+    public void updateWorldBound(int frameId) {
+        worldBound[frameId] = target != null ? target.getModelBound() : null;
+    }
+    
+    public void setSourceCount(int count) {
+        sourceCount = count;
+    }
+
+    public int getSourceCount() {
+        return sourceCount;
+    }
+    
+    public void setBatcher(StaticBatcher batcher) {
+        this.batcher = batcher;
+    }
+    
+    public StaticBatcher getBatcher() {
+        return batcher;
+    }
+    
+    @Override
+    public boolean prepare(RenderContext ctx) {
+        // release the batches this batcher replaced
+        if(batcher != null)
+            batcher.releaseRetired(ctx);
+        return super.prepare(ctx);
+    }
+    
+    @Override
+    public void setModel(BaseGeometry target) {
+        super.setModel(target);
+        for(int i=0; i<worldBound.length; i++)
+            worldBound[i] = target != null ? target.getModelBound() : null;
+    }
+}
@@ -36,7 +36,10 @@ import com.vlengine.app.AppContext;
 import com.vlengine.bounding.BoundingBox;
 import com.vlengine.bounding.BoundingSphere;
 import com.vlengine.bounding.BoundingVolume;
+import com.vlengine.bounding.CharacterSweep;
+import com.vlengine.bounding.CollisionBroadphase;
 import com.vlengine.bounding.CollisionTreeManager;
+import com.vlengine.bounding.SweepResult;
 import com.vlengine.input.InputListener;
 import com.vlengine.input.InputSystem;
 import com.vlengine.input.KeyBindingSet;
@@ -210,6 +213,14 @@ public class CharacterController extends Controller {
     protected boolean hascollision = false;
     protected boolean hasfeetcollision = false;
     
+    // the height of obstacles the character can step on
+    protected float stepHeight = 10f;
+    // move with sweeps of a capsule instead of checking the collisions
+    // after the move
+    protected boolean sweepCollision = true;
+    protected CharacterSweep sweep;
+    protected SweepResult sweepResult = new SweepResult();
+    
     public CharacterController() {
         this("CharacterController");
     }
@@ -243,6 +254,22 @@ public class CharacterController extends Controller {
         this.animPack = animPack;
     }
     
+    public void setSweepCollision(boolean sweepCollision) {
+        this.sweepCollision = sweepCollision;
+    }
+    
+    public boolean isSweepCollision() {
+        return sweepCollision;
+    }
+    
+    /**
+     * The sweep used to move the character, created on the first update
+     * with a capsule fitted to the bound of the character.
+     */
+    public CharacterSweep getSweep() {
+        return sweep;
+    }
+    
     public void setSoundPack(ControllerSoundPack soundPack) {
         this.soundPack = soundPack;
     }
@@ -741,8 +768,6 @@ public class CharacterController extends Controller {
         hasfeetcollision = false;
         hascollision = false;
 
-        // steep of a slope one can go up
-        float stepHeight = 10f;
         int checkCount = 10;
         float offset = 0f;
 
@@ -765,7 +790,15 @@ public class CharacterController extends Controller {
             colres.setVolumeGetCollisionPoints(true);
             
             CollisionTreeManager ctm = CollisionTreeManager.getInstance();
-            ctm.findCollisions(controlledNode, ctx.frame.getApp().getRootNode(), colres);
+            CollisionBroadphase bp = controlledNode.getBroadphase();
+            if(bp == null)
+                bp = ctm.getBroadphase();
+            if(bp != null) {
+                // only check the objects near in the broadphase
+                ctm.findCollisions(controlledNode, bp, colres);
+            } else {
+                ctm.findCollisions(controlledNode, ctx.frame.getApp().getRootNode(), colres);
+            }
 
             // do we have a triangle collision
             boolean hasTriangleCollision = false;
@@ -995,6 +1028,64 @@ public class CharacterController extends Controller {
         
     }
 
+    /**
+     * Moves the character with a CharacterSweep, in one move: sliding
+     * along the walls, stepping up on obstacles lower than the step height,
+     * and falling as much as updateCollision3 does when there is no ground
+     * under the feet.
+     */
+    protected void updateSweep(UpdateContext ctx) {
+        if(sweep == null) {
+            setupSweep();
+        }
+        CollisionTreeManager ctm = CollisionTreeManager.getInstance();
+        CollisionBroadphase bp = controlledNode.getBroadphase();
+        if(bp == null)
+            bp = ctm.getBroadphase();
+        sweep.setBroadphase(bp);
+        sweep.setScene(ctx.frame.getApp().getRootNode());
+        
+        float desc = Math.max(Math.min(ctx.frame.getTimer().getTimePerFrame() * 10f, 4f),2f);
+        if(falling)
+            desc *= 2;
+        tmpVec1.set(rotmove);
+        tmpVec1.y -= desc;
+        sweepMove(tmpVec1);
+        
+        hasfeetcollision = sweepResult.isOnGround();
+        hascollision = sweepResult.isOnWall();
+        terrainHeight = controlledNode.getLocalTranslation().y;
+    }
+    
+    // fits a capsule to the bound of the character
+    protected void setupSweep() {
+        sweep = new CharacterSweep();
+        controlledNode.updateGeometricState();
+        BoundingVolume bv = controlledNode.getWorldBound();
+        if(bv instanceof BoundingBox) {
+            BoundingBox bb = (BoundingBox) bv;
+            sweep.setCapsule(Math.min(bb.xExtent, bb.zExtent), bb.yExtent*2f);
+        } else if(bv instanceof BoundingSphere) {
+            float r = ((BoundingSphere) bv).getRadius();
+            sweep.setCapsule(r, r*2f);
+        }
+        if(bv != null) {
+            sweep.getOffset().set(bv.getCenter()).subtractLocal(controlledNode.getWorldTranslation());
+        }
+        sweep.setStepHeight(stepHeight);
+        sweep.setIgnored(controlledNode);
+    }
+    
+    // moves the character by the motion given in world space, the parent
+    // is taken to have no rotation or scale, as in updateCollision3
+    protected void sweepMove(Vector3f motion) {
+        controlledNode.updateGeometricState();
+        Vector3f pos = controlledNode.getWorldTranslation();
+        sweep.move(pos, motion, sweepResult);
+        tmpVec3.set(sweepResult.getPosition()).subtractLocal(pos);
+        controlledNode.getLocalTranslation().addLocal(tmpVec3);
+    }
+
     PickResults pr = null;
     
     float lastclosetime = 0f;
@@ -1137,7 +1228,12 @@ public class CharacterController extends Controller {
             // we have a jump to apply
             currForce.set(currJumpForce).multLocal(currjumptime/jumptime);
             //currForce.set(jumpDestination).mult();
-            controlledNode.getLocalTranslation().addLocal(currForce);
+            if(sweepCollision && sweep != null) {
+                // do not jump through walls and ceilings
+                sweepMove(currForce);
+            } else {
+                controlledNode.getLocalTranslation().addLocal(currForce);
+            }
             
             // falling
             //if(!hasfeetcollision) {
@@ -1240,7 +1336,11 @@ public class CharacterController extends Controller {
         
         updateAnimation();
         
-        updateCollision3(ctx);
+        if(sweepCollision) {
+            updateSweep(ctx);
+        } else {
+            updateCollision3(ctx);
+        }
         
         // reset the landed flag
         landed =false;
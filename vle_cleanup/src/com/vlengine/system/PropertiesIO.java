@@ -99,6 +99,8 @@ public class PropertiesIO {
                                     f.setInt(conf, Integer.parseInt(val));
                                 } else if( tn.equals("float") ) {
                                     f.setFloat(conf, Float.parseFloat(val));
+                                } else if( tn.equals("long") ) {
+                                    f.setLong(conf, Long.parseLong(val));
                                 } else if(tn.endsWith("Vector3f")) {
                                     String[] vals = val.split(",");
                                     if( vals!= null) {
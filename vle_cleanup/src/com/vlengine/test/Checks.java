@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+/**
+ * The checks of the headless tests. Every check is printed with its
+ * result, and the test exits with code 1 at the end if any of them failed.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Checks {
+    
+    private static boolean ok = true;
+    
+    /**
+     * Prints the result of a check.
+     * 
+     * @param cond  The checked condition
+     * @param name  What was checked
+     * @return      The condition
+     */
+    public static boolean check(boolean cond, String name) {
+        System.out.println(name+": "+(cond ? "ok" : "FAILED"));
+        if(!cond)
+            ok = false;
+        return cond;
+    }
+    
+    /**
+     * Returns true if no check failed so far.
+     */
+    public static boolean isPassed() {
+        return ok;
+    }
+    
+    /**
+     * Prints the summary of the checks, and exits with code 1 if
+     * any of them failed.
+     */
+    public static void finish() {
+        System.out.println(ok ? "All passed" : "FAILED");
+        if(!ok)
+            System.exit(1);
+    }
+}
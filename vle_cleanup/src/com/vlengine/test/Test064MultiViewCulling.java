@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.app.Config;
+import com.vlengine.app.frame.Frame;
+import com.vlengine.bounding.BoundingBox;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.Box;
+import com.vlengine.renderer.CullContext;
+import com.vlengine.renderer.MultiViewCuller;
+import com.vlengine.renderer.RenderQueue;
+import com.vlengine.renderer.ViewCamera;
+import com.vlengine.renderer.pass.RenderPass;
+import com.vlengine.scene.LodMesh;
+import com.vlengine.scene.Renderable;
+import com.vlengine.scene.SetNode;
+import com.vlengine.scene.Spatial;
+import com.vlengine.scene.batch.TriBatch;
+import com.vlengine.scene.control.UpdateContext;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.FastList;
+import java.util.IdentityHashMap;
+
+/**
+ * Headless benchmark comparing culling the scene against every camera
+ * separately to culling all the cameras in one traversal with 
+ * the MultiViewCuller. The setup is one main camera with two passes and four
+ * shadowmap split like cameras. Some cells and some pairs of boxes
+ * inside the cells leave out one of the passes, so the pass filters of
+ * the views are narrowed and restored during the traversal. Checks that
+ * both ways queue the same renderables for every pass.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test064MultiViewCulling {
+
+    static final int GRID = 48;
+    static final int VIEWS = 5;
+    // the first view has a second pass
+    static final int PASSES = VIEWS + 1;
+    static final int ROUNDS = 200;
+    
+    public static void main(String[] args) {
+        AppContext app = new AppContext();
+        app.conf = new Config();
+        LocalContext.getContext().app = app;
+        
+        // create the scene, a grid of nodes, with four boxes each,
+        // every third cell is left out of a pass, and in every cell the
+        // first pair of boxes is left out of another pass
+        Box box = new Box(new Vector3f(0,0,0), 1,1,1);
+        box.setModelBound(new BoundingBox());
+        box.updateModelBound();
+        SetNode root = new SetNode("root");
+        for(int x=0; x<GRID; x++) {
+            for(int z=0; z<GRID; z++) {
+                SetNode cell = new SetNode("cell");
+                cell.getLocalTranslation().set(x*10-GRID*5, 0, z*10-GRID*5);
+                if((x+z) % 3 == 0)
+                    cell.setRenderPassMode(RenderPass.PassFilter.Any.value & ~(1L << ((x+z) % PASSES)));
+                SetNode pair = new SetNode("pair");
+                pair.setRenderPassMode(RenderPass.PassFilter.Any.value & ~(1L << ((x*3+z) % PASSES)));
+                cell.attachChild(pair);
+                for(int i=0; i<4; i++) {
+                    TriBatch t = new TriBatch();
+                    t.setModel(box);
+                    t.setRenderQueueMode(RenderQueue.FILTER_OPAQUE);
+                    LodMesh m = new LodMesh("box");
+                    m.addBatch(0, t);
+                    m.getLocalTranslation().set((i&1)*4, 0, (i>>1)*4);
+                    if(i < 2)
+                        pair.attachChild(m);
+                    else
+                        cell.attachChild(m);
+                }
+                root.attachChild(cell);
+            }
+        }
+        
+        // create the cameras
+        ViewCamera[] cams = new ViewCamera[VIEWS];
+        for(int i=0; i<VIEWS; i++) {
+            ViewCamera c = new ViewCamera(640, 480);
+            c.setFrustumPerspective(60, 4f/3f, 1, 100 + i*100);
+            c.setFrame(new Vector3f(i*20, 30+i*10, 0), new Vector3f(-1,0,0), 
+                    new Vector3f(0,1,0), new Vector3f(0,0,-1));
+            c.lookAt(new Vector3f(0,0,-50+i*20), Vector3f.UNIT_Y);
+            c.update();
+            cams[i] = c;
+        }
+        app.setRootNode(root);
+        app.setCamera(cams[0]);
+        
+        Frame f = new Frame(0, app);
+        UpdateContext uctx = f.getUpdateContext();
+        uctx.frame = f;
+        // the second update merges the bounds of the children into the nodes
+        root.updateGeometricState(uctx, true);
+        root.updateGeometricState(uctx, true);
+        
+        // one pass and one queue for every camera, and a second one for
+        // the first camera
+        for(int i=0; i<PASSES; i++) {
+            RenderPass p = new RenderPass("pass"+i);
+            p.setId(i);
+            p.setQueueNo(i);
+            p.setQueueFilter(RenderQueue.QueueFilter.Opaque.value);
+            p.setCamera(cams[i % VIEWS]);
+            p.setEnabled(true);
+            f.getPasses().addPass(p);
+            f.getQueueManager().createQueue(i, RenderQueue.SortType.DistanceSquaredFromCamera);
+        }
+        
+        CullContext[] ctx = new CullContext[VIEWS];
+        ctx[0] = new CullContext();
+        ctx[0].setState(f, root, cams[0]);
+        ctx[0].setThreadContext();
+        for(int i=1; i<VIEWS; i++) {
+            ctx[i] = new CullContext();
+        }
+        MultiViewCuller mv = new MultiViewCuller();
+        
+        int[] serialCount = new int[PASSES];
+        int[] multiCount = new int[PASSES];
+        FastList<IdentityHashMap<Renderable,Integer>> serialQueued = null;
+        FastList<IdentityHashMap<Renderable,Integer>> multiQueued = null;
+        long serial = 0, multi = 0;
+        for(int r=0; r<ROUNDS; r++) {
+            // one camera at a time
+            f.getQueueManager().clear();
+            long st = System.nanoTime();
+            for(int i=0; i<VIEWS; i++) {
+                ctx[i].setState(f, root, cams[i]);
+                if(root.docull(ctx[i]))
+                    root.queue(ctx[i]);
+                f.merge(ctx[i]);
+            }
+            serial += System.nanoTime() - st;
+            for(int i=0; i<PASSES; i++)
+                serialCount[i] = f.getQueueManager().getQueue(i).size();
+            if(r == ROUNDS - 1)
+                serialQueued = count(f);
+            
+            // all cameras in one traversal
+            f.getQueueManager().clear();
+            st = System.nanoTime();
+            mv.clear();
+            for(int i=0; i<VIEWS; i++) {
+                ctx[i].setState(f, root, cams[i]);
+                mv.addView(ctx[i]);
+            }
+            mv.cull(root);
+            for(int i=0; i<VIEWS; i++)
+                f.merge(ctx[i]);
+            multi += System.nanoTime() - st;
+            for(int i=0; i<PASSES; i++)
+                multiCount[i] = f.getQueueManager().getQueue(i).size();
+            if(r == ROUNDS - 1)
+                multiQueued = count(f);
+        }
+        
+        for(int i=0; i<PASSES; i++) {
+            System.out.println("Pass "+i+" queued: separate "+serialCount[i]+" single traversal "+multiCount[i]);
+        }
+        System.out.println("Separate traversals: "+(serial/ROUNDS/1000)+" us/frame");
+        System.out.println("Single traversal:    "+(multi/ROUNDS/1000)+" us/frame");
+        
+        for(int i=0; i<PASSES; i++) {
+            Checks.check(serialCount[i] > 0, "pass "+i+" queues renderables");
+            Checks.check(serialQueued.get(i).equals(multiQueued.get(i)), 
+                    "pass "+i+" queues the same renderables in one traversal");
+            Checks.check(!hasExcluded(serialQueued.get(i), i) && !hasExcluded(multiQueued.get(i), i),
+                    "pass "+i+" queues nothing left out of it");
+        }
+        Checks.finish();
+    }
+    
+    // counts the occurrences of the renderables in the queue of every pass
+    static FastList<IdentityHashMap<Renderable,Integer>> count(Frame f) {
+        FastList<IdentityHashMap<Renderable,Integer>> res = new FastList<IdentityHashMap<Renderable,Integer>>();
+        for(int v=0; v<PASSES; v++) {
+            IdentityHashMap<Renderable,Integer> m = new IdentityHashMap<Renderable,Integer>();
+            FastList<Renderable> l = f.getQueueManager().getQueue(v);
+            for(int i=0, n=l.size(); i<n; i++) {
+                Integer c = m.get(l.get(i));
+                m.put(l.get(i), c == null ? 1 : c + 1);
+            }
+            res.add(m);
+        }
+        return res;
+    }
+    
+    // is any of the renderables under a node left out of the pass
+    static boolean hasExcluded(IdentityHashMap<Renderable,Integer> queued, int pass) {
+        for(Renderable r : queued.keySet()) {
+            for(Spatial s = r.getParent(); s != null; s = s.getParent()) {
+                if((s.getRenderPassMode() & (1L << pass)) == 0)
+                    return true;
+            }
+        }
+        return false;
+    }
+}
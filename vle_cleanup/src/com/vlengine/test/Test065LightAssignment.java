@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.app.Config;
+import com.vlengine.app.frame.Frame;
+import com.vlengine.bounding.BoundingBox;
+import com.vlengine.light.LightSorterGameState;
+import com.vlengine.light.PointLight;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.Box;
+import com.vlengine.renderer.CullContext;
+import com.vlengine.renderer.ViewCamera;
+import com.vlengine.renderer.material.Material;
+import com.vlengine.scene.LightNode;
+import com.vlengine.scene.LodMesh;
+import com.vlengine.scene.Renderable;
+import com.vlengine.scene.SetNode;
+import com.vlengine.scene.batch.LightBatch;
+import com.vlengine.scene.batch.TriBatch;
+import com.vlengine.scene.control.UpdateContext;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.FastList;
+import java.util.Random;
+
+/**
+ * Headless benchmark of selecting the most important lights for
+ * each renderable, checking every light against every renderable
+ * compared to using the light grid. Runs with 10, 100 and 1000
+ * point lights over a grid of boxes.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test065LightAssignment {
+
+    static final int GRID = 64;
+    static final int ROUNDS = 10;
+    static final int[] LIGHTS = {10, 100, 1000};
+    
+    public static void main(String[] args) {
+        AppContext app = new AppContext();
+        app.conf = new Config();
+        LocalContext.getContext().app = app;
+        
+        Box box = new Box(new Vector3f(0,0,0), 1,1,1);
+        box.setModelBound(new BoundingBox());
+        box.updateModelBound();
+        
+        // a grid of boxes, every box has its own material
+        SetNode root = new SetNode("root");
+        FastList<Renderable> batches = new FastList<Renderable>();
+        for(int x=0; x<GRID; x++) {
+            for(int z=0; z<GRID; z++) {
+                TriBatch t = new TriBatch();
+                t.setModel(box);
+                t.setMaterial(new Material());
+                LodMesh m = new LodMesh("box");
+                m.addBatch(0, t);
+                m.getLocalTranslation().set(x*4-GRID*2, 0, z*4-GRID*2);
+                root.attachChild(m);
+                batches.add(t);
+            }
+        }
+        
+        // the lights, spread randomly over the area
+        Random rnd = new Random(1);
+        int maxLights = LIGHTS[LIGHTS.length-1];
+        FastList<Renderable> allLights = new FastList<Renderable>();
+        for(int i=0; i<maxLights; i++) {
+            PointLight pl = new PointLight();
+            pl.setEnabled(true);
+            BoundingBox bb = new BoundingBox(new Vector3f(), 10, 10, 10);
+            pl.setBound(bb);
+            LightNode ln = new LightNode("light", pl);
+            ln.getLocalTranslation().set((rnd.nextFloat()-0.5f)*GRID*4, 
+                    2, (rnd.nextFloat()-0.5f)*GRID*4);
+            root.attachChild(ln);
+            allLights.add(ln.getBatch());
+        }
+        
+        ViewCamera cam = new ViewCamera(640, 480);
+        app.setRootNode(root);
+        app.setCamera(cam);
+        Frame f = new Frame(0, app);
+        UpdateContext uctx = f.getUpdateContext();
+        uctx.frame = f;
+        root.updateGeometricState(uctx, true);
+        CullContext ctx = new CullContext();
+        ctx.setState(f, root, cam);
+        ctx.setThreadContext();
+        for(int i=0; i<batches.size(); i++) {
+            batches.get(i).updateWorldBound(0);
+        }
+        for(int i=0; i<allLights.size(); i++) {
+            allLights.get(i).updateWorldBound(0);
+        }
+        
+        LightSorterGameState ls = new LightSorterGameState();
+        FastList<Renderable> lights = new FastList<Renderable>();
+        LightBatch[][] bruteResult = new LightBatch[batches.size()][];
+        for(int l=0; l<LIGHTS.length; l++) {
+            lights.clear();
+            for(int i=0; i<LIGHTS[l]; i++) {
+                lights.add(allLights.get(i));
+            }
+            
+            // every light against every renderable
+            ls.setUseLightGrid(false);
+            long st = System.nanoTime();
+            for(int r=0; r<ROUNDS; r++) {
+                ls.buildLightGrid(lights);
+                ls.assignLights(0, batches);
+            }
+            long brute = System.nanoTime() - st;
+            for(int i=0; i<batches.size(); i++) {
+                bruteResult[i] = batches.get(i).lights[0].clone();
+            }
+            
+            // with the grid
+            ls.setUseLightGrid(true);
+            st = System.nanoTime();
+            for(int r=0; r<ROUNDS; r++) {
+                ls.buildLightGrid(lights);
+                ls.assignLights(0, batches);
+            }
+            long grid = System.nanoTime() - st;
+            
+            int diff = 0, lit = 0;
+            for(int i=0; i<batches.size(); i++) {
+                LightBatch[] lb = batches.get(i).lights[0];
+                if(lb[0] != null)
+                    lit++;
+                for(int k=0; k<Renderable.LOWPROFILE_LIGHTS; k++) {
+                    if(lb[k] != bruteResult[i][k]) {
+                        diff++;
+                        break;
+                    }
+                }
+            }
+            System.out.println(LIGHTS[l]+" lights, "+batches.size()+" renderables: all pairs "
+                    +(brute/ROUNDS/1000)+" us, light grid "+(grid/ROUNDS/1000)
+                    +" us, lit "+lit+", differing selections "+diff);
+        }
+    }
+}
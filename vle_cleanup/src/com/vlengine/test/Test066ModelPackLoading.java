@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.Config;
+import com.vlengine.resource.FileResource;
+import com.vlengine.resource.ParameterMap;
+import com.vlengine.resource.model.ModelPack;
+import java.io.File;
+import java.nio.Buffer;
+import java.util.HashSet;
+
+/**
+ * Headless benchmark of loading the f5etiger modelpack. The pack is first
+ * loaded from the cache as it is, then saved into a temporary folder
+ * (with the header for memory mapping), and the load times of the
+ * two versions are compared.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test066ModelPackLoading {
+
+    static final int ROUNDS = 20;
+    
+    public static void main(String[] args) {
+        Config conf = new Config();
+        String name = "f-5etigerii(05).obj";
+        String oldPath = conf.cache_path+"/f5etiger";
+        File newDir = new File(System.getProperty("java.io.tmpdir"), "vle_f5etiger");
+        newDir.mkdirs();
+        String newPath = newDir.getPath();
+        
+        // convert the pack to the new format
+        ModelPack mp = load(name, oldPath);
+        mp.save(newPath);
+        
+        // the same data should be loaded from both
+        HashSet<String> oldFiles = load(name, oldPath).getFileList();
+        int compared = 0, different = 0;
+        for(String f : oldFiles) {
+            String nf = newPath + "/" + new File(f).getName();
+            Buffer ob = loadData(f), nb = loadData(nf);
+            if(ob == null)
+                continue;
+            compared++;
+            if(!ob.equals(nb))
+                different++;
+        }
+        System.out.println("Compared "+compared+" files, different "+different);
+        
+        // warm up
+        for(int i=0; i<3; i++) {
+            load(name, oldPath);
+            load(name, newPath);
+        }
+        long st = System.nanoTime();
+        for(int i=0; i<ROUNDS; i++) {
+            load(name, oldPath);
+        }
+        long oldTime = System.nanoTime() - st;
+        st = System.nanoTime();
+        for(int i=0; i<ROUNDS; i++) {
+            load(name, newPath);
+        }
+        long newTime = System.nanoTime() - st;
+        System.out.println("Old files: "+(oldTime/ROUNDS/1000)+" us/load");
+        System.out.println("Mapped files: "+(newTime/ROUNDS/1000)+" us/load");
+    }
+    
+    static ModelPack load(String name, String path) {
+        ModelPack mp = new ModelPack();
+        mp.setName(name);
+        mp.load(path);
+        return mp;
+    }
+    
+    static Buffer loadData(String file) {
+        if(file.endsWith("_v.dat"))
+            return FileResource.loadFloatBuffer(file, ParameterMap.DIRECTBUFFER);
+        if(file.endsWith("_is.dat"))
+            return FileResource.loadShortBuffer(file, ParameterMap.DIRECTBUFFER);
+        if(file.endsWith("_ii.dat"))
+            return FileResource.loadIntBuffer(file, ParameterMap.DIRECTBUFFER);
+        return null;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.Config;
+import com.vlengine.model.Geometry;
+import com.vlengine.resource.model.Model;
+import com.vlengine.resource.model.ModelPack;
+import com.vlengine.resource.model.ModelPart;
+import com.vlengine.util.FastList;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Headless benchmark of loading the f5etiger modelpack from the XML
+ * and from the binary descriptor. The pack is saved into two temporary
+ * folders, one without the binary descriptor, and the loaded models
+ * are compared, then the load time and allocation is measured.
+ * Finally a truncated and a newer version binary descriptor is written,
+ * those must fall back to the XML descriptor.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test067ModelPackDescriptor {
+
+    static final int ROUNDS = 20;
+    
+    public static void main(String[] args) {
+        Config conf = new Config();
+        String name = "f-5etigerii(05).obj";
+        File tmp = new File(System.getProperty("java.io.tmpdir"));
+        String xmlPath = new File(tmp, "vle_f5etiger_xml").getPath();
+        String binPath = new File(tmp, "vle_f5etiger_bin").getPath();
+        
+        ModelPack mp = load(name, conf.cache_path+"/f5etiger");
+        mp.save(xmlPath);
+        mp.save(binPath);
+        new File(xmlPath, name+".pack.bin").delete();
+        
+        ModelPack xml = load(name, xmlPath);
+        ModelPack bin = load(name, binPath);
+        Checks.check(!xml.isLoadedBinary() && bin.isLoadedBinary(), "binary descriptor used when present");
+        Checks.check(describe(xml).equals(describe(bin)), "same models from both descriptors");
+        
+        for(int i=0; i<3; i++) {
+            load(name, xmlPath);
+            load(name, binPath);
+        }
+        
+        long[] xmlRes = measure(name, xmlPath);
+        long[] binRes = measure(name, binPath);
+        System.out.println("XML descriptor:    "+(xmlRes[0]/ROUNDS/1000)+" us/load, "
+                +(xmlRes[1]/ROUNDS/1024)+" KB allocated/load");
+        System.out.println("Binary descriptor: "+(binRes[0]/ROUNDS/1000)+" us/load, "
+                +(binRes[1]/ROUNDS/1024)+" KB allocated/load");
+        
+        // damaged binary descriptors, next to the XML one
+        File binFile = new File(binPath, name+".pack.bin");
+        byte[] data = read(binFile);
+        byte[] newer = data.clone();
+        // the version after the magic, large in either byte order
+        for(int i=4; i<8; i++)
+            newer[i] = 0x7F;
+        byte[] truncated = new byte[data.length/2];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        String expected = describe(xml);
+        checkFallback("Newer version", name, binPath, newer, expected);
+        checkFallback("Truncated", name, binPath, truncated, expected);
+        write(binFile, data);
+        Checks.finish();
+    }
+    
+    static void checkFallback(String what, String name, String path, byte[] bin, String expected) {
+        write(new File(path, name+".pack.bin"), bin);
+        ModelPack mp = load(name, path);
+        Checks.check(!mp.isLoadedBinary() && describe(mp).equals(expected), 
+                what+" binary descriptor falls back to XML");
+    }
+    
+    static byte[] read(File f) {
+        try {
+            FileInputStream in = new FileInputStream(f);
+            byte[] b = new byte[(int) f.length()];
+            int n = 0;
+            while(n < b.length) 
+                n += in.read(b, n, b.length - n);
+            in.close();
+            return b;
+        } catch(IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    static void write(File f, byte[] b) {
+        try {
+            FileOutputStream out = new FileOutputStream(f);
+            out.write(b);
+            out.close();
+        } catch(IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    static long[] measure(String name, String path) {
+        long alloc = allocated();
+        long st = System.nanoTime();
+        for(int i=0; i<ROUNDS; i++) {
+            load(name, path);
+        }
+        long time = System.nanoTime() - st;
+        return new long[] { time, allocated() - alloc };
+    }
+    
+    // allocated bytes by this thread, if the VM can tell
+    static long allocated() {
+        ThreadMXBean tb = ManagementFactory.getThreadMXBean();
+        if(tb instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)tb).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+    
+    static ModelPack load(String name, String path) {
+        ModelPack mp = new ModelPack();
+        mp.setName(name);
+        mp.load(path);
+        return mp;
+    }
+    
+    // textual description of the models, used for comparing
+    static String describe(ModelPack mp) {
+        StringBuilder sb = new StringBuilder();
+        FastList<Model> models = mp.getModels();
+        for(int m=0; m<models.size(); m++) {
+            Model mo = models.get(m);
+            sb.append(mo.getName()).append(" materials ").append(mo.getMaterials().keySet()).append('\n');
+            FastList<FastList<ModelPart>> lods = mo.getLods();
+            for(int l=0; l<lods.size(); l++) {
+                FastList<ModelPart> parts = lods.get(l);
+                for(int p=0; parts != null && p<parts.size(); p++) {
+                    ModelPart prt = parts.get(p);
+                    Geometry g = prt.getGeometry();
+                    sb.append(l).append(' ').append(prt.getName())
+                            .append(' ').append(prt.getMaterial().getId())
+                            .append(' ').append(prt.getMaterial().getTextures().size())
+                            .append(' ').append(g.getNumVertex())
+                            .append(' ').append(g.getStartIndex())
+                            .append(' ').append(g.getNumIndex())
+                            .append(' ').append(g.getModelBound())
+                            .append('\n');
+                }
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.app.Config;
+import com.vlengine.app.frame.Frame;
+import com.vlengine.bounding.CollisionTree;
+import com.vlengine.bounding.CollisionTreeManager;
+import com.vlengine.intersection.Intersection;
+import com.vlengine.math.FastMath;
+import com.vlengine.math.Ray;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.Dome;
+import com.vlengine.scene.Mesh;
+import com.vlengine.scene.SetNode;
+import com.vlengine.scene.control.UpdateContext;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.IntList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Headless benchmark of the collision trees: build time, ray picking
+ * and tree against tree collision with the AABB_TREE (with and without
+ * sorting) and the BVH_TREE. Compares the triangles found by the trees
+ * to testing every triangle, and fails if the BVH_TREE misses any.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test068CollisionBVH {
+
+    static final int RAYS = 4000;
+    static final int ROUNDS = 8;
+    
+    public static void main(String[] args) {
+        AppContext app = new AppContext();
+        app.conf = new Config();
+        LocalContext.getContext().app = app;
+        
+        // a big dome for picking, and two smaller ones for collision
+        Dome big = new Dome(new Vector3f(), 120, 256, 50);
+        Dome small = new Dome(new Vector3f(), 40, 48, 10);
+        
+        SetNode root = new SetNode("root");
+        Mesh bigMesh = new Mesh("big");
+        bigMesh.getLocalRotation().fromAngleAxis(0.3f, new Vector3f(1,1,0).normalizeLocal());
+        bigMesh.getLocalScale().set(1.5f, 1, 2);
+        bigMesh.getLocalTranslation().set(5, 0, -3);
+        root.attachChild(bigMesh);
+        Mesh smallA = new Mesh("a");
+        root.attachChild(smallA);
+        Mesh smallB = new Mesh("b");
+        smallB.getLocalTranslation().set(6, 3, 2);
+        smallB.getLocalRotation().fromAngleAxis(FastMath.PI*0.6f, Vector3f.UNIT_X);
+        root.attachChild(smallB);
+        
+        Frame f = new Frame(0, app);
+        UpdateContext uctx = f.getUpdateContext();
+        uctx.frame = f;
+        root.updateGeometricState(uctx, true);
+        
+        // random rays aimed at the dome
+        Random rnd = new Random(1);
+        Ray[] rays = new Ray[RAYS];
+        for(int i=0; i<RAYS; i++) {
+            Vector3f o = new Vector3f(rnd.nextFloat()-0.5f, rnd.nextFloat()-0.5f, rnd.nextFloat()-0.5f)
+                    .normalizeLocal().multLocal(200);
+            Vector3f t = new Vector3f((rnd.nextFloat()-0.5f)*100, (rnd.nextFloat()-0.5f)*100, (rnd.nextFloat()-0.5f)*100);
+            rays[i] = new Ray(o, t.subtractLocal(o).normalizeLocal());
+        }
+        
+        // the reference results, testing every triangle
+        long st = System.nanoTime();
+        int[] pickRef = sorted(brutePick(big, bigMesh, rays));
+        long pickBrute = System.nanoTime() - st;
+        st = System.nanoTime();
+        int[] colRef = sorted(bruteCollision(small, smallA, smallB));
+        long colBrute = System.nanoTime() - st;
+        System.out.println("All triangles: "+RAYS+" rays "+(pickBrute/1000)+" us ("+pickRef.length+" hits), "
+                +"collision "+(colBrute/1000)+" us ("+colRef.length+" pairs)");
+        
+        int[] types = {CollisionTree.AABB_TREE, CollisionTree.AABB_TREE, CollisionTree.BVH_TREE};
+        boolean[] sort = {false, true, false};
+        String[] names = {"AABB_TREE", "AABB_TREE sorted", "BVH_TREE"};
+        int[][] pickResult = new int[types.length][];
+        int[][] colResult = new int[types.length][];
+        CollisionTreeManager ctm = CollisionTreeManager.getInstance();
+        
+        System.out.println("Pick mesh "+big.getTriangleCount()+" triangles, collision meshes "
+                +small.getTriangleCount()+" triangles");
+        for(int k=0; k<types.length; k++) {
+            ctm.setTreeType(types[k]);
+            ctm.setDoSort(sort[k]);
+            
+            // the best of the rounds, so the first ones warm up the JIT
+            CollisionTree bigTree = null;
+            long build = Long.MAX_VALUE;
+            for(int r=0; r<ROUNDS; r++) {
+                st = System.nanoTime();
+                bigTree = new CollisionTree(types[k]);
+                bigTree.construct(big, sort[k]);
+                build = Math.min(build, System.nanoTime() - st);
+            }
+            CollisionTree ta = new CollisionTree(types[k]);
+            ta.construct(small, sort[k]);
+            CollisionTree tb = new CollisionTree(types[k]);
+            tb.construct(small, sort[k]);
+            
+            // ray picks
+            IntList hits = new IntList();
+            IntList all = new IntList();
+            st = System.nanoTime();
+            for(int i=0; i<RAYS; i++) {
+                LocalContext.getContext().ctbstack.clear();
+                hits.clear();
+                bigTree.intersect(rays[i], hits, bigMesh, null);
+                if(all != null) {
+                    for(int h=0; h<hits.size(); h++)
+                        all.add(i*big.getTriangleCount() + hits.get(h));
+                }
+            }
+            long pick = System.nanoTime() - st;
+            pickResult[k] = sorted(all);
+            
+            // tree against tree
+            IntList aList = new IntList();
+            IntList bList = new IntList();
+            st = System.nanoTime();
+            for(int r=0; r<ROUNDS; r++) {
+                aList.clear();
+                bList.clear();
+                LocalContext.getContext().ctbstack.clear();
+                ta.intersect(tb, aList, bList, smallA, smallB, null);
+            }
+            long col = (System.nanoTime() - st)/ROUNDS;
+            IntList pairs = new IntList();
+            for(int i=0; i<aList.size(); i++)
+                pairs.add(aList.get(i)*small.getTriangleCount() + bList.get(i));
+            colResult[k] = sorted(pairs);
+            
+            System.out.println(names[k]+": build "+(build/1000)+" us, "
+                    +RAYS+" rays "+(pick/1000)+" us ("+pickResult[k].length+" hits), "
+                    +"tree collision "+(col/1000)+" us ("+colResult[k].length+" pairs)");
+        }
+        for(int k=0; k<types.length; k++) {
+            System.out.println(names[k]+" picks missing: "+missing(pickRef, pickResult[k])
+                    +" extra: "+missing(pickResult[k], pickRef)
+                    +", collisions missing: "+missing(colRef, colResult[k])
+                    +" extra: "+missing(colResult[k], colRef));
+        }
+        // the existing trees are only measured, the BVH has to find every
+        // hit, rays on a shared edge may hit both triangles
+        int bvh = types.length - 1;
+        Checks.check(missing(pickRef, pickResult[bvh]) == 0, "BVH_TREE finds every ray hit");
+        Checks.check(missing(colRef, colResult[bvh]) == 0 && missing(colResult[bvh], colRef) == 0, 
+                "BVH_TREE finds the same collision pairs");
+        Checks.finish();
+    }
+    
+    static IntList brutePick(Dome geom, Mesh mesh, Ray[] rays) {
+        int tris = geom.getTriangleCount();
+        Vector3f[][] world = worldTriangles(geom, mesh);
+        IntList all = new IntList();
+        for(int i=0; i<rays.length; i++) {
+            for(int t=0; t<tris; t++) {
+                if(rays[i].intersect(world[t][0], world[t][1], world[t][2]))
+                    all.add(i*tris + t);
+            }
+        }
+        return all;
+    }
+    
+    static IntList bruteCollision(Dome geom, Mesh a, Mesh b) {
+        int tris = geom.getTriangleCount();
+        Vector3f[][] wa = worldTriangles(geom, a);
+        Vector3f[][] wb = worldTriangles(geom, b);
+        IntList all = new IntList();
+        for(int i=0; i<tris; i++) {
+            for(int j=0; j<tris; j++) {
+                if(Intersection.intersection(wa[i][0], wa[i][1], wa[i][2], wb[j][0], wb[j][1], wb[j][2]))
+                    all.add(i*tris + j);
+            }
+        }
+        return all;
+    }
+    
+    static Vector3f[][] worldTriangles(Dome geom, Mesh mesh) {
+        Vector3f[][] world = new Vector3f[geom.getTriangleCount()][3];
+        Vector3f[] v = new Vector3f[3];
+        for(int t=0; t<world.length; t++) {
+            geom.getTriangle(t, v);
+            for(int k=0; k<3; k++)
+                world[t][k] = mesh.localToWorld(v[k], null);
+        }
+        return world;
+    }
+    
+    // the number of elements in a, which are not in b
+    static int missing(int[] a, int[] b) {
+        int cnt = 0;
+        for(int i=0; i<a.length; i++) {
+            if(Arrays.binarySearch(b, a[i]) < 0)
+                cnt++;
+        }
+        return cnt;
+    }
+    
+    static int[] sorted(IntList l) {
+        int[] a = new int[l.size()];
+        for(int i=0; i<a.length; i++)
+            a[i] = l.get(i);
+        Arrays.sort(a);
+        return a;
+    }
+}
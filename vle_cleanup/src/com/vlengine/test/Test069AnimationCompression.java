@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.app.Config;
+import com.vlengine.math.Matrix4f;
+import com.vlengine.math.Quaternion;
+import com.vlengine.math.Vector3f;
+import com.vlengine.resource.FileResource;
+import com.vlengine.resource.ParameterMap;
+import com.vlengine.resource.md5.Md5AnimLoader;
+import com.vlengine.resource.model.Model;
+import com.vlengine.resource.x.XLoader;
+import com.vlengine.scene.animation.CompressedAnimation;
+import com.vlengine.scene.animation.MD5.MD5AnimationFrame;
+import com.vlengine.scene.animation.MD5.MD5BoneAnimation;
+import com.vlengine.scene.animation.x.XAnimationFrame;
+import com.vlengine.scene.animation.x.XBoneAnimation;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.FastList;
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+
+/**
+ * Headless benchmark of the compressed animations: memory use before and
+ * after compression, the error of the decoded frames and the decode time,
+ * on the sarge MD5 animations and the .x test model.
+ * Run from the project folder.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test069AnimationCompression {
+
+    static final int ROUNDS = 200;
+    
+    // estimated object sizes on a 64 bit VM with compressed references
+    static final int HEADER = 12;
+    static final int REF = 4;
+    
+    public static void main(String[] args) {
+        AppContext app = new AppContext();
+        app.conf = new Config();
+        LocalContext.getContext().app = app;
+        
+        String[] md5 = {"dev/sarge/marine.md5anim", "dev/sarge/sargeidle.md5anim"};
+        for(int i=0; i<md5.length; i++) {
+            testMD5(md5[i], app.conf);
+        }
+        
+        ByteBuffer data = FileResource.load("dev/xtest/testbox2.x", ParameterMap.NODIRECTBUFFER);
+        Model mdl = new XLoader(app).convert(data, ParameterMap.MAP_EMPTY);
+        if(mdl == null || mdl.getAnimations() == null) {
+            System.out.println("No animations in testbox2.x");
+            return;
+        }
+        FastList<XBoneAnimation> anims = mdl.getAnimations().getAnimations();
+        for(int i=0; i<anims.size(); i++) {
+            testX("testbox2.x "+anims.get(i).name, anims.get(i), app.conf);
+        }
+    }
+    
+    static void testMD5(String file, Config conf) {
+        ByteBuffer data = FileResource.load(file, ParameterMap.NODIRECTBUFFER);
+        MD5BoneAnimation anim = new Md5AnimLoader().convert(data, ParameterMap.MAP_EMPTY);
+        if(anim == null) {
+            System.out.println("Failed to load "+file);
+            return;
+        }
+        int joints = anim.numJoints;
+        int frames = anim.numFrames;
+        // frame objects, arrays, and a quaternion and vector per joint
+        long before = (long) frames * (size(2*REF) + 2*size(joints*REF) 
+                + joints*(size(4*4) + size(3*4))) + size(frames*REF);
+        MD5AnimationFrame[] original = anim.frame;
+        
+        // uncompressed access, copying the frame
+        MD5AnimationFrame copy = new MD5AnimationFrame();
+        copy.rotation = new Quaternion[joints];
+        copy.translation = new Vector3f[joints];
+        for(int j=0; j<joints; j++) {
+            copy.rotation[j] = new Quaternion();
+            copy.translation[j] = new Vector3f();
+        }
+        long st = 0;
+        long plain = 0;
+        for(int r=0; r<ROUNDS; r++) {
+            if(r == ROUNDS/2)
+                st = System.nanoTime();
+            for(int i=0; i<frames; i++) {
+                for(int j=0; j<joints; j++) {
+                    copy.rotation[j].set(original[i].rotation[j]);
+                    copy.translation[j].set(original[i].translation[j]);
+                }
+            }
+        }
+        plain = System.nanoTime() - st;
+        
+        st = System.nanoTime();
+        anim.compress(conf.animCompressionAngle, conf.animCompressionTranslation);
+        long compress = System.nanoTime() - st;
+        CompressedAnimation ca = anim.compressed;
+        
+        // decode all the frames, the first half of the rounds warm up
+        MD5AnimationFrame store = new MD5AnimationFrame();
+        long decode = 0;
+        for(int r=0; r<ROUNDS; r++) {
+            if(r == ROUNDS/2)
+                st = System.nanoTime();
+            for(int i=0; i<frames; i++) {
+                anim.getFrame(i, store);
+            }
+        }
+        decode = System.nanoTime() - st;
+        
+        float maxAngle = 0, maxTrans = 0;
+        for(int i=0; i<frames; i++) {
+            anim.getFrame(i, store);
+            for(int j=0; j<joints; j++) {
+                maxAngle = Math.max(maxAngle, CompressedAnimation.angle(store.rotation[j], original[i].rotation[j]));
+                maxTrans = Math.max(maxTrans, store.translation[j].distance(original[i].translation[j]));
+            }
+        }
+        report(file, joints, frames, ca, before, compress, plain, decode);
+        System.out.println("  max rotation error "+Math.toDegrees(maxAngle)+" deg, max translation error "+maxTrans);
+    }
+    
+    static void testX(String name, XBoneAnimation anim, Config conf) {
+        XAnimationFrame[] frames = anim.frames;
+        int n = frames.length;
+        int bones = frames[0].transform.length;
+        // the original matrices, the loader shares matrices between frames
+        IdentityHashMap<Matrix4f,Matrix4f> unique = new IdentityHashMap<Matrix4f,Matrix4f>();
+        Matrix4f[][] original = new Matrix4f[n][];
+        for(int i=0; i<n; i++) {
+            original[i] = frames[i].transform.clone();
+            for(int j=0; j<bones; j++) {
+                if(original[i][j] != null)
+                    unique.put(original[i][j], original[i][j]);
+            }
+        }
+        long before = (long) n * (size(2*REF + 4 + REF) + size(bones*REF)) 
+                + unique.size() * size(16*4) + size(n*REF);
+        
+        // uncompressed access, copying the frame
+        Matrix4f[] copy = new Matrix4f[bones];
+        for(int j=0; j<bones; j++)
+            copy[j] = new Matrix4f();
+        long st = 0;
+        for(int r=0; r<ROUNDS; r++) {
+            if(r == ROUNDS/2)
+                st = System.nanoTime();
+            for(int i=0; i<n; i++) {
+                Matrix4f[] tr = frames[i].getTransform(null);
+                for(int j=0; j<bones; j++) {
+                    if(tr[j] != null)
+                        copy[j].set(tr[j]);
+                }
+            }
+        }
+        long plain = System.nanoTime() - st;
+        
+        st = System.nanoTime();
+        if(!anim.compress(conf.animCompressionAngle, conf.animCompressionTranslation, conf.animCompressionScale)) {
+            System.out.println(name+" cannot be compressed");
+            return;
+        }
+        long compress = System.nanoTime() - st;
+        
+        Matrix4f[] store = new Matrix4f[bones];
+        long decode = 0;
+        for(int r=0; r<ROUNDS; r++) {
+            if(r == ROUNDS/2)
+                st = System.nanoTime();
+            for(int i=0; i<n; i++) {
+                frames[i].getTransform(store);
+            }
+        }
+        decode = System.nanoTime() - st;
+        
+        float maxRot = 0, maxTrans = 0;
+        for(int i=0; i<n; i++) {
+            Matrix4f[] tr = frames[i].getTransform(store);
+            for(int j=0; j<bones; j++) {
+                if(original[i][j] == null) {
+                    if(tr[j] != null)
+                        maxRot = Float.POSITIVE_INFINITY;
+                    continue;
+                }
+                Matrix4f a = original[i][j];
+                Matrix4f b = tr[j];
+                for(int r=0; r<3; r++) {
+                    for(int c=0; c<3; c++) {
+                        maxRot = Math.max(maxRot, Math.abs(a.get(r, c) - b.get(r, c)));
+                    }
+                    maxTrans = Math.max(maxTrans, Math.abs(a.get(3, r) - b.get(3, r)));
+                    maxTrans = Math.max(maxTrans, Math.abs(a.get(r, 3) - b.get(r, 3)));
+                }
+            }
+        }
+        report(name, bones, n, anim.compressed, before, compress, plain, decode);
+        System.out.println("  max rotation-scale element error "+maxRot+", max translation error "+maxTrans);
+    }
+    
+    static void report(String name, int tracks, int frames, CompressedAnimation ca, 
+            long before, long compress, long plain, long decode) {
+        int rounds = ROUNDS - ROUNDS/2;
+        long after = ca.getDataSize();
+        System.out.println(name+": "+tracks+" bones, "+frames+" frames, "
+                +ca.getNumKeys()+" keys stored of "+(tracks*frames)+" bone frames");
+        System.out.println("  memory "+before+" bytes -> "+after+" bytes ("
+                +(after*100/Math.max(1, before))+"%), compressed in "+(compress/1000)+" us");
+        System.out.println("  frame copy "+(plain/rounds/frames)+" ns, frame decode "
+                +(decode/rounds/frames)+" ns ("+(decode/rounds/frames/tracks)+" ns per bone)");
+    }
+    
+    // the size of an object or array with the given payload, aligned to 8 bytes
+    static long size(int payload) {
+        return (HEADER + payload + 7) / 8 * 8;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.app.Config;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.Dome;
+import com.vlengine.model.Geometry;
+import com.vlengine.resource.FileResource;
+import com.vlengine.resource.ParameterMap;
+import com.vlengine.resource.model.Model;
+import com.vlengine.resource.model.ModelMaterial;
+import com.vlengine.resource.model.ModelPack;
+import com.vlengine.resource.model.ModelPackCreator;
+import com.vlengine.resource.model.ModelPart;
+import com.vlengine.resource.model.ModelPartPack;
+import com.vlengine.resource.x.XLoader;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.FastList;
+import com.vlengine.util.geom.IndexBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Headless test of the vertex cache optimization in the ModelPackCreator.
+ * Packs a dome with shuffled triangles, a dome in its generated order and
+ * the .x test model, and reports the ACMR before and after for each part
+ * pack. Checks that the packed geometry has the same triangles.
+ * Run from the project folder.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test070VertexCacheOptimization {
+
+    public static void main(String[] args) {
+        AppContext app = new AppContext();
+        app.conf = new Config();
+        LocalContext.getContext().app = app;
+        
+        // a dome with triangles in random order, like converted assets often have
+        Dome shuffled = new Dome(new Vector3f(), 64, 64, 10);
+        shuffleTriangles(shuffled, new Random(1));
+        pack("shuffled dome", single("shuffled", shuffled), false);
+        pack("shuffled dome overdraw", single("shuffled", copyOf(shuffled)), true);
+        
+        // a dome in the generated order
+        pack("dome", single("dome", new Dome(new Vector3f(), 64, 64, 10)), false);
+        
+        Model x = new XLoader(app).convert(FileResource.load("dev/xtest/testbox2.x", 
+                ParameterMap.NODIRECTBUFFER), ParameterMap.MAP_EMPTY);
+        if(x != null) {
+            x.setName("testbox2");
+            pack("testbox2.x", x, false);
+        }
+    }
+    
+    static void pack(String name, Model mdl, boolean overdraw) {
+        // the triangles before packing
+        FastList<float[]> before = triangles(mdl);
+        
+        ModelPackCreator mpc = new ModelPackCreator();
+        mpc.setOptimizeOverdraw(overdraw);
+        mpc.addModel(mdl);
+        long st = System.nanoTime();
+        ModelPack mp = mpc.createPack(name);
+        long time = System.nanoTime() - st;
+        
+        FastList<float[]> after = triangles(mp.getModel(mdl.getName()));
+        int different = 0;
+        for(int i=0; i<before.size(); i++) {
+            if(!Arrays.equals(before.get(i), after.get(i)))
+                different++;
+        }
+        
+        System.out.println(name+": packed in "+(time/1000)+" us, parts with different triangles: "+different);
+        FastList<ModelPartPack> pps = mp.getPartPacks();
+        for(int i=0; i<pps.size(); i++) {
+            ModelPartPack pp = pps.get(i);
+            System.out.println("  "+pp.getName()+": "+pp.getOptimizedTriangles()+" triangles, ACMR "
+                    +pp.getACMRBefore()+" -> "+pp.getACMRAfter());
+        }
+    }
+    
+    static Model single(String name, Geometry geom) {
+        Model mdl = new Model();
+        mdl.setName(name);
+        ModelPart part = new ModelPart();
+        part.setGeometry(geom);
+        part.setMaterial(new ModelMaterial());
+        mdl.addPart(0, part);
+        return mdl;
+    }
+    
+    static Dome copyOf(Dome d) {
+        Dome c = new Dome(new Vector3f(), 64, 64, 10);
+        c.setIndexBuffer(d.getIndexBuffer());
+        return c;
+    }
+    
+    static void shuffleTriangles(Geometry geom, Random rnd) {
+        IndexBuffer ib = geom.getIndexBuffer();
+        int tris = geom.getNumIndex() / 3;
+        int[] idx = new int[tris*3];
+        for(int i=0; i<idx.length; i++)
+            idx[i] = ib.get(geom.getStartIndex() + i);
+        for(int t=tris-1; t>0; t--) {
+            int o = rnd.nextInt(t+1);
+            for(int k=0; k<3; k++) {
+                int tmp = idx[t*3+k];
+                idx[t*3+k] = idx[o*3+k];
+                idx[o*3+k] = tmp;
+            }
+        }
+        geom.setIndexBuffer(IndexBuffer.createBuffer(idx, geom.getNumVertex(), null));
+        geom.setStartIndex(0);
+    }
+    
+    // the sorted triangle positions of every part
+    static FastList<float[]> triangles(Model mdl) {
+        FastList<float[]> res = new FastList<float[]>();
+        FastList<FastList<ModelPart>> lods = mdl.getLods();
+        Vector3f[] v = new Vector3f[3];
+        for(int l=0; l<lods.size(); l++) {
+            FastList<ModelPart> parts = lods.get(l);
+            for(int p=0; p<parts.size(); p++) {
+                Geometry g = parts.get(p).getGeometry();
+                int tris = g.getTriangleCount();
+                String[] tri = new String[tris];
+                for(int t=0; t<tris; t++) {
+                    g.getTriangle(t, v);
+                    // rotate the triangle to start with the smallest vertex
+                    String[] s = new String[3];
+                    for(int k=0; k<3; k++)
+                        s[k] = v[k].x+" "+v[k].y+" "+v[k].z;
+                    int m = 0;
+                    for(int k=1; k<3; k++)
+                        if(s[k].compareTo(s[m]) < 0)
+                            m = k;
+                    tri[t] = s[m]+"|"+s[(m+1)%3]+"|"+s[(m+2)%3];
+                }
+                Arrays.sort(tri);
+                float[] h = new float[tris];
+                for(int t=0; t<tris; t++)
+                    h[t] = tri[t].hashCode();
+                res.add(h);
+            }
+        }
+        return res;
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.app.Config;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.Dome;
+import com.vlengine.model.Geometry;
+import com.vlengine.renderer.ViewCamera;
+import com.vlengine.resource.FileResource;
+import com.vlengine.resource.ParameterMap;
+import com.vlengine.resource.model.Model;
+import com.vlengine.resource.model.ModelMaterial;
+import com.vlengine.resource.model.ModelPack;
+import com.vlengine.resource.model.ModelPackCreator;
+import com.vlengine.resource.model.ModelPart;
+import com.vlengine.resource.x.XLoader;
+import com.vlengine.scene.LodMesh;
+import com.vlengine.scene.batch.TriBatch;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.FastList;
+import com.vlengine.util.geom.IndexBuffer;
+import com.vlengine.util.geom.VertexBuffer;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+
+/**
+ * Headless test of the lod generation in the ModelPackCreator.
+ * Generates lods for a dome, a dome cut in two parts and the .x test
+ * model, and reports the triangle count and error of each lod. The
+ * deviation of each lod from the surface of lod 0 is measured in both
+ * directions, and must stay under the error of the lod. The lods of the
+ * two part dome must have no cracks between the parts. Then prints
+ * the lod selected on screen for the dome at different distances.
+ * Run from the project folder.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test071LodGeneration {
+
+    static final float[] RATIOS = {0.5f, 0.25f, 0.1f, 0.03f};
+    
+    public static void main(String[] args) {
+        AppContext app = new AppContext();
+        app.conf = new Config();
+        LocalContext.getContext().app = app;
+        
+        Model dome = pack("dome", single("dome", new Dome(new Vector3f(), 64, 64, 10)));
+        
+        Model halves = pack("dome in two parts", split("halves", new Dome(new Vector3f(), 64, 64, 10)));
+        boolean closed = true;
+        for(int l=1; l<halves.getLods().size(); l++) {
+            int cracks = openEdges(halves.getLods().get(l));
+            closed &= cracks == 0;
+            if(cracks > 0)
+                System.out.println("  lod "+l+": "+cracks+" open edges between the parts");
+        }
+        Checks.check(halves.getLods().size() > 1 && closed, "no cracks between the parts");
+        
+        Model x = new XLoader(app).convert(FileResource.load("dev/xtest/testbox2.x", 
+                ParameterMap.NODIRECTBUFFER), ParameterMap.MAP_EMPTY);
+        if(x != null) {
+            x.setName("testbox2");
+            pack("testbox2.x", x);
+        }
+        
+        // the lod selected on a 1024 pixel high screen
+        LodMesh mesh = new LodMesh("dome");
+        for(int i=0; i<dome.getLods().size(); i++) {
+            mesh.addBatch(i, new TriBatch());
+            mesh.setLodError(i, dome.getLodError(i));
+        }
+        mesh.setLodPixelError(app.conf.lodPixelError);
+        ViewCamera cam = new ViewCamera(1024, 1280);
+        cam.setFrustumPerspective(45, 1.25f, 1, 5000);
+        float[] dist = {5, 20, 50, 100, 200, 500, 1000, 2000};
+        StringBuilder sb = new StringBuilder("selected lod at distance:");
+        for(int i=0; i<dist.length; i++) {
+            cam.setLocation(new Vector3f(0, 0, dist[i]));
+            sb.append(" ").append((int) dist[i]).append("=").append(mesh.getLodIndex(cam));
+        }
+        System.out.println(sb.toString());
+        
+        Checks.finish();
+    }
+    
+    static Model pack(String name, Model mdl) {
+        ModelPackCreator mpc = new ModelPackCreator();
+        mpc.setLodRatios(RATIOS);
+        mpc.addModel(mdl);
+        long st = System.nanoTime();
+        ModelPack mp = mpc.createPack(name);
+        long time = System.nanoTime() - st;
+        System.out.println(name+": packed in "+(time/1000)+" us");
+        
+        Model res = mp.getModel(mdl.getName());
+        FastList<FastList<ModelPart>> lods = res.getLods();
+        float[] base = triangles(lods.get(0));
+        boolean bounded = true;
+        for(int l=0; l<lods.size(); l++) {
+            FastList<ModelPart> parts = lods.get(l);
+            int tris = 0, verts = 0;
+            for(int p=0; p<parts.size(); p++) {
+                Geometry g = parts.get(p).getGeometry();
+                tris += g.getTriangleCount();
+                verts += g.getNumVertex();
+            }
+            float deviation = 0;
+            if(l > 0) {
+                float[] lod = triangles(parts);
+                deviation = Math.max(deviation(lod, base), deviation(base, lod));
+            }
+            System.out.println("  lod "+l+": "+tris+" triangles, "+verts+" vertices, error "
+                    +res.getLodError(l)+", measured "+deviation);
+            bounded &= deviation <= res.getLodError(l) + 1e-4f;
+        }
+        Checks.check(bounded, name+" deviation from lod 0 within the lod error");
+        return res;
+    }
+    
+    static Model single(String name, Geometry geom) {
+        Model mdl = new Model();
+        mdl.setName(name);
+        mdl.addPart(0, part(geom));
+        return mdl;
+    }
+    
+    static ModelPart part(Geometry geom) {
+        ModelPart part = new ModelPart();
+        part.setGeometry(geom);
+        part.setMaterial(new ModelMaterial());
+        return part;
+    }
+    
+    // the geometry cut in two parts by the x coordinate of the triangles
+    static Model split(String name, Geometry geom) {
+        Model mdl = new Model();
+        mdl.setName(name);
+        Vector3f[] v = new Vector3f[3];
+        IndexBuffer ib = geom.getIndexBuffer();
+        for(int side=0; side<2; side++) {
+            int[] indices = new int[geom.getNumIndex()];
+            int n = 0;
+            for(int t=0; t<geom.getTriangleCount(); t++) {
+                geom.getTriangle(t, v);
+                if((v[0].x + v[1].x + v[2].x < 0) != (side == 0))
+                    continue;
+                for(int k=0; k<3; k++)
+                    indices[n++] = ib.get(geom.getStartIndex() + t*3 + k);
+            }
+            int[] used = new int[n];
+            System.arraycopy(indices, 0, used, 0, n);
+            Geometry half = new Geometry();
+            half.setMode(Geometry.TRIANGLES);
+            FastList<VertexBuffer> buffers = geom.getBuffers();
+            for(int i=0; i<buffers.size(); i++) {
+                VertexBuffer vb = new VertexBuffer();
+                vb.setFormat(buffers.get(i).getFormat());
+                vb.setVertexCount(geom.getNumVertex());
+                vb.createDataBuffer();
+                FloatBuffer src = buffers.get(i).getDataBuffer().duplicate();
+                src.rewind();
+                vb.getDataBuffer().put(src);
+                vb.getDataBuffer().rewind();
+                half.addAttribBuffer(vb, 0);
+            }
+            half.setNumVertex(geom.getNumVertex());
+            half.setIndexBuffer(IndexBuffer.createBuffer(used, geom.getNumVertex(), null));
+            half.setNumIndex(n);
+            mdl.addPart(0, part(half));
+        }
+        return mdl;
+    }
+    
+    // the triangles of the parts, 9 floats per triangle
+    static float[] triangles(FastList<ModelPart> parts) {
+        int n = 0;
+        for(int p=0; p<parts.size(); p++)
+            n += parts.get(p).getGeometry().getTriangleCount();
+        float[] tri = new float[n*9];
+        Vector3f[] v = new Vector3f[3];
+        int o = 0;
+        for(int p=0; p<parts.size(); p++) {
+            Geometry g = parts.get(p).getGeometry();
+            for(int t=0; t<g.getTriangleCount(); t++) {
+                g.getTriangle(t, v);
+                for(int k=0; k<3; k++) {
+                    tri[o++] = v[k].x; tri[o++] = v[k].y; tri[o++] = v[k].z;
+                }
+            }
+        }
+        return tri;
+    }
+    
+    // the largest distance of points sampled on the first surface from
+    // the second, sampled at the corners, edge midpoints and centers
+    static float deviation(float[] from, float[] to) {
+        // bounding spheres of the target triangles
+        int nt = to.length / 9;
+        float[] sphere = new float[nt*4];
+        for(int t=0; t<nt; t++) {
+            float cx = 0, cy = 0, cz = 0;
+            for(int k=0; k<3; k++) {
+                cx += to[t*9+k*3]; cy += to[t*9+k*3+1]; cz += to[t*9+k*3+2];
+            }
+            cx /= 3; cy /= 3; cz /= 3;
+            float r = 0;
+            for(int k=0; k<3; k++) {
+                float dx = to[t*9+k*3]-cx, dy = to[t*9+k*3+1]-cy, dz = to[t*9+k*3+2]-cz;
+                r = Math.max(r, (float) Math.sqrt(dx*dx + dy*dy + dz*dz));
+            }
+            sphere[t*4] = cx; sphere[t*4+1] = cy; sphere[t*4+2] = cz; sphere[t*4+3] = r;
+        }
+        // barycentric weights of the samples
+        float[][] w = {{1,0,0}, {0,1,0}, {0,0,1}, {0.5f,0.5f,0}, {0,0.5f,0.5f}, {0.5f,0,0.5f}, {1f/3,1f/3,1f/3}};
+        float max = 0;
+        float[] p = new float[3];
+        int near = 0;
+        for(int t=0; t<from.length/9; t++) {
+            for(int s=0; s<w.length; s++) {
+                for(int c=0; c<3; c++)
+                    p[c] = w[s][0]*from[t*9+c] + w[s][1]*from[t*9+3+c] + w[s][2]*from[t*9+6+c];
+                // start from the nearest triangle of the previous sample
+                float best = distance(p, to, near*9);
+                for(int u=0; u<nt; u++) {
+                    float dx = p[0]-sphere[u*4], dy = p[1]-sphere[u*4+1], dz = p[2]-sphere[u*4+2];
+                    float lower = (float) Math.sqrt(dx*dx + dy*dy + dz*dz) - sphere[u*4+3];
+                    if(lower >= best)
+                        continue;
+                    float d = distance(p, to, u*9);
+                    if(d < best) {
+                        best = d;
+                        near = u;
+                    }
+                }
+                max = Math.max(max, best);
+            }
+        }
+        return max;
+    }
+    
+    // the distance of the point from the triangle
+    static float distance(float[] p, float[] v, int a) {
+        int b = a + 3, c = a + 6;
+        float abx = v[b]-v[a], aby = v[b+1]-v[a+1], abz = v[b+2]-v[a+2];
+        float acx = v[c]-v[a], acy = v[c+1]-v[a+1], acz = v[c+2]-v[a+2];
+        float apx = p[0]-v[a], apy = p[1]-v[a+1], apz = p[2]-v[a+2];
+        float d1 = abx*apx + aby*apy + abz*apz;
+        float d2 = acx*apx + acy*apy + acz*apz;
+        if(d1 <= 0 && d2 <= 0)
+            return length(apx, apy, apz);
+        float bpx = p[0]-v[b], bpy = p[1]-v[b+1], bpz = p[2]-v[b+2];
+        float d3 = abx*bpx + aby*bpy + abz*bpz;
+        float d4 = acx*bpx + acy*bpy + acz*bpz;
+        if(d3 >= 0 && d4 <= d3)
+            return length(bpx, bpy, bpz);
+        float vc = d1*d4 - d3*d2;
+        if(vc <= 0 && d1 >= 0 && d3 <= 0) {
+            float t = d1 / (d1 - d3);
+            return length(apx - t*abx, apy - t*aby, apz - t*abz);
+        }
+        float cpx = p[0]-v[c], cpy = p[1]-v[c+1], cpz = p[2]-v[c+2];
+        float d5 = abx*cpx + aby*cpy + abz*cpz;
+        float d6 = acx*cpx + acy*cpy + acz*cpz;
+        if(d6 >= 0 && d5 <= d6)
+            return length(cpx, cpy, cpz);
+        float vb = d5*d2 - d1*d6;
+        if(vb <= 0 && d2 >= 0 && d6 <= 0) {
+            float t = d2 / (d2 - d6);
+            return length(apx - t*acx, apy - t*acy, apz - t*acz);
+        }
+        float va = d3*d6 - d5*d4;
+        if(va <= 0 && (d4 - d3) >= 0 && (d5 - d6) >= 0) {
+            float t = (d4 - d3) / ((d4 - d3) + (d5 - d6));
+            return length(bpx - t*(v[c]-v[b]), bpy - t*(v[c+1]-v[b+1]), bpz - t*(v[c+2]-v[b+2]));
+        }
+        float denom = 1f / (va + vb + vc);
+        float s = vb * denom, t = vc * denom;
+        return length(apx - s*abx - t*acx, apy - s*aby - t*acy, apz - s*abz - t*acz);
+    }
+    
+    static float length(float x, float y, float z) {
+        return (float) Math.sqrt(x*x + y*y + z*z);
+    }
+    
+    // the edges used by only one triangle, not on the rim of the dome
+    static int openEdges(FastList<ModelPart> parts) {
+        float[] tri = triangles(parts);
+        float rim = Float.MAX_VALUE;
+        for(int i=1; i<tri.length; i+=3)
+            rim = Math.min(rim, tri[i]);
+        HashMap<Vector3f,Integer> ids = new HashMap<Vector3f,Integer>();
+        HashMap<Long,Integer> edges = new HashMap<Long,Integer>();
+        int[] id = new int[3];
+        for(int t=0; t<tri.length/9; t++) {
+            for(int k=0; k<3; k++) {
+                Vector3f v = new Vector3f(tri[t*9+k*3], tri[t*9+k*3+1], tri[t*9+k*3+2]);
+                Integer i = ids.get(v);
+                if(i == null) {
+                    i = ids.size();
+                    ids.put(v, i);
+                }
+                id[k] = i;
+            }
+            for(int k=0; k<3; k++) {
+                int a = Math.min(id[k], id[(k+1)%3]), b = Math.max(id[k], id[(k+1)%3]);
+                // the edges on the rim are open
+                if(tri[t*9+k*3+1] <= rim && tri[t*9+((k+1)%3)*3+1] <= rim)
+                    continue;
+                Long key = ((long) a << 32) | b;
+                Integer c = edges.get(key);
+                edges.put(key, c == null ? 1 : c + 1);
+            }
+        }
+        int open = 0;
+        for(Integer c : edges.values()) {
+            if(c.intValue() == 1)
+                open++;
+        }
+        return open;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.app.Config;
+import com.vlengine.app.frame.Frame;
+import com.vlengine.bounding.BoundingBox;
+import com.vlengine.math.FastMath;
+import com.vlengine.math.Transform;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.Box;
+import com.vlengine.renderer.CullContext;
+import com.vlengine.renderer.RenderContext;
+import com.vlengine.renderer.RenderQueue;
+import com.vlengine.renderer.Renderer;
+import com.vlengine.renderer.ViewCamera;
+import com.vlengine.renderer.pass.RenderPass;
+import com.vlengine.scene.InstancedMesh;
+import com.vlengine.scene.LodMesh;
+import com.vlengine.scene.Renderable;
+import com.vlengine.scene.SetNode;
+import com.vlengine.scene.batch.InstancedBatch;
+import com.vlengine.scene.batch.TriBatch;
+import com.vlengine.scene.control.UpdateContext;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.FastList;
+import java.util.Random;
+
+/**
+ * Headless benchmark comparing a forest of 5000 trees placed as separate
+ * meshes to the same forest placed as instances of one InstancedMesh.
+ * Reports the culling time, the number of queued renderables and the
+ * number of drawn meshes with the headless renderer, and checks that 
+ * the instances are drawn with their own transforms.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test072InstancedBatch {
+
+    static final int TREES = 5000;
+    static final int ROUNDS = 200;
+    
+    public static void main(String[] args) {
+        AppContext app = new AppContext();
+        app.conf = new Config();
+        LocalContext.getContext().app = app;
+        
+        Box box = new Box(new Vector3f(0,2,0), 0.5f,2,0.5f);
+        box.setModelBound(new BoundingBox());
+        box.updateModelBound();
+        
+        // the same placements for both scenes
+        Random rnd = new Random(1);
+        Transform[] place = new Transform[TREES];
+        for(int i=0; i<TREES; i++) {
+            Transform t = new Transform();
+            t.getTranslation().set(rnd.nextFloat()*1000-500, 0, rnd.nextFloat()*1000-500);
+            t.getRotation().fromAngleAxis(rnd.nextFloat()*FastMath.TWO_PI, Vector3f.UNIT_Y);
+            float s = 0.5f + rnd.nextFloat();
+            t.getScale().set(s, s, s);
+            place[i] = t;
+        }
+        
+        // every tree a separate mesh
+        SetNode separate = new SetNode("separate");
+        for(int i=0; i<TREES; i++) {
+            TriBatch t = new TriBatch();
+            t.setModel(box);
+            t.setRenderQueueMode(RenderQueue.FILTER_OPAQUE);
+            LodMesh m = new LodMesh("tree");
+            m.addBatch(0, t);
+            m.getLocalTranslation().set(place[i].getTranslation());
+            m.getLocalRotation().set(place[i].getRotation());
+            m.getLocalScale().set(place[i].getScale());
+            separate.attachChild(m);
+        }
+        
+        // all trees in one instanced mesh
+        SetNode instanced = new SetNode("instanced");
+        InstancedMesh forest = new InstancedMesh("forest");
+        InstancedBatch ib = new InstancedBatch(box);
+        ib.setRenderQueueMode(RenderQueue.FILTER_OPAQUE);
+        forest.addBatch(ib);
+        for(int i=0; i<TREES; i++) {
+            forest.addInstance(place[i]);
+        }
+        instanced.attachChild(forest);
+        
+        ViewCamera cam = new ViewCamera(640, 480);
+        cam.setFrustumPerspective(60, 4f/3f, 1, 400);
+        cam.setFrame(new Vector3f(0, 20, 300), new Vector3f(-1,0,0), 
+                new Vector3f(0,1,0), new Vector3f(0,0,-1));
+        cam.lookAt(new Vector3f(0,0,0), Vector3f.UNIT_Y);
+        cam.update();
+        app.setCamera(cam);
+        
+        Frame f = new Frame(0, app);
+        UpdateContext uctx = f.getUpdateContext();
+        uctx.frame = f;
+        separate.updateGeometricState(uctx, true);
+        instanced.updateGeometricState(uctx, true);
+        
+        RenderPass p = new RenderPass("view");
+        p.setId(0);
+        p.setQueueNo(0);
+        p.setQueueFilter(RenderQueue.QueueFilter.Opaque.value);
+        p.setCamera(cam);
+        p.setEnabled(true);
+        f.getPasses().addPass(p);
+        f.getQueueManager().createQueue(0, RenderQueue.SortType.DistanceSquaredFromCamera);
+        
+        CullContext ctx = new CullContext();
+        ctx.setState(f, separate, cam);
+        ctx.setThreadContext();
+        
+        Renderer r = new Renderer();
+        r.setHeadless(true);
+        r.enableStatistics(true);
+        RenderContext rctx = new RenderContext();
+        rctx.setRenderer(r);
+        rctx.frameId = f.getFrameId();
+        r.lockRenderer(rctx);
+        
+        run("separate meshes", separate, f, ctx, r, rctx, cam);
+        run("instanced mesh", instanced, f, ctx, r, rctx, cam);
+        
+        // check the drawn transforms
+        int frameId = f.getFrameId();
+        int wrong = 0;
+        for(int i=0; i<ib.getVisibleCount(frameId); i++) {
+            ib.setDrawInstance(frameId, i);
+            Transform exp = place[ib.getVisibleInstance(frameId, i)];
+            Transform drawn = ib.getWorldTransForm(frameId);
+            if(!drawn.getTranslation().equals(exp.getTranslation())
+                    || !drawn.getScale().equals(exp.getScale())
+                    || drawn.getRotation().dot(exp.getRotation()) < 0.9999f)
+                wrong++;
+        }
+        System.out.println("Instances drawn with a wrong transform: "+wrong);
+    }
+    
+    static void run(String name, SetNode root, Frame f, CullContext ctx, 
+            Renderer r, RenderContext rctx, ViewCamera cam) {
+        long cull = 0, draw = 0;
+        int queued = 0;
+        for(int i=0; i<ROUNDS; i++) {
+            f.getQueueManager().clear();
+            long st = System.nanoTime();
+            ctx.setState(f, root, cam);
+            if(root.docull(ctx))
+                root.queue(ctx);
+            f.merge(ctx);
+            cull += System.nanoTime() - st;
+            
+            FastList<Renderable> q = f.getQueueManager().getQueue(0);
+            queued = q.size();
+            r.clearStatistics();
+            st = System.nanoTime();
+            for(int j=0; j<q.size(); j++) {
+                q.get(j).draw(rctx);
+            }
+            draw += System.nanoTime() - st;
+        }
+        System.out.println(name+": cull "+(cull/ROUNDS/1000)+" us/frame, draw "
+                +(draw/ROUNDS/1000)+" us/frame, queued "+queued+", "+r.getStatistics());
+    }
+}
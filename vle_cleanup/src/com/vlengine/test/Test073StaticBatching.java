@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.app.Config;
+import com.vlengine.app.frame.Frame;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.BaseGeometry;
+import com.vlengine.renderer.CullContext;
+import com.vlengine.renderer.RenderContext;
+import com.vlengine.renderer.RenderQueue;
+import com.vlengine.renderer.Renderer;
+import com.vlengine.renderer.ViewCamera;
+import com.vlengine.renderer.material.Material;
+import com.vlengine.renderer.pass.RenderPass;
+import com.vlengine.resource.model.Model;
+import com.vlengine.resource.model.ModelMaterial;
+import com.vlengine.resource.model.ModelPack;
+import com.vlengine.resource.model.ModelPart;
+import com.vlengine.scene.LodMesh;
+import com.vlengine.scene.Renderable;
+import com.vlengine.scene.SceneElement;
+import com.vlengine.scene.SetNode;
+import com.vlengine.scene.Spatial;
+import com.vlengine.scene.StaticBatcher;
+import com.vlengine.scene.batch.StaticBatch;
+import com.vlengine.scene.batch.TriBatch;
+import com.vlengine.scene.control.UpdateContext;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.FastList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Headless benchmark of static batching on an airfield of parked
+ * f5etiger planes. Every plane is built from the parts of the model
+ * pack with one mesh per part. Reports the number of queued batches,
+ * the culling and drawing time with and without static batching, and
+ * the time of the incremental rebuild when one plane is unlocked.
+ * The rebuilt chunks must get new static batches, and the old ones must
+ * stay unchanged until the frames in flight are rendered.
+ * 
+ * Needs the f5etiger model pack in the cache directory.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test073StaticBatching {
+
+    static final int ROWS = 10;
+    static final float SPACING = 40;
+    // the model is about 600 units long
+    static final float SCALE = 0.05f;
+    static final int ROUNDS = 200;
+    
+    // frame with the frame count set by the test
+    static class CountedFrame extends Frame {
+        long count;
+        
+        CountedFrame(AppContext app) {
+            super(0, app);
+        }
+        
+        @Override
+        public long getFrameCount() {
+            return count;
+        }
+    }
+    
+    public static void main(String[] args) {
+        AppContext app = new AppContext();
+        app.conf = new Config();
+        // about 3x3 planes in a static batch
+        app.conf.staticBatchChunkSize = 128;
+        LocalContext.getContext().app = app;
+        
+        ModelPack mp = new ModelPack();
+        mp.setName("f-5etigerii(05).obj");
+        mp.load(app.conf.cache_path+"/f5etiger");
+        if(mp.getModels().size() == 0) {
+            System.out.println("The f5etiger model pack is missing from "+app.conf.cache_path);
+            return;
+        }
+        Model mdl = mp.getModels().get(0);
+        FastList<ModelPart> parts = mdl.getLods().get(0);
+        
+        // one material for every model material, so the planes share them
+        // (texture loading needs a display)
+        HashMap<ModelMaterial, Material> materials = new HashMap<ModelMaterial, Material>();
+        for(int i=0; i<parts.size(); i++) {
+            ModelMaterial mm = parts.get(i).getMaterial();
+            if(!materials.containsKey(mm))
+                materials.put(mm, new Material());
+        }
+        
+        SetNode airfield = new SetNode("airfield");
+        for(int x=0; x<ROWS; x++) {
+            for(int z=0; z<ROWS; z++) {
+                SetNode plane = new SetNode("plane");
+                for(int i=0; i<parts.size(); i++) {
+                    ModelPart part = parts.get(i);
+                    TriBatch tb = new TriBatch();
+                    tb.setModel(part.getGeometry());
+                    tb.setMaterial(materials.get(part.getMaterial()));
+                    tb.setRenderQueueMode(RenderQueue.FILTER_OPAQUE);
+                    LodMesh m = new LodMesh(part.getName());
+                    m.addBatch(0, tb);
+                    plane.attachChild(m);
+                }
+                plane.getLocalTranslation().set((x - ROWS/2) * SPACING, 0, (z - ROWS/2) * SPACING);
+                plane.getLocalRotation().fromAngleAxis(x * 0.3f + z * 0.7f, Vector3f.UNIT_Y);
+                plane.getLocalScale().set(SCALE, SCALE, SCALE);
+                airfield.attachChild(plane);
+            }
+        }
+        
+        ViewCamera cam = new ViewCamera(640, 480);
+        cam.setFrustumPerspective(60, 4f/3f, 1, 1000);
+        cam.setFrame(new Vector3f(0, 80, 300), new Vector3f(-1,0,0), 
+                new Vector3f(0,1,0), new Vector3f(0,0,-1));
+        cam.lookAt(new Vector3f(0,0,0), Vector3f.UNIT_Y);
+        cam.update();
+        app.setCamera(cam);
+        
+        CountedFrame f = new CountedFrame(app);
+        UpdateContext uctx = f.getUpdateContext();
+        uctx.frame = f;
+        airfield.lock();
+        airfield.updateGeometricState(uctx, true);
+        
+        RenderPass p = new RenderPass("view");
+        p.setId(0);
+        p.setQueueNo(0);
+        p.setQueueFilter(RenderQueue.QueueFilter.Opaque.value);
+        p.setCamera(cam);
+        p.setEnabled(true);
+        f.getPasses().addPass(p);
+        f.getQueueManager().createQueue(0, RenderQueue.SortType.DistanceSquaredFromCamera);
+        
+        CullContext ctx = new CullContext();
+        ctx.setState(f, airfield, cam);
+        ctx.setThreadContext();
+        
+        Renderer r = new Renderer();
+        r.setHeadless(true);
+        r.enableStatistics(true);
+        RenderContext rctx = new RenderContext();
+        rctx.setRenderer(r);
+        rctx.frameId = f.getFrameId();
+        rctx.frame = f;
+        r.lockRenderer(rctx);
+        
+        System.out.println(ROWS*ROWS+" planes, "+parts.size()+" parts, "
+                +materials.size()+" materials");
+        run("separate batches", airfield, f, ctx, r, rctx, cam);
+        
+        long st = System.nanoTime();
+        airfield.setStaticBatching(true);
+        airfield.updateGeometricState(uctx, true);
+        StaticBatcher sb = airfield.getStaticBatcher();
+        System.out.println("merged "+sb.getSourceCount()+" batches into "+sb.getBatchCount()
+                +" static batches in "+(System.nanoTime()-st)/1000000+" ms");
+        run("static batches", airfield, f, ctx, r, rctx, cam);
+        
+        // unlock one plane, only its chunks are rebuilt
+        IdentityHashMap<StaticBatch,BaseGeometry> before = staticBatches(sb);
+        Spatial moved = airfield.getChild(ROWS*ROWS/2);
+        moved.unlock();
+        f.count++;
+        st = System.nanoTime();
+        airfield.updateGeometricState(uctx, true);
+        System.out.println("unlocked one plane: rebuilt in "+(System.nanoTime()-st)/1000000
+                +" ms, "+sb.getSourceCount()+" batches in "+sb.getBatchCount()+" static batches");
+        IdentityHashMap<StaticBatch,BaseGeometry> after = staticBatches(sb);
+        int kept = 0, unchanged = 0;
+        for(StaticBatch b : before.keySet()) {
+            if(after.containsKey(b))
+                kept++;
+            if(b.getModel() == before.get(b))
+                unchanged++;
+        }
+        int rebuilt = after.size() - kept;
+        Checks.check(rebuilt > 0 && sb.getRetiredCount() == before.size() - kept, 
+                rebuilt+" chunks rebuilt into new batches, "+sb.getRetiredCount()+" replaced");
+        Checks.check(unchanged == before.size(), "replaced batches keep their geometry");
+        // the previous frame can still draw the replaced batches
+        sb.releaseRetired(rctx);
+        Checks.check(sb.getRetiredCount() == before.size() - kept, "not released in the replacing frame");
+        f.count++;
+        sb.releaseRetired(rctx);
+        Checks.check(sb.getRetiredCount() == 0, "released in the next frame");
+        run("static batches, one unlocked", airfield, f, ctx, r, rctx, cam);
+        
+        moved.getLocalTranslation().y += 10;
+        moved.lock();
+        f.count++;
+        st = System.nanoTime();
+        airfield.updateGeometricState(uctx, true);
+        System.out.println("locked again: rebuilt in "+(System.nanoTime()-st)/1000000
+                +" ms, "+sb.getSourceCount()+" batches in "+sb.getBatchCount()+" static batches");
+        run("static batches, relocked", airfield, f, ctx, r, rctx, cam);
+        
+        Checks.finish();
+    }
+    
+    // the static batches in the cull list, with their geometry
+    static IdentityHashMap<StaticBatch,BaseGeometry> staticBatches(StaticBatcher sb) {
+        IdentityHashMap<StaticBatch,BaseGeometry> res = new IdentityHashMap<StaticBatch,BaseGeometry>();
+        FastList<SceneElement> list = sb.getCullList();
+        for(int i=0; i<list.size(); i++) {
+            if(list.get(i) instanceof StaticBatch) {
+                StaticBatch b = (StaticBatch) list.get(i);
+                res.put(b, b.getModel());
+            }
+        }
+        return res;
+    }
+    
+    static void run(String name, SetNode root, Frame f, CullContext ctx, 
+            Renderer r, RenderContext rctx, ViewCamera cam) {
+        long cull = 0, draw = 0;
+        int queued = 0;
+        for(int i=0; i<ROUNDS; i++) {
+            f.getQueueManager().clear();
+            long st = System.nanoTime();
+            ctx.setState(f, root, cam);
+            if(root.docull(ctx))
+                root.queue(ctx);
+            f.merge(ctx);
+            cull += System.nanoTime() - st;
+            
+            FastList<Renderable> q = f.getQueueManager().getQueue(0);
+            queued = q.size();
+            r.clearStatistics();
+            st = System.nanoTime();
+            for(int j=0; j<q.size(); j++) {
+                q.get(j).draw(rctx);
+            }
+            draw += System.nanoTime() - st;
+        }
+        System.out.println(name+": cull "+(cull/ROUNDS/1000)+" us/frame, draw "
+                +(draw/ROUNDS/1000)+" us/frame, queued "+queued+", "+r.getStatistics());
+    }
+}
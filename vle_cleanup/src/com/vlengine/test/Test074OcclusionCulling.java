@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.app.Config;
+import com.vlengine.app.frame.Frame;
+import com.vlengine.bounding.BoundingBox;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.Box;
+import com.vlengine.renderer.CullContext;
+import com.vlengine.renderer.RenderContext;
+import com.vlengine.renderer.RenderQueue;
+import com.vlengine.renderer.Renderer;
+import com.vlengine.renderer.ViewCamera;
+import com.vlengine.renderer.pass.OcclusionCheckPass;
+import com.vlengine.renderer.pass.RenderPass;
+import com.vlengine.scene.LodMesh;
+import com.vlengine.scene.Renderable;
+import com.vlengine.scene.SetNode;
+import com.vlengine.scene.batch.TriBatch;
+import com.vlengine.scene.control.UpdateContext;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.FastList;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Headless benchmark of the software occlusion culling on a city of
+ * box buildings, with small props scattered in the streets. The camera
+ * is at street level, the buildings are the occluders. Reports the
+ * number of queued renderables, the time to rasterize the occluders with
+ * one and more threads, the culling time and the drawing time with the
+ * headless renderer. Every occluded prop is
+ * checked with rays from the camera to points of its bound, to find
+ * props wrongly reported hidden.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test074OcclusionCulling {
+
+    static final int BLOCKS = 12;
+    static final float SPACING = 40;
+    static final float BUILDING = 14;
+    static final int PROPS = 20000;
+    static final int ROUNDS = 100;
+    
+    public static void main(String[] args) {
+        AppContext app = new AppContext();
+        app.conf = new Config();
+        LocalContext.getContext().app = app;
+        
+        Random rnd = new Random(1);
+        SetNode city = new SetNode("city");
+        SetNode buildings = new SetNode("buildings");
+        FastList<BoundingBox> boxes = new FastList<BoundingBox>();
+        for(int x=0; x<BLOCKS; x++) {
+            for(int z=0; z<BLOCKS; z++) {
+                float h = 20 + rnd.nextFloat() * 40;
+                Vector3f c = new Vector3f((x - BLOCKS/2) * SPACING, h, (z - BLOCKS/2) * SPACING);
+                Box box = new Box(new Vector3f(0,0,0), BUILDING, h, BUILDING);
+                box.setModelBound(new BoundingBox());
+                box.updateModelBound();
+                buildings.attachChild(createMesh("building", box, c));
+                boxes.add(new BoundingBox(c, BUILDING, h, BUILDING));
+            }
+        }
+        city.attachChild(buildings);
+        
+        Box prop = new Box(new Vector3f(0,0,0), 0.5f, 1f, 0.5f);
+        prop.setModelBound(new BoundingBox());
+        prop.updateModelBound();
+        SetNode props = new SetNode("props");
+        float range = BLOCKS * SPACING / 2;
+        for(int i=0; i<PROPS; i++) {
+            Vector3f c;
+            do {
+                c = new Vector3f(rnd.nextFloat() * 2 * range - range, 1, 
+                        rnd.nextFloat() * 2 * range - range);
+            } while(inside(boxes, c, 1));
+            props.attachChild(createMesh("prop", prop, c));
+        }
+        city.attachChild(props);
+        
+        // at street level, looking along a street
+        ViewCamera cam = new ViewCamera(640, 480);
+        cam.setFrustumPerspective(60, 4f/3f, 0.5f, 1000);
+        cam.setFrame(new Vector3f(SPACING/2, 1.7f, range), new Vector3f(-1,0,0), 
+                new Vector3f(0,1,0), new Vector3f(0,0,-1));
+        cam.lookAt(new Vector3f(SPACING/2 - 60, 1.7f, 0), Vector3f.UNIT_Y);
+        cam.update();
+        app.setCamera(cam);
+        
+        Frame f = new Frame(0, app);
+        UpdateContext uctx = f.getUpdateContext();
+        uctx.frame = f;
+        city.updateGeometricState(uctx, true);
+        
+        RenderPass p = new RenderPass("view");
+        p.setId(0);
+        p.setQueueNo(0);
+        p.setQueueFilter(RenderQueue.QueueFilter.Opaque.value);
+        p.setCamera(cam);
+        p.setEnabled(true);
+        f.getPasses().addPass(p);
+        f.getQueueManager().createQueue(0, RenderQueue.SortType.DistanceSquaredFromCamera);
+        
+        CullContext ctx = new CullContext();
+        ctx.setThreadContext();
+        
+        Renderer r = new Renderer();
+        r.setHeadless(true);
+        r.enableStatistics(true);
+        RenderContext rctx = new RenderContext();
+        rctx.setRenderer(r);
+        rctx.frameId = f.getFrameId();
+        r.lockRenderer(rctx);
+        
+        System.out.println(BLOCKS*BLOCKS+" buildings, "+PROPS+" props");
+        run("no occlusion", city, f, ctx, null, cam, rctx);
+        
+        FastList<Renderable> queued = null;
+        int[] threads = {1, 2, 4};
+        for(int t=0; t<threads.length; t++) {
+            OcclusionCheckPass occ = new OcclusionCheckPass("occlusion", 256, 128, threads[t]);
+            occ.setId(1);
+            occ.setCamera(cam);
+            occ.setEnabled(true);
+            occ.addOccluder(buildings);
+            f.getPasses().addPass(occ);
+            queued = run("occlusion, "+threads[t]+" threads", city, f, ctx, occ, cam, rctx);
+            f.getPasses().remove(occ);
+            occ.cleanup();
+        }
+        
+        // check every prop not queued, if it is really hidden
+        HashSet<Renderable> visible = new HashSet<Renderable>();
+        for(int i=0; i<queued.size(); i++)
+            visible.add(queued.get(i));
+        // the props passing the frustum test
+        ctx.setState(f, city, cam);
+        int wrong = 0, hidden = 0;
+        for(int i=0; i<props.getQuantity(); i++) {
+            LodMesh m = (LodMesh) props.getChild(i);
+            TriBatch tb = m.getBatch(0, 0);
+            ctx.getCullCamera().setPlaneState(0);
+            if(ctx.getCullCamera().contains(tb.getWorldBound(f.getFrameId())) == 0
+                    || visible.contains(tb))
+                continue;
+            hidden++;
+            if(!hidden(boxes, cam.getLocation(), (BoundingBox) tb.getWorldBound(f.getFrameId())))
+                wrong++;
+        }
+        System.out.println("occluded props: "+hidden+", with a visible point: "+wrong);
+        if(wrong > 0)
+            System.exit(1);
+    }
+    
+    static LodMesh createMesh(String name, Box geom, Vector3f pos) {
+        TriBatch tb = new TriBatch();
+        tb.setModel(geom);
+        tb.setRenderQueueMode(RenderQueue.FILTER_OPAQUE);
+        LodMesh m = new LodMesh(name);
+        m.addBatch(0, tb);
+        m.getLocalTranslation().set(pos);
+        return m;
+    }
+    
+    static boolean inside(FastList<BoundingBox> boxes, Vector3f p, float margin) {
+        for(int i=0; i<boxes.size(); i++) {
+            BoundingBox b = boxes.get(i);
+            Vector3f c = b.getCenter();
+            if(Math.abs(p.x - c.x) < b.xExtent + margin
+                    && Math.abs(p.z - c.z) < b.zExtent + margin)
+                return true;
+        }
+        return false;
+    }
+    
+    // checks that the corners and the center of the bound are hidden
+    // behind the buildings from the given point
+    static boolean hidden(FastList<BoundingBox> boxes, Vector3f from, BoundingBox bb) {
+        Vector3f c = bb.getCenter();
+        for(int i=0; i<9; i++) {
+            float x = c.x, y = c.y, z = c.z;
+            if(i < 8) {
+                x += (i & 1) == 0 ? -bb.xExtent : bb.xExtent;
+                y += (i & 2) == 0 ? -bb.yExtent : bb.yExtent;
+                z += (i & 4) == 0 ? -bb.zExtent : bb.zExtent;
+            }
+            boolean blocked = false;
+            for(int j=0; j<boxes.size() && !blocked; j++) {
+                blocked = segmentHits(boxes.get(j), from, x, y, z);
+            }
+            if(!blocked)
+                return false;
+        }
+        return true;
+    }
+    
+    // slab test of the segment from a point to x,y,z against a box
+    static boolean segmentHits(BoundingBox b, Vector3f from, float x, float y, float z) {
+        float[] o = {from.x, from.y, from.z};
+        float[] d = {x - from.x, y - from.y, z - from.z};
+        Vector3f c = b.getCenter();
+        float[] min = {c.x - b.xExtent, c.y - b.yExtent, c.z - b.zExtent};
+        float[] max = {c.x + b.xExtent, c.y + b.yExtent, c.z + b.zExtent};
+        float t0 = 0, t1 = 1;
+        for(int a=0; a<3; a++) {
+            if(Math.abs(d[a]) < 1e-9f) {
+                if(o[a] < min[a] || o[a] > max[a])
+                    return false;
+                continue;
+            }
+            float ta = (min[a] - o[a]) / d[a];
+            float tb = (max[a] - o[a]) / d[a];
+            if(ta > tb) { float t = ta; ta = tb; tb = t; }
+            t0 = Math.max(t0, ta);
+            t1 = Math.min(t1, tb);
+            if(t0 > t1)
+                return false;
+        }
+        return true;
+    }
+    
+    static FastList<Renderable> run(String name, SetNode root, Frame f, CullContext ctx, 
+            OcclusionCheckPass occ, ViewCamera cam, RenderContext rctx) {
+        long prep = 0, cull = 0, draw = 0;
+        FastList<Renderable> q = null;
+        // the first half is warmup
+        for(int i=-ROUNDS; i<ROUNDS; i++) {
+            if(i == 0) {
+                prep = cull = draw = 0;
+                if(occ != null)
+                    occ.report(f.getFrameId(), null);
+            }
+            f.getQueueManager().clear();
+            long st = System.nanoTime();
+            ctx.setState(f, root, cam);
+            if(ctx.getOcclusion() != null)
+                ctx.getOcclusion().prepare(ctx);
+            prep += System.nanoTime() - st;
+            st = System.nanoTime();
+            if(root.docull(ctx))
+                root.queue(ctx);
+            f.merge(ctx);
+            cull += System.nanoTime() - st;
+            q = f.getQueueManager().getQueue(0);
+            
+            rctx.getRenderer().clearStatistics();
+            st = System.nanoTime();
+            for(int j=0; j<q.size(); j++) {
+                q.get(j).draw(rctx);
+            }
+            draw += System.nanoTime() - st;
+        }
+        String res = name+": queued "+q.size()+", cull "+(cull/ROUNDS/1000)+" us/frame, draw "
+                +(draw/ROUNDS/1000)+" us/frame";
+        if(occ != null) {
+            int fid = f.getFrameId();
+            res += ", rasterize "+(prep/ROUNDS/1000)+" us/frame ("
+                    +occ.getOccluderTriangles(fid)+" triangles), occluded "
+                    +occ.getOccludedCount(fid)/ROUNDS+" of "+occ.getTestedCount(fid)/ROUNDS;
+            occ.report(fid, null);
+        }
+        System.out.println(res);
+        return q;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.app.Config;
+import com.vlengine.app.frame.Frame;
+import com.vlengine.bounding.BoundingBox;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.Box;
+import com.vlengine.renderer.ColorRGBA;
+import com.vlengine.renderer.CullContext;
+import com.vlengine.renderer.RenderCommandBuffer;
+import com.vlengine.renderer.RenderContext;
+import com.vlengine.renderer.RenderQueue;
+import com.vlengine.renderer.RenderStatistics;
+import com.vlengine.renderer.Renderer;
+import com.vlengine.renderer.ViewCamera;
+import com.vlengine.renderer.material.Material;
+import com.vlengine.renderer.pass.RenderPass;
+import com.vlengine.scene.LodMesh;
+import com.vlengine.scene.Renderable;
+import com.vlengine.scene.SetNode;
+import com.vlengine.scene.batch.TriBatch;
+import com.vlengine.scene.control.UpdateContext;
+import com.vlengine.scene.state.AlphaTestState;
+import com.vlengine.scene.state.CullState;
+import com.vlengine.scene.state.lwjgl.LWJGLAlphaTestState;
+import com.vlengine.scene.state.lwjgl.LWJGLCullState;
+import com.vlengine.scene.state.lwjgl.LWJGLMaterialState;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.FastList;
+import java.util.Random;
+
+/**
+ * Headless benchmark of the render command buffer. A grid of boxes
+ * using a few materials is culled, and the opaque queue is recorded
+ * into the command buffer and replayed on the headless renderer, first
+ * with the queue sorted by distance only, then sorted by the material
+ * keys. Reports the number of material binds and render state changes
+ * per frame, and the recording and replay times.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test075RenderCommandBuffer {
+
+    static final int GRID = 60;
+    static final float SPACING = 4;
+    static final int MATERIALS = 24;
+    static final int ROUNDS = 100;
+    
+    public static void main(String[] args) {
+        AppContext app = new AppContext();
+        app.conf = new Config();
+        LocalContext.getContext().app = app;
+        
+        // materials with their own material state, sharing
+        // the cull state, and half of them an alpha test
+        CullState cs = new LWJGLCullState();
+        cs.setCullMode(CullState.CS_BACK);
+        AlphaTestState as = new LWJGLAlphaTestState();
+        Material[] mats = new Material[MATERIALS];
+        Random rnd = new Random(1);
+        for(int i=0; i<MATERIALS; i++) {
+            Material m = new Material();
+            LWJGLMaterialState ms = new LWJGLMaterialState();
+            ms.setDiffuse(new ColorRGBA(rnd.nextFloat(), rnd.nextFloat(), rnd.nextFloat(), 1));
+            m.setRenderState(ms);
+            m.setRenderState(cs);
+            if((i & 1) == 0)
+                m.setRenderState(as);
+            mats[i] = m;
+        }
+        
+        Box box = new Box(new Vector3f(0,0,0), 1, 1, 1);
+        box.setModelBound(new BoundingBox());
+        box.updateModelBound();
+        SetNode root = new SetNode("grid");
+        for(int x=0; x<GRID; x++) {
+            for(int z=0; z<GRID; z++) {
+                TriBatch tb = new TriBatch();
+                tb.setModel(box);
+                tb.setRenderQueueMode(RenderQueue.FILTER_OPAQUE);
+                tb.setMaterial(mats[rnd.nextInt(MATERIALS)]);
+                LodMesh m = new LodMesh("box");
+                m.addBatch(0, tb);
+                m.getLocalTranslation().set((x - GRID/2) * SPACING, 0, (z - GRID/2) * SPACING);
+                root.attachChild(m);
+            }
+        }
+        
+        ViewCamera cam = new ViewCamera(640, 480);
+        cam.setFrustumPerspective(60, 4f/3f, 0.5f, 1000);
+        cam.setFrame(new Vector3f(0, 40, GRID*SPACING/2), new Vector3f(-1,0,0), 
+                new Vector3f(0,1,0), new Vector3f(0,0,-1));
+        cam.lookAt(new Vector3f(0, 0, 0), Vector3f.UNIT_Y);
+        cam.update();
+        app.setCamera(cam);
+        
+        Renderer r = new Renderer();
+        r.setHeadless(true);
+        r.enableStatistics(true);
+        
+        CullContext ctx = new CullContext();
+        ctx.setThreadContext();
+        
+        System.out.println(GRID*GRID+" boxes, "+MATERIALS+" materials");
+        run("distance sorted", false, app, root, cam, r, ctx);
+        run("material sorted", true, app, root, cam, r, ctx);
+    }
+    
+    static void run(String name, boolean sortKeys, AppContext app, SetNode root, 
+            ViewCamera cam, Renderer r, CullContext ctx) {
+        app.conf.sortKeyQueues = sortKeys;
+        Frame f = new Frame(0, app);
+        UpdateContext uctx = f.getUpdateContext();
+        uctx.frame = f;
+        root.updateGeometricState(uctx, true);
+        
+        RenderPass p = new RenderPass("opaque");
+        p.setId(0);
+        p.setQueueNo(0);
+        p.setQueueFilter(RenderQueue.QueueFilter.Opaque.value);
+        p.setUsedMaterialFlags(0);
+        p.setCamera(cam);
+        p.setEnabled(true);
+        f.getPasses().addPass(p);
+        f.getQueueManager().createQueue(0, RenderQueue.SortType.DistanceSquaredFromCamera);
+        
+        ctx.setState(f, root, cam);
+        if(root.docull(ctx))
+            root.queue(ctx);
+        f.merge(ctx);
+        f.getQueueManager().sortAll();
+        FastList<Renderable> q = f.getQueueManager().getQueue(0);
+        
+        RenderContext rctx = new RenderContext();
+        rctx.setRenderer(r);
+        rctx.setRenderQueue(f.getQueueManager());
+        rctx.frameId = f.getFrameId();
+        r.lockRenderer(rctx);
+        RenderCommandBuffer cmds = new RenderCommandBuffer();
+        rctx.commands = cmds;
+        
+        long record = 0, replay = 0;
+        RenderStatistics stats = r.getStatistics();
+        // the first half is warmup
+        for(int i=-ROUNDS; i<ROUNDS; i++) {
+            if(i == 0)
+                record = replay = 0;
+            long st = System.nanoTime();
+            cmds.clear(f.getFrameId());
+            p.record(rctx, cmds);
+            record += System.nanoTime() - st;
+            
+            // start from unknown state, as a new frame would
+            for(int j=0; j<rctx.currentStates.length; j++)
+                rctx.currentStates[j] = null;
+            rctx.currentMaterial = null;
+            r.clearStatistics();
+            st = System.nanoTime();
+            p.renderPass(rctx);
+            replay += System.nanoTime() - st;
+        }
+        System.out.println(name+": queued "+q.size()+", commands "+cmds.size()
+                +", material binds "+stats.numberOfMaterialBinds+" (skipped "+cmds.getSkippedBinds()
+                +"), state changes "+stats.numberOfStateChanges
+                +", drawn "+stats.numberOfMesh
+                +", record "+(record/ROUNDS/1000)+" us/frame, replay "+(replay/ROUNDS/1000)+" us/frame");
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.app.Config;
+import com.vlengine.app.frame.Frame;
+import com.vlengine.bounding.BoundingBox;
+import com.vlengine.bounding.CollisionBroadphase;
+import com.vlengine.bounding.CollisionTreeManager;
+import com.vlengine.intersection.CollisionData;
+import com.vlengine.intersection.CollisionResults;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.Box;
+import com.vlengine.renderer.RenderQueue;
+import com.vlengine.scene.LodMesh;
+import com.vlengine.scene.SetNode;
+import com.vlengine.scene.Spatial;
+import com.vlengine.scene.batch.TriBatch;
+import com.vlengine.scene.control.UpdateContext;
+import com.vlengine.thread.LocalContext;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Headless benchmark of the collision broadphase, with 1000 and 10000
+ * moving boxes among static ones. Compares the time of finding the
+ * collisions of every moving box against the scene hierarchy, with
+ * querying the broadphase for every box, and with enumerating all the
+ * pairs from the broadphase in one pass. Checks that all the methods
+ * find the same colliding pairs.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test076BroadphaseCollision {
+
+    static final int ROUNDS = 20;
+    
+    public static void main(String[] args) {
+        AppContext app = new AppContext();
+        app.conf = new Config();
+        LocalContext.getContext().app = app;
+        
+        run(app, 1000);
+        run(app, 10000);
+    }
+    
+    static void run(AppContext app, int count) {
+        Random rnd = new Random(1);
+        // keep the density the same
+        float range = (float) Math.cbrt(count) * 4;
+        
+        Box small = new Box(new Vector3f(0,0,0), 0.5f, 0.5f, 0.5f);
+        small.setModelBound(new BoundingBox());
+        small.updateModelBound();
+        Box big = new Box(new Vector3f(0,0,0), 3f, 1f, 3f);
+        big.setModelBound(new BoundingBox());
+        big.updateModelBound();
+        
+        SetNode root = new SetNode("root");
+        LodMesh[] movers = new LodMesh[count];
+        Vector3f[] vel = new Vector3f[count];
+        for(int i=0; i<count; i++) {
+            movers[i] = createMesh("mover", small, randomPos(rnd, range));
+            vel[i] = new Vector3f(rnd.nextFloat()-0.5f, rnd.nextFloat()-0.5f, rnd.nextFloat()-0.5f);
+            root.attachChild(movers[i]);
+        }
+        LodMesh[] statics = new LodMesh[count/10];
+        for(int i=0; i<statics.length; i++) {
+            statics[i] = createMesh("static", big, randomPos(rnd, range));
+            root.attachChild(statics[i]);
+        }
+        
+        Frame f = new Frame(0, app);
+        UpdateContext uctx = f.getUpdateContext();
+        uctx.frame = f;
+        root.updateGeometricState(uctx, true);
+        
+        long st = System.nanoTime();
+        CollisionBroadphase bp = new CollisionBroadphase();
+        for(int i=0; i<count; i++)
+            bp.add(movers[i], true);
+        for(int i=0; i<statics.length; i++)
+            bp.add(statics[i], false);
+        long build = System.nanoTime() - st;
+        System.out.println(count+" moving boxes, "+statics.length+" static: broadphase built in "
+                +(build/1000)+" us, height "+bp.getHeight());
+        
+        CollisionTreeManager ctm = CollisionTreeManager.getInstance();
+        CollisionResults res = new CollisionResults();
+        res.setCheckCollisionVolume(false);
+        res.setCheckCollisionTree(false);
+        
+        // the hierarchy is O(n^2) at the root, check it less
+        int sceneRounds = count > 1000 ? 2 : ROUNDS;
+        long update = 0, scene = 0, query = 0, pairs = 0;
+        int sceneCount = 0, queryCount = 0, pairCount = 0, mismatch = 0;
+        bp.resetStatistics();
+        for(int r=0; r<ROUNDS; r++) {
+            for(int i=0; i<count; i++) {
+                Vector3f t = movers[i].getLocalTranslation();
+                t.addLocal(vel[i]);
+                if(Math.abs(t.x) > range) vel[i].x = -vel[i].x;
+                if(Math.abs(t.y) > range) vel[i].y = -vel[i].y;
+                if(Math.abs(t.z) > range) vel[i].z = -vel[i].z;
+            }
+            st = System.nanoTime();
+            root.updateGeometricState(uctx, true);
+            update += System.nanoTime() - st;
+            
+            HashSet<Long> scenePairs = null;
+            if(r < sceneRounds) {
+                res.clear();
+                st = System.nanoTime();
+                for(int i=0; i<count; i++)
+                    ctm.findCollisions(movers[i], root, res);
+                scene += System.nanoTime() - st;
+                scenePairs = collect(res);
+                sceneCount += scenePairs.size();
+            }
+            
+            res.clear();
+            st = System.nanoTime();
+            for(int i=0; i<count; i++)
+                ctm.findCollisions(movers[i], bp, res);
+            query += System.nanoTime() - st;
+            HashSet<Long> queryPairs = collect(res);
+            queryCount += queryPairs.size();
+            
+            res.clear();
+            st = System.nanoTime();
+            ctm.findPairCollisions(bp, res);
+            pairs += System.nanoTime() - st;
+            HashSet<Long> allPairs = collect(res);
+            pairCount += allPairs.size();
+            
+            if(!queryPairs.equals(allPairs) 
+                    || (scenePairs != null && !scenePairs.equals(allPairs)))
+                mismatch++;
+        }
+        System.out.println("  update "+(update/ROUNDS/1000)+" us/frame ("
+                +bp.getReinsertedCount()/ROUNDS+" reinserted)");
+        System.out.println("  scene hierarchy: "+(scene/sceneRounds/1000)+" us/frame, "
+                +sceneCount/sceneRounds+" pairs");
+        System.out.println("  broadphase queries: "+(query/ROUNDS/1000)+" us/frame, "
+                +queryCount/ROUNDS+" pairs");
+        System.out.println("  broadphase pairs: "+(pairs/ROUNDS/1000)+" us/frame, "
+                +pairCount/ROUNDS+" pairs");
+        System.out.println("  frames with different pairs: "+mismatch);
+    }
+    
+    static Vector3f randomPos(Random rnd, float range) {
+        return new Vector3f((rnd.nextFloat()*2-1)*range, (rnd.nextFloat()*2-1)*range, 
+                (rnd.nextFloat()*2-1)*range);
+    }
+    
+    // the colliding pairs, without order
+    static HashSet<Long> collect(CollisionResults res) {
+        HashSet<Long> set = new HashSet<Long>();
+        for(int i=0; i<res.getNumber(); i++) {
+            CollisionData cd = res.getCollision(i);
+            long a = System.identityHashCode(cd.getSourceMesh());
+            long b = System.identityHashCode(cd.getTargetMesh());
+            set.add(a < b ? (a << 32 | b) : (b << 32 | a));
+        }
+        return set;
+    }
+    
+    static LodMesh createMesh(String name, Box geom, Vector3f pos) {
+        TriBatch tb = new TriBatch();
+        tb.setModel(geom);
+        tb.setRenderQueueMode(RenderQueue.FILTER_OPAQUE);
+        LodMesh m = new LodMesh(name);
+        m.addBatch(0, tb);
+        m.getLocalTranslation().set(pos);
+        return m;
+    }
+}
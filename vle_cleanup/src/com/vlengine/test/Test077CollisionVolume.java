@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.app.Config;
+import com.vlengine.app.frame.Frame;
+import com.vlengine.bounding.CollisionVolume;
+import com.vlengine.bounding.CollisionVolumeEngine;
+import com.vlengine.math.FastMath;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.Box;
+import com.vlengine.model.Dome;
+import com.vlengine.scene.SetNode;
+import com.vlengine.scene.control.UpdateContext;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.FastList;
+import java.util.Random;
+
+/**
+ * Regression test and benchmark of CollisionVolume.getCollisions. Volumes
+ * are tested against each other in axis aligned poses (with whole and
+ * fractional cell offsets), rotated and scaled poses, and random poses, and
+ * the collision points are compared with checking every cell through the
+ * transforms of the spatials. Then the time of the two methods is compared
+ * on large volumes, with one and more threads.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test077CollisionVolume {
+
+    static final int RANDOM_POSES = 300;
+    static final int ROUNDS = 5;
+    
+    public static void main(String[] args) {
+        AppContext app = new AppContext();
+        app.conf = new Config();
+        LocalContext.getContext().app = app;
+        
+        Dome dome = new Dome(new Vector3f(), 24, 48, 20);
+        Box box = new Box(new Vector3f(), 12, 6, 9);
+        CollisionVolume vd = new CollisionVolume();
+        vd.buildVolume(dome, 1f);
+        CollisionVolume vb = new CollisionVolume();
+        vb.buildVolume(box, 1f);
+        CollisionVolume vbc = new CollisionVolume();
+        vbc.buildVolume(box, new Vector3f(1.5f, 0.75f, 1.25f));
+        
+        SetNode root = new SetNode("root");
+        SetNode a = new SetNode("a");
+        SetNode b = new SetNode("b");
+        root.attachChild(a);
+        root.attachChild(b);
+        Frame f = new Frame(0, app);
+        UpdateContext uctx = f.getUpdateContext();
+        uctx.frame = f;
+        root.updateGeometricState(uctx, true);
+        
+        int tests = 0, failed = 0, hits = 0;
+        CollisionVolume[][] pairs = {{vd, vd}, {vd, vb}, {vb, vd}, {vb, vbc}, {vbc, vd}};
+        Random rnd = new Random(1);
+        for(int p=0; p<pairs.length; p++) {
+            CollisionVolume va = pairs[p][0], vo = pairs[p][1];
+            // axis aligned, offset by whole cells, by fractions of a cell,
+            // and overlapping only at a corner
+            float[][] offsets = {{0,0,0}, {5,0,0}, {3,-2,7}, {0.5f,0.25f,-0.75f}, 
+                {1.3f,2.7f,-3.1f}, {30,15,20}, {-31,-12,18.5f}};
+            for(int i=0; i<offsets.length; i++) {
+                pose(a, 0, Vector3f.UNIT_Y, 1, new Vector3f());
+                pose(b, 0, Vector3f.UNIT_Y, 1, new Vector3f(offsets[i][0], offsets[i][1], offsets[i][2]));
+                int r = compare(va, vo, a, b);
+                tests++;
+                if(r < 0) failed++; else hits += r;
+            }
+            // rotated and scaled
+            for(int i=0; i<RANDOM_POSES; i++) {
+                pose(a, rnd.nextFloat()*FastMath.TWO_PI, randomAxis(rnd), 
+                        i % 3 == 0 ? 0.5f + rnd.nextFloat() : 1, randomPos(rnd, 20));
+                pose(b, i % 2 == 0 ? 0 : rnd.nextFloat()*FastMath.TWO_PI, randomAxis(rnd), 
+                        i % 5 == 0 ? 0.5f + rnd.nextFloat() : 1, randomPos(rnd, 20));
+                int r = compare(va, vo, a, b);
+                tests++;
+                if(r < 0) failed++; else hits += r;
+            }
+        }
+        System.out.println("Compared "+tests+" poses ("+hits+" colliding cells), failed: "+failed);
+        
+        // the benchmark, large volumes with small cells
+        CollisionVolume big = new CollisionVolume();
+        big.buildVolume(dome, 0.25f);
+        System.out.println("Dome volumes with 0.25 cells:");
+        FastList<Vector3f> points = new FastList<Vector3f>();
+        String[] names = {"aligned", "aligned, corner", "rotated"};
+        for(int c=0; c<names.length; c++) {
+            pose(a, 0, Vector3f.UNIT_Y, 1, new Vector3f());
+            if(c == 0)
+                pose(b, 0, Vector3f.UNIT_Y, 1, new Vector3f(2, 1, 3));
+            else if(c == 1)
+                pose(b, 0, Vector3f.UNIT_Y, 1, new Vector3f(36, 16, 30));
+            else
+                pose(b, 0.7f, new Vector3f(1, 2, 0.5f).normalizeLocal(), 1, new Vector3f(2, 1, 3));
+            // warm up
+            for(int r=0; r<ROUNDS; r++) {
+                points.clear();
+                LocalContext.getContext().ctbstack.clear();
+                big.getCollisionsAllCells(a, b, big, points);
+                big.getCollisions(a, b, big, points);
+            }
+            long st = System.nanoTime();
+            for(int r=0; r<ROUNDS; r++) {
+                points.clear();
+                LocalContext.getContext().ctbstack.clear();
+                big.getCollisionsAllCells(a, b, big, points);
+            }
+            long ref = (System.nanoTime() - st)/ROUNDS;
+            int refCount = points.size();
+            String res = names[c]+": all cells "+(ref/1000)+" us ("+refCount+" points)";
+            int[] threads = {1, 2, 4};
+            for(int t=0; t<threads.length; t++) {
+                CollisionVolumeEngine.getInstance().setThreadCount(threads[t]);
+                st = System.nanoTime();
+                for(int r=0; r<ROUNDS; r++) {
+                    points.clear();
+                    LocalContext.getContext().ctbstack.clear();
+                    big.getCollisions(a, b, big, points);
+                }
+                long time = (System.nanoTime() - st)/ROUNDS;
+                res += ", "+threads[t]+" threads "+(time/1000)+" us";
+                if(points.size() != refCount)
+                    res += " (MISMATCH "+points.size()+")";
+            }
+            CollisionVolumeEngine.getInstance().setThreadCount(1);
+            System.out.println(res);
+        }
+        // lowering the thread count stops the workers, they are not piled up
+        System.out.println("Workers alive with 1 thread: "+liveWorkers());
+        CollisionVolumeEngine.getInstance().setThreadCount(64);
+        System.out.println("Threads capped at "+CollisionVolumeEngine.getInstance().getThreadCount());
+        CollisionVolumeEngine.getInstance().shutdown();
+    }
+    
+    // the number of collision volume worker threads still running,
+    // waits a while for the stopped ones to exit
+    static int liveWorkers() {
+        int count = 0;
+        for(int r=0; r<100; r++) {
+            count = 0;
+            for(Thread t : Thread.getAllStackTraces().keySet()) {
+                if(t.isAlive() && t.getName().startsWith("CollisionVolume-"))
+                    count++;
+            }
+            if(count == 0)
+                break;
+            try {
+                Thread.sleep(10);
+            } catch(InterruptedException ex) {
+            }
+        }
+        return count;
+    }
+    
+    // returns the number of colliding cells, or -1 if the results differ
+    static int compare(CollisionVolume va, CollisionVolume vo, SetNode a, SetNode b) {
+        LocalContext.getContext().ctbstack.clear();
+        FastList<Vector3f> ref = new FastList<Vector3f>();
+        boolean refFound = va.getCollisionsAllCells(a, b, vo, ref);
+        FastList<Vector3f> fast = new FastList<Vector3f>();
+        boolean found = va.getCollisions(a, b, vo, fast);
+        boolean any = va.getCollisions(a, b, vo, null);
+        boolean same = refFound == found && found == any && ref.size() == fast.size();
+        for(int i=0; same && i<ref.size(); i++) {
+            same = ref.get(i).equals(fast.get(i));
+        }
+        if(!same) {
+            System.out.println("Different result at "+a.getWorldTranslation()+" "+b.getWorldTranslation()
+                    +": "+ref.size()+" and "+fast.size()+" points");
+            return -1;
+        }
+        return ref.size();
+    }
+    
+    static void pose(SetNode m, float angle, Vector3f axis, float scale, Vector3f pos) {
+        m.getLocalRotation().fromAngleAxis(angle, axis);
+        m.getLocalScale().set(scale, scale, scale);
+        m.getLocalTranslation().set(pos);
+        m.updateGeometricState();
+    }
+    
+    static Vector3f randomAxis(Random rnd) {
+        return new Vector3f(rnd.nextFloat()-0.5f, rnd.nextFloat()-0.5f, rnd.nextFloat()-0.5f).normalizeLocal();
+    }
+    
+    static Vector3f randomPos(Random rnd, float range) {
+        return new Vector3f((rnd.nextFloat()*2-1)*range, (rnd.nextFloat()*2-1)*range, 
+                (rnd.nextFloat()*2-1)*range);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.app.Config;
+import com.vlengine.bounding.CollisionVolume;
+import com.vlengine.bounding.SparseCellMap;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.Box;
+import com.vlengine.model.Dome;
+import com.vlengine.model.Geometry;
+import com.vlengine.resource.model.ModelPackReader;
+import com.vlengine.resource.model.ModelPackWriter;
+import com.vlengine.thread.LocalContext;
+
+/**
+ * Builds collision volumes of large models, and compares the memory of the
+ * sparse cell map to a dense bitset of the same grid. Checks that points
+ * sampled on the triangles fall into set cells, and that the volume is the
+ * same after saving and loading it.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test078SparseCollisionVolume {
+
+    static final int ROUNDS = 5;
+    static final int SAMPLES = 16;
+    
+    public static void main(String[] args) {
+        AppContext app = new AppContext();
+        app.conf = new Config();
+        LocalContext.getContext().app = app;
+        
+        Geometry[] geoms = {
+            new Dome(new Vector3f(), 64, 128, 400),
+            new Box(new Vector3f(), 500, 100, 500),
+            new Dome(new Vector3f(), 32, 64, 100)
+        };
+        String[] names = {"dome r400, cells 5", "box 1000x200x1000, cells 5", "dome r100, cells 1"};
+        float[] cellSizes = {5, 5, 1};
+        
+        for(int g=0; g<geoms.length; g++) {
+            Vector3f cs = new Vector3f(cellSizes[g], cellSizes[g], cellSizes[g]);
+            CollisionVolume cv = null;
+            // warm up
+            for(int r=0; r<ROUNDS; r++) {
+                cv = new CollisionVolume();
+                cv.buildVolume(geoms[g], cs);
+            }
+            long st = System.nanoTime();
+            for(int r=0; r<ROUNDS; r++) {
+                cv = new CollisionVolume();
+                cv.buildVolume(geoms[g], cs);
+            }
+            long time = (System.nanoTime() - st)/ROUNDS;
+            SparseCellMap cells = cv.getCells();
+            long gridCells = (long) cells.getSizeX() * cells.getSizeY() * cells.getSizeZ();
+            long dense = (gridCells + 63) / 64 * 8;
+            int missing = checkSurface(geoms[g], cv);
+            
+            // save and load
+            ModelPackWriter out = new ModelPackWriter();
+            cv.save(out);
+            CollisionVolume loaded = CollisionVolume.load(new ModelPackReader(out.toBuffer()));
+            boolean same = sameCells(cells, loaded.getCells());
+            
+            System.out.println(names[g]+": grid "+cells.getSizeX()+"x"+cells.getSizeY()+"x"+cells.getSizeZ()
+                    +", "+cells.getCellCount()+" cells set in "+cells.getBrickCount()+" bricks"
+                    +", dense "+(dense/1024)+" KB, sparse "+(cells.getMemorySize()/1024)+" KB"
+                    +", build "+(time/1000)+" us, missed samples "+missing
+                    +", loaded "+(same ? "same" : "DIFFERENT"));
+        }
+    }
+    
+    // the number of points sampled on the triangles, not in a set cell
+    static int checkSurface(Geometry geom, CollisionVolume cv) {
+        Vector3f[] verts = {new Vector3f(), new Vector3f(), new Vector3f()};
+        Vector3f p = new Vector3f();
+        Vector3f cs = cv.getCellSize();
+        SparseCellMap cells = cv.getCells();
+        int missing = 0;
+        for(int i=0, mi=geom.getTriangleCount(); i<mi; i++) {
+            geom.getTriangle(i, verts);
+            for(int a=0; a<=SAMPLES; a++) {
+                for(int b=0; a+b<=SAMPLES; b++) {
+                    float u = a / (float) SAMPLES, v = b / (float) SAMPLES;
+                    p.set(verts[0]).multLocal(1 - u - v);
+                    p.scaleAdd(u, verts[1], p);
+                    p.scaleAdd(v, verts[2], p);
+                    p.addLocal(cv.getTranslate());
+                    int x = (int) (p.x / cs.x);
+                    int y = (int) (p.y / cs.y);
+                    int z = (int) (p.z / cs.z);
+                    if(x < 0 || y < 0 || z < 0 || x >= cells.getSizeX() || y >= cells.getSizeY() 
+                            || z >= cells.getSizeZ() || !cells.get(x, y, z))
+                        missing++;
+                }
+            }
+        }
+        return missing;
+    }
+    
+    static boolean sameCells(SparseCellMap a, SparseCellMap b) {
+        if(a.getSizeX() != b.getSizeX() || a.getSizeY() != b.getSizeY() || a.getSizeZ() != b.getSizeZ())
+            return false;
+        for(int x=0; x<a.getSizeX(); x++)
+            for(int y=0; y<a.getSizeY(); y++)
+                for(int z=0; z<a.getSizeZ(); z+=64)
+                    if(a.getRow(x, y, z) != b.getRow(x, y, z))
+                        return false;
+        return true;
+    }
+}
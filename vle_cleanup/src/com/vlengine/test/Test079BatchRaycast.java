@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.app.Config;
+import com.vlengine.app.frame.Frame;
+import com.vlengine.bounding.BatchRaycaster;
+import com.vlengine.bounding.BoundingBox;
+import com.vlengine.bounding.CollisionTree;
+import com.vlengine.bounding.CollisionTreeManager;
+import com.vlengine.bounding.RayBatch;
+import com.vlengine.intersection.PickData;
+import com.vlengine.math.FastMath;
+import com.vlengine.math.Ray;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.BaseGeometry;
+import com.vlengine.model.Box;
+import com.vlengine.model.Dome;
+import com.vlengine.model.Geometry;
+import com.vlengine.scene.Mesh;
+import com.vlengine.scene.Node;
+import com.vlengine.scene.SetNode;
+import com.vlengine.scene.Spatial;
+import com.vlengine.scene.batch.TriBatch;
+import com.vlengine.scene.control.UpdateContext;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.FastList;
+import com.vlengine.util.IntList;
+import java.util.Random;
+
+/**
+ * Headless benchmark of CollisionTreeManager.findPicks. Line of sight rays
+ * between random points and downward rays for foot placement are cast into
+ * a field of meshes, in packets, and one by one the way findPick tests the
+ * meshes. The nearest hits must be the same, with the BVH_TREE and with
+ * the AABB_TREE tested ray by ray.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test079BatchRaycast {
+
+    static final int GRID = 20;
+    static final float SPACING = 15;
+    static final int RAYS = 8192;
+    static final int ROUNDS = 5;
+    
+    public static void main(String[] args) {
+        AppContext app = new AppContext();
+        app.conf = new Config();
+        LocalContext.getContext().app = app;
+        CollisionTreeManager ctm = CollisionTreeManager.getInstance();
+        ctm.setTreeType(CollisionTree.BVH_TREE);
+        
+        Geometry[] geoms = {new Dome(new Vector3f(), 16, 32, 5), new Box(new Vector3f(), 4, 3, 2)};
+        for(int g=0; g<geoms.length; g++) {
+            geoms[g].setModelBound(new BoundingBox());
+            geoms[g].updateModelBound();
+            ctm.createCollisionTree(geoms[g]);
+        }
+        
+        // a field of meshes, in rows under separate nodes
+        Random rnd = new Random(1);
+        SetNode root = new SetNode("root");
+        for(int x=0; x<GRID; x++) {
+            SetNode row = new SetNode("row"+x);
+            root.attachChild(row);
+            for(int z=0; z<GRID; z++) {
+                Mesh m = new Mesh("m"+x+"_"+z);
+                m.setBatch(new TriBatch(geoms[(x+z) % geoms.length]));
+                m.getLocalTranslation().set(x*SPACING, 0, z*SPACING);
+                m.getLocalRotation().fromAngleAxis(rnd.nextFloat()*FastMath.TWO_PI, 
+                        new Vector3f(rnd.nextFloat()-0.5f, 1, rnd.nextFloat()-0.5f).normalizeLocal());
+                m.getLocalScale().set(0.7f + rnd.nextFloat(), 0.7f + rnd.nextFloat(), 0.7f + rnd.nextFloat());
+                row.attachChild(m);
+            }
+        }
+        Frame f = new Frame(0, app);
+        UpdateContext uctx = f.getUpdateContext();
+        uctx.frame = f;
+        // the bounds are updated on the second pass
+        root.updateGeometricState(uctx, true);
+        root.updateGeometricState(uctx, true);
+        
+        // line of sight between points at eye height, and foot rays down
+        RayBatch rays = new RayBatch(RAYS);
+        float size = GRID*SPACING;
+        Vector3f from = new Vector3f(), to = new Vector3f();
+        for(int i=0; i<RAYS; i++) {
+            if(i % 4 == 3) {
+                rays.addRay(rnd.nextFloat()*size, 10, rnd.nextFloat()*size, 0, -1, 0, 20);
+            } else {
+                from.set(rnd.nextFloat()*size, 1 + rnd.nextFloat()*3, rnd.nextFloat()*size);
+                to.set(from.x + (rnd.nextFloat()-0.5f)*80, 1 + rnd.nextFloat()*3, from.z + (rnd.nextFloat()-0.5f)*80);
+                rays.addSegment(from, to);
+            }
+        }
+        
+        // ray by ray, the way findPick does it
+        float[] refDist = new float[RAYS];
+        Spatial[] refSpat = new Spatial[RAYS];
+        long ref = Long.MAX_VALUE;
+        for(int r=0; r<ROUNDS; r++) {
+            long st = System.nanoTime();
+            singleRays(root, rays, refDist, refSpat);
+            ref = Math.min(ref, System.nanoTime() - st);
+        }
+        int hits = 0;
+        for(int i=0; i<RAYS; i++)
+            if(refSpat[i] != null) hits++;
+        System.out.println(GRID*GRID+" meshes, "+RAYS+" rays, "+hits+" hit");
+        System.out.println("Ray by ray: "+(ref/1000)+" us");
+        
+        int[] threads = {1, 2, 4};
+        BatchRaycaster caster = BatchRaycaster.getInstance();
+        for(int t=0; t<threads.length; t++) {
+            caster.setThreadCount(threads[t]);
+            long time = Long.MAX_VALUE;
+            for(int r=0; r<ROUNDS; r++) {
+                long st = System.nanoTime();
+                ctm.findPicks(root, rays);
+                time = Math.min(time, System.nanoTime() - st);
+            }
+            int diff = compare(rays, refDist, refSpat);
+            System.out.println("Packets, "+threads[t]+" threads: "+(time/1000)+" us, differences: "+diff);
+            Checks.check(diff == 0, "packets on "+threads[t]+" threads find the same hits");
+        }
+        caster.setThreadCount(1);
+        // lowering the thread count stops the workers, they are not piled up
+        Checks.check(liveWorkers() == 0, "no workers alive with 1 thread");
+        
+        // the same with trees without BVH
+        ctm.setTreeType(CollisionTree.AABB_TREE);
+        for(int g=0; g<geoms.length; g++) {
+            geoms[g].setCollisionTree(null);
+            ctm.createCollisionTree(geoms[g]);
+        }
+        long st = System.nanoTime();
+        ctm.findPicks(root, rays);
+        int diff = compare(rays, refDist, refSpat);
+        System.out.println("AABB_TREE ray by ray in findPicks: "+((System.nanoTime() - st)/1000)
+                +" us, differences: "+diff);
+        Checks.check(diff == 0, "AABB_TREE finds the same hits");
+        caster.shutdown();
+        Checks.finish();
+    }
+    
+    // the number of ray casting worker threads still running,
+    // waits a while for the stopped ones to exit
+    static int liveWorkers() {
+        int count = 0;
+        for(int r=0; r<100; r++) {
+            count = 0;
+            for(Thread t : Thread.getAllStackTraces().keySet()) {
+                if(t.isAlive() && t.getName().startsWith("BatchRaycaster-"))
+                    count++;
+            }
+            if(count == 0)
+                break;
+            try {
+                Thread.sleep(10);
+            } catch(InterruptedException ex) {
+            }
+        }
+        return count;
+    }
+    
+    // the number of rays, whose nearest hit differs from the reference
+    static int compare(RayBatch rays, float[] refDist, Spatial[] refSpat) {
+        int diff = 0;
+        for(int i=0; i<rays.getCount(); i++) {
+            if(rays.isHit(i) != (refSpat[i] != null)) {
+                diff++;
+            } else if(rays.isHit(i) && (rays.getHitSpatial(i) != refSpat[i] 
+                    || Math.abs(rays.getHitDistance(i) - refDist[i]) > 1e-3f * Math.max(1, refDist[i]))) {
+                diff++;
+            }
+        }
+        return diff;
+    }
+    
+    // the nearest hits with a Ray and a PickData for each ray
+    static void singleRays(Spatial scene, RayBatch rays, float[] dist, Spatial[] spat) {
+        Vector3f o = new Vector3f(), d = new Vector3f();
+        float[] od = new float[6];
+        for(int i=0; i<rays.getCount(); i++) {
+            LocalContext.getContext().ctbstack.clear();
+            rays.getRay(i, o, d);
+            Ray ray = new Ray(o, d);
+            FastList<PickData> picks = new FastList<PickData>();
+            pick(scene, ray, picks);
+            dist[i] = rays.getLength(i);
+            spat[i] = null;
+            Vector3f[] verts = {new Vector3f(), new Vector3f(), new Vector3f()};
+            Vector3f loc = new Vector3f();
+            for(int p=0; p<picks.size(); p++) {
+                PickData pd = picks.get(p);
+                Mesh m = (Mesh) pd.getTargetMesh();
+                BaseGeometry bg = m.getBatch().getModel();
+                IntList tris = pd.getTargetTris();
+                for(int t=0; t<tris.size(); t++) {
+                    bg.getTriangle(tris.get(t), verts);
+                    for(int v=0; v<3; v++)
+                        m.localToWorld(verts[v], verts[v]);
+                    if(ray.intersectWhere(verts[0], verts[1], verts[2], loc)) {
+                        float dd = loc.subtractLocal(o).dot(d);
+                        if(dd < dist[i]) {
+                            dist[i] = dd;
+                            spat[i] = m;
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    static void pick(Spatial s, Ray ray, FastList<PickData> picks) {
+        if(s.getWorldBound() == null || !s.getWorldBound().intersects(ray))
+            return;
+        if(s instanceof Node) {
+            Node n = (Node) s;
+            for(int i=0; i<n.getQuantity(); i++)
+                pick(n.getChild(i), ray, picks);
+        } else if(s instanceof Mesh) {
+            Mesh m = (Mesh) s;
+            IntList tris = new IntList();
+            m.getBatch().getModel().getCollisionTree().intersect(ray, tris, m, null);
+            if(tris.size() > 0)
+                picks.add(new PickData(m, -1, tris));
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.app.Config;
+import com.vlengine.app.frame.Frame;
+import com.vlengine.bounding.BoundingBox;
+import com.vlengine.bounding.CharacterSweep;
+import com.vlengine.bounding.CollisionTree;
+import com.vlengine.bounding.CollisionTreeManager;
+import com.vlengine.bounding.CollisionVolume;
+import com.vlengine.bounding.SweepResult;
+import com.vlengine.intersection.CollisionResults;
+import com.vlengine.intersection.Intersection;
+import com.vlengine.math.FastMath;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.Box;
+import com.vlengine.scene.Mesh;
+import com.vlengine.scene.SetNode;
+import com.vlengine.scene.Spatial;
+import com.vlengine.scene.batch.TriBatch;
+import com.vlengine.scene.control.UpdateContext;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.FastList;
+import java.util.Random;
+
+/**
+ * Headless test and benchmark of CharacterSweep. A capsule and a box walk
+ * into a wall, along it, up a step, up a ramp and against a block too high
+ * to step on, with the triangles and with the collision volumes. A random
+ * walk checks that the shapes never get into the obstacles. The cost of a
+ * move is compared with the volume query the CharacterController repeats
+ * several times a frame.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test080CharacterSweep {
+
+    static final float RADIUS = 3;
+    static final float HEIGHT = 18;
+    static final float STEP = 10;
+    static final float SKIN = 0.05f;
+    static final int WALK_STEPS = 3000;
+    static final int ROUNDS = 5;
+    
+    static CollisionTreeManager ctm;
+    static FastList<float[]> tris = new FastList<float[]>();
+    static FastList<BoundingBox> solids = new FastList<BoundingBox>();
+    
+    public static void main(String[] args) {
+        AppContext app = new AppContext();
+        app.conf = new Config();
+        LocalContext.getContext().app = app;
+        ctm = CollisionTreeManager.getInstance();
+        ctm.setTreeType(CollisionTree.BVH_TREE);
+        
+        SetNode root = new SetNode("root");
+        obstacle(root, "floor", new Box(new Vector3f(), 100, 1, 100), new Vector3f(0, -1, 0), 0, 2);
+        obstacle(root, "wall", new Box(new Vector3f(), 1, 20, 40), new Vector3f(40, 20, 0), 0, 1);
+        obstacle(root, "step", new Box(new Vector3f(), 10, 2.5f, 10), new Vector3f(0, 2.5f, -40), 0, 1);
+        obstacle(root, "block", new Box(new Vector3f(), 10, 15, 10), new Vector3f(-40, 15, 0), 0, 1);
+        obstacle(root, "ramp", new Box(new Vector3f(), 20, 1, 10), new Vector3f(-20, 5, 45), 
+                -20*FastMath.DEG_TO_RAD, 1);
+        Frame f = new Frame(0, app);
+        UpdateContext uctx = f.getUpdateContext();
+        uctx.frame = f;
+        // the bounds are updated on the second pass
+        root.updateGeometricState(uctx, true);
+        root.updateGeometricState(uctx, true);
+        collectTriangles(root);
+        
+        CharacterSweep cs = new CharacterSweep();
+        cs.setScene(root);
+        cs.setSkinWidth(SKIN);
+        cs.setStepHeight(STEP);
+        cs.getOffset().set(0, HEIGHT/2, 0);
+        SweepResult res = new SweepResult();
+        
+        for(int mode=0; mode<4; mode++) {
+            boolean capsule = mode < 2;
+            boolean volume = (mode & 1) == 1;
+            if(capsule) {
+                cs.setCapsule(RADIUS, HEIGHT);
+            } else {
+                cs.setBox(new Vector3f(RADIUS, HEIGHT/2, RADIUS));
+            }
+            cs.setCheckCollisionVolume(volume);
+            String name = (capsule ? "capsule" : "box") + (volume ? " volumes" : " triangles");
+            // the cells cover the triangles, so stop up to a cell earlier
+            float tol = volume ? 2.1f : 0.1f;
+            
+            Vector3f p = new Vector3f(0, 20, 0);
+            cs.probeGround(p, 40, res);
+            Checks.check(res.isOnGround() && near(res.getPosition().y, SKIN, tol), name+" ground");
+            
+            p = walk(cs, res, new Vector3f(20, SKIN, 0), new Vector3f(2, -1, 0), 20);
+            Checks.check(near(p.x, 39 - RADIUS - SKIN, tol) && near(p.y, SKIN, tol), name+" wall");
+            
+            p = walk(cs, res, new Vector3f(20, SKIN, 0), new Vector3f(1.5f, -1, 1.5f), 20);
+            Checks.check(near(p.x, 39 - RADIUS - SKIN, tol) && p.z > 25, name+" slide along wall");
+            
+            p = walk(cs, res, new Vector3f(0, SKIN, -15), new Vector3f(0, -1, -1.5f), 20);
+            Checks.check(near(p.y, 5 + SKIN, tol) && p.z < -35, name+" step up");
+            
+            p = walk(cs, res, new Vector3f(-15, SKIN, 0), new Vector3f(-1.5f, -1, 0), 20);
+            Checks.check(near(p.x, -30 + RADIUS + SKIN, tol) && near(p.y, SKIN, tol), name+" block too high");
+            
+            p = walk(cs, res, new Vector3f(10, SKIN, 45), new Vector3f(-1.5f, -1, 0), 20);
+            Checks.check(p.y > 4 && p.x < -15, name+" ramp");
+            
+            // random walk, the shape must never get into an obstacle
+            Random rnd = new Random(mode);
+            p = new Vector3f(0, SKIN, 0);
+            Vector3f dir = new Vector3f();
+            Vector3f m = new Vector3f();
+            int inside = 0, sweeps = 0;
+            for(int i=0; i<WALK_STEPS; i++) {
+                if(i % 50 == 0 || Math.abs(p.x) > 85 || Math.abs(p.z) > 85) {
+                    float a = rnd.nextFloat()*FastMath.TWO_PI;
+                    dir.set(FastMath.cos(a), 0, FastMath.sin(a));
+                    if(Math.abs(p.x) > 85 || Math.abs(p.z) > 85)
+                        dir.set(-p.x, 0, -p.z).normalizeLocal();
+                }
+                m.set(dir).multLocal(1.5f);
+                m.y = -2;
+                cs.move(p, m, res);
+                sweeps += res.getSweepCount();
+                p.set(res.getPosition());
+                if(penetrates(p, capsule))
+                    inside++;
+            }
+            Checks.check(inside == 0, name+" random walk, "+WALK_STEPS+" steps, "
+                    +((float)sweeps/WALK_STEPS)+" sweeps per step, inside: "+inside);
+        }
+        
+        // the cost of a move, and of the volume query of the controller
+        cs.setCapsule(RADIUS, HEIGHT);
+        Vector3f p = new Vector3f();
+        Vector3f m = new Vector3f(1.5f, -2, 0.5f);
+        for(int mode=0; mode<2; mode++) {
+            cs.setCheckCollisionVolume(mode == 1);
+            long best = Long.MAX_VALUE;
+            int sweeps = 0;
+            for(int r=0; r<ROUNDS; r++) {
+                p.set(20, SKIN, -20);
+                sweeps = 0;
+                long st = System.nanoTime();
+                for(int i=0; i<WALK_STEPS; i++) {
+                    // walk into the wall and along it
+                    if(i % 20 == 0) 
+                        p.set(20, SKIN, -20);
+                    cs.move(p, m, res);
+                    sweeps += res.getSweepCount();
+                    p.set(res.getPosition());
+                }
+                best = Math.min(best, System.nanoTime() - st);
+            }
+            System.out.println("CharacterSweep.move with "+(mode == 1 ? "volumes: " : "triangles: ")
+                    +(best/WALK_STEPS/1000f)+" us per step, "+((float)sweeps/WALK_STEPS)+" sweeps per step");
+        }
+        
+        SetNode character = new SetNode("character");
+        Box cbox = new Box(new Vector3f(), RADIUS, HEIGHT/2, RADIUS);
+        cbox.setModelBound(new BoundingBox());
+        cbox.updateModelBound();
+        Mesh cm = new Mesh("character_mesh");
+        cm.setBatch(new TriBatch(cbox));
+        character.attachChild(cm);
+        CollisionVolume cvol = new CollisionVolume();
+        cvol.buildVolume(cbox, CollisionVolume.DEFAULT_CELLSIZE_ANIMATED);
+        character.setCollisionVolume(cvol);
+        root.attachChild(character);
+        CollisionResults colres = new CollisionResults();
+        colres.setCheckCollisionTree(false);
+        colres.setCheckTriangles(false);
+        colres.setCheckCollisionVolume(true);
+        colres.setVolumeGetCollisionPoints(true);
+        long best = Long.MAX_VALUE;
+        for(int r=0; r<ROUNDS; r++) {
+            long st = System.nanoTime();
+            for(int i=0; i<WALK_STEPS; i++) {
+                character.getLocalTranslation().set(20 + (i % 20)*1.5f, HEIGHT/2 - 1, -20);
+                character.updateGeometricState(uctx, true);
+                character.updateGeometricState(uctx, true);
+                colres.clear();
+                ctm.findCollisions(character, root, colres);
+            }
+            best = Math.min(best, System.nanoTime() - st);
+        }
+        System.out.println("CollisionTreeManager.findCollisions with volumes: "+(best/WALK_STEPS/1000f)
+                +" us per query, the controller does 2 to 10 a frame");
+        
+        Checks.finish();
+    }
+    
+    static void obstacle(SetNode root, String name, Box box, Vector3f pos, float angle, float cell) {
+        box.setModelBound(new BoundingBox());
+        box.updateModelBound();
+        ctm.createCollisionTree(box);
+        Mesh m = new Mesh(name+"_mesh");
+        m.setBatch(new TriBatch(box));
+        SetNode n = new SetNode(name);
+        n.attachChild(m);
+        n.getLocalTranslation().set(pos);
+        n.getLocalRotation().fromAngleAxis(angle, Vector3f.UNIT_Z);
+        CollisionVolume vol = new CollisionVolume();
+        vol.buildVolume(box, cell);
+        n.setCollisionVolume(vol);
+        root.attachChild(n);
+    }
+    
+    // the triangles of the obstacles in world space, and the bounds of
+    // the ones not rotated
+    static void collectTriangles(SetNode root) {
+        Vector3f[] v = {new Vector3f(), new Vector3f(), new Vector3f()};
+        for(int i=0; i<root.getQuantity(); i++) {
+            SetNode n = (SetNode) root.getChild(i);
+            Mesh m = (Mesh) n.getChild(0);
+            Box box = (Box) m.getBatch().getModel();
+            for(int t=0; t<box.getTriangleCount(); t++) {
+                box.getTriangle(t, v);
+                float[] tri = new float[9];
+                for(int k=0; k<3; k++) {
+                    m.localToWorld(v[k], v[k]);
+                    tri[k*3] = v[k].x;
+                    tri[k*3+1] = v[k].y;
+                    tri[k*3+2] = v[k].z;
+                }
+                tris.add(tri);
+            }
+            if(n.getLocalRotation().w > 0.9999f)
+                solids.add((BoundingBox) m.getWorldBound());
+        }
+    }
+    
+    static Vector3f walk(CharacterSweep cs, SweepResult res, Vector3f p, Vector3f m, int steps) {
+        for(int i=0; i<steps; i++) {
+            cs.move(p, m, res);
+            p.set(res.getPosition());
+        }
+        return p;
+    }
+    
+    // is the shape with its feet at p in an obstacle
+    static boolean penetrates(Vector3f p, boolean capsule) {
+        float cy = p.y + HEIGHT/2;
+        for(int i=0; i<solids.size(); i++) {
+            if(solids.get(i).contains(new Vector3f(p.x, cy, p.z)))
+                return true;
+        }
+        float[] seg = {p.x, p.y + RADIUS, p.z, p.x, p.y + HEIGHT - RADIUS, p.z};
+        float[] cp = new float[12];
+        for(int i=0; i<tris.size(); i++) {
+            if(capsule) {
+                if(CharacterSweep.segmentTriangle(seg, tris.get(i), 0, 3, 6, cp) < RADIUS - 0.01f)
+                    return true;
+            } else if(Intersection.triangleBoxIntersection(tris.get(i), p.x, cy, p.z, 
+                    RADIUS - 0.01f, HEIGHT/2 - 0.01f, RADIUS - 0.01f)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    static boolean near(float a, float b, float tol) {
+        return Math.abs(a - b) <= tol;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.app.Config;
+import com.vlengine.app.frame.Frame;
+import com.vlengine.bounding.BoundingBox;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.Box;
+import com.vlengine.renderer.CullContext;
+import com.vlengine.renderer.ParallelCuller;
+import com.vlengine.renderer.RenderQueue;
+import com.vlengine.renderer.ViewCamera;
+import com.vlengine.renderer.pass.RenderPass;
+import com.vlengine.scene.LodMesh;
+import com.vlengine.scene.Renderable;
+import com.vlengine.scene.SetNode;
+import com.vlengine.scene.batch.TriBatch;
+import com.vlengine.scene.control.UpdateContext;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.FastList;
+import java.util.IdentityHashMap;
+
+/**
+ * Headless test of the ParallelCuller. A large scene is culled single
+ * threaded and with several culling threads, the render queues must
+ * contain the same renderables both ways.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test081ParallelCulling {
+
+    static final int CELLS = 8;
+    static final int THREADS = 4;
+    static final int ROUNDS = 50;
+    static final int[] QUEUES = {RenderQueue.StandardQueue.Opaque.queuId, 
+        RenderQueue.StandardQueue.AlphaBlended.queuId};
+    
+    public static void main(String[] args) {
+        // the workers need their own thread contexts
+        System.setProperty("com.vlengine.multithreading", "true");
+        AppContext app = new AppContext();
+        app.conf = new Config();
+        app.conf.nomultithread = false;
+        app.conf.maxCullThreads = THREADS;
+        LocalContext.getContext().app = app;
+        
+        // quadrants of blocks of cells, so the culler has nodes to split at,
+        // every cell has four boxes, half of them in the blended queue
+        Box box = new Box(new Vector3f(0,0,0), 1,1,1);
+        box.setModelBound(new BoundingBox());
+        box.updateModelBound();
+        SetNode root = new SetNode("root");
+        int grid = 4 * CELLS;
+        for(int q=0; q<4; q++) {
+            SetNode quad = new SetNode("quadrant");
+            quad.getLocalTranslation().set((q&1)*grid*5-grid*5, 0, (q>>1)*grid*5-grid*5);
+            for(int b=0; b<4; b++) {
+                SetNode block = new SetNode("block");
+                block.getLocalTranslation().set((b&1)*CELLS*10, 0, (b>>1)*CELLS*10);
+                for(int x=0; x<CELLS; x++) {
+                    for(int z=0; z<CELLS; z++) {
+                        SetNode cell = new SetNode("cell");
+                        cell.getLocalTranslation().set(x*10, 0, z*10);
+                        for(int i=0; i<4; i++) {
+                            TriBatch t = new TriBatch();
+                            t.setModel(box);
+                            t.setRenderQueueMode((i&1) == 0 ? RenderQueue.QueueFilter.Opaque.value
+                                    : RenderQueue.QueueFilter.AlphaBlended.value);
+                            LodMesh m = new LodMesh("box");
+                            m.addBatch(0, t);
+                            m.getLocalTranslation().set((i&1)*4, 0, (i>>1)*4);
+                            cell.attachChild(m);
+                        }
+                        block.attachChild(cell);
+                    }
+                }
+                quad.attachChild(block);
+            }
+            root.attachChild(quad);
+        }
+        
+        ViewCamera cam = new ViewCamera(640, 480);
+        cam.setFrustumPerspective(60, 4f/3f, 1, 400);
+        cam.setFrame(new Vector3f(0, 40, 0), new Vector3f(-1,0,0), 
+                new Vector3f(0,1,0), new Vector3f(0,0,-1));
+        app.setRootNode(root);
+        app.setCamera(cam);
+        
+        Frame f = new Frame(0, app);
+        if(app.conf.maxCullThreads != THREADS) {
+            System.out.println("Multithreading is not enabled");
+            System.exit(1);
+        }
+        UpdateContext uctx = f.getUpdateContext();
+        uctx.frame = f;
+        root.updateGeometricState(uctx, true);
+        root.updateGeometricState(uctx, true);
+        
+        // an opaque and a blended pass, with the same camera
+        for(int i=0; i<QUEUES.length; i++) {
+            RenderPass p = new RenderPass("pass"+i);
+            p.setId(i);
+            p.setQueueNo(QUEUES[i]);
+            p.setQueueFilter(1L << QUEUES[i]);
+            p.setCamera(cam);
+            p.setEnabled(true);
+            f.getPasses().addPass(p);
+            f.getQueueManager().createQueue(QUEUES[i], RenderQueue.SortType.DistanceSquaredFromCamera);
+        }
+        
+        CullContext ctx = new CullContext();
+        ctx.setState(f, root, cam);
+        ctx.setThreadContext();
+        ParallelCuller culler = new ParallelCuller(f, ctx, THREADS);
+        
+        boolean same = true;
+        long serial = 0, parallel = 0;
+        int queued = 0, tasks = 0;
+        for(int r=0; r<ROUNDS && same; r++) {
+            // look around, so the frustum cuts the blocks differently
+            float a = r * 2f * (float) Math.PI / ROUNDS;
+            cam.lookAt(new Vector3f((float) Math.cos(a)*100f, 0, (float) Math.sin(a)*100f), Vector3f.UNIT_Y);
+            cam.update();
+            
+            // single threaded
+            f.getQueueManager().clear();
+            long st = System.nanoTime();
+            ctx.setState(f, root, cam);
+            if(root.docull(ctx))
+                root.queue(ctx);
+            f.merge(ctx);
+            serial += System.nanoTime() - st;
+            FastList<IdentityHashMap<Renderable,Integer>> single = count(f);
+            
+            // parallel
+            f.getQueueManager().clear();
+            st = System.nanoTime();
+            ctx.setState(f, root, cam);
+            culler.cull(ctx, root, cam);
+            f.merge(ctx);
+            parallel += System.nanoTime() - st;
+            tasks += culler.getTaskCount();
+            FastList<IdentityHashMap<Renderable,Integer>> multi = count(f);
+            
+            for(int q=0; q<QUEUES.length; q++) {
+                IdentityHashMap<Renderable,Integer> s = single.get(q);
+                IdentityHashMap<Renderable,Integer> m = multi.get(q);
+                if(!s.equals(m)) {
+                    System.out.println("Round "+r+" queue "+QUEUES[q]+" differs: single "
+                            +s.size()+" parallel "+m.size());
+                    same = false;
+                }
+                queued += s.size();
+            }
+        }
+        culler.shutdown();
+        
+        Checks.check(same, "parallel queues hold the same renderables");
+        Checks.check(queued > 0, "renderables queued");
+        Checks.check(tasks > 0, "scene split into tasks");
+        System.out.println("Queued "+(queued/ROUNDS)+" renderables per frame in "+QUEUES.length+" queues");
+        System.out.println("Split into "+(tasks/ROUNDS)+" tasks per frame");
+        System.out.println("Single threaded: "+(serial/ROUNDS/1000)+" us/frame");
+        System.out.println(THREADS+" threads:       "+(parallel/ROUNDS/1000)+" us/frame");
+        Checks.finish();
+    }
+    
+    // counts the occurrences of the renderables in the queues of the frame
+    private static FastList<IdentityHashMap<Renderable,Integer>> count(Frame f) {
+        FastList<IdentityHashMap<Renderable,Integer>> res = new FastList<IdentityHashMap<Renderable,Integer>>();
+        for(int q=0; q<QUEUES.length; q++) {
+            IdentityHashMap<Renderable,Integer> m = new IdentityHashMap<Renderable,Integer>();
+            FastList<Renderable> l = f.getQueueManager().getQueue(QUEUES[q]);
+            for(int i=0, n=l.size(); i<n; i++) {
+                Integer c = m.get(l.get(i));
+                m.put(l.get(i), c == null ? 1 : c + 1);
+            }
+            res.add(m);
+        }
+        return res;
+    }
+}
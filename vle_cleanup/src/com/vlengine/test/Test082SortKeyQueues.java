@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.app.Config;
+import com.vlengine.app.frame.Frame;
+import com.vlengine.bounding.BoundingBox;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.Box;
+import com.vlengine.renderer.CullContext;
+import com.vlengine.renderer.RenderQueue;
+import com.vlengine.renderer.ViewCamera;
+import com.vlengine.renderer.material.Material;
+import com.vlengine.renderer.pass.RenderPass;
+import com.vlengine.scene.LodMesh;
+import com.vlengine.scene.Renderable;
+import com.vlengine.scene.SetNode;
+import com.vlengine.scene.batch.TriBatch;
+import com.vlengine.scene.control.UpdateContext;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.FastList;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Headless test of the render queues sorted by the packed keys
+ * (Config.sortKeyQueues). A grid of boxes with a few materials is culled
+ * and sorted. The opaque queue must be grouped by material, and in depth
+ * order within a material. The blended queue must keep strict depth order,
+ * the same as the queue sorted with the comparator. When nothing changed
+ * since the previous frame, the sort must be skipped and give the same
+ * order.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test082SortKeyQueues {
+
+    static final int GRID = 40;
+    static final float SPACING = 4;
+    static final int MATERIALS = 12;
+    static final int OPAQUE = RenderQueue.StandardQueue.Opaque.queuId;
+    static final int BLENDED = RenderQueue.StandardQueue.AlphaBlended.queuId;
+    
+    public static void main(String[] args) {
+        AppContext app = new AppContext();
+        app.conf = new Config();
+        app.conf.sortKeyQueues = true;
+        LocalContext.getContext().app = app;
+        
+        Material[] mats = new Material[MATERIALS];
+        for(int i=0; i<MATERIALS; i++) {
+            mats[i] = new Material();
+        }
+        
+        // every fourth box goes into the blended queue
+        Box box = new Box(new Vector3f(0,0,0), 1, 1, 1);
+        box.setModelBound(new BoundingBox());
+        box.updateModelBound();
+        SetNode root = new SetNode("grid");
+        Random rnd = new Random(1);
+        for(int x=0; x<GRID; x++) {
+            for(int z=0; z<GRID; z++) {
+                TriBatch tb = new TriBatch();
+                tb.setModel(box);
+                tb.setRenderQueueMode(((x+z) & 3) == 0 ? RenderQueue.QueueFilter.AlphaBlended.value
+                        : RenderQueue.QueueFilter.Opaque.value);
+                tb.setMaterial(mats[rnd.nextInt(MATERIALS)]);
+                LodMesh m = new LodMesh("box");
+                m.addBatch(0, tb);
+                m.getLocalTranslation().set((x - GRID/2) * SPACING, 0, (z - GRID/2) * SPACING);
+                root.attachChild(m);
+            }
+        }
+        
+        ViewCamera cam = new ViewCamera(640, 480);
+        cam.setFrustumPerspective(60, 4f/3f, 0.5f, 1000);
+        cam.setFrame(new Vector3f(0, 40, GRID*SPACING/2), new Vector3f(-1,0,0), 
+                new Vector3f(0,1,0), new Vector3f(0,0,-1));
+        cam.lookAt(new Vector3f(0, 0, 0), Vector3f.UNIT_Y);
+        cam.update();
+        app.setCamera(cam);
+        
+        Frame f = new Frame(0, app);
+        UpdateContext uctx = f.getUpdateContext();
+        uctx.frame = f;
+        root.updateGeometricState(uctx, true);
+        root.updateGeometricState(uctx, true);
+        
+        RenderPass p = new RenderPass("opaque");
+        p.setId(0);
+        p.setQueueNo(OPAQUE);
+        p.setQueueFilter(RenderQueue.QueueFilter.Opaque.value);
+        p.setCamera(cam);
+        p.setEnabled(true);
+        f.getPasses().addPass(p);
+        p = new RenderPass("blended");
+        p.setId(1);
+        p.setQueueNo(BLENDED);
+        p.setQueueFilter(RenderQueue.QueueFilter.AlphaBlended.value);
+        p.setCamera(cam);
+        p.setEnabled(true);
+        f.getPasses().addPass(p);
+        RenderQueue rq = f.getQueueManager();
+        // sortAll expects every queue up to the highest one
+        for(int i=0; i<BLENDED; i++)
+            rq.createQueue(i, RenderQueue.SortType.DistanceSquaredFromCamera);
+        rq.createQueue(BLENDED, RenderQueue.SortType.InverseDistanceSquaredFromCamera);
+        
+        CullContext ctx = new CullContext();
+        ctx.setThreadContext();
+        
+        // the first frame is fully sorted
+        cullAndSort(f, root, cam, ctx);
+        FastList<Renderable> opaque = new FastList<Renderable>();
+        opaque.addAll(rq.getQueue(OPAQUE));
+        checkOpaque(rq.getQueue(OPAQUE), "first frame");
+        checkDepth(rq.getQueue(BLENDED), "first frame");
+        Checks.check(rq.getQueue(OPAQUE).size() > 0 && rq.getQueue(BLENDED).size() > 0, 
+                "both queues have renderables");
+        Checks.check(rq.getKeySortCount(OPAQUE) == 1 && rq.getSkippedKeySortCount(OPAQUE) == 0, 
+                "first frame is sorted");
+        
+        // the same view again, the order of the previous frame is reused
+        cullAndSort(f, root, cam, ctx);
+        Checks.check(rq.getKeySortCount(OPAQUE) == 2 && rq.getSkippedKeySortCount(OPAQUE) == 1, 
+                "unchanged frame skips the sort");
+        Checks.check(rq.getSkippedKeySortCount(BLENDED) == 1, "unchanged frame skips the blended sort");
+        FastList<Renderable> again = rq.getQueue(OPAQUE);
+        boolean same = again.size() == opaque.size();
+        for(int i=0; same && i<again.size(); i++) {
+            same = again.get(i) == opaque.get(i);
+        }
+        Checks.check(same, "unchanged frame has the same order");
+        
+        // move the camera, the queue has to be sorted again
+        cam.setLocation(new Vector3f(-GRID*SPACING/2, 30, 0));
+        cam.lookAt(new Vector3f(0, 0, 0), Vector3f.UNIT_Y);
+        cam.update();
+        cullAndSort(f, root, cam, ctx);
+        Checks.check(rq.getKeySortCount(OPAQUE) == 3 && rq.getSkippedKeySortCount(OPAQUE) == 1, 
+                "moved camera sorts again");
+        checkOpaque(rq.getQueue(OPAQUE), "moved camera");
+        checkDepth(rq.getQueue(BLENDED), "moved camera");
+        
+        // the blended queue has the same depth order as the comparator sort
+        int[] keyed = sortIds(rq.getQueue(BLENDED));
+        rq.setSortKeys(false);
+        cullAndSort(f, root, cam, ctx);
+        int[] compared = sortIds(rq.getQueue(BLENDED));
+        Checks.check(java.util.Arrays.equals(keyed, compared), "blended queue matches the comparator sort");
+        
+        System.out.println("Opaque "+rq.getQueue(OPAQUE).size()+", blended "+rq.getQueue(BLENDED).size());
+        Checks.finish();
+    }
+    
+    static void cullAndSort(Frame f, SetNode root, ViewCamera cam, CullContext ctx) {
+        f.getQueueManager().clear();
+        ctx.setState(f, root, cam);
+        if(root.docull(ctx))
+            root.queue(ctx);
+        f.merge(ctx);
+        f.getQueueManager().sortAll();
+    }
+    
+    // material-major, and depth order within a material
+    static void checkOpaque(FastList<Renderable> q, String name) {
+        HashSet<Material> used = new HashSet<Material>();
+        int groups = 0;
+        boolean depth = true;
+        for(int i=0; i<q.size(); i++) {
+            Renderable r = q.get(i);
+            used.add(r.getMaterial());
+            if(i == 0 || q.get(i-1).getMaterial() != r.getMaterial()) {
+                groups++;
+            } else if(q.get(i-1).getSortId(OPAQUE) < r.getSortId(OPAQUE)) {
+                depth = false;
+            }
+        }
+        Checks.check(groups == used.size(), name+": opaque queue is material-major ("+groups
+                +" groups, "+used.size()+" materials)");
+        Checks.check(depth, name+": opaque queue is in depth order within a material");
+    }
+    
+    static void checkDepth(FastList<Renderable> q, String name) {
+        boolean depth = true;
+        for(int i=1; i<q.size(); i++) {
+            if(q.get(i-1).getSortId(BLENDED) < q.get(i).getSortId(BLENDED))
+                depth = false;
+        }
+        Checks.check(depth, name+": blended queue is in depth order");
+    }
+    
+    static int[] sortIds(FastList<Renderable> q) {
+        int[] ids = new int[q.size()];
+        for(int i=0; i<ids.length; i++)
+            ids[i] = q.get(i).getSortId(BLENDED);
+        return ids;
+    }
+}
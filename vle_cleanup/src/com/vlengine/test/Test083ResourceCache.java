@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.app.Config;
+import com.vlengine.resource.ResourceCache;
+import com.vlengine.resource.ResourceFolder;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+
+/**
+ * Headless test of the ResourceCache: budget accounting, least recently
+ * used eviction, recovering dropped objects from their soft references,
+ * pinning, and eviction from another thread while the folder is read
+ * under the folder lock.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test083ResourceCache {
+
+    static final int KB = 1024;
+    
+    // exposes adding to the folder, as ResourceCreator does
+    static class TestFolder extends ResourceFolder {
+        TestFolder(AppContext app) {
+            super(app);
+        }
+        
+        void add(String name, Object data) {
+            addCached(name, data);
+        }
+    }
+    
+    // lets the test clear the soft references, as the GC would
+    static class TestCache extends ResourceCache {
+        TestCache(long budget, Object folderLock) {
+            super(budget, folderLock);
+        }
+        
+        synchronized void freeDropped() {
+            for(SoftReference<Object> ref : dropped.values())
+                ref.clear();
+        }
+    }
+    
+    public static void main(String[] args) {
+        AppContext app = new AppContext();
+        app.conf = new Config();
+        Object lock = new Object();
+        TestCache cache = new TestCache(10*KB, lock);
+        TestFolder folder = new TestFolder(app);
+        folder.setCache(cache);
+        
+        ByteBuffer a = ByteBuffer.allocate(4*KB);
+        ByteBuffer b = ByteBuffer.allocate(4*KB);
+        ByteBuffer c = ByteBuffer.allocate(4*KB);
+        
+        // budget accounting
+        folder.add("a", a);
+        folder.add("b", b);
+        Checks.check(cache.getSize() == 8*KB && cache.getCount() == 2, "two objects accounted");
+        
+        // a is used, so b is the least recently used
+        Checks.check(folder.getCached("a") == a, "a found");
+        folder.add("c", c);
+        Checks.check(cache.getSize() == 8*KB && cache.getEvictions() == 1, "over budget evicts one");
+        Checks.check(folder.isCached("b"), "evicted file name is kept");
+        Checks.check(folder.getCached("a") == a && folder.getCached("c") == c, "used objects are kept");
+        
+        // b is still referenced, so it comes back from the soft reference,
+        // and pushes out a, the least recently used
+        Checks.check(folder.getCached("b") == b && cache.getRecovered() == 1, "evicted object is recovered");
+        Checks.check(cache.getEvictions() == 2 && cache.getSize() == 8*KB, "recovered object is accounted again");
+        
+        // once the GC freed a, it is a miss
+        cache.freeDropped();
+        long misses = cache.getMisses();
+        Checks.check(folder.getCached("a") == null && cache.getMisses() == misses + 1, "freed object is a miss");
+        Checks.check(folder.getCached("x") == null && cache.getMisses() == misses + 2, "unknown object is a miss");
+        
+        // pinned objects are not evicted, the newer object is
+        cache.pin(b);
+        cache.pin(c);
+        long evictions = cache.getEvictions();
+        folder.add("d", ByteBuffer.allocate(4*KB));
+        Checks.check(cache.getEvictions() == evictions + 1 && folder.getCached("b") == b 
+                && folder.getCached("c") == c, "pinned objects are not evicted");
+        
+        // a smaller budget keeps the pinned over budget, unpinning evicts
+        cache.setBudget(4*KB);
+        Checks.check(cache.getSize() == 8*KB, "pinned objects stay over budget");
+        cache.unpin(b);
+        Checks.check(cache.getSize() == 4*KB && cache.getEvictions() == evictions + 2 
+                && folder.getCached("c") == c, "unpinning evicts");
+        cache.unpin(c);
+        
+        // unpinning evicts from another thread, while this thread reads 
+        // and adds to the folder under the folder lock
+        cache.setBudget(64*KB);
+        final TestCache fcache = cache;
+        final ByteBuffer[] pins = new ByteBuffer[16];
+        for(int i=0; i<pins.length; i++) {
+            pins[i] = ByteBuffer.allocate(4*KB);
+            folder.add("pin"+i, pins[i]);
+        }
+        final boolean[] stop = new boolean[1];
+        Thread pinner = new Thread() {
+            public void run() {
+                while(!stop[0]) {
+                    for(int i=0; i<pins.length; i++)
+                        fcache.pin(pins[i]);
+                    for(int i=0; i<pins.length; i++)
+                        fcache.unpin(pins[i]);
+                }
+            }
+        };
+        pinner.start();
+        boolean failed = false;
+        long end = System.currentTimeMillis() + 500;
+        int round = 0;
+        try {
+            while(System.currentTimeMillis() < end) {
+                synchronized(lock) {
+                    for(int i=0; i<pins.length; i++) {
+                        if(folder.getCached("pin"+i) == null)
+                            folder.add("pin"+i, pins[i]);
+                    }
+                    folder.add("tmp"+(round++ & 63), ByteBuffer.allocate(KB));
+                }
+            }
+        } catch(RuntimeException ex) {
+            ex.printStackTrace();
+            failed = true;
+        }
+        stop[0] = true;
+        try {
+            pinner.join();
+        } catch(InterruptedException ex) {
+        }
+        Checks.check(!failed && cache.getSize() <= 64*KB, "eviction from another thread");
+        System.out.println(cache);
+        
+        Checks.finish();
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.math.FastMath;
+import com.vlengine.math.Matrix4f;
+import com.vlengine.math.Quaternion;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.XWeightedGeometry;
+import com.vlengine.scene.animation.x.XSkinningEngine;
+import com.vlengine.scene.animation.x.XSoftSkinner;
+import com.vlengine.util.IntList;
+import com.vlengine.util.geom.IndexBuffer;
+import com.vlengine.util.geom.VertexAttribute;
+import com.vlengine.util.geom.VertexBuffer;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+/**
+ * Headless test of the XSkinningEngine. Random weighted geometries are
+ * skinned by the engine on several threads, and the output is compared to
+ * skinning every vertex with the bone matrices, as XSoftSkinner did
+ * before the engine. Then a new pose is skinned into the output of the
+ * other frame, the output of the first frame must not change until
+ * that frame is skinned again.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test084SoftSkinning {
+
+    static final int BONES = 24;
+    static final int VERTICES = 5000;
+    static final int SKINNERS = 3;
+    static final int THREADS = 4;
+    static final float EPSILON = 1e-4f;
+    
+    public static void main(String[] args) {
+        Random rnd = new Random(1);
+        XWeightedGeometry[] geoms = new XWeightedGeometry[SKINNERS];
+        XSoftSkinner[] skinners = new XSoftSkinner[SKINNERS];
+        XSkinningEngine engine = new XSkinningEngine(THREADS);
+        for(int i=0; i<SKINNERS; i++) {
+            geoms[i] = createGeometry(rnd);
+            skinners[i] = new XSoftSkinner();
+            skinners[i].setModel(geoms[i]);
+            skinners[i].setSkinningEngine(engine);
+        }
+        
+        // the first pose, skinned into frame 0
+        Matrix4f[] poseA = createPose(rnd);
+        for(int i=0; i<SKINNERS; i++)
+            skinners[i].setMatrixValues(poseA);
+        engine.skin(0);
+        Checks.check(engine.getLastTaskCount() > 1, "skinned in "+engine.getLastTaskCount()+" tasks");
+        float[][] expectA = new float[SKINNERS][];
+        float[][] expectNA = new float[SKINNERS][];
+        boolean match = true;
+        for(int i=0; i<SKINNERS; i++) {
+            expectA[i] = new float[VERTICES*3];
+            expectNA[i] = new float[VERTICES*3];
+            skinVertices(geoms[i], poseA, expectA[i], expectNA[i]);
+            match &= same(skinners[i].getSkinnedPositions(0), expectA[i])
+                    && same(skinners[i].getSkinnedNormals(0), expectNA[i]);
+        }
+        Checks.check(match, "batched skinning matches per vertex skinning");
+        Checks.check(skinners[0].getSkinnedPositions(1) == null, "frame 1 not yet skinned");
+        
+        // a new pose, skinned into frame 1 only
+        float[] keep = skinners[0].getSkinnedPositions(0).clone();
+        Matrix4f[] poseB = createPose(rnd);
+        for(int i=0; i<SKINNERS; i++)
+            skinners[i].setMatrixValues(poseB);
+        engine.skin(1);
+        match = true;
+        float[][] expectB = new float[SKINNERS][];
+        for(int i=0; i<SKINNERS; i++) {
+            expectB[i] = new float[VERTICES*3];
+            skinVertices(geoms[i], poseB, expectB[i], new float[VERTICES*3]);
+            match &= same(skinners[i].getSkinnedPositions(1), expectB[i]);
+        }
+        Checks.check(match, "frame 1 has the new pose");
+        Checks.check(java.util.Arrays.equals(keep, skinners[0].getSkinnedPositions(0)), 
+                "frame 0 output unchanged while frame 1 skins");
+        Checks.check(skinners[0].getSkinnedPositions(0) != skinners[0].getSkinnedPositions(1), 
+                "the frames have separate outputs");
+        
+        // frame 0 catches up with the new pose
+        engine.skin(0);
+        match = true;
+        for(int i=0; i<SKINNERS; i++)
+            match &= same(skinners[i].getSkinnedPositions(0), expectB[i]);
+        Checks.check(match, "frame 0 has the new pose after its skinning");
+        
+        // nothing changed, so nothing is skinned, the outputs stay
+        float[] out1 = skinners[0].getSkinnedPositions(1).clone();
+        engine.skin(1);
+        Checks.check(java.util.Arrays.equals(out1, skinners[0].getSkinnedPositions(1)), 
+                "unchanged pose keeps the output");
+        engine.shutdown();
+        
+        Checks.finish();
+    }
+    
+    // random vertices with one to four bone influences
+    static XWeightedGeometry createGeometry(Random rnd) {
+        XWeightedGeometry g = new XWeightedGeometry();
+        VertexBuffer pb = VertexBuffer.createSingleBuffer(VertexAttribute.USAGE_POSITION, VERTICES);
+        VertexBuffer nb = VertexBuffer.createSingleBuffer(VertexAttribute.USAGE_NORMAL, VERTICES);
+        VertexBuffer ib = VertexBuffer.createSingleBuffer(VertexAttribute.USAGE_WEIGHTINDICES, VERTICES);
+        VertexBuffer cb = VertexBuffer.createSingleBuffer(VertexAttribute.USAGE_NUMWEIGHTS, VERTICES);
+        VertexBuffer wb = VertexBuffer.createSingleBuffer(VertexAttribute.USAGE_WEIGHTS, VERTICES);
+        FloatBuffer p = pb.getDataBuffer(), n = nb.getDataBuffer();
+        FloatBuffer idx = ib.getDataBuffer(), cnt = cb.getDataBuffer(), w = wb.getDataBuffer();
+        Vector3f v = new Vector3f();
+        for(int i=0; i<VERTICES; i++) {
+            p.put(rnd.nextFloat()*20-10).put(rnd.nextFloat()*20).put(rnd.nextFloat()*20-10);
+            v.set(rnd.nextFloat()-0.5f, rnd.nextFloat()-0.5f, rnd.nextFloat()-0.5f).normalizeLocal();
+            n.put(v.x).put(v.y).put(v.z);
+            int inf = 1 + rnd.nextInt(4);
+            int packed = 0;
+            float[] ws = new float[4];
+            float sum = 0;
+            for(int k=0; k<inf; k++) {
+                packed |= rnd.nextInt(BONES) << (k*8);
+                ws[k] = 0.1f + rnd.nextFloat();
+                sum += ws[k];
+            }
+            for(int k=0; k<4; k++)
+                w.put(ws[k] / sum);
+            idx.put(Float.intBitsToFloat(packed));
+            cnt.put(Float.intBitsToFloat(inf));
+        }
+        g.addAttribBuffer(pb, 0);
+        g.addAttribBuffer(nb, 0);
+        g.addAttribBuffer(ib, 0);
+        g.addAttribBuffer(cb, 0);
+        g.addAttribBuffer(wb, 0);
+        g.setNumVertex(VERTICES);
+        // the vertices as points, the skinner shares the indices
+        int[] indices = new int[VERTICES];
+        for(int i=0; i<VERTICES; i++)
+            indices[i] = i;
+        g.setIndexBuffer(IndexBuffer.createBuffer(indices, VERTICES, null));
+        g.setNumIndex(VERTICES);
+        // the skinned bones are every second of the skeleton
+        IntList mapping = new IntList();
+        for(int i=0; i<BONES; i++)
+            mapping.add(i*2);
+        g.setBoneMapping(mapping);
+        return g;
+    }
+    
+    // random rotations and translations for the bones of the skeleton
+    static Matrix4f[] createPose(Random rnd) {
+        Matrix4f[] mats = new Matrix4f[BONES*2];
+        Quaternion q = new Quaternion();
+        for(int i=0; i<mats.length; i++) {
+            q.fromAngleAxis(rnd.nextFloat()*FastMath.TWO_PI, new Vector3f(rnd.nextFloat(), 
+                    rnd.nextFloat(), rnd.nextFloat()+0.1f).normalizeLocal());
+            mats[i] = new Matrix4f();
+            mats[i].setRotationQuaternion(q);
+            // the animation matrices are transposed, translation in the last row
+            mats[i].m30 = rnd.nextFloat()*10-5;
+            mats[i].m31 = rnd.nextFloat()*10-5;
+            mats[i].m32 = rnd.nextFloat()*10-5;
+        }
+        return mats;
+    }
+    
+    // skins every vertex with the transposed bone matrices, like the 
+    // per vertex skinning of XSoftSkinner before the engine
+    static void skinVertices(XWeightedGeometry g, Matrix4f[] pose, float[] pos, float[] norm) {
+        IntList mapping = g.getBoneMapping();
+        Matrix4f[] boneMats = new Matrix4f[mapping.size()];
+        for(int l=0; l<boneMats.length; l++) {
+            boneMats[l] = new Matrix4f();
+            boneMats[l].set(pose[mapping.get(l)]);
+            boneMats[l].transposeLocal();
+        }
+        FloatBuffer pb = g.getAttribBuffer(VertexAttribute.USAGE_POSITION).getDataBuffer();
+        FloatBuffer nb = g.getAttribBuffer(VertexAttribute.USAGE_NORMAL).getDataBuffer();
+        FloatBuffer wb = g.getAttribBuffer(VertexAttribute.USAGE_WEIGHTS).getDataBuffer();
+        FloatBuffer ib = g.getAttribBuffer(VertexAttribute.USAGE_WEIGHTINDICES).getDataBuffer();
+        FloatBuffer inb = g.getAttribBuffer(VertexAttribute.USAGE_NUMWEIGHTS).getDataBuffer();
+        Vector3f sp = new Vector3f(), sn = new Vector3f(), tvec = new Vector3f();
+        Vector3f tp = new Vector3f(), tn = new Vector3f();
+        for(int i=0; i<g.getNumVertex(); i++) {
+            sp.set(pb.get(i*3), pb.get(i*3+1), pb.get(i*3+2));
+            sn.set(nb.get(i*3), nb.get(i*3+1), nb.get(i*3+2));
+            int numIndex = Float.floatToIntBits(inb.get(i)) & 0xff;
+            int matIndex = Float.floatToIntBits(ib.get(i));
+            tp.set(0, 0, 0);
+            tn.set(0, 0, 0);
+            for(int j=0; j<numIndex; j++) {
+                Matrix4f mat = boneMats[matIndex & 0xff];
+                matIndex = matIndex >> 8;
+                float wj = wb.get(i*4+j);
+                tvec.set(sp);
+                mat.mult(tvec, tvec);
+                tvec.scale(wj);
+                tp.addLocal(tvec);
+                tvec.set(sn);
+                mat.rotateVect(tvec);
+                tvec.scale(wj);
+                tn.addLocal(tvec);
+            }
+            pos[i*3] = tp.x; pos[i*3+1] = tp.y; pos[i*3+2] = tp.z;
+            norm[i*3] = tn.x; norm[i*3+1] = tn.y; norm[i*3+2] = tn.z;
+        }
+    }
+    
+    static boolean same(float[] a, float[] b) {
+        if(a == null || b == null || a.length != b.length)
+            return false;
+        for(int i=0; i<a.length; i++) {
+            if(Math.abs(a[i] - b[i]) > EPSILON * (1 + Math.abs(b[i])))
+                return false;
+        }
+        return true;
+    }
+}
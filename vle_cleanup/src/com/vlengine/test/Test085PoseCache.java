@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.app.Config;
+import com.vlengine.app.frame.Frame;
+import com.vlengine.math.Matrix4f;
+import com.vlengine.resource.FileResource;
+import com.vlengine.resource.ParameterMap;
+import com.vlengine.resource.model.Model;
+import com.vlengine.resource.x.XLoader;
+import com.vlengine.scene.animation.Action;
+import com.vlengine.scene.animation.x.XAnimatedItem;
+import com.vlengine.scene.animation.x.XBoneAnimation;
+import com.vlengine.scene.animation.x.XBoneAnimationController;
+import com.vlengine.scene.animation.x.XBoneAnimationPack;
+import com.vlengine.scene.animation.x.XPoseCache;
+import com.vlengine.scene.control.UpdateContext;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.IntList;
+import com.vlengine.util.Timer;
+import java.nio.ByteBuffer;
+
+/**
+ * Headless test of the XPoseCache, on the animation of the .x test model.
+ * Controllers sharing a pose cache are updated at times inside the same
+ * interpolation step, their pose must match an uncached controller updated
+ * at the quantized time. Only the first controller of a step evaluates
+ * the pose, the others must hit the cache.
+ * Run from the project folder.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test085PoseCache {
+
+    static final int STEPS = 16;
+    static final int SHARING = 4;
+    static final float EPSILON = 1e-4f;
+    
+    // timer with the time set by the test
+    static class TestTimer extends Timer {
+        long time;
+        
+        public long getTime() { return time; }
+        public long getResolution() { return 1000000L; }
+        public float getFrameRate() { return 60; }
+        public float getTimePerFrame() { return 1f/60f; }
+        public void update() {}
+        public void reset() { time = 0; }
+        
+        void setSeconds(double t) {
+            time = Math.round(t * getResolution());
+        }
+    }
+    
+    // frame with the test timer
+    static class TestFrame extends Frame {
+        TestFrame(AppContext app, Timer t) {
+            super(0, app);
+            timer = t;
+        }
+    }
+    
+    // animated item keeping a copy of the last pose
+    static class PoseRecorder implements XAnimatedItem {
+        Matrix4f[] pose;
+        
+        public IntList getBoneMapping() {
+            return null;
+        }
+        
+        public void setMatrixValues(Matrix4f[] origBoneMats) {
+            pose = new Matrix4f[origBoneMats.length];
+            for(int i=0; i<pose.length; i++)
+                pose[i] = new Matrix4f(origBoneMats[i]);
+        }
+    }
+    
+    static XBoneAnimationPack pack;
+    static TestTimer timer = new TestTimer();
+    static UpdateContext ctx = new UpdateContext();
+    
+    public static void main(String[] args) {
+        AppContext app = new AppContext();
+        app.conf = new Config();
+        LocalContext.getContext().app = app;
+        
+        Checks.check(app.conf.poseCacheSize == 0 && app.getPoseCache() == null, "pose cache disabled by default");
+        
+        ByteBuffer data = FileResource.load("dev/xtest/testbox2.x", ParameterMap.NODIRECTBUFFER);
+        Model mdl = new XLoader(app).convert(data, ParameterMap.MAP_EMPTY);
+        if(mdl == null || mdl.getAnimations() == null) {
+            System.out.println("No animations in testbox2.x");
+            System.exit(1);
+        }
+        pack = mdl.getAnimations();
+        XBoneAnimation anim = pack.getAnimation(0);
+        int frames = anim.frames.length;
+        float rate = anim.frameRate;
+        System.out.println(anim.name+": "+frames+" frames at "+anim.frameRate+" fps, "+pack.getBones().size()+" bones");
+        
+        ctx.frame = new TestFrame(app, timer);
+        ctx.frameId = 0;
+        
+        // room for every step, so nothing is dropped between the passes
+        XPoseCache cache = new XPoseCache(frames * STEPS, STEPS);
+        float maxQuantError = 0;
+        boolean match = true, oneMiss = true;
+        int samples = 0;
+        for(int k=0; k+1<frames; k++) {
+            for(int s=0; s<STEPS; s++) {
+                double tq = (k + (double) s / STEPS) / rate;
+                Matrix4f[] expect = pose(tq, null);
+                long misses = cache.getMisses();
+                long hits = cache.getHits();
+                for(int j=0; j<SHARING; j++) {
+                    // inside the same step, the step is rounded to nearest
+                    double t = tq + (0.05 + 0.1 * j) / STEPS / rate;
+                    Matrix4f[] cached = pose(t, cache);
+                    match &= maxDiff(cached, expect) <= EPSILON;
+                    maxQuantError = Math.max(maxQuantError, maxDiff(cached, pose(t, null)));
+                }
+                oneMiss &= cache.getMisses() - misses == 1 && cache.getHits() - hits == SHARING - 1;
+                samples++;
+            }
+        }
+        Checks.check(match, "cached poses match the uncached pose at the quantized time");
+        Checks.check(oneMiss, "one miss and "+(SHARING-1)+" hits per step");
+        Checks.check(cache.getMisses() == samples && cache.getEvictions() == 0, 
+                samples+" poses evaluated, "+cache.getPoseCount()+" cached");
+        System.out.println("  max difference to the unquantized pose "+maxQuantError);
+        
+        // the same times again, all hits
+        cache.endFrame();
+        long misses = cache.getMisses();
+        match = true;
+        for(int k=0; k+1<frames; k++) {
+            for(int s=0; s<STEPS; s++) {
+                double tq = (k + (double) s / STEPS) / rate;
+                double t = tq + 0.25 / STEPS / rate;
+                match &= maxDiff(pose(t, cache), pose(tq, null)) <= EPSILON;
+            }
+        }
+        cache.endFrame();
+        Checks.check(match && cache.getMisses() == misses, "second pass served from the cache");
+        Checks.check(cache.getFrameHits() == samples && cache.getFrameMisses() == 0, 
+                "frame counters "+cache.getFrameHits()+" hits, "+cache.getFrameMisses()+" misses");
+        
+        // a cache which keeps only a few poses drops the oldest
+        XPoseCache small = new XPoseCache(4, STEPS);
+        for(int s=0; s<8; s++)
+            pose((double) s / STEPS / rate, small);
+        Checks.check(small.getPoseCount() == 4 && small.getEvictions() == 4, "least recently used poses dropped");
+        pose(0, small);
+        Checks.check(small.getMisses() == 9, "dropped pose evaluated again");
+        
+        Checks.finish();
+    }
+    
+    // the pose of a new controller playing the first animation from time 0
+    static Matrix4f[] pose(double t, XPoseCache cache) {
+        XBoneAnimationController c = new XBoneAnimationController("Test");
+        c.setAniamtionPack(pack);
+        c.setPoseCache(cache);
+        PoseRecorder rec = new PoseRecorder();
+        c.getAnimatedItems().add(rec);
+        Action a = new Action();
+        a.id = 0;
+        a.loop = Action.LoopMode.RestartAtEnd;
+        c.scheduleAction(a);
+        timer.setSeconds(t);
+        c.update(ctx);
+        return rec.pose;
+    }
+    
+    static float maxDiff(Matrix4f[] a, Matrix4f[] b) {
+        if(a == null || b == null || a.length != b.length)
+            return Float.MAX_VALUE;
+        float max = 0;
+        for(int i=0; i<a.length; i++) {
+            for(int r=0; r<4; r++) {
+                for(int c=0; c<4; c++) {
+                    float d = Math.abs(a[i].get(r, c) - b[i].get(r, c)) / (1 + Math.abs(b[i].get(r, c)));
+                    max = Math.max(max, d);
+                }
+            }
+        }
+        return max;
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.app.Config;
+import com.vlengine.app.frame.Frame;
+import com.vlengine.math.Matrix4f;
+import com.vlengine.math.Vector3f;
+import com.vlengine.renderer.RenderStatistics;
+import com.vlengine.renderer.ViewCamera;
+import com.vlengine.resource.FileResource;
+import com.vlengine.resource.ParameterMap;
+import com.vlengine.resource.model.Model;
+import com.vlengine.resource.x.XLoader;
+import com.vlengine.scene.SetNode;
+import com.vlengine.scene.animation.Action;
+import com.vlengine.scene.animation.AnimationLod;
+import com.vlengine.scene.animation.Bone;
+import com.vlengine.scene.animation.x.XAnimatedItem;
+import com.vlengine.scene.animation.x.XBoneAnimationController;
+import com.vlengine.scene.animation.x.XBoneAnimationPack;
+import com.vlengine.scene.batch.TriBatch;
+import com.vlengine.scene.control.UpdateContext;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.FastList;
+import com.vlengine.util.IntList;
+import com.vlengine.util.Timer;
+import java.nio.ByteBuffer;
+
+/**
+ * Headless test of the AnimationLod, on the animation of the .x test model.
+ * Models are placed at the distance of every detail level and one is not
+ * rendered. The frames are simulated with a test timer and frame counter,
+ * every level must update its animation every 2^N frames, the hidden model
+ * never, the reduced levels must leave the deep bones in bind pose, and the
+ * counts reported into the RenderStatistics must add up.
+ * Run from the project folder.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test086AnimationLod {
+
+    static final int FRAMES = 64;
+    static final float EPSILON = 1e-4f;
+    // the distances of the models, level 0 to 3 and hidden
+    static final float[] DISTANCE = {10, 40, 70, 200, 10};
+    static final int[] LEVEL = {0, 1, 2, 3, AnimationLod.HIDDEN};
+    
+    // timer with the time set by the test
+    static class TestTimer extends Timer {
+        long time;
+        
+        public long getTime() { return time; }
+        public long getResolution() { return 1000000L; }
+        public float getFrameRate() { return 12; }
+        public float getTimePerFrame() { return 1f/12f; }
+        public void update() {}
+        public void reset() { time = 0; }
+        
+        void setSeconds(double t) {
+            time = Math.round(t * getResolution());
+        }
+    }
+    
+    // frame with the test timer, camera and frame count
+    static class TestFrame extends Frame {
+        ViewCamera cam;
+        long count;
+        
+        TestFrame(AppContext app, Timer t, ViewCamera cam) {
+            super(0, app);
+            timer = t;
+            this.cam = cam;
+        }
+        
+        @Override
+        public ViewCamera getCamera() {
+            return cam;
+        }
+        
+        @Override
+        public long getFrameCount() {
+            return count;
+        }
+    }
+    
+    // batch which is queued by the test
+    static class TestBatch extends TriBatch {
+        void setQueued(long frame) {
+            lastQueued = frame;
+        }
+    }
+    
+    // animated item keeping a copy of the last pose
+    static class PoseRecorder implements XAnimatedItem {
+        Matrix4f[] pose;
+        
+        public IntList getBoneMapping() {
+            return null;
+        }
+        
+        public void setMatrixValues(Matrix4f[] origBoneMats) {
+            pose = new Matrix4f[origBoneMats.length];
+            for(int i=0; i<pose.length; i++)
+                pose[i] = new Matrix4f(origBoneMats[i]);
+        }
+    }
+    
+    // controller counting its updates
+    static class CountingController extends XBoneAnimationController {
+        int updates;
+        int limit;
+        
+        CountingController() {
+            super("Test");
+        }
+        
+        @Override
+        protected void updateAnimations(UpdateContext ctx) {
+            updates++;
+            limit = getBoneDepthLimit();
+            super.updateAnimations(ctx);
+        }
+    }
+    
+    static XBoneAnimationPack pack;
+    static TestTimer timer = new TestTimer();
+    static UpdateContext ctx = new UpdateContext();
+    
+    public static void main(String[] args) {
+        AppContext app = new AppContext();
+        app.conf = new Config();
+        LocalContext.getContext().app = app;
+        
+        Checks.check(!app.conf.animLod && app.getAnimationLod() == null, "animation lod disabled by default");
+        
+        ByteBuffer data = FileResource.load("dev/xtest/testbox2.x", ParameterMap.NODIRECTBUFFER);
+        Model mdl = new XLoader(app).convert(data, ParameterMap.MAP_EMPTY);
+        if(mdl == null || mdl.getAnimations() == null) {
+            System.out.println("No animations in testbox2.x");
+            System.exit(1);
+        }
+        pack = mdl.getAnimations();
+        FastList<Bone> bones = pack.getBones();
+        int[] depth = new int[bones.size()];
+        int maxDepth = 0;
+        for(int i=0; i<depth.length; i++) {
+            Bone b = bones.get(i);
+            if(b == null)
+                continue;
+            for(Bone p = b.parent; p != null; p = p.parent)
+                depth[i]++;
+            maxDepth = Math.max(maxDepth, depth[i]);
+        }
+        
+        // only the joints below the root are animated in testbox2.x,
+        // from level 2 keep them in bind pose
+        app.conf.animLod = true;
+        app.conf.animLodDistance = 30f;
+        app.conf.animLodLevels = 3;
+        app.conf.animLodReducedLevel = 2;
+        app.conf.animLodBoneDepth = 0;
+        AnimationLod lod = app.getAnimationLod();
+        Checks.check(lod != null, "animation lod enabled");
+        System.out.println(bones.size()+" bones, deepest at "+maxDepth+", reduced to "+app.conf.animLodBoneDepth);
+        
+        ViewCamera cam = new ViewCamera(true);
+        cam.setFrame(new Vector3f(0, 0, 0), new Vector3f(-1,0,0), 
+                new Vector3f(0,1,0), new Vector3f(0,0,-1));
+        TestFrame frame = new TestFrame(app, timer, cam);
+        ctx.frame = frame;
+        
+        int n = DISTANCE.length;
+        CountingController[] ctrl = new CountingController[n];
+        PoseRecorder[] rec = new PoseRecorder[n];
+        TestBatch[] batch = new TestBatch[n];
+        for(int i=0; i<n; i++) {
+            SetNode node = new SetNode("model"+i);
+            node.getLocalTranslation().set(0, 0, -DISTANCE[i]);
+            node.updateWorldVectors(ctx);
+            ctrl[i] = new CountingController();
+            ctrl[i].setAniamtionPack(pack);
+            rec[i] = new PoseRecorder();
+            ctrl[i].getAnimatedItems().add(rec[i]);
+            batch[i] = new TestBatch();
+            ctrl[i].addLodRenderable(batch[i]);
+            ctrl[i].setLod(lod, node);
+            Action a = new Action();
+            a.id = 0;
+            a.loop = Action.LoopMode.RestartAtEnd;
+            ctrl[i].scheduleAction(a);
+        }
+        
+        // the first update is forced for every model
+        RenderStatistics stats = new RenderStatistics();
+        int[] updates = new int[n];
+        boolean levels = true, limits = true, reduced = true, unreduced = true;
+        boolean deepDiffers = false;
+        long sumUpdated = 0, sumThrottled = 0, sumHidden = 0;
+        for(int f=0; f<=FRAMES; f++) {
+            frame.count = 100 + f;
+            ctx.frameId = f % Frame.MAX_FRAMES;
+            // two keyframes every frame, so every update evaluates a new pose
+            double time = f / 12.0;
+            timer.setSeconds(time);
+            // the visible models were queued in the previous frame
+            for(int i=0; i<n; i++) {
+                if(LEVEL[i] != AnimationLod.HIDDEN)
+                    batch[i].setQueued(frame.count - 1);
+            }
+            for(int i=0; i<n; i++) {
+                int before = ctrl[i].updates;
+                ctrl[i].update(ctx);
+                levels &= ctrl[i].getLodLevel() == LEVEL[i];
+                if(ctrl[i].updates == before || f == 0)
+                    continue;
+                updates[i]++;
+                limits &= ctrl[i].limit == lod.getBoneDepth(LEVEL[i]);
+                // the pose against full detail at the same time
+                Matrix4f[] full = pose(time);
+                for(int j=1; j<depth.length; j++) {
+                    if(bones.get(j) == null)
+                        continue;
+                    boolean same = maxDiff(rec[i].pose[j], full[j]) <= EPSILON;
+                    if(ctrl[i].limit < 0 || depth[j] <= ctrl[i].limit) {
+                        if(ctrl[i].limit < 0)
+                            unreduced &= same;
+                        else
+                            reduced &= same;
+                    } else if(!same) {
+                        deepDiffers = true;
+                    }
+                }
+            }
+            // the counts of the frame, without the forced first updates
+            long u = stats.getNumberOfAnimUpdated();
+            long t = stats.getNumberOfAnimThrottled();
+            long h = stats.getNumberOfAnimHidden();
+            lod.report(ctx.frameId, stats);
+            if(f > 0) {
+                sumUpdated += stats.getNumberOfAnimUpdated() - u;
+                sumThrottled += stats.getNumberOfAnimThrottled() - t;
+                sumHidden += stats.getNumberOfAnimHidden() - h;
+            }
+        }
+        Checks.check(levels, "levels by distance and visibility");
+        boolean throttled = true;
+        for(int i=0; i<n; i++) {
+            int expect = LEVEL[i] == AnimationLod.HIDDEN ? 0 : FRAMES >> LEVEL[i];
+            System.out.println("  level "+LEVEL[i]+" at "+DISTANCE[i]+": "+updates[i]+" updates in "+FRAMES+" frames");
+            throttled &= updates[i] == expect;
+        }
+        Checks.check(throttled, "updated every 2^level frames, hidden never");
+        Checks.check(limits, "bone depth limit from the reduced level");
+        Checks.check(unreduced, "full detail levels match the full pose");
+        Checks.check(reduced, "reduced levels match the full pose above the limit");
+        Checks.check(deepDiffers, "reduced levels do not animate the deep bones");
+        
+        long expectUpdated = 0, expectThrottled = 0;
+        for(int i=0; i<n; i++) {
+            if(LEVEL[i] == AnimationLod.HIDDEN)
+                continue;
+            expectUpdated += FRAMES >> LEVEL[i];
+            expectThrottled += FRAMES - (FRAMES >> LEVEL[i]);
+        }
+        Checks.check(sumUpdated == expectUpdated && sumThrottled == expectThrottled && sumHidden == FRAMES,
+                "statistics "+sumUpdated+" updated, "+sumThrottled+" throttled, "+sumHidden+" hidden");
+        Checks.check(stats.getNumberOfAnimUpdated() == expectUpdated + n, "forced first updates counted");
+        Checks.check(stats.toString().indexOf("Anim(") >= 0, "statistics print the animations");
+        
+        Checks.finish();
+    }
+    
+    // the full detail pose of a new controller at the given time
+    static Matrix4f[] pose(double t) {
+        XBoneAnimationController c = new XBoneAnimationController("Full");
+        c.setAniamtionPack(pack);
+        PoseRecorder rec = new PoseRecorder();
+        c.getAnimatedItems().add(rec);
+        Action a = new Action();
+        a.id = 0;
+        a.loop = Action.LoopMode.RestartAtEnd;
+        c.scheduleAction(a);
+        long keep = timer.time;
+        timer.setSeconds(t);
+        // the update context of the test frame, without the level of detail
+        c.update(ctx);
+        timer.time = keep;
+        return rec.pose;
+    }
+    
+    static float maxDiff(Matrix4f a, Matrix4f b) {
+        float max = 0;
+        for(int r=0; r<4; r++) {
+            for(int c=0; c<4; c++) {
+                max = Math.max(max, Math.abs(a.get(r, c) - b.get(r, c)) / (1 + Math.abs(b.get(r, c))));
+            }
+        }
+        return max;
+    }
+}
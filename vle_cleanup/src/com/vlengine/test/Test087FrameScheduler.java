@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.app.Config;
+import com.vlengine.app.MainGame;
+import com.vlengine.app.frame.Frame;
+import com.vlengine.app.frame.FrameScheduler;
+import com.vlengine.app.state.GameStateNode;
+import com.vlengine.renderer.RenderContext;
+import com.vlengine.renderer.Renderer;
+import com.vlengine.system.DisplaySystem;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.FastList;
+
+/**
+ * Headless test of the FrameScheduler. Two frame threads process a few
+ * frames with the update, cull and render stages replaced by logging.
+ * Checks that the frames are updated and rendered in order, the next
+ * update waits for the materials of the previous frame, rendering does
+ * not overlap, a failed render is retried, and the scheduler reports
+ * the end of the frame threads. Also checks that shutdown releases the
+ * frames waiting for the tokens, and that locking a held renderer
+ * waits until it is released.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test087FrameScheduler {
+
+    // the number of frames checked, the frame after them stops the
+    // application, and may be left without rendering
+    static final int FRAMES = 6;
+    
+    // the stages logged by the frames
+    static final String UPDATE = "update ";
+    static final String MATERIAL = "material ";
+    static final String RENDER = "render ";
+    static final String RENDERED = "rendered ";
+    
+    static final FastList<String> log = new FastList<String>();
+    static int next = 0;
+    static int renderCalls = 0;
+    static boolean failRender = true;
+    
+    static void log(String e) {
+        synchronized(log) {
+            log.add(e);
+        }
+    }
+    
+    // the position of an event in the log, FastList compares by identity
+    static int indexOf(String e) {
+        for(int i=0; i<log.size(); i++) {
+            if(log.get(i).equals(e))
+                return i;
+        }
+        return -1;
+    }
+    
+    static class TestFrame extends Frame {
+        
+        // the number of the processed frame
+        int n;
+        
+        TestFrame(int id, AppContext app) {
+            super(id, app);
+        }
+
+        @Override
+        public void startFrame() {
+            // frames are started in the order of the update token
+            n = next++;
+        }
+        
+        @Override
+        public void update() {
+            log(UPDATE+n);
+            if(n == FRAMES)
+                getApp().finished = true;
+        }
+
+        @Override
+        public void cullscene() {
+        }
+
+        @Override
+        public boolean render() {
+            synchronized(log) {
+                renderCalls++;
+                // fail once, as if another thread held the renderer
+                if(failRender) {
+                    failRender = false;
+                    return false;
+                }
+            }
+            log(MATERIAL+n);
+            releaseUpdate();
+            log(RENDER+n);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException ex) {
+            }
+            log(RENDERED+n);
+            return true;
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        System.setProperty("com.vlengine.multithreading", "true");
+        
+        AppContext app = new AppContext();
+        app.conf = new Config();
+        app.conf.nomultithread = false;
+        LocalContext.getContext().app = app;
+        app.updateInput = false;
+        app.display = new DisplaySystem() {
+            @Override
+            public boolean isClosing() {
+                return false;
+            }
+        };
+        app.setRootGameState(new GameStateNode("root"));
+        app.mainGame = new MainGame() {
+            @Override
+            protected void simpleInitGame(AppContext app) {
+            }
+            @Override
+            protected void simpleUpdate(Frame f) {
+            }
+        };
+        app.scheduler = new FrameScheduler(2);
+        Checks.check(app.isMultithreaded(), "multithreading enabled");
+        
+        Thread[] threads = new Thread[2];
+        for(int i=0; i<threads.length; i++) {
+            threads[i] = new Thread(new TestFrame(i, app));
+            threads[i].start();
+        }
+        Checks.check(app.scheduler.awaitEnd(10000), "scheduler reports the end of the frames");
+        for(int i=0; i<threads.length; i++)
+            threads[i].join(1000);
+        
+        StringBuffer order = new StringBuffer();
+        for(int i=0; i<log.size(); i++)
+            order.append(log.get(i)).append(", ");
+        System.out.println(order);
+        boolean updateOrder = true, materialFirst = true, renderOrder = true;
+        boolean overlap = false;
+        int rendered = 0;
+        for(int i=0; i<=FRAMES; i++) {
+            if(indexOf(RENDERED+i) >= 0)
+                rendered++;
+        }
+        for(int i=0; i<FRAMES; i++) {
+            int u = indexOf(UPDATE+i);
+            int r = indexOf(RENDER+i);
+            int e = indexOf(RENDERED+i);
+            if(u < 0 || r < 0 || e < r || (i > 0 && u < indexOf(UPDATE+(i-1))))
+                updateOrder = false;
+            if(i > 0 && u < indexOf(MATERIAL+(i-1)))
+                materialFirst = false;
+            if(i > 0 && r < indexOf(RENDERED+(i-1)))
+                renderOrder = false;
+            int nu = indexOf(UPDATE+(i+1));
+            if(nu > r && nu < e)
+                overlap = true;
+        }
+        Checks.check(updateOrder && indexOf(UPDATE+(FRAMES+1)) < 0, "frames updated in order");
+        Checks.check(materialFirst, "update waits for the materials of the previous frame");
+        Checks.check(renderOrder, "frames rendered in order without overlap");
+        Checks.check(overlap, "next frame updated while rendering");
+        Checks.check(renderCalls == rendered + 1, "failed render retried");
+        
+        // frames waiting for the tokens are released on shutdown
+        final FrameScheduler s = new FrameScheduler(2);
+        s.beginUpdate(null);
+        s.beginRender(null);
+        final boolean[] res = new boolean[] { true, true };
+        Thread wu = new Thread() {
+            @Override
+            public void run() {
+                res[0] = s.beginUpdate(null);
+            }
+        };
+        Thread wr = new Thread() {
+            @Override
+            public void run() {
+                res[1] = s.beginRender(null);
+            }
+        };
+        wu.start();
+        wr.start();
+        Checks.check(!s.awaitEnd(50), "awaitEnd times out while frames run");
+        Checks.check(wu.isAlive() && wr.isAlive(), "frames wait for the tokens");
+        s.shutdown();
+        wu.join(1000);
+        wr.join(1000);
+        Checks.check(!wu.isAlive() && !wr.isAlive() && !res[0] && !res[1], 
+                "shutdown releases the waiting frames");
+        Checks.check(!s.beginUpdate(null), "no update after shutdown");
+        
+        // locking a held renderer waits until it is released
+        final Renderer renderer = new Renderer();
+        final RenderContext other = new RenderContext();
+        final boolean[] locked = new boolean[2];
+        renderer.lockRenderer(new RenderContext());
+        Thread wl = new Thread() {
+            @Override
+            public void run() {
+                locked[0] = renderer.lockRenderer(other);
+                locked[1] = renderer.lockRenderer(other);
+            }
+        };
+        wl.start();
+        Thread.sleep(50);
+        Checks.check(wl.isAlive(), "locking a held renderer waits");
+        renderer.unlockRenderer();
+        wl.join(1000);
+        Checks.check(!wl.isAlive() && !locked[0] && locked[1], "renderer locked after release");
+        
+        Checks.finish();
+    }
+}
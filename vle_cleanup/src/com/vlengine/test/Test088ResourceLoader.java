@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.app.Config;
+import com.vlengine.app.state.GameStateNode;
+import com.vlengine.app.state.ThreadTaskManager;
+import com.vlengine.resource.ParameterMap;
+import com.vlengine.resource.ResourceFinder;
+import com.vlengine.resource.ResourceFolder;
+import com.vlengine.resource.ResourceListener;
+import com.vlengine.resource.ResourceLoader;
+import com.vlengine.resource.ResourceRequest;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.FastList;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless test of the background ResourceLoader. The reading and the
+ * creating of the resources is held up with gates, so the requests can
+ * be checked while they wait in the queues of the loader. Checks that
+ * repeated requests share one request, raising the priority of a 
+ * request waiting for reading or for creating changes the order of 
+ * loading, the unused read files are dropped, the listeners are called
+ * trough the ThreadTaskManager, and that shutdown releases the threads
+ * waiting for a request.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test088ResourceLoader {
+
+    static final int LOW = 5;
+    
+    // a folder, which tells the number of files read in advance
+    static class TestFolder extends ResourceFolder {
+        TestFolder(AppContext app) {
+            super(app);
+        }
+        int getPrefetchedCount() {
+            return prefetched.size();
+        }
+    }
+    
+    // a loader, which holds up reading the ioblock.dat file
+    static class TestLoader extends ResourceLoader {
+        final Semaphore ioStarted = new Semaphore(0);
+        final Semaphore ioGate = new Semaphore(0);
+        
+        TestLoader(ResourceFinder finder, AppContext app) {
+            super(finder, app, 1, 1);
+        }
+        
+        @Override
+        protected void prefetch(ResourceRequest req) {
+            if(req.getName().equals("ioblock.dat")) {
+                ioStarted.release();
+                ioGate.acquireUninterruptibly();
+            }
+            super.prefetch(req);
+        }
+        
+        int getWaitingForCreate() {
+            return decodeQueue.size();
+        }
+    }
+    
+    // a finder, which logs the created resources and
+    // holds up creating the block.dat file
+    static class TestFinder extends ResourceFinder {
+        final FastList<String> created = new FastList<String>();
+        final Semaphore decodeStarted = new Semaphore(0);
+        final Semaphore decodeGate = new Semaphore(0);
+        final AppContext app;
+        TestLoader loader;
+        
+        TestFinder(AppContext app) {
+            super(app);
+            this.app = app;
+        }
+        
+        @Override
+        protected Object getResource(String name, int type, ParameterMap params) {
+            synchronized(created) {
+                created.add(name);
+            }
+            if(name.equals("block.dat")) {
+                decodeStarted.release();
+                try {
+                    decodeGate.acquire();
+                } catch (InterruptedException ex) {
+                    return null;
+                }
+            }
+            return "loaded "+name;
+        }
+
+        @Override
+        protected synchronized ResourceLoader getLoader() {
+            if(loader == null)
+                loader = new TestLoader(this, app);
+            return loader;
+        }
+    }
+    
+    static class TestListener implements ResourceListener {
+        volatile Thread calledFrom;
+        public void resourceLoaded(ResourceRequest req) {
+            calledFrom = Thread.currentThread();
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        AppContext app = new AppContext();
+        app.conf = new Config();
+        LocalContext.getContext().app = app;
+        File dir = new File(System.getProperty("java.io.tmpdir"), "vle_loader");
+        String[] files = {"block.dat", "ioblock.dat", "p1.dat", "p2.dat", "p3.dat"};
+        new File(dir, "test").mkdirs();
+        for(int i=0; i<files.length; i++)
+            write(new File(dir, "test/"+files[i]), files[i]);
+        app.conf.design_path = dir.getPath();
+        app.conf.p_use_design_path = true;
+        app.conf.p_usecaching = false;
+        app.setRootGameState(new GameStateNode("root"));
+        app.glQueue = new ThreadTaskManager();
+        app.glQueue.setupManager(app);
+        
+        TestFinder finder = createFinder(app);
+        TestFolder folder = (TestFolder) finder.getFolderList().get(0);
+        
+        // hold up creating
+        ResourceRequest block = request(finder, "block.dat", null, LOW);
+        Checks.check(finder.decodeStarted.tryAcquire(5, TimeUnit.SECONDS), "creating started");
+        // hold up reading
+        ResourceRequest ioblock = request(finder, "ioblock.dat", null, LOW);
+        TestLoader loader = finder.loader;
+        Checks.check(loader.ioStarted.tryAcquire(5, TimeUnit.SECONDS), "reading started");
+        
+        ParameterMap params = new ParameterMap();
+        params.put("variant", 1);
+        ParameterMap same = new ParameterMap();
+        same.put("variant", 1);
+        TestListener listener = new TestListener();
+        ResourceRequest p1 = finder.requestResource("p1.dat", ResourceFinder.RESOURCE_FILE, null, LOW, listener);
+        ResourceRequest p2 = request(finder, "p2.dat", null, LOW);
+        ResourceRequest p3 = request(finder, "p3.dat", null, LOW);
+        ResourceRequest p1v = request(finder, "p1.dat", params, LOW);
+        Checks.check(request(finder, "p1.dat", null, LOW) == p1, "repeated request shares the request");
+        Checks.check(p1v != p1 && request(finder, "p1.dat", same, LOW) == p1v,
+                "request with other parameters is separate");
+        
+        // raise the priority while waiting for reading
+        Checks.check(request(finder, "p3.dat", null, 1) == p3 && p3.getPriority() == 1, 
+                "priority raised waiting for reading");
+        loader.ioGate.release();
+        long end = System.currentTimeMillis() + 5000;
+        while(loader.getWaitingForCreate() < 5 && System.currentTimeMillis() < end)
+            Thread.sleep(5);
+        Checks.check(loader.getWaitingForCreate() == 5, "all read, waiting for creating");
+        Checks.check(folder.getPrefetchedCount() == files.length, "files read in advance");
+        
+        // raise the priority while waiting for creating
+        Checks.check(request(finder, "p2.dat", null, 0) == p2 && p2.getPriority() == 0, 
+                "priority raised waiting for creating");
+        finder.decodeGate.release();
+        ResourceRequest[] all = {block, ioblock, p1, p2, p3, p1v};
+        boolean done = true;
+        for(int i=0; i<all.length; i++)
+            done &= "loaded ".concat(all[i].getName()).equals(all[i].get(5000));
+        Checks.check(done, "all requests loaded");
+        
+        StringBuffer order = new StringBuffer();
+        for(int i=0; i<finder.created.size(); i++)
+            order.append(finder.created.get(i)).append(' ');
+        System.out.println("Created: "+order);
+        Checks.check(order.toString().equals("block.dat p2.dat p3.dat ioblock.dat p1.dat p1.dat "),
+                "created in order of priority");
+        Checks.check(folder.getPrefetchedCount() == 0, "unused read files dropped");
+        
+        // the listener is called trough the task manager
+        Checks.check(listener.calledFrom == null, "listener waits for the OGL thread");
+        app.getGameStates().preRender(null);
+        Checks.check(listener.calledFrom == Thread.currentThread(), "listener called in the OGL thread");
+        TestListener late = new TestListener();
+        p1.addListener(late);
+        app.getGameStates().preRender(null);
+        Checks.check(late.calledFrom == Thread.currentThread(), "listener of a done request called");
+        loader.shutdown();
+        
+        // shutdown releases the waiting threads
+        finder = createFinder(app);
+        block = request(finder, "block.dat", null, LOW);
+        Checks.check(finder.decodeStarted.tryAcquire(5, TimeUnit.SECONDS), "creating started");
+        final ResourceRequest waiting = request(finder, "p1.dat", null, LOW);
+        final Object[] result = new Object[] { "none" };
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = waiting.get();
+                } catch (InterruptedException ex) {
+                }
+            }
+        };
+        waiter.start();
+        Thread.sleep(50);
+        Checks.check(waiter.isAlive(), "waiting for the request");
+        finder.loader.shutdown();
+        waiter.join(5000);
+        Checks.check(!waiter.isAlive() && result[0] == null && waiting.isDone(), 
+                "shutdown completes the waiting request with null");
+        Checks.check(block.get(5000) == null && block.isDone(), 
+                "shutdown completes the request being created with null");
+        
+        Checks.finish();
+    }
+    
+    static TestFinder createFinder(AppContext app) {
+        TestFinder finder = new TestFinder(app);
+        TestFolder folder = new TestFolder(app);
+        folder.setId("test");
+        folder.setDesignPath("test");
+        finder.getFolderList().add(folder);
+        return finder;
+    }
+    
+    static ResourceRequest request(ResourceFinder finder, String name, ParameterMap params, int priority) {
+        return finder.requestResource(name, ResourceFinder.RESOURCE_FILE, params, priority, null);
+    }
+    
+    static void write(File f, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(content.getBytes());
+        out.close();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2008 VL Engine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'VL Engine' nor the names of its contributors 
+ *   may be used to endorse or promote products derived from this software 
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.vlengine.test;
+
+import com.vlengine.app.AppContext;
+import com.vlengine.app.Config;
+import com.vlengine.app.frame.Frame;
+import com.vlengine.bounding.CollisionTree;
+import com.vlengine.math.Ray;
+import com.vlengine.math.Vector3f;
+import com.vlengine.model.Dome;
+import com.vlengine.scene.Mesh;
+import com.vlengine.scene.SetNode;
+import com.vlengine.scene.control.UpdateContext;
+import com.vlengine.thread.LocalContext;
+import com.vlengine.util.IntList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Headless test of picking with the sorted and unsorted AABB and sphere
+ * collision trees. The triangles hit by random rays must be the same as
+ * found by testing every triangle.
+ * 
+ * @author vear (Arpad Vekas)
+ */
+public class Test089SortedCollisionTree {
+
+    static final int RAYS = 2000;
+    
+    public static void main(String[] args) {
+        AppContext app = new AppContext();
+        app.conf = new Config();
+        LocalContext.getContext().app = app;
+        
+        Dome dome = new Dome(new Vector3f(), 40, 64, 20);
+        SetNode root = new SetNode("root");
+        Mesh mesh = new Mesh("dome");
+        mesh.getLocalRotation().fromAngleAxis(0.3f, new Vector3f(1,1,0).normalizeLocal());
+        mesh.getLocalTranslation().set(5, 0, -3);
+        root.attachChild(mesh);
+        Frame f = new Frame(0, app);
+        UpdateContext uctx = f.getUpdateContext();
+        uctx.frame = f;
+        root.updateGeometricState(uctx, true);
+        
+        // random rays aimed at the dome
+        Random rnd = new Random(1);
+        Ray[] rays = new Ray[RAYS];
+        for(int i=0; i<RAYS; i++) {
+            Vector3f o = new Vector3f(rnd.nextFloat()-0.5f, rnd.nextFloat()-0.5f, rnd.nextFloat()-0.5f)
+                    .normalizeLocal().multLocal(100);
+            Vector3f t = new Vector3f((rnd.nextFloat()-0.5f)*60, (rnd.nextFloat()-0.5f)*60, (rnd.nextFloat()-0.5f)*60);
+            rays[i] = new Ray(o, t.subtractLocal(o).normalizeLocal());
+        }
+        
+        // the reference, testing every triangle in world space
+        int tris = dome.getTriangleCount();
+        Vector3f[] v = new Vector3f[3];
+        Vector3f[][] world = new Vector3f[tris][3];
+        for(int t=0; t<tris; t++) {
+            dome.getTriangle(t, v);
+            for(int k=0; k<3; k++)
+                world[t][k] = mesh.localToWorld(v[k], null);
+        }
+        IntList ref = new IntList();
+        for(int i=0; i<RAYS; i++) {
+            for(int t=0; t<tris; t++) {
+                if(rays[i].intersect(world[t][0], world[t][1], world[t][2]))
+                    ref.add(i*tris + t);
+            }
+        }
+        int[] refHits = sorted(ref);
+        Checks.check(refHits.length > 0, "rays hit the dome");
+        
+        int[] types = {CollisionTree.AABB_TREE, CollisionTree.SPHERE_TREE};
+        String[] names = {"AABB_TREE", "SPHERE_TREE"};
+        IntList hits = new IntList();
+        IntList all = new IntList();
+        for(int k=0; k<types.length; k++) {
+            for(int s=0; s<2; s++) {
+                boolean sort = s == 1;
+                CollisionTree tree = new CollisionTree(types[k]);
+                tree.construct(dome, sort);
+                all.clear();
+                for(int i=0; i<RAYS; i++) {
+                    LocalContext.getContext().ctbstack.clear();
+                    hits.clear();
+                    tree.intersect(rays[i], hits, mesh, null);
+                    for(int h=0; h<hits.size(); h++)
+                        all.add(i*tris + hits.get(h));
+                }
+                Checks.check(Arrays.equals(refHits, sorted(all)), 
+                        names[k]+(sort ? " sorted" : "")+" finds the same "+refHits.length+" hits");
+            }
+        }
+        Checks.finish();
+    }
+    
+    static int[] sorted(IntList l) {
+        int[] a = new int[l.size()];
+        for(int i=0; i<a.length; i++)
+            a[i] = l.get(i);
+        Arrays.sort(a);
+        return a;
+    }
+}
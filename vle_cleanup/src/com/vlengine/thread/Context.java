@@ -35,16 +35,20 @@ package com.vlengine.thread;
 import com.vlengine.app.AppContext;
 import com.vlengine.bounding.BoundingBox;
 import com.vlengine.bounding.ReuseManager;
+import com.vlengine.bounding.SweepResult;
 import com.vlengine.bounding.TreeComparator;
 import com.vlengine.intersection.IntersectionRecord;
 import com.vlengine.math.Matrix3f;
 import com.vlengine.math.Matrix4f;
 import com.vlengine.math.Quaternion;
+import com.vlengine.math.Ray;
 import com.vlengine.math.Vector2f;
 import com.vlengine.math.Vector3f;
 import com.vlengine.renderer.CullContext;
+import com.vlengine.scene.Spatial;
 import com.vlengine.util.BitSet;
 import com.vlengine.util.FastList;
+import com.vlengine.util.IntList;
 import com.vlengine.util.geom.BufferUtils;
 import java.nio.FloatBuffer;
 
@@ -127,6 +131,19 @@ public class Context {
 	 public final Vector3f[] ctverts = new Vector3f[3];
 	 public final Vector3f[] cttarget = new Vector3f[3];
          public final ReuseManager ctbstack = new ReuseManager();
+         // tmp variables for CollisionBVH
+         public final float[] ctmatA = new float[12];
+         public final float[] ctmatB = new float[12];
+         public final float[] ctboundA = new float[6];
+         public final float[] ctboundB = new float[6];
+         public final Quaternion ctquat = new Quaternion();
+         public final Ray ctray = new Ray();
+         // node pairs stack, grown when needed
+         public int[] ctstack = new int[256];
+         // tmp variables for CollisionBroadphase
+         public final float[] cbpbox = new float[6];
+         public int[] cbpstack = new int[64];
+         public final FastList<Spatial> cbpresult = new FastList<Spatial>();
 
 	//Comparator used to sort triangle indices
 	 public final TreeComparator comparator = new TreeComparator();
@@ -163,6 +180,34 @@ public class Context {
           
           // tmp data for CollisionVolume
           public final Vector3f[] tCollisionVolumeVerts = new Vector3f[3];
+          // the colliding cells found by CollisionVolumeEngine
+          public final IntList cvhits = new IntList();
+          
+          // tmp data for XBoneAnimation, decoding compressed keys
+          public final Quaternion xbaRot = new Quaternion();
+          public final Vector3f xbaTrans = new Vector3f();
+          public final Vector3f xbaScale = new Vector3f();
+          
+          // tmp data for CharacterSweep
+          // the start, motion and half size of the swept shape, and the
+          // bounds of the sweep
+          public final float[] swquery = new float[15];
+          // a triangle in world space, the corners of a face of cells,
+          // the runs of faces of cells
+          public final float[] swtri = new float[9];
+          public final float[] swcell = new float[12];
+          public final int[] swrun = new int[4];
+          // the segment of a capsule, closest points and contact normal
+          public final float[] swseg = new float[6];
+          public final float[] swclosest = new float[12];
+          public final float[] swnormal = new float[3];
+          public final Matrix3f swmat = new Matrix3f();
+          public final BoundingBox swbox = new BoundingBox();
+          public final Vector3f[] swverts = new Vector3f[3];
+          public final IntList swtris = new IntList();
+          public final FastList<Spatial> swcand = new FastList<Spatial>();
+          public final Vector3f swmotion = new Vector3f();
+          public final SweepResult swstep = new SweepResult();
           
           // tp data for Spatial
           public final Quaternion tSpatialq1 = new Quaternion();
@@ -36,11 +36,12 @@
 
 package com.vlengine.util;
 
+import java.util.Arrays;
 import java.util.Comparator;
 
 /**
  * Quick and merge sort implementations that create no garbage, unlike {@link
- * Arrays#sort}. The merge sort is stable, the quick sort is not.
+ * Arrays#sort}. The merge and radix sorts are stable, the quick sort is not.
  * 
  * @author vear (Arpad Vekas)
  */
@@ -236,6 +237,64 @@ public class SortUtil
         }
     }
 
+    /** The size of the histogram array needed by {@link #rsort}. */
+    public static final int RADIX_HISTOGRAM_SIZE = 8*256;
+
+    /**
+     * LSD radix sorts the first n keys as unsigned 64 bit values, moving the
+     * values along with their keys. The sort is stable and creates no garbage,
+     * the result is placed back into the keys and vals arrays.
+     *
+     * @param tkeys temporary array, at least n long.
+     * @param tvals temporary array, at least n long.
+     * @param hist temporary array of RADIX_HISTOGRAM_SIZE elements.
+     */
+    public static void rsort (long[] keys, int[] vals, long[] tkeys, int[] tvals,
+                              int n, int[] hist)
+    {
+        if (n < 2) {
+            return;
+        }
+        // build the histograms of all the 8 digits in one go
+        Arrays.fill(hist, 0, RADIX_HISTOGRAM_SIZE, 0);
+        for (int ii = 0; ii < n; ii++) {
+            long k = keys[ii];
+            for (int dd = 0; dd < 8; dd++) {
+                hist[(dd << 8) + (int)((k >>> (dd << 3)) & 0xFF)]++;
+            }
+        }
+
+        long[] sk = keys, dk = tkeys;
+        int[] sv = vals, dv = tvals;
+        for (int dd = 0; dd < 8; dd++) {
+            int base = dd << 8;
+            int shift = dd << 3;
+            // all the keys have the same digit, this pass would not change anything
+            if (hist[base + (int)((sk[0] >>> shift) & 0xFF)] == n) {
+                continue;
+            }
+            // convert counts to starting positions
+            for (int jj = 0, sum = 0; jj < 256; jj++) {
+                int c = hist[base + jj];
+                hist[base + jj] = sum;
+                sum += c;
+            }
+            for (int ii = 0; ii < n; ii++) {
+                long k = sk[ii];
+                int pos = hist[base + (int)((k >>> shift) & 0xFF)]++;
+                dk[pos] = k;
+                dv[pos] = sv[ii];
+            }
+            long[] tk = sk; sk = dk; dk = tk;
+            int[] tv = sv; sv = dv; dv = tv;
+        }
+        // the result ended in the temporary arrays
+        if (sk != keys) {
+            System.arraycopy(sk, 0, keys, 0, n);
+            System.arraycopy(sv, 0, vals, 0, n);
+        }
+    }
+
     /** The size at or below which we will use insertion sort because it's
      * probably faster. */
     private static final int INSERTION_SORT_THRESHOLD = 7;